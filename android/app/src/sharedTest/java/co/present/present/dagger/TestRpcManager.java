@@ -60,7 +60,7 @@ public class TestRpcManager extends RpcManager {
 
     public void setDefaultResponse() {
         setJoinedGroups(new JoinedGroupsResponse(new ArrayList<>(), null));
-        setNearbyGroupsResponse(new NearbyGroupsResponse(new ArrayList<>(), null));
+        setNearbyGroupsResponse(new NearbyGroupsResponse(new ArrayList<>(), null, null));
     }
 
     public void reset() {
@@ -238,7 +238,7 @@ public abstract class AcceptanceTest {
   private GroupResponse findGroupByTitle(final String title) {
     GroupResponse found = null;
     try {
-      NearbyGroupsResponse nb = groupService.getNearbyGroups(new NearbyGroupsRequest(location, null));
+      NearbyGroupsResponse nb = groupService.getNearbyGroups(new NearbyGroupsRequest(location, null, null, null));
       for (GroupResponse b : nb.nearbyGroups) {
         if (b.title.equals(title)) {
           if (found != null) {
@@ -558,7 +558,7 @@ public class GroupTest {
     // Log out.
     tests.setCurrentUser(AcceptanceTest.UNREGISTERED_USER);
     NearbyGroupsResponse nearbyGroups = tests.groupService.getNearbyGroups(new NearbyGroupsRequest(
-        present.server.model.util.Coordinates.SAN_FRANCISCO.toProto(), null));
+        present.server.model.util.Coordinates.SAN_FRANCISCO.toProto(), null, null, null));
     tests.groupService.getPastComments(new PastCommentsRequest(groupId));
     tests.groupService.findLiveServer(new FindLiveServerRequest(groupId));
     tests.groupService.getFeedHtml(new FeedHtmlRequest(null));
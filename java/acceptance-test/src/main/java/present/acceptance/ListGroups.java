@@ -26,7 +26,7 @@ public class ListGroups {
     double latitude = 37.77151;
     double longitude = -122.3965447;
     NearbyGroupsResponse nearbyGroups = bs.getNearbyGroups(
-        new NearbyGroupsRequest(new Coordinates(latitude, longitude, 0d), null));
+        new NearbyGroupsRequest(new Coordinates(latitude, longitude, 0d), null, null, null));
 
     for (GroupResponse bubble : nearbyGroups.nearbyGroups) {
       double x = bubble.location.latitude - latitude;
@@ -71,7 +71,7 @@ public class LiveServerAcceptanceTest {
       waitFor(listener.readyLatch);
 
       bs.dispatchComment(new DispatchCommentRequest(clientId, groupId,
-          ByteString.of(CommentResponse.ADAPTER.encode(comment)), null));
+          ByteString.of(CommentResponse.ADAPTER.encode(comment)), null, null, null));
 
       // Make sure it came out the other side.
       CommentResponse actual = listener.comments.poll(5, TimeUnit.SECONDS);
@@ -47,10 +47,18 @@ public class AppEngineApiModule extends ServletModule {
     filter("/*").through(CorsFilter.class);
     bind(CorsFilter.class).in(Singleton.class);
 
+    // Logs in-memory stats from every instance.
+    filter("/*").through(InstanceStatsFilter.class);
+    bind(InstanceStatsFilter.class).in(Singleton.class);
+
     // Objectify
     filter("/*").through(ObjectifyFilter.class);
     bind(ObjectifyFilter.class).in(Singleton.class);
 
+    // Internal RPCs only the task queue may call.
+    filter("/api/GroupService/fanOutComment").through(TaskQueueFilter.class);
+    bind(TaskQueueFilter.class).in(Singleton.class);
+
     // Present API
     serve("/api/*").with(AppEngineRpcServlet.class);
 
@@ -1,11 +1,17 @@
 package present.server;
 
-import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.RetryOptions;
+import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Streams;
 import com.google.common.hash.BloomFilter;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.Ref;
 import com.squareup.wire.Wire;
@@ -15,12 +21,15 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 import okio.ByteString;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import present.live.client.InternalLiveClient;
+import present.live.client.CommentCoalescer;
+import present.live.client.LiveNode;
 import present.proto.ActivityType;
 import present.proto.CitiesResponse;
 import present.proto.CommentRequest;
@@ -33,6 +42,7 @@ import present.proto.DirectGroupsResponse;
 import present.proto.DispatchCommentRequest;
 import present.proto.Empty;
 import present.proto.ExploreHtmlRequest;
+import present.proto.FanOutCommentRequest;
 import present.proto.FeedEntry;
 import present.proto.FeedHtmlRequest;
 import present.proto.FeedRequest;
@@ -59,7 +69,6 @@ import present.proto.JoinGroupResponse;
 import present.proto.JoinedGroupsRequest;
 import present.proto.JoinedGroupsResponse;
 import present.proto.LeaveGroupRequest;
-import present.proto.LiveService;
 import present.proto.MarkReadRequest;
 import present.proto.MembersRequest;
 import present.proto.MembershipRequest;
@@ -83,6 +92,7 @@ import present.proto.UnreadState;
 import present.server.email.PresentEmail;
 import present.server.model.Space;
 import present.server.model.activity.Event;
+import present.server.model.activity.Events;
 import present.server.model.activity.GroupReferral;
 import present.server.model.activity.GroupReferrals;
 import present.server.model.comment.Comment;
@@ -122,7 +132,6 @@ import present.wire.rpc.core.ServerException;
 import static com.googlecode.objectify.ObjectifyService.ofy;
 import static java.util.stream.Collectors.toList;
 import static present.server.Protos.EMPTY;
-import static present.server.environment.Environment.isProduction;
 import static present.server.model.PresentEntities.expected;
 
 /**
@@ -138,14 +147,14 @@ public class AppEngineGroupService implements GroupService {
 
   private static final Logger logger = LoggerFactory.getLogger(AppEngineGroupService.class);
 
-  @Override public NearbyGroupsResponse getNearbyGroups(NearbyGroupsRequest request) {
+  @Override @ReadOnly public NearbyGroupsResponse getNearbyGroups(NearbyGroupsRequest request) {
     User user = Users.current(false);
     Iterable<String> mutedGroups = Groups.getMutedGroups(user);
-    List<Group> groups = GroupSearch
+    GroupSearch search = page(GroupSearch
         .near(location(request.location))
         .space(Space.selected(request.spaceId))
-        .using(GroupRanker.EXPLORE)
-        .limit(150)
+        .using(GroupRanker.EXPLORE), request.cursor, request.pageSize, 150);
+    List<Group> groups = search
         .run()
         .stream()
         .map(RankedGroup::group)
@@ -156,7 +165,18 @@ public class AppEngineGroupService implements GroupService {
         .collect(toList());
     logger.info("Converted groups to responses in {}.", sw);
     return new NearbyGroupsResponse(responses,
-        new MutedGroupsResponse(Lists.newArrayList(mutedGroups)));
+        new MutedGroupsResponse(Lists.newArrayList(mutedGroups)), search.nextCursor());
+  }
+
+  /**
+   * Pages through search results if the client sent a cursor or page size. Otherwise, returns
+   * a single page of up to {@code maxPageSize} groups, for clients that don't page.
+   */
+  private static GroupSearch page(GroupSearch search, String cursor, Integer pageSize,
+      int maxPageSize) {
+    if (cursor == null && pageSize == null) return search.limit(maxPageSize);
+    int size = pageSize == null ? maxPageSize : Math.max(1, Math.min(pageSize, maxPageSize));
+    return search.limit(size).page(cursor);
   }
 
   /** Returns the selected location or the actual location. */
@@ -180,7 +200,7 @@ public class AppEngineGroupService implements GroupService {
     return location;
   }
 
-  @Override public GroupResponse getGroup(GroupRequest request) {
+  @Override @ReadOnly public GroupResponse getGroup(GroupRequest request) {
     User user = Users.current(false);
     Group group = (Group) Groups.findByUuid(request.groupId);
     return group.toResponseFor(user);
@@ -428,13 +448,14 @@ public class AppEngineGroupService implements GroupService {
     }
 
     // Delete events associated with comment
-    List<Event> events = ofy().load().type(Event.class)
+    List<Key<Event>> events = ofy().load().type(Event.class)
         .filter(Event.Fields.defaultTarget.name(), comment.getRef())
         .list()
         .stream()
         .filter(e -> e.type == ActivityType.USER_COMMENTED_ON_GROUP)
+        .map(Key::create)
         .collect(Collectors.toList());
-    if (!events.isEmpty()) ofy().delete().entities(events);
+    Events.delete(events);
 
     // Dispatch deletion via Live Server.
     CommentResponse deleted = comment.toResponse().newBuilder()
@@ -442,11 +463,7 @@ public class AppEngineGroupService implements GroupService {
         .content(null)
         .comment("*deleted*")
         .build();
-    try {
-      dispatchComment(Users.current(), comment.group.get().uuid(), deleted).join();
-    } catch (InterruptedException e) {
-      logger.warn("Dispatching deletion interrupted.", e);
-    }
+    Futures.getUnchecked(dispatchComment(Users.current(), comment.group.get().uuid(), deleted));
 
     group.log(GroupLog.Entry.Type.DELETE_COMMENT);
 
@@ -479,10 +496,8 @@ public class AppEngineGroupService implements GroupService {
   }
 
   private FindLiveServerResponse findLiveServer(String groupId) {
-    // Port comes from LiveServer.DEFAULT_PORT.
-    if (isProduction()) return new FindLiveServerResponse("live.present.co", 8888);
-    //if (isDevelopment()) return new FindLiveServerResponse("local.present.co", 8888);
-    return new FindLiveServerResponse("live.staging.present.co", 8888);
+    LiveNode node = LiveServers.ownerOf(groupId);
+    return new FindLiveServerResponse(node.host, node.port);
   }
 
   @Override public JoinedGroupsResponse getJoinedGroups(JoinedGroupsRequest request) {
@@ -602,6 +617,107 @@ public class AppEngineGroupService implements GroupService {
     throw new UnsupportedOperationException("Implement!");
   }
 
+  /** Groups with more members than this fan comments out in the background. */
+  private static final int ASYNC_FAN_OUT_THRESHOLD
+      = Integer.getInteger("present.asyncFanOutThreshold", 200);
+
+  /** Number of members each background fan-out task notifies. */
+  private static final int FAN_OUT_PAGE_SIZE = 500;
+
+  /** Notifications are stale after this long, so we stop retrying fan-out tasks. */
+  private static final int FAN_OUT_AGE_LIMIT_SECONDS = (int) TimeUnit.HOURS.toSeconds(1);
+
+  /** How long we remember which pages we notified. Outlasts the retries. */
+  private static final Expiration FAN_OUT_PAGE_EXPIRATION = Expiration.byDeltaSeconds(
+      (int) TimeUnit.HOURS.toSeconds(6));
+
+  /** Fans out comments. Retries failed pages. See {@link #fanOutComment}. */
+  private static final GroupService fanOutQueue = RpcQueue.to(GroupService.class)
+      .with(TaskOptions.Builder.withRetryOptions(
+          RetryOptions.Builder.withTaskAgeLimitSeconds(FAN_OUT_AGE_LIMIT_SECONDS)))
+      .create();
+
+  private static void enqueueFanOut(FanOutCommentRequest request) {
+    try {
+      fanOutQueue.fanOutComment(request);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** Creates a notifier for a comment from author to the given members. */
+  private static Notifier notifierFor(Group group, User author, List<Key<User>> memberKeys,
+      boolean ignoreMuting) {
+    return ignoreMuting
+        ? Notifier.from(author).toKeys(memberKeys)
+        : group.notifierFrom(author, memberKeys);
+  }
+
+  /**
+   * Notifies members of a large group about a comment. The first request splits the members into
+   * pages and enqueues a request for each, so the pages run concurrently.
+   *
+   * <p>The task queue retries failed pages. We remember pages we finished notifying, keyed by
+   * comment and page, so a retry or a duplicate task doesn't notify them again. A page that
+   * fails partway through may notify some members twice.
+   */
+  @Override @Internal public Empty fanOutComment(FanOutCommentRequest request) {
+    Group group = Groups.findByUuid(request.groupId);
+    if (request.memberIds.isEmpty()) {
+      List<FanOutCommentRequest> pages = fanOutPages(request, group.memberKeys().stream()
+          .map(Key::getName)
+          .collect(toList()));
+      RpcQueue.batch(() -> pages.forEach(AppEngineGroupService::enqueueFanOut));
+      logger.info("Enqueued {} pages.", pages.size());
+      return Protos.EMPTY;
+    }
+
+    MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+    String pageKey = fanOutPageKey(request);
+    if (memcache.contains(pageKey)) {
+      logger.info("Already notified page {} of comment {}.", request.page, request.commentId);
+      return Protos.EMPTY;
+    }
+
+    Comment comment = ofy().load()
+        .key(Key.create(group.getKey(), Comment.class, request.commentId))
+        .now();
+    if (comment == null || comment.deleted) {
+      logger.info("Comment {} is gone.", request.commentId);
+      return Protos.EMPTY;
+    }
+    List<Key<User>> memberKeys = request.memberIds.stream()
+        .map(id -> Key.create(User.class, id))
+        .collect(toList());
+    Notifier notifier = notifierFor(group, comment.author.get(), memberKeys,
+        request.ignoreMuting == Boolean.TRUE);
+    Future<UnreadStates.Stats> markUnread
+        = notifier.unreadStates().markGroupUnreadAsync(group.uuid());
+    notifier.send(CommentNotifications.create(comment));
+    Futures.getUnchecked(markUnread);
+    memcache.put(pageKey, true, FAN_OUT_PAGE_EXPIRATION);
+    return Protos.EMPTY;
+  }
+
+  /** Splits the given members into numbered pages of the given fan-out request. */
+  static List<FanOutCommentRequest> fanOutPages(FanOutCommentRequest request,
+      List<String> memberIds) {
+    List<List<String>> pages = Lists.partition(memberIds, FAN_OUT_PAGE_SIZE);
+    List<FanOutCommentRequest> requests = new ArrayList<>(pages.size());
+    for (int i = 0; i < pages.size(); i++) {
+      requests.add(request.newBuilder()
+          .memberIds(pages.get(i))
+          .page(i)
+          .build());
+    }
+    return requests;
+  }
+
+  /** Memcache key that records we notified the given page. */
+  static String fanOutPageKey(FanOutCommentRequest request) {
+    return "FanOutComment:" + request.commentId + ":" + request.page;
+  }
+
   /** Sends a comment to the datastore and a live server concurrently. */
   private class SendGroupComment {
 
@@ -609,7 +725,7 @@ public class AppEngineGroupService implements GroupService {
     private final Coordinates location;
     private final User author;
     private final String commentId;
-    private Thread dispatchComment;
+    private Future<?> dispatchComment;
     private Comment comment;
     private Group group;
 
@@ -622,15 +738,22 @@ public class AppEngineGroupService implements GroupService {
 
     public void run() {
       this.group = Groups.findActiveByUuid(request.groupId);
-
-      // Kick off queries necessary to send notifications.
-      Notifier notifier;
-      if (request.ignoreMuting == Boolean.TRUE) { // could be null
+      boolean ignoreMuting = request.ignoreMuting == Boolean.TRUE; // could be null
+      if (ignoreMuting) {
         if (!author.isAdmin()) throw new ClientException("Admins only");
         logger.info("Ignoring muting.");
-        notifier = Notifier.from(author).toKeys(group.memberKeys());
-      } else {
-        notifier = group.notifierFrom(author);
+      }
+
+      // Fan out to large groups in the background, so the author doesn't wait on every member.
+      boolean fanOutLater = group.memberCount > ASYNC_FAN_OUT_THRESHOLD;
+
+      // Kick off queries necessary to send notifications, and start loading unread states while
+      // we save the comment.
+      Notifier notifier = null;
+      UnreadStates unreadStates = null;
+      if (!fanOutLater) {
+        notifier = notifierFor(group, author, group.memberKeys(), ignoreMuting);
+        unreadStates = notifier.unreadStates();
       }
 
       // Automatically save (join) the group if needed when the users posts.
@@ -652,17 +775,21 @@ public class AppEngineGroupService implements GroupService {
       // Record the comment in the group log.
       group.log(GroupLog.Entry.Type.COMMENT);
 
-      // Increment badge counts.
-      notifier.unreadStates().markGroupUnread(group.uuid());
+      if (fanOutLater) {
+        logger.info("Fanning out to {} members in the background.", group.memberCount);
+        enqueueFanOut(new FanOutCommentRequest(group.uuid(), commentId,
+            Collections.emptyList(), ignoreMuting, null));
+      } else {
+        // Increment badge counts. Finish updating the cache after we send notifications.
+        Future<UnreadStates.Stats> markUnread = unreadStates.markGroupUnreadAsync(group.uuid());
 
-      // Send the notification.
-      notifier.send(CommentNotifications.create(comment));
+        // Send the notification.
+        notifier.send(CommentNotifications.create(comment));
 
-      try {
-        this.dispatchComment.join();
-      } catch (InterruptedException e) {
-        throw new RuntimeException(e);
+        Futures.getUnchecked(markUnread);
       }
+
+      Futures.getUnchecked(this.dispatchComment);
     }
 
     /** Saved the comment. Returns true if the comment was created. */
@@ -708,8 +835,17 @@ public class AppEngineGroupService implements GroupService {
     }
   }
 
-  /** Sends this comment to a live server. */
-  private Thread dispatchComment(final User author, final String groupId,
+  /**
+   * Coalesces comments bound for the same live server into batches. Batches are sent from the
+   * coalescer's own threads. Each request waits for its comments' batches.
+   */
+  private static final CommentCoalescer liveComments = new CommentCoalescer();
+
+  /**
+   * Sends this comment to the group's live server, or servers while they're rebalancing. The
+   * returned future completes once the comment's batches have been sent.
+   */
+  private Future<?> dispatchComment(final User author, final String groupId,
       final CommentResponse comment) {
     final String clientUuid = RequestHeaders.current().clientUuid; // depends on thread context
 
@@ -717,21 +853,16 @@ public class AppEngineGroupService implements GroupService {
     final @Nullable BloomFilter<Ref<User>> blockedUsersFilter =
         BlockedUsersFilter.getFilterFor(author);
 
-    Thread thread = ThreadManager.createThreadForCurrentRequest(() -> {
-      try {
-        FindLiveServerResponse flsr = findLiveServer(groupId);
-        String url = "https://" + flsr.host + ":" + flsr.port + "/api";
-        LiveService liveService = InternalLiveClient.connectTo(url);
-        ByteString encodedComment = ByteString.of(CommentResponse.ADAPTER.encode(comment));
-        @Nullable ByteString encodedFilter = BloomFilters.toByteString(blockedUsersFilter);
-        liveService.dispatchComment(
-            new DispatchCommentRequest(clientUuid, groupId, encodedComment, encodedFilter));
-      } catch (Exception e) {
-        logger.error("Error dispatching comment.", e);
-      }
-    });
-    thread.start();
-    return thread;
+    ByteString encodedComment = ByteString.of(CommentResponse.ADAPTER.encode(comment));
+    @Nullable ByteString encodedFilter = BloomFilters.toByteString(blockedUsersFilter);
+    // Index and deletion flag let live servers replay comments to clients that reconnect.
+    DispatchCommentRequest request = new DispatchCommentRequest(clientUuid, groupId,
+        encodedComment, encodedFilter, comment.index, comment.deleted);
+    List<ListenableFuture<Void>> sent = new ArrayList<>();
+    for (LiveNode node : LiveServers.ownersOf(groupId)) {
+      sent.add(liveComments.dispatch(node.apiUrl(), request));
+    }
+    return Futures.allAsList(sent);
   }
 
   @Override public Empty inviteFriends(InviteFriendsRequest request) throws IOException {
@@ -779,8 +910,10 @@ public class AppEngineGroupService implements GroupService {
   }
 
   @Override public Empty markRead(MarkReadRequest request) {
+    Uuids.validate(request.groupId);
     User user = Users.current();
     Group group = Groups.findByUuid(request.groupId);
+    if (group == null) throw new ClientException("Group not found: " + request.groupId);
     GroupView view = group.getOrCreateView(user);
     // The index of the last read comment should only move forward.
     int lastRead = view.lastRead();
@@ -791,7 +924,7 @@ public class AppEngineGroupService implements GroupService {
       // The group is fully read.
       // If the user is the owner and the group has pending join requests, keep it unread.
       if (!user.equals(group.owner.get()) || group.joinRequests <= 0) {
-        UnreadState state = UnreadStates.markGroupRead(user, request.groupId);
+        UnreadState state = UnreadStates.markGroupRead(user, group.uuid());
         Notifier.sendBadgeCounts(user, state);
       }
     }
@@ -829,27 +962,27 @@ public class AppEngineGroupService implements GroupService {
     }).toResponseFor(user);
   }
 
-  @Override public HtmlResponse getExploreHtml(ExploreHtmlRequest request) {
+  @Override @ReadOnly public HtmlResponse getExploreHtml(ExploreHtmlRequest request) {
     return GroupsHtml.getHome(Space.selected(request.spaceId), location());
   }
 
-  @Override public HtmlResponse getFeedHtml(FeedHtmlRequest request) {
+  @Override @ReadOnly public HtmlResponse getFeedHtml(FeedHtmlRequest request) {
     return GroupsHtml.getFeedHtml(Space.selected(request.spaceId), location());
   }
 
-  @Override public FeedResponse getFeed(FeedRequest request) throws IOException {
+  @Override @ReadOnly public FeedResponse getFeed(FeedRequest request) throws IOException {
     User user = Users.current(false);
-    List<FeedEntry> entries = GroupSearch
+    GroupSearch search = page(GroupSearch
         .near(location())
         .space(Space.selected(request.spaceId))
-        .using(GroupRanker.NEARBY_FEED_BY_TIME)
-        .limit(100)
+        .using(GroupRanker.NEARBY_FEED_BY_TIME), request.cursor, request.pageSize, 100);
+    List<FeedEntry> entries = search
         .run()
         .stream()
         .map(RankedGroup::group)
         .map(g -> toEntry(user, g))
         .collect(toList());
-    return new FeedResponse(entries);
+    return new FeedResponse(entries, search.nextCursor());
   }
 
   private static FeedEntry toEntry(User user, Group group) {
@@ -37,6 +37,8 @@ import present.wire.rpc.server.RpcServlet;
       PhoneServiceImpl phoneService,
       AppEngineRpcFilterChain filter
   ) {
+    // Asynchronous methods may complete on other threads.
+    propagate(RequestHeaders.threadLocal());
     service(RequestHeader.class, GroupService.class, groupService, filter, ImmutableMap.of(
         "saveGroup", "joinGroup",
         "unsaveGroup", "leaveGroup",
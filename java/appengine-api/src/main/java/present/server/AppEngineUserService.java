@@ -90,6 +90,7 @@ import present.server.model.user.BlockedUsers;
 import present.server.model.user.Client;
 import present.server.model.user.Clients;
 import present.server.model.user.Contact;
+import present.server.model.user.DeviceRegistry;
 import present.server.model.user.Friendship;
 import present.server.model.user.IosVersion;
 import present.server.model.user.PhoneToUser;
@@ -757,6 +758,8 @@ public class AppEngineUserService implements UserService {
     User delete = userFrom(request);
     if (!current.equals(delete) && !current.isAdmin()) throw new ClientException("Not authorized.");
     delete.transitionTo(UserState.DELETED);
+    // Drop the deleted user's cached devices.
+    DeviceRegistry.invalidate(delete.getKey());
     return Protos.EMPTY;
   }
 
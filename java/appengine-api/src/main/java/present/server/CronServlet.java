@@ -14,7 +14,9 @@ import present.server.model.group.Group;
 import present.server.model.group.JoinedGroups;
 import present.server.model.user.Client;
 import present.server.model.user.User;
+import present.server.notification.ApnsServices;
 import present.server.notification.Notifications;
+import present.server.notification.Notifier;
 
 import static present.server.model.PresentEntities.loadRandomSubset;
 
@@ -35,6 +37,8 @@ public class CronServlet extends HttpServlet {
     if (request.getServletPath().equalsIgnoreCase("/hourly")) {
       logger.info("CronServlet: Hourly");
       Notifications.clearFailedTokens();
+      logger.info("APNs: {}", ApnsServices.stats());
+      logger.info("FCM: {}", Notifier.fcmStats());
     }
 
     if (request.getServletPath().equalsIgnoreCase("/nightly")) {
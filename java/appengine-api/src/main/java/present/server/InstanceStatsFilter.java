@@ -0,0 +1,58 @@
+package present.server;
+
+import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.ObjectifyService;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import present.server.model.user.UnreadStates;
+
+/**
+ * Logs statistics that each instance keeps in memory, such as local cache hit rates and unread
+ * state recomputes. Cron only reaches one instance, so instead every instance logs its own
+ * statistics from a request at most once per {@link #INTERVAL}. Request logs identify the
+ * instance. Counts are cumulative since the instance started; to aggregate, sum the last line
+ * from each instance.
+ */
+public class InstanceStatsFilter implements Filter {
+
+  private static final Logger logger = LoggerFactory.getLogger(InstanceStatsFilter.class);
+
+  private static final long INTERVAL = TimeUnit.MINUTES.toMillis(15);
+
+  /** When we last logged. The first log comes a full interval after startup. */
+  private final AtomicLong loggedAt = new AtomicLong(System.currentTimeMillis());
+
+  @Override public void init(FilterConfig filterConfig) {}
+
+  @Override public void doFilter(ServletRequest request, ServletResponse response,
+      FilterChain chain) throws IOException, ServletException {
+    try {
+      chain.doFilter(request, response);
+    } finally {
+      long now = System.currentTimeMillis();
+      long last = loggedAt.get();
+      // Only one request logs per interval.
+      if (now - last >= INTERVAL && loggedAt.compareAndSet(last, now)) log();
+    }
+  }
+
+  private static void log() {
+    ObjectifyFactory factory = ObjectifyService.factory();
+    if (factory instanceof PresentObjectifyFactory) {
+      logger.info("Local entity cache: {}",
+          ((PresentObjectifyFactory) factory).localCacheStats());
+    }
+    logger.info("Re-computed {} unread states.", UnreadStates.recomputeCount());
+  }
+
+  @Override public void destroy() {}
+}
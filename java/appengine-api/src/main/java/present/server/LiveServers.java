@@ -0,0 +1,43 @@
+package present.server;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import java.util.Collections;
+import java.util.Set;
+import present.live.client.LiveMembership;
+import present.live.client.LiveNode;
+import present.live.client.LiveRing;
+
+import static present.server.environment.Environment.isProduction;
+
+/**
+ * Maps groups to live servers. Set the {@code present.live.nodes} system property in
+ * appengine-web.xml to spread groups across several live servers.
+ *
+ * @see LiveMembership
+ */
+public class LiveServers {
+
+  private LiveServers() {}
+
+  private static final Supplier<LiveMembership> membership = Suppliers.memoize(
+      () -> LiveMembership.fromSystemProperties(LiveMembership.of(LiveRing.of(
+          Collections.singleton(defaultNode())))));
+
+  /** Port comes from LiveServer.DEFAULT_PORT. */
+  private static LiveNode defaultNode() {
+    if (isProduction()) return new LiveNode("live.present.co", 8888);
+    //if (isDevelopment()) return new LiveNode("local.present.co", 8888);
+    return new LiveNode("live.staging.present.co", 8888);
+  }
+
+  /** Returns the live server clients should connect to for the given group. */
+  public static LiveNode ownerOf(String groupId) {
+    return membership.get().ownerOf(groupId);
+  }
+
+  /** Returns the live servers that should receive comments for the given group. */
+  public static Set<LiveNode> ownersOf(String groupId) {
+    return membership.get().ownersOf(groupId);
+  }
+}
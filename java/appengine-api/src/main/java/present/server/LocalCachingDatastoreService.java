@@ -0,0 +1,238 @@
+package present.server;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import present.server.model.Futures;
+
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+
+/**
+ * Caches entities of specified kinds in this instance, in front of Objectify's memcache layer.
+ * Popular groups and their owners are loaded by nearly every request, and this saves a memcache
+ * round trip for each.
+ *
+ * <p>Cached entities can be a few seconds stale, so saving one would overwrite writes from
+ * other instances. Only code running in {@link #readOnly} reads from the cache, and it must not
+ * save the cached kinds. {@link ReadOnly} RPC methods run this way. Other loads bypass the cache.
+ *
+ * <p>We only cache reads outside of transactions. Like Objectify's memcache layer, we don't
+ * support implicit transactions. We invalidate entries when this instance puts or deletes them,
+ * so every save path (including {@link present.server.model.BasePresentEntity#save()})
+ * invalidates the cache. Writes from other instances show up when entries expire, so entries
+ * only live for a few seconds. Each load is stamped with the number of local writes to its key
+ * (striped by hash) when it started, and we don't cache the result if a write happened in the
+ * meantime, so a slow load can't overwrite a newer invalidation.
+ */
+public class LocalCachingDatastoreService extends ForwardingDatastoreService {
+
+  private static final Logger logger = LoggerFactory.getLogger(LocalCachingDatastoreService.class);
+
+  /** Number of write counters. A power of 2. */
+  private static final int STRIPES = 1024;
+
+  /** Set while read-only code runs on this thread. */
+  private static final ThreadLocal<Boolean> readOnly = new ThreadLocal<>();
+
+  private final Set<String> kinds;
+  private final Cache<Key, Entity> cache;
+  private final AtomicLongArray writes;
+
+  /** Wraps delegate with the given shared cache. */
+  public LocalCachingDatastoreService(AsyncDatastoreService delegate, Entries entries) {
+    super(delegate);
+    this.kinds = entries.kinds;
+    this.cache = entries.cache;
+    this.writes = entries.writes;
+  }
+
+  /**
+   * Runs the given code with reads from the local cache. The code must not save entities of
+   * the cached kinds.
+   */
+  public static <T> T readOnly(Callable<T> callable) throws Exception {
+    if (readOnly.get() != null) return callable.call();
+    readOnly.set(true);
+    try {
+      return callable.call();
+    } finally {
+      readOnly.remove();
+    }
+  }
+
+  @Override public Future<Entity> get(Key key) {
+    if (!readable(key)) return delegate.get(key);
+    Entity cached = cache.getIfPresent(key);
+    if (cached != null) return immediateFuture(cached.clone());
+    long version = version(key);
+    return Futures.map(delegate.get(key), entity -> {
+      if (entity != null) store(entity, version);
+      return entity;
+    });
+  }
+
+  @Override public Future<Entity> get(Transaction transaction, Key key) {
+    return transaction == null ? get(key) : delegate.get(transaction, key);
+  }
+
+  @Override public Future<Map<Key, Entity>> get(Iterable<Key> keys) {
+    Map<Key, Entity> hits = new LinkedHashMap<>();
+    List<Key> misses = new ArrayList<>();
+    Map<Key, Long> versions = new HashMap<>();
+    for (Key key : keys) {
+      Entity cached = readable(key) ? cache.getIfPresent(key) : null;
+      if (cached != null) {
+        hits.put(key, cached.clone());
+      } else {
+        misses.add(key);
+        if (readable(key)) versions.put(key, version(key));
+      }
+    }
+    if (misses.isEmpty()) return immediateFuture(hits);
+    return Futures.map(delegate.get(misses), loaded -> {
+      Map<Key, Entity> all = new LinkedHashMap<>(hits);
+      for (Entity entity : loaded.values()) {
+        Long version = versions.get(entity.getKey());
+        if (version != null) store(entity, version);
+      }
+      all.putAll(loaded);
+      return all;
+    });
+  }
+
+  @Override public Future<Map<Key, Entity>> get(Transaction transaction, Iterable<Key> keys) {
+    return transaction == null ? get(keys) : delegate.get(transaction, keys);
+  }
+
+  @Override public Future<Key> put(Entity entity) {
+    invalidate(entity.getKey());
+    return Futures.map(delegate.put(entity), this::invalidate);
+  }
+
+  @Override public Future<Key> put(Transaction transaction, Entity entity) {
+    invalidate(entity.getKey());
+    return Futures.map(delegate.put(transaction, entity), this::invalidate);
+  }
+
+  @Override public Future<List<Key>> put(Iterable<Entity> entities) {
+    entities.forEach(e -> invalidate(e.getKey()));
+    return Futures.map(delegate.put(entities), this::invalidateAll);
+  }
+
+  @Override public Future<List<Key>> put(Transaction transaction, Iterable<Entity> entities) {
+    entities.forEach(e -> invalidate(e.getKey()));
+    return Futures.map(delegate.put(transaction, entities), this::invalidateAll);
+  }
+
+  @Override public Future<Void> delete(Key... keys) {
+    invalidateAll(Arrays.asList(keys));
+    return delegate.delete(keys);
+  }
+
+  @Override public Future<Void> delete(Transaction transaction, Key... keys) {
+    invalidateAll(Arrays.asList(keys));
+    return delegate.delete(transaction, keys);
+  }
+
+  @Override public Future<Void> delete(Iterable<Key> keys) {
+    invalidateAll(keys);
+    return delegate.delete(keys);
+  }
+
+  @Override public Future<Void> delete(Transaction transaction, Iterable<Key> keys) {
+    invalidateAll(keys);
+    return delegate.delete(transaction, keys);
+  }
+
+  private boolean cacheable(Key key) {
+    return key.isComplete() && kinds.contains(key.getKind());
+  }
+
+  /** Returns true if we can serve the given key from the cache. */
+  private boolean readable(Key key) {
+    return readOnly.get() != null && cacheable(key);
+  }
+
+  /** Returns the number of local writes to keys that share a stripe with the given key. */
+  private long version(Key key) {
+    return writes.get(stripe(key));
+  }
+
+  private static int stripe(Key key) {
+    return key.hashCode() & (STRIPES - 1);
+  }
+
+  /** Caches a copy of the given entity unless we wrote to its stripe since version. */
+  private void store(Entity entity, long version) {
+    Key key = entity.getKey();
+    Entity copy = entity.clone();
+    if (version(key) == version) {
+      cache.put(key, copy);
+      // Check again in case a write raced with the put.
+      if (version(key) != version) cache.invalidate(key);
+    }
+  }
+
+  private Key invalidate(Key key) {
+    if (cacheable(key)) {
+      if (readOnly.get() != null) {
+        logger.warn("Wrote {} from read-only code. It may have been stale.", key);
+      }
+      writes.incrementAndGet(stripe(key));
+      cache.invalidate(key);
+    }
+    return key;
+  }
+
+  private <T extends Iterable<Key>> T invalidateAll(T keys) {
+    keys.forEach(this::invalidate);
+    return keys;
+  }
+
+  /**
+   * Cached entities shared by every {@link LocalCachingDatastoreService} in this instance.
+   * Objectify creates a datastore service per session.
+   */
+  public static class Entries {
+
+    private static final int MAXIMUM_SIZE = 5_000;
+    private static final long TTL_SECONDS = 10;
+
+    private final Set<String> kinds;
+    private final Cache<Key, Entity> cache = CacheBuilder.newBuilder()
+        .maximumSize(MAXIMUM_SIZE)
+        .expireAfterWrite(TTL_SECONDS, TimeUnit.SECONDS)
+        .recordStats()
+        .build();
+
+    /** Counts local writes to cached keys, striped by key hash. */
+    private final AtomicLongArray writes = new AtomicLongArray(STRIPES);
+
+    /** Caches entities of the given kinds. */
+    public Entries(Set<String> kinds) {
+      this.kinds = kinds;
+    }
+
+    /** Returns hit and miss counts for this instance, since it started. */
+    public CacheStats stats() {
+      return cache.stats();
+    }
+  }
+}
@@ -20,12 +20,14 @@ import com.googlecode.objectify.impl.Path;
 import com.googlecode.objectify.impl.translate.SaveContext;
 import com.googlecode.objectify.impl.translate.Translator;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static com.google.appengine.api.datastore.Query.CompositeFilterOperator.and;
@@ -67,6 +69,27 @@ public class MoreObjectify {
     return Iterables.filter(() -> map.values().iterator(), Objects::nonNull);
   }
 
+  /** Datastore limits the number of values in an "in" filter. */
+  private static final int MAX_IN_VALUES = 30;
+
+  /**
+   * Runs an "in" query over any number of values, one query per batch that fits in the filter,
+   * and returns the combined results. Starts every query before waiting on any of them.
+   *
+   * @param query returns results for a batch of values without waiting for them, for example
+   *     {@code batch -> query.filter("field in", batch).list()}
+   */
+  public static <V, R> List<R> queryIn(Iterable<V> values, Function<List<V>, List<R>> query) {
+    List<List<R>> results = new ArrayList<>();
+    for (List<V> batch : Iterables.partition(values, MAX_IN_VALUES)) {
+      results.add(query.apply(batch));
+    }
+    if (results.size() == 1) return results.get(0);
+    List<R> all = new ArrayList<>();
+    for (List<R> batch : results) all.addAll(batch);
+    return all;
+  }
+
   /** Delays creation of a map. */
   public static <K, V> Map<K, V> lazyMap(Supplier<Map<K, V>> constructor) {
     Supplier<Map<K, V>> memoized = Suppliers.memoize(constructor);
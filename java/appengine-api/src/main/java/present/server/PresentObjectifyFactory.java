@@ -2,10 +2,12 @@ package present.server;
 
 import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceConfig;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableSet;
 import com.googlecode.objectify.ObjectifyFactory;
 import java.util.Set;
 import present.server.model.user.Friendship;
+import present.server.model.group.Group;
 import present.server.model.group.GroupMembership;
 import present.server.model.log.LoggingDatastoreService;
 import present.server.model.user.User;
@@ -23,11 +25,37 @@ public class PresentObjectifyFactory extends ObjectifyFactory {
       Friendship.class.getSimpleName()
   );
 
+  /**
+   * Hot kinds loaded by most requests. See {@link LocalCachingDatastoreService}. Don't add kinds
+   * that are updated outside of transactions from many instances at once, like GroupLog.
+   */
+  private static Set<String> LOCALLY_CACHED_KINDS = ImmutableSet.of(
+      User.class.getSimpleName(),
+      Group.class.getSimpleName()
+  );
+
+  private final LocalCachingDatastoreService.Entries localCache
+      = new LocalCachingDatastoreService.Entries(LOCALLY_CACHED_KINDS);
+
   public PresentObjectifyFactory() {
     // Translate Wire protos to byte[].
     getTranslators().addEarly(new WireTranslatorFactory());
   }
 
+  /**
+   * Returns hit and miss counts for this instance's local entity cache. Logged by
+   * {@link InstanceStatsFilter}.
+   */
+  public CacheStats localCacheStats() {
+    return localCache.stats();
+  }
+
+  @Override public AsyncDatastoreService createAsyncDatastoreService(DatastoreServiceConfig cfg,
+      boolean globalCache) {
+    AsyncDatastoreService service = super.createAsyncDatastoreService(cfg, globalCache);
+    return globalCache ? new LocalCachingDatastoreService(service, localCache) : service;
+  }
+
   @Override
   protected AsyncDatastoreService createRawAsyncDatastoreService(DatastoreServiceConfig cfg) {
     return new LoggingDatastoreService(super.createRawAsyncDatastoreService(cfg), LOGGED_KINDS);
@@ -0,0 +1,12 @@
+package present.server;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Annotates RPC methods that never save the kinds in {@link LocalCachingDatastoreService}. Only
+ * these methods read from the instance's local entity cache, because a cached entity can be a
+ * few seconds stale, and saving it would overwrite writes from other instances.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ReadOnly {}
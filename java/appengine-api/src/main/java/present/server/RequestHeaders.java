@@ -22,6 +22,11 @@ public class RequestHeaders {
     return localRequestHeader.get();
   }
 
+  /** Returns the thread-local that holds request headers, so RPCs can carry it across threads. */
+  static ThreadLocal<RequestHeader> threadLocal() {
+    return localRequestHeader;
+  }
+
   public static boolean test;
 
   /**
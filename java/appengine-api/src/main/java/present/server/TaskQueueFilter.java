@@ -0,0 +1,43 @@
+package present.server;
+
+import java.io.IOException;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Only lets the task queue through. Use for internal RPCs that clients must never trigger, even
+ * with the {@link Internal#AUTHORIZATION_KEY}.
+ *
+ * <p>"The X-AppEngine-QueueName header is set internally by Google App Engine. If your request
+ * handler finds this header, it can trust that the request is a Task Queue request. If any of
+ * these headers are present in an external user request to your app, they are stripped."
+ */
+public class TaskQueueFilter implements Filter {
+
+  private static final Logger logger = LoggerFactory.getLogger(TaskQueueFilter.class);
+
+  private static final String QUEUE_NAME = "X-AppEngine-QueueName";
+
+  @Override public void init(FilterConfig filterConfig) {}
+
+  @Override public void doFilter(ServletRequest request, ServletResponse response,
+      FilterChain chain) throws IOException, ServletException {
+    HttpServletRequest httpRequest = (HttpServletRequest) request;
+    if (httpRequest.getHeader(QUEUE_NAME) == null) {
+      logger.warn("Rejected {} from outside the task queue.", httpRequest.getRequestURI());
+      ((HttpServletResponse) response).sendError(403);
+      return;
+    }
+    chain.doFilter(request, response);
+  }
+
+  @Override public void destroy() {}
+}
@@ -109,12 +109,8 @@ public class Time {
     return scaled + best.abbreviation;
   }
 
-  private static ZoneId PACIFIC = ZoneId.of("America/Los_Angeles");
-
   public static ZoneId zoneFor(S2LatLng location) {
-    if (location == null) return PACIFIC;
-    String id = TimezoneMapper.latLngToTimezoneString(location.latDegrees(), location.lngDegrees());
-    return ZoneId.of(id);
+    return TimeZones.zoneFor(location);
   }
 
   public static ZonedDateTime timeAt(S2LatLng location) {
@@ -124,7 +120,12 @@ public class Time {
 
   /** Returns true if it's between 8am and 10pm at the given location. */
   public static boolean isDaytime(S2LatLng location) {
-    ZonedDateTime now = timeAt(location);
+    return isDaytime(zoneFor(location));
+  }
+
+  /** Returns true if it's between 8am and 10pm in the given zone. */
+  public static boolean isDaytime(ZoneId zone) {
+    ZonedDateTime now = ZonedDateTime.ofInstant(Instant.now(), zone);
     int hour = now.get(ChronoField.CLOCK_HOUR_OF_DAY);
     return hour >= 8 && hour <= 22;
   }
@@ -0,0 +1,110 @@
+package present.server;
+
+import com.google.common.geometry.S2Cell;
+import com.google.common.geometry.S2CellId;
+import com.google.common.geometry.S2LatLng;
+import com.google.common.geometry.S2Point;
+import java.time.ZoneId;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maps locations to time zones. {@link TimezoneMapper} walks a 27k-line decision tree, and
+ * looking a zone up by name isn't free either, so we resolve every zone once up front and
+ * memoize zones by S2 cell. We sample each cell's corners, edge midpoints and center. If they
+ * disagree, the cell straddles a boundary, and we resolve points in it individually.
+ */
+public class TimeZones {
+
+  private static final Logger logger = LoggerFactory.getLogger(TimeZones.class);
+
+  /** Used when we don't know the location or the mapper doesn't know the zone. */
+  public static final ZoneId DEFAULT = ZoneId.of("America/Los_Angeles");
+
+  /** Level of memoized cells. Level 12 cells are about 2km across. */
+  static final int LEVEL = 12;
+
+  /**
+   * Bounds memory. We start over when we hit it. Users cluster, so this covers far more users
+   * than cells.
+   */
+  private static final int MAX_CELLS = 100_000;
+
+  /** Marks cells that contain more than one zone. */
+  private static final int MIXED = -1;
+
+  /** Zones indexed like TimezoneMapper.timezoneStrings. */
+  private static final ZoneId[] zones = resolveAll();
+
+  /** Zone indexes by cell ID. */
+  private static final Map<Long, Integer> cells = new ConcurrentHashMap<>();
+
+  private TimeZones() {}
+
+  /** Returns the time zone at the given location, or {@link #DEFAULT} if location is null. */
+  public static ZoneId zoneFor(S2LatLng location) {
+    if (location == null) return DEFAULT;
+    return zoneFor(S2CellId.fromLatLng(location), location);
+  }
+
+  /** Returns the time zone in the given cell. Use with leaf cells from the datastore. */
+  public static ZoneId zoneFor(S2CellId cellId) {
+    return zoneFor(cellId, null);
+  }
+
+  private static ZoneId zoneFor(S2CellId cellId, S2LatLng location) {
+    long parent = cellId.parent(LEVEL).id();
+    Integer cached = cells.get(parent);
+    int index;
+    if (cached == null) {
+      // Racing threads compute the same value.
+      index = indexFor(new S2CellId(parent));
+      if (cells.size() >= MAX_CELLS) cells.clear();
+      cells.put(parent, index);
+    } else {
+      index = cached;
+    }
+    if (index == MIXED) {
+      if (location == null) location = cellId.toLatLng();
+      index = TimezoneMapper.getTzInt((float) location.latDegrees(),
+          (float) location.lngDegrees());
+    }
+    return zones[index];
+  }
+
+  /** Returns the zone index shared by all samples from the given cell, or MIXED. */
+  private static int indexFor(S2CellId cellId) {
+    S2Cell cell = new S2Cell(cellId);
+    int index = indexAt(cell.getCenter());
+    for (int i = 0; i < 4; i++) {
+      S2Point vertex = cell.getVertex(i);
+      S2Point next = cell.getVertex((i + 1) % 4);
+      if (indexAt(vertex) != index || indexAt(S2Point.add(vertex, next)) != index) {
+        return MIXED;
+      }
+    }
+    return index;
+  }
+
+  private static int indexAt(S2Point point) {
+    S2LatLng latLng = new S2LatLng(point);
+    return TimezoneMapper.getTzInt((float) latLng.latDegrees(), (float) latLng.lngDegrees());
+  }
+
+  private static ZoneId[] resolveAll() {
+    String[] ids = TimezoneMapper.timezoneStrings;
+    ZoneId[] zones = new ZoneId[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      try {
+        zones[i] = ZoneId.of(ids[i]);
+      } catch (RuntimeException e) {
+        // "unknown" and any zones this JDK doesn't know.
+        if (i != 0) logger.warn("Unknown zone: {}", ids[i]);
+        zones[i] = DEFAULT;
+      }
+    }
+    return zones;
+  }
+}
@@ -421,7 +421,7 @@ public class TimezoneMapper {
             "America/Mazatlan"
     };
 
-    private static int getTzInt(float lat, float lng)
+    static int getTzInt(float lat, float lng)
     {
         if (lng < 7.123472f)
             return call50(lat,lng);
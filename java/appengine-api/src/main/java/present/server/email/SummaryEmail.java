@@ -25,13 +25,13 @@ import present.server.Mustaches;
 import present.server.Time;
 import present.server.environment.Environment;
 import present.server.model.activity.Event;
+import present.server.model.activity.Events;
 import present.server.model.comment.GroupView;
 import present.server.model.comment.GroupViews;
 import present.server.model.group.Group;
 import present.server.model.user.User;
 
 import static present.server.Time.epochWeek;
-import static com.googlecode.objectify.ObjectifyService.ofy;
 
 /**
  * Summarizes activity for a user.
@@ -79,11 +79,7 @@ public class SummaryEmail {
     this.user = user;
 
     // Everything we need is in the activity feed!
-    List<Event> events = ofy().load()
-        .type(Event.class)
-        .filter("user", user)
-        .filter("createdTimeIndex >=", since)
-        .list();
+    List<Event> events = Events.forUser(user, since, null, Integer.MAX_VALUE);
 
     Multimap<ActivityType, Event> byType = Multimaps.index(events, e -> e.type);
     this.friendSummaries = byType.get(ActivityType.FRIEND_JOINED_PRESENT).stream()
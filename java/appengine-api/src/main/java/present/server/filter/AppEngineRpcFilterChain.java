@@ -15,12 +15,15 @@ public class AppEngineRpcFilterChain extends RpcFilterChain {
       InternalFilter internalFilter,
       NamespaceFilter namespaceFilter,
       HeaderFilter headerFilter,
-      UserFilter userFilter
+      UserFilter userFilter,
+      ReadOnlyFilter readOnlyFilter
   ) {
     add(oopsFilter);
     add(internalFilter);
     add(namespaceFilter);
     add(headerFilter);
     add(userFilter);
+    // Innermost, so the current user isn't loaded from the local cache.
+    add(readOnlyFilter);
   }
 }
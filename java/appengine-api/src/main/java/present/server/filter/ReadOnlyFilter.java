@@ -0,0 +1,17 @@
+package present.server.filter;
+
+import present.server.LocalCachingDatastoreService;
+import present.server.ReadOnly;
+import present.wire.rpc.core.RpcFilter;
+import present.wire.rpc.core.RpcInvocation;
+
+/** Lets {@link ReadOnly} RPC methods read from the local entity cache. */
+public class ReadOnlyFilter implements RpcFilter {
+
+  @Override public Object filter(RpcInvocation invocation) throws Exception {
+    if (invocation.getImplementationMethod().getAnnotation(ReadOnly.class) != null) {
+      return LocalCachingDatastoreService.readOnly(invocation::proceed);
+    }
+    return invocation.proceed();
+  }
+}
@@ -5,6 +5,7 @@ import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * Future utilities.
@@ -38,4 +39,45 @@ public class Futures {
       }
     };
   }
+
+  /**
+   * Returns a future that calls the given supplier the first time someone gets its value. Lets
+   * callers do other work before waiting on a multi-step operation.
+   */
+  public static <T> Future<T> lazy(Supplier<T> supplier) {
+    return new Future<T>() {
+      private boolean done;
+      private T value;
+      private RuntimeException failure;
+
+      @Override public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+      }
+
+      @Override public boolean isCancelled() {
+        return false;
+      }
+
+      @Override public synchronized boolean isDone() {
+        return done;
+      }
+
+      @Override public synchronized T get() throws ExecutionException {
+        if (!done) {
+          try {
+            value = supplier.get();
+          } catch (RuntimeException e) {
+            failure = e;
+          }
+          done = true;
+        }
+        if (failure != null) throw new ExecutionException(failure);
+        return value;
+      }
+
+      @Override public T get(long timeout, TimeUnit unit) throws ExecutionException {
+        return get();
+      }
+    };
+  }
 }
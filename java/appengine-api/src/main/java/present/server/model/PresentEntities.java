@@ -16,6 +16,7 @@ import org.slf4j.LoggerFactory;
 import present.server.facebook.FacebookFriendship;
 import present.server.facebook.FacebookUserData;
 import present.server.model.activity.Event;
+import present.server.model.activity.EventRecipients;
 import present.server.model.activity.GroupReferral;
 import present.server.model.comment.Comment;
 import present.server.model.comment.GroupView;
@@ -54,6 +55,7 @@ public class PresentEntities {
       Content.class,
       DatastoreOperation.class,
       Event.class,
+      EventRecipients.class,
       FacebookFriendship.class,
       FacebookUserData.class,
       Friendship.class,
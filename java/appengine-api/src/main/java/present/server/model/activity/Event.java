@@ -45,8 +45,8 @@ import static present.server.model.activity.ReferenceResponses.toShortReferenceR
   // User who initiated this event.
   @Load(unless = KeysOnly.class) @Index public Ref<User> initiator;
 
-  // TODO: Make this an array and write one Event for N users.
-  // The user to whom this event belongs
+  // The user to whom this event belongs. Null for events shared by many users, whose
+  // recipients are listed in EventRecipients. Set on events saved before we shared them.
   @Load(unless = KeysOnly.class) @Index public Ref<User> user;
 
   // The unique activity type
@@ -91,7 +91,6 @@ import static present.server.model.activity.ReferenceResponses.toShortReferenceR
 
   @OnSave public void validate() {
     Preconditions.checkState(this.initiator != null);
-    Preconditions.checkState(this.user != null);
   }
 
   // Entity Management
@@ -0,0 +1,59 @@
+package present.server.model.activity;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.googlecode.objectify.Ref;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.OnSave;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Indexes a shared {@link Event} by its recipients so we can write one Event for many users.
+ * Holds up to {@link #MAX_RECIPIENTS} user IDs, which keeps index entries well under the
+ * datastore's per-entity limit. Large audiences get one of these per chunk.
+ */
+@Entity public class EventRecipients {
+
+  /** Field names that may be used in filter queries as strings. */
+  public enum Fields { userIds, event, createdTimeIndex }
+
+  /** Maximum number of recipients per entity. */
+  public static final int MAX_RECIPIENTS = 500;
+
+  /** "[Event ID]:[Chunk index]" */
+  @Id public String id;
+
+  /** The shared event. */
+  @Index public Ref<Event> event;
+
+  /** Copy of the event's creation time so we can sort without loading events. */
+  @Index public long createdTimeIndex;
+
+  /** IDs of users who received the event. */
+  @Index public List<String> userIds = new ArrayList<>();
+
+  public EventRecipients() {}
+
+  /** Creates entities listing the given recipients of the given event. */
+  public static List<EventRecipients> of(Event event, List<String> userIds) {
+    List<EventRecipients> chunks = new ArrayList<>();
+    int index = 0;
+    for (List<String> chunk : Lists.partition(userIds, MAX_RECIPIENTS)) {
+      EventRecipients recipients = new EventRecipients();
+      recipients.id = event.uuid + ":" + index++;
+      recipients.event = Ref.create(event);
+      recipients.createdTimeIndex = event.createdTimeIndex;
+      recipients.userIds = new ArrayList<>(chunk);
+      chunks.add(recipients);
+    }
+    return chunks;
+  }
+
+  @OnSave void validate() {
+    Preconditions.checkState(this.event != null);
+    Preconditions.checkState(userIds.size() <= MAX_RECIPIENTS);
+  }
+}
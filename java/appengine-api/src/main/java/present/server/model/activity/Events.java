@@ -3,12 +3,17 @@ package present.server.model.activity;
 import com.google.common.base.Predicates;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Streams;
-import com.googlecode.objectify.Ref;
+import com.googlecode.objectify.Key;
 import com.googlecode.objectify.cmd.Query;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import javax.annotation.Nullable;
 import present.proto.EventResponse;
+import present.server.MoreObjectify;
 import present.server.model.PresentEntities;
 import present.server.model.user.User;
 
@@ -28,20 +33,89 @@ public class Events {
 
   public static Iterable<Event> getEventsForUser(
       User user, @Nullable Long startTime, @Nullable Long endTime) {
-    Query<Event> query = Event.query().filter(Event.Fields.user.name(), user);
-    if (startTime != null && endTime != null) {
-      query = query
-        .filter(Event.Fields.createdTimeIndex+" >=", startTime)
-        .filter(Event.Fields.createdTimeIndex+" <=", endTime);
-    }
-    query = query.order("-"+Event.Fields.createdTimeIndex.name()); // order descending
-    query = query.limit(MAX_EVENTS); // limit number of events returned
-    return query.chunkAll().list().stream()
+    boolean range = startTime != null && endTime != null;
+    return forUser(user, range ? startTime : null, range ? endTime : null, MAX_EVENTS).stream()
         // Early events didn't have an initiator.
         .filter(e -> e.initiator != null && user.canSee(e.initiator.get()))
         .collect(Collectors.toList());
   }
 
+  /**
+   * Returns up to {@code limit} events for the given user, newest first. Reads shared events
+   * through their {@link EventRecipients} and merges them with per-user events.
+   */
+  public static List<Event> forUser(User user, @Nullable Long startTime, @Nullable Long endTime,
+      int limit) {
+    Query<EventRecipients> shared = ofy().load().type(EventRecipients.class)
+        .filter(EventRecipients.Fields.userIds.name(), user.uuid);
+    // TODO: Stop querying per-user events once MigrateSharedEvents has run everywhere.
+    Query<Event> legacy = Event.query().filter(Event.Fields.user.name(), user);
+    if (startTime != null) {
+      shared = shared.filter(EventRecipients.Fields.createdTimeIndex + " >=", startTime);
+      legacy = legacy.filter(Event.Fields.createdTimeIndex + " >=", startTime);
+    }
+    if (endTime != null) {
+      shared = shared.filter(EventRecipients.Fields.createdTimeIndex + " <=", endTime);
+      legacy = legacy.filter(Event.Fields.createdTimeIndex + " <=", endTime);
+    }
+    // Order descending. Run both queries concurrently.
+    List<Key<EventRecipients>> sharedKeys = shared
+        .order("-" + EventRecipients.Fields.createdTimeIndex.name())
+        .limit(limit)
+        .keys()
+        .list();
+    List<Event> legacyEvents = legacy
+        .order("-" + Event.Fields.createdTimeIndex.name())
+        .limit(limit)
+        .chunkAll()
+        .list();
+
+    List<Key<Event>> eventKeys = sharedKeys.stream()
+        .map(Events::eventKeyFor)
+        .collect(Collectors.toList());
+    List<Event> events = new ArrayList<>(legacyEvents);
+    ofy().load().keys(eventKeys).values().stream()
+        .filter(Objects::nonNull)
+        .forEach(events::add);
+    events.sort(Comparator.comparingLong((Event e) -> e.createdTimeIndex).reversed());
+    return events.size() > limit ? events.subList(0, limit) : events;
+  }
+
+  /** Saves one copy of the given event for all of the given users. */
+  public static void saveShared(Event event, Iterable<User> recipients) {
+    List<String> userIds = Streams.stream(recipients)
+        .map(user -> user.uuid)
+        .collect(Collectors.toList());
+    if (userIds.isEmpty()) return;
+    event.user = null;
+    List<Object> entities = new ArrayList<>();
+    entities.add(event);
+    entities.addAll(EventRecipients.of(event, userIds));
+    ofy().save().entities(entities);
+  }
+
+  /** Deletes the given events, including their recipient indexes. */
+  public static void delete(List<Key<Event>> eventKeys) {
+    if (eventKeys.isEmpty()) return;
+    List<Key<?>> keys = new ArrayList<>(eventKeys);
+    keys.addAll(recipientKeysFor(eventKeys));
+    ofy().delete().keys(keys);
+  }
+
+  /** Returns the keys of recipient indexes for the given events. */
+  public static List<Key<EventRecipients>> recipientKeysFor(List<Key<Event>> eventKeys) {
+    return MoreObjectify.queryIn(eventKeys, batch -> ofy().load().type(EventRecipients.class)
+        .filter(EventRecipients.Fields.event.name() + " in", batch)
+        .keys()
+        .list());
+  }
+
+  /** Extracts the event key from an EventRecipients ID. Saves loading the entity. */
+  private static Key<Event> eventKeyFor(Key<EventRecipients> key) {
+    String id = key.getName();
+    return Event.keyFor(id.substring(0, id.lastIndexOf(':')));
+  }
+
   /**
    * Render the events to EventResponses, optionally including all referenced entity content.
    */
@@ -0,0 +1,176 @@
+package present.server.model.group;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.annotation.Nullable;
+import present.server.model.user.User;
+import present.server.model.util.LongHashSet;
+
+/**
+ * Groups ranked together in one batch. {@link GroupRanker} computes each scoring factor in a
+ * tight loop over parallel arrays, and we only create {@link RankedGroup}s for the groups we
+ * return, so ranking thousands of groups allocates little.
+ */
+class Candidates {
+
+  @Nullable final User user;
+  final LongHashSet friendIds;
+
+  /** Time factors are relative to when we started ranking. */
+  final long now = System.currentTimeMillis();
+
+  int size;
+  Group[] groups;
+  Group.Log[] logs;
+  double[] distances;
+
+  double[] logFactors;
+  double[] creationFactors;
+  double[] memberFactors;
+  double[] commentFactors;
+  double[] lastCommentFactors;
+
+  /** Lower is better. */
+  double[] rankings;
+
+  /** True if {@link GroupRanker} scored these groups. */
+  boolean scored;
+
+  Candidates(@Nullable User user, Iterable<User> friends, int capacity) {
+    this(user, friendIdsOf(friends), capacity);
+  }
+
+  Candidates(@Nullable User user, LongHashSet friendIds, int capacity) {
+    this.user = user;
+    this.friendIds = friendIds;
+    capacity = Math.max(capacity, 1);
+    groups = new Group[capacity];
+    logs = new Group.Log[capacity];
+    distances = new double[capacity];
+  }
+
+  private static LongHashSet friendIdsOf(Iterable<User> friends) {
+    LongHashSet ids = new LongHashSet(16);
+    for (User friend : friends) ids.add(friend.shortId);
+    return ids;
+  }
+
+  /** Adds a group to this batch. */
+  void add(Group group, @Nullable Group.Log log, double distance) {
+    if (size == groups.length) {
+      int capacity = size * 2;
+      groups = Arrays.copyOf(groups, capacity);
+      logs = Arrays.copyOf(logs, capacity);
+      distances = Arrays.copyOf(distances, capacity);
+    }
+    groups[size] = group;
+    logs[size] = log;
+    distances[size] = distance;
+    size++;
+  }
+
+  /** Allocates the factor arrays. Factors default to 1, so they don't affect the score. */
+  void initializeScores() {
+    logFactors = ones();
+    creationFactors = ones();
+    memberFactors = ones();
+    commentFactors = ones();
+    lastCommentFactors = ones();
+    scored = true;
+  }
+
+  private double[] ones() {
+    double[] factors = new double[size];
+    Arrays.fill(factors, 1);
+    return factors;
+  }
+
+  /** Returns the product of each group's scoring factors. */
+  double[] combined() {
+    double[] combined = new double[size];
+    for (int i = 0; i < size; i++) {
+      combined[i] = logFactors[i] * creationFactors[i] * memberFactors[i] * commentFactors[i]
+          * lastCommentFactors[i];
+    }
+    return combined;
+  }
+
+  /**
+   * Returns the {@code limit} groups with the lowest keys, lowest first. Orders groups with the
+   * same key by ID, so the results are stable.
+   */
+  List<RankedGroup> top(double[] keys, int limit) {
+    int k = Math.min(limit, size);
+    if (k <= 0) return new ArrayList<>();
+
+    // Keep the best k in a heap with the worst at the root.
+    int[] heap = new int[k];
+    int heapSize = 0;
+    for (int i = 0; i < size; i++) {
+      if (heapSize < k) {
+        heap[heapSize] = i;
+        siftUp(keys, heap, heapSize++);
+      } else if (before(keys, i, heap[0])) {
+        heap[0] = i;
+        siftDown(keys, heap, heapSize);
+      }
+    }
+
+    // Pop the worst group until the heap is empty.
+    RankedGroup[] top = new RankedGroup[k];
+    while (heapSize > 0) {
+      int i = heap[0];
+      heap[0] = heap[--heapSize];
+      siftDown(keys, heap, heapSize);
+      top[heapSize] = toRankedGroup(i);
+    }
+    return new ArrayList<>(Arrays.asList(top));
+  }
+
+  /** Returns true if group a comes before group b. */
+  private boolean before(double[] keys, int a, int b) {
+    int result = Double.compare(keys[a], keys[b]);
+    return result != 0 ? result < 0 : groups[a].id.compareTo(groups[b].id) < 0;
+  }
+
+  private void siftUp(double[] keys, int[] heap, int position) {
+    int i = heap[position];
+    while (position > 0) {
+      int parent = (position - 1) >>> 1;
+      if (!before(keys, heap[parent], i)) break;
+      heap[position] = heap[parent];
+      position = parent;
+    }
+    heap[position] = i;
+  }
+
+  private void siftDown(double[] keys, int[] heap, int heapSize) {
+    if (heapSize == 0) return;
+    int i = heap[0];
+    int position = 0;
+    int half = heapSize >>> 1;
+    while (position < half) {
+      int child = 2 * position + 1;
+      int right = child + 1;
+      if (right < heapSize && before(keys, heap[child], heap[right])) child = right;
+      if (!before(keys, i, heap[child])) break;
+      heap[position] = heap[child];
+      position = child;
+    }
+    heap[position] = i;
+  }
+
+  private RankedGroup toRankedGroup(int i) {
+    GroupScore score = scored ? new GroupScore.Builder()
+        .logFactor(logFactors[i])
+        .creationFactor(creationFactors[i])
+        .memberFactor(memberFactors[i])
+        .commentFactor(commentFactors[i])
+        .lastCommentFactor(lastCommentFactors[i])
+        .build() : null;
+    GroupRanker.Input input = new GroupRanker.Input(user, friendIds, groups[i], logs[i],
+        distances[i]);
+    return new RankedGroup(input, score, rankings[i]);
+  }
+}
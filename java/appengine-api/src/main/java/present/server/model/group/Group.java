@@ -17,6 +17,7 @@ import com.googlecode.objectify.annotation.Id;
 import com.googlecode.objectify.annotation.Ignore;
 import com.googlecode.objectify.annotation.Index;
 import com.googlecode.objectify.annotation.Load;
+import com.googlecode.objectify.annotation.OnSave;
 import com.googlecode.objectify.cmd.Query;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
@@ -130,6 +131,12 @@ import static present.proto.Platform.IOS;
   /** Whether or not this group is discoverable by friends and people nearby. */
   @Index public boolean discoverable = true;
 
+  /**
+   * Time this group was last saved. Unlike updatedTime, this is indexed and always set, so
+   * {@link GroupIndex} can find groups saved by other instances.
+   */
+  @Index public long lastSaveTime;
+
   /** Who can be pre-approved. */
   public GroupMemberPreapproval preapprove = GroupMemberPreapproval.ANYONE;
 
@@ -171,6 +178,11 @@ import static present.proto.Platform.IOS;
 
 
 
+  @OnSave void updateIndex() {
+    this.lastSaveTime = System.currentTimeMillis();
+    GroupIndex.onSave(this);
+  }
+
   public boolean hasJoinRequests() {
     if (joinRequests < 0) logger.error("Join requests < 0");
     return joinRequests <= 0;
@@ -576,7 +588,11 @@ import static present.proto.Platform.IOS;
   /** Creates a Notifier that sends notifications to the group from the given user. */
   public Notifier notifierFrom(User from) {
     // The only thing that blocks here is querying the member keys.
-    List<Key<User>> memberKeys = memberKeys();
+    return notifierFrom(from, memberKeys());
+  }
+
+  /** Creates a notifier from the given user to the given members of this group. */
+  public Notifier notifierFrom(User from, List<Key<User>> memberKeys) {
     Map<Key<User>, GroupView> views
         = GroupViews.viewsFor(this, memberKeys);
     return Notifier.from(from)
@@ -891,6 +907,7 @@ import static present.proto.Platform.IOS;
     public static Field s2CellId = get("s2CellId");
     public static Field spaceId = get("spaceId");
     public static Field discoverable = get("discoverable");
+    public static Field lastSaveTime = get("lastSaveTime");
 
     private static Field get(String fieldName) {
       try {
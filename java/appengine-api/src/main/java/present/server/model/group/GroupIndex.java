@@ -0,0 +1,355 @@
+package present.server.model.group;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Ordering;
+import com.google.common.geometry.S2CellId;
+import com.google.common.geometry.S2CellUnion;
+import com.google.common.geometry.S2LatLng;
+import com.google.common.geometry.S2RegionCoverer;
+import com.googlecode.objectify.impl.TransactionImpl;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import present.s2.CircularRegion;
+import present.server.KeysOnly;
+import present.server.model.BasePresentEntity;
+import present.server.model.Space;
+import present.server.model.group.Group.Fields;
+import present.server.model.util.Coordinates;
+
+import static com.google.appengine.api.datastore.Query.FilterOperator.EQUAL;
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+/**
+ * In-memory spatial index of discoverable, non-deleted groups, ordered by S2 cell ID. Answers
+ * nearest and radius queries without hitting the datastore.
+ *
+ * <p>Each instance loads the whole index with one projection query per space and applies its own
+ * group writes as they commit. It picks up writes from other instances by periodically scanning
+ * for groups saved since the last scan (see {@link Group#lastSaveTime}), and it reloads from
+ * scratch every so often to drop groups that were deleted outright.
+ */
+public class GroupIndex {
+
+  private static final Logger logger = LoggerFactory.getLogger(GroupIndex.class);
+
+  /** How often we scan for groups saved by other instances. */
+  private static final long SCAN_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+  /** How often we reload the entire index. */
+  private static final long RELOAD_INTERVAL = TimeUnit.HOURS.toMillis(1);
+
+  /** Scans overlap by this much to allow for clock skew and index latency. */
+  private static final long SCAN_OVERLAP = TimeUnit.SECONDS.toMillis(30);
+
+  /** Radii we try, in m, before falling back to the maximum radius. */
+  private static final long[] RADII = { 2_000, 8_000, 32_000 };
+
+  /** Spaces we index. Groups in other spaces aren't discoverable by location. */
+  private static final List<Space> SPACES = ImmutableList.of(Space.EVERYONE, Space.WOMEN_ONLY,
+      Space.PRESENT_INSIDERS, Space.POWER_RISING);
+
+  private static final GroupIndex instance = new GroupIndex();
+
+  /** Entries ordered by S2 cell, so a cell's range maps to a sub set. */
+  private final NavigableSet<Entry> entries = new ConcurrentSkipListSet<>(Entry.BY_CELL);
+  private final ConcurrentMap<String, Entry> entriesById = new ConcurrentHashMap<>();
+
+  private final ReentrantLock refreshLock = new ReentrantLock();
+  private volatile boolean loaded;
+  private long loadedAt;
+  private long scannedAt;
+
+  GroupIndex() {}
+
+  /**
+   * Returns this instance's index, loading it first if necessary. Refreshes the index if it's
+   * stale, unless another thread is already refreshing it.
+   *
+   * @throws RuntimeException if we need to load the index and the load fails
+   */
+  public static GroupIndex get() {
+    instance.refresh();
+    return instance;
+  }
+
+  /** Updates the index after a local write to the given group. */
+  static void onSave(Group group) {
+    // Until we load, the initial load will pick up this write.
+    if (instance.loaded) instance.saved(group);
+  }
+
+  /**
+   * Applies a write to the given group. Inside a transaction, waits until the transaction
+   * commits, so searches never see a write that rolls back. Objectify may run the transaction
+   * more than once, but only the attempt that commits notifies us.
+   */
+  void saved(Group group) {
+    // Capture the group as saved. The caller may change it before the transaction commits.
+    String id = group.id;
+    boolean indexed = isIndexed(group);
+    long s2CellId = group.s2CellId;
+    String spaceId = group.spaceId;
+    Runnable update = () -> update(id, indexed, s2CellId, spaceId);
+    Transaction transaction = ofy().getTransaction();
+    if (transaction == null) {
+      update.run();
+    } else {
+      ((TransactionImpl) transaction).listenForCommit(update);
+    }
+  }
+
+  /**
+   * Returns up to {@code limit} groups in the given spaces that are closest to {@code origin}
+   * and within {@code maxRadius} m of it, nearest first.
+   */
+  public List<Nearby> nearest(Coordinates origin, Collection<String> spaceIds, long maxRadius,
+      int limit) {
+    return nearestAfter(origin, spaceIds, null, maxRadius, limit);
+  }
+
+  /**
+   * Like {@link #nearest}, but skips groups up to and including {@code after} in
+   * {@link Nearby#BY_DISTANCE} order. Pages through groups by distance.
+   *
+   * @param after the last group from the previous page, or null to start with the nearest group
+   */
+  public List<Nearby> nearestAfter(Coordinates origin, Collection<String> spaceIds,
+      @Nullable Nearby after, long maxRadius, int limit) {
+    S2LatLng originLatLng = origin.toS2LatLng();
+    for (long radius : RADII) {
+      if (radius >= maxRadius) break;
+      // Skip radii that can't reach past the previous page.
+      if (after != null && radius <= after.distance) continue;
+      List<Nearby> found = within(origin, originLatLng, spaceIds, after, radius);
+      // We've found everything within this radius, so these are the nearest.
+      if (found.size() >= limit) return Ordering.from(Nearby.BY_DISTANCE).leastOf(found, limit);
+    }
+    return Ordering.from(Nearby.BY_DISTANCE)
+        .leastOf(within(origin, originLatLng, spaceIds, after, maxRadius), limit);
+  }
+
+  /** Returns all groups in the given spaces within {@code radius} m of {@code origin}. */
+  public List<Nearby> within(Coordinates origin, Collection<String> spaceIds, long radius) {
+    return within(origin, origin.toS2LatLng(), spaceIds, null, radius);
+  }
+
+  private List<Nearby> within(Coordinates origin, S2LatLng originLatLng,
+      Collection<String> spaceIds, @Nullable Nearby after, long radius) {
+    S2RegionCoverer coverer = new S2RegionCoverer();
+    coverer.setMaxCells(8);
+    S2CellUnion cells = coverer.getCovering(
+        CircularRegion.create(origin.latitude, origin.longitude, radius));
+    List<Nearby> found = new ArrayList<>();
+    // Cells in a union don't overlap, so we'll see each entry at most once.
+    for (S2CellId cell : cells) {
+      for (Entry entry : entries.subSet(Entry.first(cell.rangeMin().id()), true,
+          Entry.last(cell.rangeMax().id()), true)) {
+        if (!spaceIds.contains(entry.spaceId)) continue;
+        double distance = entry.latLng.getEarthDistance(originLatLng);
+        if (distance >= radius) continue;
+        Nearby nearby = new Nearby(entry.groupId, entry.s2CellId, distance);
+        if (after == null || Nearby.BY_DISTANCE.compare(nearby, after) > 0) found.add(nearby);
+      }
+    }
+    return found;
+  }
+
+  /** Returns the number of indexed groups. */
+  public int size() {
+    return entriesById.size();
+  }
+
+  void put(String groupId, long s2CellId, String spaceId) {
+    Entry entry = new Entry(groupId, s2CellId, spaceId);
+    synchronized (entriesById) {
+      Entry previous = entriesById.put(groupId, entry);
+      if (previous != null) entries.remove(previous);
+      entries.add(entry);
+    }
+  }
+
+  void remove(String groupId) {
+    synchronized (entriesById) {
+      Entry previous = entriesById.remove(groupId);
+      if (previous != null) entries.remove(previous);
+    }
+  }
+
+  private void update(Group group) {
+    update(group.id, isIndexed(group), group.s2CellId, group.spaceId);
+  }
+
+  private void update(String groupId, boolean indexed, long s2CellId, String spaceId) {
+    if (indexed) {
+      Entry existing = entriesById.get(groupId);
+      // Most writes don't move groups. Skip them.
+      if (existing == null || existing.s2CellId != s2CellId
+          || !existing.spaceId.equals(spaceId)) {
+        put(groupId, s2CellId, spaceId);
+      }
+    } else {
+      remove(groupId);
+    }
+  }
+
+  private static boolean isIndexed(Group group) {
+    return group.discoverable && !group.deleted && group.s2CellId != 0
+        && SPACES.stream().anyMatch(space -> space.id.equals(group.spaceId));
+  }
+
+  private void refresh() {
+    if (loaded) {
+      // Keep serving the current entries while another thread refreshes them.
+      if (!refreshLock.tryLock()) return;
+    } else {
+      refreshLock.lock();
+    }
+    try {
+      long now = System.currentTimeMillis();
+      if (!loaded || now - loadedAt >= RELOAD_INTERVAL) {
+        reload(now);
+      } else if (now - scannedAt >= SCAN_INTERVAL) {
+        try {
+          scan(now);
+        } catch (RuntimeException e) {
+          logger.error("Failed to scan for updated groups.", e);
+        }
+      }
+    } catch (RuntimeException e) {
+      // We can keep serving stale entries, but we shouldn't serve an empty index.
+      if (!loaded) throw e;
+      logger.error("Failed to reload group index.", e);
+    } finally {
+      refreshLock.unlock();
+    }
+  }
+
+  /** Replaces all entries with the discoverable groups in the datastore. */
+  private void reload(long now) {
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    List<Entry> loadedEntries = new ArrayList<>();
+    for (Space space : SPACES) {
+      // Same filters and index as GroupSearch.ProximityQuery.
+      Query query = new Query(Group.class.getSimpleName())
+          .setFilter(CompositeFilterOperator.and(
+              new FilterPredicate(Fields.discoverable.getName(), EQUAL, true),
+              new FilterPredicate(BasePresentEntity.Fields.deleted.getName(), EQUAL, false),
+              new FilterPredicate(Fields.spaceId.getName(), EQUAL, space.id)))
+          .addProjection(new PropertyProjection(Fields.s2CellId.getName(), Long.class));
+      for (Entity entity : datastore.prepare(query)
+          .asIterable(FetchOptions.Builder.withChunkSize(1000).prefetchSize(1000))) {
+        long s2CellId = (Long) entity.getProperty(Fields.s2CellId.getName());
+        if (s2CellId != 0) {
+          loadedEntries.add(new Entry(entity.getKey().getName(), s2CellId, space.id));
+        }
+      }
+    }
+    synchronized (entriesById) {
+      entries.clear();
+      entriesById.clear();
+      for (Entry entry : loadedEntries) {
+        Entry previous = entriesById.put(entry.groupId, entry);
+        if (previous != null) entries.remove(previous);
+        entries.add(entry);
+      }
+    }
+    // Writes that raced with the load will show up in the next scan.
+    loaded = true;
+    loadedAt = now;
+    scannedAt = now;
+    logger.info("Loaded {} groups into the index in {}.", loadedEntries.size(), stopwatch);
+  }
+
+  /** Applies groups saved since the last scan. */
+  private void scan(long now) {
+    List<Group> groups = ofy().load().group(KeysOnly.class).type(Group.class)
+        .filter(Fields.lastSaveTime.getName() + " >=", scannedAt - SCAN_OVERLAP)
+        .list();
+    groups.forEach(this::update);
+    scannedAt = now;
+    logger.info("Applied {} updated groups to the index.", groups.size());
+  }
+
+  /** A group found by the index. */
+  public static class Nearby {
+
+    /** Orders by distance and then group ID, so groups at the same location have an order. */
+    public static final Comparator<Nearby> BY_DISTANCE
+        = Comparator.comparingDouble(Nearby::distance).thenComparing(Nearby::groupId);
+
+    private final String groupId;
+    private final long s2CellId;
+    private final double distance;
+
+    public Nearby(String groupId, long s2CellId, double distance) {
+      this.groupId = groupId;
+      this.s2CellId = s2CellId;
+      this.distance = distance;
+    }
+
+    public String groupId() {
+      return groupId;
+    }
+
+    public long s2CellId() {
+      return s2CellId;
+    }
+
+    /** Returns the distance from the origin in m. */
+    public double distance() {
+      return distance;
+    }
+  }
+
+  private static class Entry {
+
+    /** Orders by cell. Entries without a group ID sort before or after all others in a cell. */
+    private static final Comparator<Entry> BY_CELL
+        = Comparator.<Entry>comparingLong(e -> e.s2CellId)
+            .thenComparing(e -> e.groupId, Comparator.nullsLast(Comparator.naturalOrder()));
+
+    private final String groupId;
+    private final long s2CellId;
+    private final String spaceId;
+    private final S2LatLng latLng;
+
+    private Entry(String groupId, long s2CellId, String spaceId) {
+      this.groupId = groupId;
+      this.s2CellId = s2CellId;
+      this.spaceId = spaceId;
+      this.latLng = spaceId == null ? null : new S2CellId(s2CellId).toLatLng();
+    }
+
+    /** Returns a bound that sorts before all entries in the given cell. */
+    private static Entry first(long s2CellId) {
+      return new Entry("", s2CellId, null);
+    }
+
+    /** Returns a bound that sorts after all entries in the given cell. */
+    private static Entry last(long s2CellId) {
+      return new Entry(null, s2CellId, null);
+    }
+  }
+}
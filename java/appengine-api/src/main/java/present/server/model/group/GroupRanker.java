@@ -1,12 +1,12 @@
 package present.server.model.group;
 
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Sets;
-import java.util.Set;
+import com.google.common.base.Preconditions;
+import java.util.List;
 import present.proto.GroupLog;
 import present.server.Time;
 import present.server.model.comment.Comment;
 import present.server.model.user.User;
+import present.server.model.util.LongHashSet;
 
 /**
  * Algorithms for ranking groups.
@@ -17,10 +17,13 @@ public enum GroupRanker {
 
   /** Ranks nearby feed by time. Simple, but easy to spam. */
   NEARBY_FEED_BY_TIME {
-    @Override RankedGroup rank(Input input) {
-      // The last comment time or the group creation time if there are no comments.
-      double ranking = -input.group.lastCommentTime;
-      return new RankedGroup(input, null, ranking);
+    @Override void rank(Candidates candidates) {
+      Group[] groups = candidates.groups;
+      double[] rankings = candidates.rankings;
+      for (int i = 0; i < candidates.size; i++) {
+        // The last comment time or the group creation time if there are no comments.
+        rankings[i] = -groups[i].lastCommentTime;
+      }
     }
 
     @Override boolean usesLogs() {
@@ -42,15 +45,20 @@ public enum GroupRanker {
 
   /** Starts with the baseline scoring and adds extra emphasis to the last comment time. */
   NEARBY_FEED {
-    @Override RankedGroup rank(Input input) {
-      Comment lastComment = input.group.lastSignificantComment.get();
-      double delta = timeFactor(lastComment.creationTime) * 0.2;
-      if (input.friendIds.contains(lastComment.getAuthor().shortId)) {
-        delta *= FRIEND_FACTOR;
-        input.group.involvesFriends = true;
+    @Override void rank(Candidates candidates) {
+      score(candidates);
+      Group[] groups = candidates.groups;
+      double[] lastCommentFactors = candidates.lastCommentFactors;
+      for (int i = 0; i < candidates.size; i++) {
+        Comment lastComment = groups[i].lastSignificantComment.get();
+        double delta = timeFactor(candidates.now, lastComment.creationTime) * 0.2;
+        if (candidates.friendIds.contains(lastComment.getAuthor().shortId)) {
+          delta *= FRIEND_FACTOR;
+          groups[i].involvesFriends = true;
+        }
+        lastCommentFactors[i] = 1 - delta;
       }
-      GroupScore score = score(input).builder().lastCommentFactor(1 - delta).build();
-      return new RankedGroup(input, score, score.combined * input.distance);
+      rankByDistance(candidates);
     }
 
     @Override Class<?>[] loadGroups() {
@@ -72,9 +80,9 @@ public enum GroupRanker {
 
   /** Ranks groups based on our default scoring method. */
   EXPLORE {
-    @Override RankedGroup rank(Input input) {
-      GroupScore score = score(input);
-      return new RankedGroup(input, score, score.combined * input.distance);
+    @Override void rank(Candidates candidates) {
+      score(candidates);
+      rankByDistance(candidates);
     }
 
     @Override boolean usesLogs() {
@@ -93,8 +101,26 @@ public enum GroupRanker {
   /** If it's a friend, boost the effect 2X. */
   private static final int FRIEND_FACTOR = 2;
 
-  /** Ranks the given group. Lower rankings are better. */
-  abstract RankedGroup rank(Input input);
+  /** Computes {@link Candidates#rankings} for every candidate. Lower rankings are better. */
+  abstract void rank(Candidates candidates);
+
+  /** Ranks the given candidates and returns the best {@code limit}, best first. */
+  List<RankedGroup> top(Candidates candidates, int limit) {
+    candidates.rankings = new double[candidates.size];
+    rank(candidates);
+    return candidates.top(candidates.rankings, limit);
+  }
+
+  /**
+   * Ranks the given candidates and returns the {@code limit} with the best scores, ignoring
+   * distance. Only works with rankers that score groups.
+   */
+  List<RankedGroup> topScores(Candidates candidates, int limit) {
+    candidates.rankings = new double[candidates.size];
+    rank(candidates);
+    Preconditions.checkState(candidates.scored, "%s doesn't score groups.", this);
+    return candidates.top(candidates.combined(), limit);
+  }
 
   /** Returns true if this ranking uses group logs. */
   abstract boolean usesLogs();
@@ -109,22 +135,38 @@ public enum GroupRanker {
   /** Specifies the number of entities to retrieve from the datastore. */
   abstract int retrieve(int limit);
 
-  /** Scores the given group. */
-  private static GroupScore score(Input input) {
+  /** Computes the baseline scoring factors for every candidate. */
+  private static void score(Candidates candidates) {
     // TODO: Look for friends as group members. Maybe use a bitset and/or bloom filter?
-    double logFactor = input.log == null ? 1.0 : logFactor(input);
-    double creationFactor = creationFactor(input);
-    // Reduce distance by up to 50% each depending on member and comment counts.
-    double memberFactor = demote(input.group.memberCount, 100, 0.5);
-    // We already boost the ranking based on up to 5 comments from the log. This gives
-    // us a little extra boost when more comments are present (without accounting for time).
-    double commentFactor = demote(input.group.activeComments, 100, 0.5);
-    return new GroupScore.Builder()
-        .logFactor(logFactor)
-        .creationFactor(creationFactor)
-        .memberFactor(memberFactor)
-        .commentFactor(commentFactor)
-        .build();
+    candidates.initializeScores();
+    int size = candidates.size;
+    Group[] groups = candidates.groups;
+    Group.Log[] logs = candidates.logs;
+    double[] logFactors = candidates.logFactors;
+    double[] creationFactors = candidates.creationFactors;
+    double[] memberFactors = candidates.memberFactors;
+    double[] commentFactors = candidates.commentFactors;
+    for (int i = 0; i < size; i++) {
+      if (logs[i] != null) logFactors[i] = logFactor(candidates, groups[i], logs[i]);
+    }
+    for (int i = 0; i < size; i++) {
+      creationFactors[i] = creationFactor(candidates, groups[i]);
+    }
+    for (int i = 0; i < size; i++) {
+      // Reduce distance by up to 50% each depending on member and comment counts.
+      memberFactors[i] = demote(groups[i].memberCount, 100, 0.5);
+      // We already boost the ranking based on up to 5 comments from the log. This gives
+      // us a little extra boost when more comments are present (without accounting for time).
+      commentFactors[i] = demote(groups[i].activeComments, 100, 0.5);
+    }
+  }
+
+  /** Multiplies each candidate's combined score by its distance. */
+  private static void rankByDistance(Candidates candidates) {
+    double[] combined = candidates.combined();
+    double[] distances = candidates.distances;
+    double[] rankings = candidates.rankings;
+    for (int i = 0; i < candidates.size; i++) rankings[i] = combined[i] * distances[i];
   }
 
   /** Creates a factor that starts at 1 and converges on 0.5 at scale. */
@@ -135,23 +177,25 @@ public enum GroupRanker {
   /**
    * Returns the product of the scoring factors for the events in the given log. Lower is better.
    */
-  private static double logFactor(Input input) {
+  private static double logFactor(Candidates candidates, Group group, Group.Log log) {
     // The log contains up to 20 events, up to 5 of each type.
     // The effects of events compound. Is this what we want?
     // We could add them together instead and set a maximum effect for the entire log.
-    return input.log.log.entries.stream()
-        .mapToDouble(e -> logFactor(input, e))
-        .reduce(1, (a, b) -> a * b);
+    double factor = 1;
+    for (GroupLog.Entry entry : log.log.entries) {
+      factor *= logFactor(candidates, group, entry);
+    }
+    return factor;
   }
 
   /**
    * Returns the scoring factor for the given event. Lower is better.
    */
-  private static double logFactor(Input input, GroupLog.Entry entry) {
+  private static double logFactor(Candidates candidates, Group group, GroupLog.Entry entry) {
     double delta = deltaFor(entry.type);
 
     // If this is a friend, increase the effect.
-    if (input.friendIds.contains(entry.userId)) {
+    if (entry.userId != null && candidates.friendIds.contains(entry.userId)) {
       delta *= FRIEND_FACTOR;
 
       // Set a flag so we can add a "Friends" category later.
@@ -159,7 +203,7 @@ public enum GroupRanker {
         case JOIN:
         case COMMENT:
         case INVITE:
-          input.group.involvesFriends = true;
+          group.involvesFriends = true;
       }
     }
 
@@ -169,7 +213,7 @@ public enum GroupRanker {
     }
 
     // Scale down over time. Events longer than a month ago have no effect.
-    delta *= timeFactor(entry.timestamp);
+    delta *= timeFactor(candidates.now, entry.timestamp);
 
     return 1 - Math.min(delta, 1);
   }
@@ -191,35 +235,38 @@ public enum GroupRanker {
   }
 
   /** Computes a scoring factor based on the group's creation. */
-  private static double creationFactor(Input input) {
-    Group group = input.group;
+  private static double creationFactor(Candidates candidates, Group group) {
     // If it was just created, it will appear 25% closer, 50% closer if a friend created it.
-    double delta = timeFactor(group.createdTime) * 0.25;
-    if (input.friendIds.contains(group.owner.get().shortId)) {
+    double delta = timeFactor(candidates.now, group.createdTime) * 0.25;
+    if (candidates.friendIds.contains(group.owner.get().shortId)) {
       delta *= FRIEND_FACTOR;
-      input.group.involvesFriends = true;
+      group.involvesFriends = true;
     }
     return 1 - Math.min(delta, 1);
   }
 
   /** Returns a value between 0 and 1 depending on how long ago timestamp occurred. Now = 1. */
   static double timeFactor(long timestamp) {
-    long age = Math.max(System.currentTimeMillis() - timestamp, 0);
+    return timeFactor(System.currentTimeMillis(), timestamp);
+  }
+
+  /** Returns a value between 0 and 1 depending on how long before now timestamp occurred. */
+  static double timeFactor(long now, long timestamp) {
+    long age = Math.max(now - timestamp, 0);
     return Curves.sigmoidal(((double) age) / Time.MONTH_IN_MILLIS);
   }
 
   static class Input {
 
     final User user;
-    final Set<Long> friendIds;
+    final LongHashSet friendIds;
     final Group group;
     final Group.Log log;
     final double distance;
 
-    Input(User user, Iterable<User> friends, Group group, Group.Log log,
-        double distance) {
+    Input(User user, LongHashSet friendIds, Group group, Group.Log log, double distance) {
       this.user = user;
-      this.friendIds = Sets.newHashSet(Iterables.transform(friends, f -> f.shortId));
+      this.friendIds = friendIds;
       this.group = group;
       this.log = log;
       this.distance = distance;
@@ -12,6 +12,7 @@ import com.google.appengine.api.datastore.Query.Filter;
 import com.google.appengine.api.datastore.Query.FilterPredicate;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Ordering;
@@ -20,16 +21,22 @@ import com.google.common.geometry.S2CellUnion;
 import com.google.common.geometry.S2LatLng;
 import com.google.common.geometry.S2RegionCoverer;
 import com.googlecode.objectify.Key;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Stream;
+import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import present.proto.GroupMemberPreapproval;
@@ -49,13 +56,13 @@ import present.server.model.user.Feature;
 import present.server.model.user.User;
 import present.server.model.user.Users;
 import present.server.model.util.Coordinates;
+import present.wire.rpc.core.ClientException;
 
 import static com.google.appengine.api.datastore.Query.FilterOperator.EQUAL;
 import static com.google.appengine.api.datastore.Query.FilterOperator.GREATER_THAN_OR_EQUAL;
 import static com.google.appengine.api.datastore.Query.FilterOperator.IN;
 import static com.google.appengine.api.datastore.Query.FilterOperator.LESS_THAN_OR_EQUAL;
 import static com.googlecode.objectify.ObjectifyService.ofy;
-import static java.util.Comparator.comparing;
 import static java.util.stream.Collectors.toList;
 import static present.server.Time.restart;
 
@@ -71,6 +78,12 @@ public class GroupSearch {
   /** Don't return group further away than this. */
   public static final long MAX_RADIUS = 128_000; // 128km
 
+  /** Radii we search in the datastore, in m. */
+  private static final long[] RADII = { 2_000, 8_000, 32_000, MAX_RADIUS };
+
+  /** Best radius by region, for datastore searches. */
+  private static final RegionDensity regionDensity = new RegionDensity();
+
   private static final AsyncDatastoreService datastore
       = DatastoreServiceFactory.getAsyncDatastoreService();
 
@@ -78,6 +91,9 @@ public class GroupSearch {
   private GroupRanker ranker;
   private int limit;
   private Space space;
+  private boolean paged;
+  private String cursor;
+  private String nextCursor;
 
   private GroupSearch() {}
 
@@ -106,6 +122,26 @@ public class GroupSearch {
     return this;
   }
 
+  /**
+   * Returns one page of groups, starting after the given cursor, or with the first page if the
+   * cursor is null. {@link #limit} sets the page size. After {@link #run}, {@link #nextCursor}
+   * returns the cursor for the following page.
+   *
+   * <p>Pages come from successive rings of the nearest groups. Each ring holds as many groups as
+   * the ranker would retrieve for one page, so we only rank groups as the client scrolls to them.
+   * The cursor records the ring and how many groups we've returned from it.
+   */
+  public GroupSearch page(@Nullable String cursor) {
+    this.paged = true;
+    this.cursor = cursor;
+    return this;
+  }
+
+  /** Returns the cursor for the next page, or null if there are no more pages. */
+  @Nullable public String nextCursor() {
+    return this.nextCursor;
+  }
+
   /** Executes the search. Orders groups based on their ranking. */
   public List<RankedGroup> run() {
     Preconditions.checkNotNull(this.origin);
@@ -114,14 +150,14 @@ public class GroupSearch {
     User user = Users.current(false);
 
     // Determine space[s] to query.
-    Iterable<String> spaces;
+    List<String> spaces;
     if (this.space == null) {
       // Women and admins see women-only circles, too.
       spaces = user != null && user.isWoman()
           ? ImmutableList.of(Space.EVERYONE.id, Space.WOMEN_ONLY.id)
-          : Collections.singleton(Space.EVERYONE.id);
+          : Collections.singletonList(Space.EVERYONE.id);
     } else {
-      spaces = Collections.singleton(this.space.id);
+      spaces = Collections.singletonList(this.space.id);
     }
 
     Preconditions.checkState(this.limit > 0);
@@ -137,70 +173,98 @@ public class GroupSearch {
         ? Iterables.transform(FacebookFriendship.friendIdsFor(user),
             id -> Key.create(User.class, id))
         : null;
+    Map<Key<User>, User> friends = friendKeys != null
+        ? ofy().load().keys(friendKeys)
+        : Collections.emptyMap();
 
-     /*
-      * TODO: The client should drive expanding the radius so it can request results from further
-      * and further away (infinitely). We should give the client a cursor it can pass back to us
-      * when it asks for more results.
-      *
-      * Search 5 radii concurrently. Use the largest radius that doesn't exceed the result limit.
-      * This triggers 100 queries total (5 radii * 20 queries each, max 3000 results).
-      *
-      * Note: If this proves to be too many queries, we should search each radius sequentially.
-      * This will obviously result in higher latency.
-      */
-    List<ProximityQuery> queries = new ArrayList<>();
-    long radius = 2_000; // 2km
-    // Radii: 2km, 8km, 32km, 128km
-    // Set a high limit for the smallest radius so we don't miss groups in dense areas.
-    queries.add(new ProximityQuery(spaces, origin, radius, 1000));
-    for (int i = 0; i < 3; i++) {
-      radius *= 4;
-      // Kick off the queries, but don't actually start fetching results until we need them.
-      queries.add(new ProximityQuery(spaces, origin, radius, 500));
+    List<RankedGroup> top;
+    if (paged) {
+      top = runPage(spaces, user, friends, this.limit * adminFactor, retrieve * adminFactor,
+          stopwatch);
+    } else {
+      top = runAll(spaces, user, friends, this.limit * adminFactor, retrieve * adminFactor,
+          stopwatch);
     }
 
-    logger.info("Kicked off queries in {}.", restart(stopwatch));
-
-    // TODO: Adapt this algorithm by region. We can either cache the number of circles in
-    // a given region or we can cache the best radius by region.
-
-    // Find the query returning the most results without going over the limit.
-    Iterator<ProximityQuery> iterator = queries.iterator();
-    ProximityQuery best = iterator.next();
-    if (best.exceededLimit()) {
-      logger.error("Exceeded query limit using a {}km radius @ {}! Lower the initial radius "
-          + "and/or the number of weeks we search, or increase the limit.",
-          best.radius / 1000, origin);
-    } else {
-      while (iterator.hasNext()) {
-        ProximityQuery current = iterator.next();
-        if (current.exceededLimit()) {
-          logger.info("Exceeded limit with {}km radius @ {}.", best.radius / 1000, origin);
-          // Add results from current group to the previous group. Ensures we have a
-          // sufficient number of results without missing any nearby results.
-          best.groupLists.addAll(current.groupLists);
-          break;
-        }
-        best = current;
+    // Don't return private groups to clients that don't support them.
+    RequestHeader header = RequestHeaders.current();
+    if (header != null) {
+      Client client = Clients.getOrCreate(header.clientUuid);
+      if (!client.supports(Feature.PRIVATE_GROUPS)) {
+        top = top.stream()
+            .filter(g -> g.group().preapprove == GroupMemberPreapproval.ANYONE)
+            .collect(toList());
       }
-      logger.info("Found {} groups using a {}km radius @ {}.",
-          best.size(), best.radius / 1000, origin);
     }
 
-    logger.info("Found best result set in {}.", restart(stopwatch));
+    // Pre-load group views. This avoids individual retrievals when we convert to GroupResponse.
+    if (user != null) {
+      GroupViews.viewsFor(user, Iterables.transform(top, RankedGroup::group));
+    }
 
-    List<NearbyKey> results = best.results();
+    return top;
+  }
 
-    logger.info("Computed {} distances in {}.", results.size(), restart(stopwatch));
+  /** Ranks the closest groups and returns the top groups. */
+  private List<RankedGroup> runAll(List<String> spaces, User user,
+      Map<Key<User>, User> friends, int limit, int retrieve, Stopwatch stopwatch) {
+    List<NearbyKey> results = searchIndex(spaces, retrieve);
+    if (results == null) results = searchDatastore(spaces, retrieve, stopwatch);
 
-    // Find the closest groups.
-    if (results.size() > retrieve) {
-      results = Ordering.from(NearbyKey.BY_DISTANCE).leastOf(results, retrieve * adminFactor);
+    logger.info("Found closest groups in {}.", restart(stopwatch));
+
+    List<RankedGroup> top = rank(user, friends, results, limit, stopwatch);
+
+    logger.info("Found top {} groups in {}.", top.size(), restart(stopwatch));
+
+    return top;
+  }
+
+  /** Ranks rings of nearby groups until we fill a page. See {@link #page}. */
+  private List<RankedGroup> runPage(List<String> spaces, User user,
+      Map<Key<User>, User> friends, int pageSize, int ringSize, Stopwatch stopwatch) {
+    GroupIndex index = index();
+    if (index == null) {
+      // We can only page through the index. Return one page without a cursor.
+      return cursor == null
+          ? runAll(spaces, user, friends, pageSize, ringSize, stopwatch)
+          : Collections.emptyList();
     }
 
-    logger.info("Found closest groups in {}.", restart(stopwatch));
+    Cursor position = cursor == null ? Cursor.FIRST : Cursor.decode(cursor);
+    List<RankedGroup> page = new ArrayList<>();
+    while (page.size() < pageSize) {
+      List<GroupIndex.Nearby> ring = index.nearestAfter(origin, spaces, position.ringStart,
+          MAX_RADIUS, ringSize);
+      if (ring.isEmpty()) return page;
+
+      // Rank one more than we need, so we know whether the ring has more groups.
+      int remaining = pageSize - page.size();
+      List<RankedGroup> ranked = rank(user, friends,
+          ring.stream().map(NearbyKey::new).collect(toList()),
+          position.returned + remaining + 1, stopwatch);
+      ranked = ranked.subList(Math.min(position.returned, ranked.size()), ranked.size());
+      if (ranked.size() > remaining) {
+        page.addAll(ranked.subList(0, remaining));
+        this.nextCursor = new Cursor(position.ringStart, position.returned + remaining).encode();
+        return page;
+      }
+      page.addAll(ranked);
 
+      // Fewer groups than we asked for means this was the last ring.
+      if (ring.size() < ringSize) return page;
+      position = new Cursor(ring.get(ring.size() - 1), 0);
+    }
+    this.nextCursor = position.encode();
+    return page;
+  }
+
+  /**
+   * Loads and ranks the given groups, and returns the top {@code limit} ordered by ranking and
+   * then group ID. Skips groups the user can't see.
+   */
+  private List<RankedGroup> rank(User user, Map<Key<User>, User> friends,
+      List<NearbyKey> results, int limit, Stopwatch stopwatch) {
     // Retrieve the groups and their logs from the datastore.
 
     List<Key<Group>> groupKeys;
@@ -217,57 +281,152 @@ public class GroupSearch {
     List<Key<Group.Log>> logKeys = ranker.usesLogs()
         ? groupKeys.stream().map(Group.Log::keyFor).collect(toList())
         : null;
-    Map<Key<User>, User> friends = friendKeys != null && ranker.usesFriends()
-        ? ofy().load().keys(friendKeys)
-        : Collections.emptyMap();
     Map<Key<Group>, Group> groups = ofy().load().group(ranker.loadGroups()).keys(groupKeys);
     Map<Key<Group.Log>, Group.Log> logs = ranker.usesLogs() ? ofy().load().keys(logKeys)
         : Collections.emptyMap();
 
     logger.info("Loaded {} groups and logs in {}.", groups.size(), restart(stopwatch));
 
-    // Compute a ranking for each group.
-    List<RankedGroup> ranked = results.stream().map(nk -> {
+    // Collect the groups the user can see, and rank them in one batch.
+    Candidates candidates = new Candidates(user, friends.values(), results.size());
+    for (NearbyKey nk : results) {
       Group group = groups.get(nk.groupKey);
+      // The index can lag behind the datastore.
+      if (group == null || group.deleted || !group.discoverable) continue;
       if (user != null) {
         if (group.lastSignificantComment != null && group.lastSignificantComment.isLoaded()) {
-          if (!user.canSee(group.lastSignificantComment.get())) return null;
+          if (!user.canSee(group.lastSignificantComment.get())) continue;
         }
         if (!user.canSee(group.owner.get())) {
           logger.debug("User can't see group.");
-          return null;
+          continue;
         }
       }
-      Group.Log log = logs.get(nk.logKey);
-      GroupRanker.Input input = new GroupRanker.Input(
-          user, friends.values(), group, log, nk.distance);
-      return ranker.rank(input);
-    }).filter(Objects::nonNull).collect(toList());
+      candidates.add(group, logs.get(nk.logKey), nk.distance);
+    }
+    List<RankedGroup> ranked = ranker.top(candidates, limit);
 
     logger.info("Ranked groups in {}.", restart(stopwatch));
 
-    // Sort groups based on their ranking.
-    List<RankedGroup> top = Ordering.natural().leastOf(ranked, this.limit * adminFactor);
+    return ranked;
+  }
 
-    logger.info("Found top {} groups in {}.", top.size(), restart(stopwatch));
+  /** Returns this instance's {@link GroupIndex}, or null if it isn't available. */
+  private static GroupIndex index() {
+    try {
+      return GroupIndex.get();
+    } catch (RuntimeException e) {
+      logger.error("Group index unavailable. Querying the datastore.", e);
+      return null;
+    }
+  }
 
-    // Don't return private groups to clients that don't support them.
-    RequestHeader header = RequestHeaders.current();
-    if (header != null) {
-      Client client = Clients.getOrCreate(header.clientUuid);
-      if (!client.supports(Feature.PRIVATE_GROUPS)) {
-        top = top.stream()
-            .filter(g -> g.group().preapprove == GroupMemberPreapproval.ANYONE)
-            .collect(toList());
+  /**
+   * Finds the closest groups using this instance's {@link GroupIndex}. Returns null if the index
+   * isn't available.
+   */
+  private List<NearbyKey> searchIndex(List<String> spaces, int retrieve) {
+    GroupIndex index = index();
+    if (index == null) return null;
+    List<NearbyKey> results = index.nearest(origin, spaces, MAX_RADIUS, retrieve).stream()
+        .map(NearbyKey::new)
+        .collect(toList());
+    logger.info("Found {} groups in the index @ {}.", results.size(), origin);
+    return results;
+  }
+
+  /**
+   * Finds the closest groups by querying the datastore. If we've searched this region recently,
+   * we start with the radius that worked best last time and the next one out. That's where we
+   * start, not where we stop: we go further out when both fit within the limit, and we start
+   * over from the smallest radius when the learned one no longer does.
+   */
+  private List<NearbyKey> searchDatastore(List<String> spaces, int retrieve,
+      Stopwatch stopwatch) {
+     /*
+      * TODO: Clients page through the index with a cursor (see runPage()), but this fallback
+      * returns a single page without one. Neither goes past MAX_RADIUS.
+      *
+      * Search up to 4 radii concurrently. Use the largest radius that doesn't exceed the result
+      * limit. Each radius triggers 5 queries (one per covering cell).
+      *
+      * Note: If this proves to be too many queries, we should search each radius sequentially.
+      * This will obviously result in higher latency.
+      */
+    Integer learned = regionDensity.get(origin);
+    int first = learned == null ? 0 : learned;
+    int end = learned == null ? RADII.length : Math.min(first + 2, RADII.length);
+    List<ProximityQuery> queries = startQueries(spaces, first, end);
+
+    logger.info("Kicked off {} queries in {}.", queries.size(), restart(stopwatch));
+
+    // Find the query returning the most results without going over the limit.
+    Iterator<ProximityQuery> iterator = queries.iterator();
+    ProximityQuery best = iterator.next();
+    if (best.exceededLimit()) {
+      if (first > 0) {
+        // This part of the region has more groups. Try all the radii.
+        logger.info("Exceeded limit with learned {}km radius @ {}.", best.radius / 1000, origin);
+        regionDensity.invalidate(origin);
+        return searchDatastore(spaces, retrieve, stopwatch);
       }
+      logger.error("Exceeded query limit using a {}km radius @ {}! Lower the initial radius "
+          + "and/or the number of weeks we search, or increase the limit.",
+          best.radius / 1000, origin);
+    } else {
+      while (true) {
+        if (!iterator.hasNext()) {
+          // Every radius we tried fit. This part of the region may have fewer groups than
+          // where we learned the radius, so try the rest.
+          if (end == RADII.length) break;
+          logger.info("Expanding past learned {}km radius @ {}.", RADII[first] / 1000, origin);
+          iterator = startQueries(spaces, end, RADII.length).iterator();
+          end = RADII.length;
+        }
+        ProximityQuery current = iterator.next();
+        if (current.exceededLimit()) {
+          logger.info("Exceeded limit with {}km radius @ {}.", best.radius / 1000, origin);
+          // Add results from current group to the previous group. Ensures we have a
+          // sufficient number of results without missing any nearby results.
+          best.groupLists.addAll(current.groupLists);
+          break;
+        }
+        best = current;
+      }
+      logger.info("Found {} groups using a {}km radius @ {}.",
+          best.size(), best.radius / 1000, origin);
     }
+    regionDensity.record(origin, best.radiusIndex);
 
-    // Pre-load group views. This avoids individual retrievals when we convert to GroupResponse.
-    if (user != null) {
-      GroupViews.viewsFor(user, Iterables.transform(top, RankedGroup::group));
+    logger.info("Found best result set in {}.", restart(stopwatch));
+
+    List<NearbyKey> results = best.results();
+
+    logger.info("Computed {} distances in {}.", results.size(), restart(stopwatch));
+
+    // Find the closest groups.
+    if (results.size() > retrieve) {
+      results = Ordering.from(NearbyKey.BY_DISTANCE).leastOf(results, retrieve);
     }
+    return results;
+  }
 
-    return top;
+  /**
+   * Kicks off queries for radii {@code from} through {@code to} (exclusive), but doesn't start
+   * fetching results until we need them.
+   */
+  private List<ProximityQuery> startQueries(List<String> spaces, int from, int to) {
+    List<ProximityQuery> queries = new ArrayList<>();
+    for (int i = from; i < to; i++) {
+      // Set a high limit for the smallest radius so we don't miss groups in dense areas.
+      queries.add(new ProximityQuery(spaces, origin, i, i == 0 ? 1000 : 500));
+    }
+    return queries;
+  }
+
+  /** Returns hit and miss counts for the best radius by region. */
+  public static CacheStats regionDensityStats() {
+    return regionDensity.stats();
   }
 
   private static String lastName(String name) {
@@ -279,6 +438,7 @@ public class GroupSearch {
   private static class ProximityQuery {
 
     private final S2LatLng origin;
+    private final int radiusIndex;
     private final long radius;
     private final int limit;
     private final List<List<Entity>> groupLists = new ArrayList<>();
@@ -286,9 +446,11 @@ public class GroupSearch {
     /**
      * Queries nearby groups. Triggers 20 queries (5 cells * 4 weeks) in parallel.
      */
-    public ProximityQuery(Iterable<String> spaces, Coordinates origin, long radius, int limit) {
+    public ProximityQuery(Iterable<String> spaces, Coordinates origin, int radiusIndex,
+        int limit) {
       this.origin = origin.toS2LatLng();
-      this.radius = radius;
+      this.radiusIndex = radiusIndex;
+      this.radius = RADII[radiusIndex];
 
       this.limit = limit;
 
@@ -362,6 +524,62 @@ public class GroupSearch {
     }
   }
 
+  /** Position in paged results. Opaque to clients. */
+  private static class Cursor {
+
+    private static final int VERSION = 1;
+
+    private static final Cursor FIRST = new Cursor(null, 0);
+
+    /** Last group of the previous ring, in distance order. Null in the first ring. */
+    @Nullable private final GroupIndex.Nearby ringStart;
+
+    /**
+     * Number of groups we've returned from the current ring. Rankings drift as time passes, so
+     * we skip ranked positions instead of comparing rankings to the last group we returned.
+     */
+    private final int returned;
+
+    private Cursor(@Nullable GroupIndex.Nearby ringStart, int returned) {
+      this.ringStart = ringStart;
+      this.returned = returned;
+    }
+
+    private String encode() {
+      try {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(VERSION);
+        out.writeBoolean(ringStart != null);
+        if (ringStart != null) {
+          out.writeUTF(ringStart.groupId());
+          out.writeLong(ringStart.s2CellId());
+          out.writeDouble(ringStart.distance());
+        }
+        out.writeInt(returned);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    private static Cursor decode(String encoded) {
+      try {
+        DataInputStream in = new DataInputStream(
+            new ByteArrayInputStream(Base64.getUrlDecoder().decode(encoded)));
+        if (in.readByte() != VERSION) throw new ClientException("Invalid cursor.");
+        GroupIndex.Nearby ringStart = in.readBoolean()
+            ? new GroupIndex.Nearby(in.readUTF(), in.readLong(), in.readDouble())
+            : null;
+        int returned = in.readInt();
+        if (returned < 0) throw new ClientException("Invalid cursor.");
+        return new Cursor(ringStart, returned);
+      } catch (IOException | IllegalArgumentException e) {
+        throw new ClientException("Invalid cursor.");
+      }
+    }
+  }
+
   /** A Group key with a location. */
   private static class NearbyKey {
 
@@ -382,6 +600,13 @@ public class GroupSearch {
       this.distance = new S2CellId(s2CellId).toLatLng().getEarthDistance(origin);
     }
 
+    private NearbyKey(GroupIndex.Nearby nearby) {
+      this.groupKey = Key.create(Group.class, nearby.groupId());
+      this.logKey = Group.Log.keyFor(this.groupKey);
+      this.s2CellId = nearby.s2CellId();
+      this.distance = nearby.distance();
+    }
+
     private Key<Group> groupKey() {
       return this.groupKey;
     }
@@ -0,0 +1,65 @@
+package present.server.model.group;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.geometry.S2CellId;
+import java.util.concurrent.TimeUnit;
+import present.server.model.util.Coordinates;
+
+/**
+ * Remembers which search radius worked best in each region, so later searches in the same region
+ * can start there instead of at the smallest radius. Regions are level 8 S2 cells (roughly 30km
+ * across), and density varies within them, so this is only a starting point.
+ */
+class RegionDensity {
+
+  /** S2 level of a region. */
+  static final int LEVEL = 8;
+
+  /** Regions are few and change slowly, but new groups do move the best radius. */
+  private static final long EXPIRATION_HOURS = 6;
+
+  private final Cache<Long, Integer> estimates;
+
+  RegionDensity() {
+    this(Ticker.systemTicker());
+  }
+
+  RegionDensity(Ticker ticker) {
+    estimates = CacheBuilder.newBuilder()
+        .maximumSize(50_000)
+        .expireAfterWrite(EXPIRATION_HOURS, TimeUnit.HOURS)
+        .ticker(ticker)
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Returns the index into {@link GroupSearch}'s radii that worked best last time in the region
+   * containing the given location, or null.
+   */
+  Integer get(Coordinates location) {
+    return estimates.getIfPresent(regionOf(location));
+  }
+
+  /** Records the best radius for the region containing the given location. */
+  void record(Coordinates location, int radiusIndex) {
+    estimates.put(regionOf(location), radiusIndex);
+  }
+
+  /** Forgets the estimate for the region containing the given location. */
+  void invalidate(Coordinates location) {
+    estimates.invalidate(regionOf(location));
+  }
+
+  /** Returns hit and miss counts. */
+  CacheStats stats() {
+    return estimates.stats();
+  }
+
+  private static long regionOf(Coordinates location) {
+    return S2CellId.fromLatLng(location.toS2LatLng()).parent(LEVEL).id();
+  }
+}
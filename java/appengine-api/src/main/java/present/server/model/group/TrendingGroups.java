@@ -1,11 +1,10 @@
 package present.server.model.group;
 
 import com.google.common.base.Stopwatch;
-import com.google.common.collect.Ordering;
 import com.googlecode.objectify.Key;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import org.slf4j.Logger;
@@ -14,11 +13,14 @@ import present.server.model.Space;
 
 import static com.googlecode.objectify.ObjectifyService.ofy;
 import static java.util.stream.Collectors.toList;
-import static present.server.tool.RemoteTool.PRODUCTION_SERVER;
+import static present.server.tool.RemoteTool.STAGING_SERVER;
 import static present.server.tool.RemoteTool.against;
 
 /**
- * Finds groups that are trending.
+ * Finds groups that are trending. Scores active groups in a space with
+ * {@link GroupRanker#EXPLORE} a page at a time, keeping only the best groups in memory. Nothing
+ * serves these yet; run {@link #main} to print them. Once something does, we can store the
+ * results and rescore them incrementally instead of scanning every group.
  *
  * @author Bob Lee (bob@present.co)
  */
@@ -26,38 +28,66 @@ public class TrendingGroups {
 
   private static final Logger logger = LoggerFactory.getLogger(TrendingGroups.class);
 
-  public static List<RankedGroup> trendingIn(Space space) {
-    // TODO: We can page these instead of loading them all into memory at once.
-    Stopwatch sw = Stopwatch.createStarted();
-    List<Group> all = Groups.active().list().stream()
-        .filter(g -> g.space() == space)
-        .collect(toList());
-    List<Key<Group.Log>> logKeys = all.stream()
-        .map(g -> Group.Log.keyFor(g.getKey()))
-        .collect(toList());
-    Map<Key<Group.Log>, Group.Log> logs = ofy().load().keys(logKeys);
-    GroupRanker ranker = GroupRanker.EXPLORE;
-    List<RankedGroup> rankedGroups = new ArrayList<>();
-    for (Group group : all) {
-      // Filter out welcome circles.
-      if (group.title.toLowerCase().startsWith("welcome to ")) continue;
+  /** Number of trending groups we return. */
+  private static final int SIZE = 50;
+
+  /** Groups we load and score at a time. */
+  private static final int PAGE_SIZE = 500;
+
+  private TrendingGroups() {}
 
-      Group.Log log = logs.get(Group.Log.keyFor(group.getKey()));
-      RankedGroup ranked = ranker.rank(new GroupRanker.Input(
-         null, Collections.emptyList(), group, log, 0
-      ));
-      rankedGroups.add(ranked);
+  /** Returns the groups trending in the given space, best first. */
+  public static List<RankedGroup> trendingIn(Space space) {
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    List<RankedGroup> top = Collections.emptyList();
+    List<Group> page = new ArrayList<>(PAGE_SIZE);
+    int total = 0;
+    for (Group group : Groups.active().chunk(PAGE_SIZE).iterable()) {
+      if (!isCandidate(group, space)) continue;
+      page.add(group);
+      total++;
+      if (page.size() == PAGE_SIZE) {
+        top = score(top, page);
+        page.clear();
+      }
     }
-    Comparator<RankedGroup> comparator = (a, b) -> Double.compare(a.score.combined, b.score.combined);
-    List<RankedGroup> top = Ordering.from(comparator).leastOf(rankedGroups, 50);
-    logger.info("Found trending groups in {}.", sw);
+    top = score(top, page);
+    logger.info("Scored {} groups in {}.", total, stopwatch);
     return top;
   }
 
+  /**
+   * Loads logs for the given groups, scores them along with the given previous winners, and
+   * returns the best.
+   */
+  private static List<RankedGroup> score(List<RankedGroup> previous, Collection<Group> groups) {
+    Map<Key<Group.Log>, Group.Log> logs = ofy().load().keys(groups.stream()
+        .map(g -> Group.Log.keyFor(g.getKey()))
+        .collect(toList()));
+    Candidates candidates = new Candidates(null, Collections.emptyList(),
+        previous.size() + groups.size());
+    for (RankedGroup ranked : previous) {
+      candidates.add(ranked.group(), ranked.input.log, 0);
+    }
+    for (Group group : groups) {
+      candidates.add(group, logs.get(Group.Log.keyFor(group.getKey())), 0);
+    }
+    return GroupRanker.EXPLORE.topScores(candidates, SIZE);
+  }
+
+  private static boolean isCandidate(Group group, Space space) {
+    return group != null
+        && !group.deleted
+        && group.space() == space
+        // Filter out welcome circles.
+        && !group.title.toLowerCase().startsWith("welcome to ");
+  }
+
+  /** Usage: {@code TrendingGroups [server]}. Runs against staging by default. */
   public static void main(String[] args) {
-    against(PRODUCTION_SERVER, () -> {
-      List<RankedGroup> top = trendingIn(Space.EVERYONE);
-      for (RankedGroup ranked : top) {
+    String server = args.length == 0 ? STAGING_SERVER : args[0];
+    against(server, () -> {
+      for (RankedGroup ranked : trendingIn(Space.EVERYONE)) {
         Group group = ranked.group();
         System.out.print(group.title);
         System.out.print('\t');
@@ -8,10 +8,14 @@ import com.googlecode.objectify.Result;
 import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
 import com.googlecode.objectify.annotation.Index;
 import com.googlecode.objectify.annotation.Load;
+import com.googlecode.objectify.annotation.OnLoad;
+import com.googlecode.objectify.annotation.OnSave;
 import com.googlecode.objectify.condition.IfNotNull;
 import java.lang.reflect.Field;
+import java.time.ZoneId;
 import java.util.Objects;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,6 +25,7 @@ import present.proto.UnreadCounts;
 import present.proto.UnreadState;
 import present.server.Cities;
 import present.server.KeysOnly;
+import present.server.TimeZones;
 import present.server.Uuids;
 import present.server.environment.Environment;
 import present.server.model.geocoding.GeocodeClient;
@@ -113,6 +118,22 @@ import static present.server.model.util.Coordinates.fromProto;
     return locationTimestamp;
   }
 
+  /** Time zone for {@link #zoneLocation}. */
+  @Ignore private ZoneId zone;
+
+  /** Location we resolved {@link #zone} for. */
+  @Ignore private Long zoneLocation;
+
+  /** Returns the time zone at the client's last known location. Memoized until it moves. */
+  public ZoneId zone() {
+    if (this.location == null) return TimeZones.DEFAULT;
+    if (this.zone == null || !this.location.equals(this.zoneLocation)) {
+      this.zone = TimeZones.zoneFor(new S2CellId(this.location));
+      this.zoneLocation = this.location;
+    }
+    return this.zone;
+  }
+
   /** Captures fields from the header. */
   public void updateWith(RequestHeader header) {
     boolean dirty = false;
@@ -277,6 +298,26 @@ import static present.server.model.util.Coordinates.fromProto;
     return ofy().save().entity(this);
   }
 
+  /** User when this Client was loaded or last saved. */
+  @Ignore private Key<User> savedUser;
+
+  /** Whether or not this Client had a device token when it was loaded or last saved. */
+  @Ignore private boolean savedToken;
+
+  @OnLoad void rememberRegistration() {
+    this.savedUser = user == null ? null : user.key();
+    this.savedToken = deviceToken != null;
+  }
+
+  /** Keeps the {@link DeviceRegistry} up to date. */
+  @OnSave void updateRegistry() {
+    Key<User> userKey = user == null ? null : user.key();
+    boolean hasToken = deviceToken != null;
+    DeviceRegistry.clientChanged(savedUser, savedToken, userKey, hasToken);
+    this.savedUser = userKey;
+    this.savedToken = hasToken;
+  }
+
   /**
    * Simulates RPC from the given client.
    */
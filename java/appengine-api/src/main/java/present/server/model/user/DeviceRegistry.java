@@ -0,0 +1,142 @@
+package present.server.model.user;
+
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.impl.TransactionImpl;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import present.proto.DeviceRegistryEntry;
+import present.server.MoreObjectify;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+/**
+ * Caches the IDs of each user's Clients that have device tokens in memcache, so we can find
+ * notification targets with a memcache lookup and a batch get instead of a Client query. The
+ * Clients themselves come from the entity cache, so we only need to invalidate an entry when a
+ * Client joins or leaves the set. {@link Client} does this when a save commits.
+ *
+ * <p>Queries are eventually consistent, so a miss right after an invalidation can cache a stale
+ * set. Entries expire so such sets don't live forever.
+ */
+public class DeviceRegistry {
+
+  private static final Logger logger = LoggerFactory.getLogger(DeviceRegistry.class);
+
+  /** Bump when the format of cached entries changes. */
+  private static final int VERSION = 1;
+
+  /** How long to cache an entry for. */
+  private static final Expiration EXPIRATION = Expiration.byDeltaSeconds(
+      (int) TimeUnit.HOURS.toSeconds(6));
+
+  private DeviceRegistry() {}
+
+  /** Returns Clients with device tokens for the given users. */
+  public static List<Client> clientsFor(Iterable<Key<User>> userKeys) {
+    MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+    Map<String, Key<User>> usersByCacheKey = new LinkedHashMap<>();
+    for (Key<User> userKey : userKeys) usersByCacheKey.put(toCacheKey(userKey), userKey);
+    if (usersByCacheKey.isEmpty()) return new ArrayList<>();
+
+    Map<String, Object> cached = memcache.getAll(usersByCacheKey.keySet());
+    List<Key<Client>> clientKeys = new ArrayList<>();
+    List<Key<User>> misses = new ArrayList<>();
+    usersByCacheKey.forEach((cacheKey, userKey) -> {
+      DeviceRegistryEntry entry = decode(cached.get(cacheKey));
+      if (entry == null) {
+        misses.add(userKey);
+      } else {
+        for (String clientId : entry.clientIds) clientKeys.add(Key.create(Client.class, clientId));
+      }
+    });
+
+    List<Client> clients = new ArrayList<>();
+    if (!misses.isEmpty()) clients.addAll(query(misses));
+
+    // Clients from the query are already loaded. The entity cache serves the rest.
+    for (Client client : ofy().load().keys(clientKeys).values()) {
+      // Guard against tokens cleared by code that didn't invalidate the entry.
+      if (client.deviceToken != null && client.user != null) clients.add(client);
+    }
+    logger.debug("Found Clients for {} cached and {} uncached users.",
+        usersByCacheKey.size() - misses.size(), misses.size());
+    return clients;
+  }
+
+  /** Queries Clients for the given users and caches the results. */
+  private static List<Client> query(List<Key<User>> userKeys) {
+    List<Client> results = MoreObjectify.queryIn(userKeys, batch -> Clients.query()
+        .filter(Client.Fields.user.getName() + " in", batch)
+        .filter(Client.Fields.deviceToken.getName() + " !=", null)
+        .list());
+
+    Map<Key<User>, List<String>> idsByUser = new HashMap<>();
+    for (Key<User> userKey : userKeys) idsByUser.put(userKey, new ArrayList<>());
+    List<Client> clients = new ArrayList<>();
+    for (Client client : results) {
+      List<String> ids = idsByUser.get(client.user.getKey());
+      if (ids == null) continue;
+      ids.add(client.uuid);
+      clients.add(client);
+    }
+
+    // Don't overwrite entries that changed since we looked.
+    Map<String, byte[]> entries = new HashMap<>();
+    idsByUser.forEach((userKey, ids) ->
+        entries.put(toCacheKey(userKey), new DeviceRegistryEntry(ids).encode()));
+    MemcacheServiceFactory.getMemcacheService().putAll(entries, EXPIRATION,
+        MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    return clients;
+  }
+
+  /** Removes the cached entry for the given user. */
+  public static void invalidate(Key<User> userKey) {
+    MemcacheServiceFactory.getMemcacheService().delete(toCacheKey(userKey));
+  }
+
+  /**
+   * Invalidates entries affected by a change to a Client. Called with the Client's user and
+   * whether or not it had a device token, when loaded and now. Inside a transaction, waits until
+   * the transaction commits, so a query can't cache the old set in between.
+   */
+  static void clientChanged(Key<User> oldUser, boolean hadToken, Key<User> newUser,
+      boolean hasToken) {
+    if (Objects.equals(oldUser, newUser) && hadToken == hasToken) return;
+    Runnable update = () -> {
+      if (oldUser != null) invalidate(oldUser);
+      if (newUser != null && !newUser.equals(oldUser)) invalidate(newUser);
+    };
+    Transaction transaction = ofy().getTransaction();
+    if (transaction == null) {
+      update.run();
+    } else {
+      ((TransactionImpl) transaction).listenForCommit(update);
+    }
+  }
+
+  private static DeviceRegistryEntry decode(Object value) {
+    if (value == null) return null;
+    try {
+      return DeviceRegistryEntry.ADAPTER.decode((byte[]) value);
+    } catch (IOException | ClassCastException e) {
+      logger.warn("Invalid DeviceRegistryEntry.", e);
+      return null;
+    }
+  }
+
+  static String toCacheKey(Key<User> userKey) {
+    return "DeviceRegistry." + VERSION + ":" + userKey.getName();
+  }
+}
@@ -1,19 +1,23 @@
 package present.server.model.user;
 
+import com.google.appengine.api.memcache.AsyncMemcacheService;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Sets;
-import com.google.common.collect.Streams;
-import com.googlecode.objectify.Key;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
@@ -23,12 +27,16 @@ import present.proto.UnreadCounts;
 import present.proto.UnreadState;
 import present.proto.UserService;
 import present.server.RpcQueue;
-import present.server.SortedLists;
+import present.server.Uuids;
+import present.server.model.Futures;
 import present.server.model.comment.GroupView;
 import present.server.model.comment.GroupViews;
 import present.server.model.group.Group;
+import present.server.model.group.Groups;
+import present.server.model.util.UuidSet;
 
-import static com.googlecode.objectify.ObjectifyService.ofy;
+import static com.google.common.util.concurrent.Futures.getUnchecked;
+import static com.google.common.util.concurrent.Futures.immediateFuture;
 import static present.server.model.user.UnreadStates.UnreadStateField.GROUPS;
 
 /**
@@ -42,33 +50,31 @@ public class UnreadStates {
 
   private static final Logger logger = LoggerFactory.getLogger(UnreadStates.class);
 
-  private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+  /**
+   * Number of times we try to update a cached state before re-computing it. When another request
+   * beats us, we re-apply our change to its state and try again.
+   */
+  private static final int MAX_ATTEMPTS = 3;
+
+  /** Version of the cached state encoding. See {@link #toCacheKey}. */
+  private static final String CACHE_VERSION = "v2";
+
+  /** Number of states this instance has re-computed from the datastore. */
+  private static final AtomicLong recomputes = new AtomicLong();
+
+  /** Number of users whose states we load or update with one memcache call. */
+  private static final int CHUNK_SIZE = 100;
+
+  private final AsyncMemcacheService memcache = MemcacheServiceFactory.getAsyncMemcacheService();
+  private final List<Chunk> chunks = new ArrayList<>();
+  private final Map<String, User> usersByCacheKey = new HashMap<>();
   private final Map<User, UnreadStateUpdater> states = new HashMap<>();
   private final Set<User> nonCachedUsers = new HashSet<>();
+  private boolean resolved;
 
   @VisibleForTesting UnreadStates(Iterable<User> users) {
-    Set<String> cacheKeys = Streams.stream(users).map(UnreadStates::toCacheKey).collect(Collectors.toSet());
-    Map<String, MemcacheService.IdentifiableValue> cache = memcache.getIdentifiables(cacheKeys);
-    int total = 0;
-    int cached = 0;
-    for (User user : users) {
-      total++;
-      String cacheKey = toCacheKey(user);
-      MemcacheService.IdentifiableValue value = cache.get(cacheKey);
-      if (value == null) {
-        nonCachedUsers.add(user);
-      } else {
-        try {
-          states.put(user, new UnreadStateUpdater(cacheKey, value,
-              UnreadState.ADAPTER.decode((byte[]) value.getValue())));
-          cached++;
-        } catch (IOException e) {
-          logger.error("Error decoding UnreadState for " + user + ".", e);
-          nonCachedUsers.add(user);
-        }
-      }
-    }
-    logger.info("{} of {} users had cached UnreadState.", cached, total);
+    // Load the chunks concurrently.
+    for (List<User> chunk : Iterables.partition(users, CHUNK_SIZE)) chunks.add(new Chunk(chunk));
   }
 
   /** Batch loads cached UnreadThreads for the given users. */
@@ -76,15 +82,42 @@ public class UnreadStates {
     return new UnreadStates(users);
   }
 
+  /** Waits for all chunks to load. */
+  private void resolve() {
+    if (resolved) return;
+    chunks.forEach(Chunk::resolve);
+    resolved = true;
+    logger.info("{} of {} users had cached UnreadState.", states.size(), usersByCacheKey.size());
+  }
+
   /** Returns the set of users not found in the cache. */
   public Set<User> nonCachedUsers() {
+    resolve();
     return Collections.unmodifiableSet(nonCachedUsers);
   }
 
   /** Marks a group as unread. */
   public Stats markGroupUnread(String groupId) {
-    states.values().forEach(state -> state.markUnread(GROUPS, groupId));
-    return updateCache();
+    return getUnchecked(markGroupUnreadAsync(groupId));
+  }
+
+  /**
+   * Marks a group as unread. Updates each chunk as soon as it loads, so updates overlap with
+   * loads. Returns right after sending the updates, so callers can send notifications
+   * concurrently. {@link #stateFor} reflects the change immediately. Getting the result waits
+   * for the updates, merges conflicts, and enqueues re-computes.
+   */
+  public Future<Stats> markGroupUnreadAsync(String groupId) {
+    String groupUuid = toGroupUuid(groupId);
+    Map<String, UnreadStateUpdater> pending = new HashMap<>();
+    List<Future<Set<String>>> puts = new ArrayList<>();
+    for (Chunk chunk : chunks) {
+      chunk.resolve();
+      chunk.updaters.forEach(state -> state.markUnread(GROUPS, groupUuid));
+      puts.add(putIfUntouched(chunk.updaters, pending));
+    }
+    resolve();
+    return Futures.lazy(() -> finishUpdate(pending, puts));
   }
 
   private static UserService asyncUserService = RpcQueue.create(UserService.class);
@@ -94,6 +127,7 @@ public class UnreadStates {
    * devices.
    */
   public static void recomputeUnreadCountsFor(User user) {
+    recomputes.incrementAndGet();
     try {
       asyncUserService.computeUnreadCounts(
           new ComputeUnreadCountsRequest(user.uuid, user.unreadVersion));
@@ -103,52 +137,121 @@ public class UnreadStates {
   }
 
   /**
-   * Synchronously updates memcache. Enqueues tasks to re-compute missing or conflicted values.
+   * Returns the number of states this instance has re-computed from the datastore since it
+   * started. Logged by {@link present.server.InstanceStatsFilter}.
    */
-  private Stats updateCache() {
-    Map<String, MemcacheService.CasValues> updates = states.values().stream()
-        .filter(UnreadStateUpdater::dirty)
-        .collect(Collectors.toMap(UnreadStateUpdater::cacheKey, UnreadStateUpdater::casValues));
-    Stats stats;
-    if (updates.isEmpty()) {
-      refresh(Collections.emptySet());
-      stats = new Stats(0, states.size(), nonCachedUsers.size(),0);
-    } else {
-      Set<String> updatedKeys = memcache.putIfUntouched(updates);
-      Set<String> failedKeys = Sets.difference(updates.keySet(), updatedKeys);
-      refresh(failedKeys);
-      stats = new Stats(
-          updatedKeys.size(),
-          states.size() - updates.size(),
-          nonCachedUsers.size(),
-          failedKeys.size()
-      );
+  public static long recomputeCount() {
+    return recomputes.get();
+  }
+
+  /**
+   * Sends the given updaters' dirty states to memcache, if they haven't been touched since we
+   * loaded them. Adds the updaters to pending.
+   */
+  private Future<Set<String>> putIfUntouched(Collection<UnreadStateUpdater> updaters,
+      Map<String, UnreadStateUpdater> pending) {
+    Map<String, MemcacheService.CasValues> casValues = new HashMap<>();
+    for (UnreadStateUpdater updater : updaters) {
+      if (!updater.dirty()) continue;
+      casValues.put(updater.cacheKey, updater.casValues());
+      pending.put(updater.cacheKey, updater);
     }
+    if (casValues.isEmpty()) return immediateFuture(Collections.emptySet());
+    return memcache.putIfUntouched(casValues);
+  }
+
+  /**
+   * Waits for the given puts. When another request updates a state concurrently, we re-apply our
+   * change to the new state and try again. Enqueues tasks to re-compute missing values and values
+   * that keep conflicting.
+   */
+  private Stats finishUpdate(Map<String, UnreadStateUpdater> pending,
+      List<Future<Set<String>>> puts) {
+    int skips = states.size() - pending.size();
+    int updates = 0;
+    int merges = 0;
+    Set<String> failedKeys = new HashSet<>();
+    for (int attempt = 1; ; attempt++) {
+      for (Future<Set<String>> put : puts) {
+        Set<String> updatedKeys = getUnchecked(put);
+        updates += updatedKeys.size();
+        pending.keySet().removeAll(updatedKeys);
+      }
+      if (pending.isEmpty()) break;
+      if (attempt == MAX_ATTEMPTS) {
+        failedKeys.addAll(pending.keySet());
+        break;
+      }
+
+      // Merge our changes into the concurrently updated states. Load all chunks concurrently.
+      List<List<UnreadStateUpdater>> conflicts
+          = Lists.partition(new ArrayList<>(pending.values()), CHUNK_SIZE);
+      List<Future<Map<String, MemcacheService.IdentifiableValue>>> loads = new ArrayList<>();
+      for (List<UnreadStateUpdater> conflict : conflicts) {
+        loads.add(memcache.getIdentifiables(
+            conflict.stream().map(UnreadStateUpdater::cacheKey).collect(Collectors.toList())));
+      }
+      puts = new ArrayList<>();
+      for (int c = 0; c < conflicts.size(); c++) {
+        Map<String, MemcacheService.IdentifiableValue> latest = getUnchecked(loads.get(c));
+        List<UnreadStateUpdater> merged = new ArrayList<>();
+        for (UnreadStateUpdater updater : conflicts.get(c)) {
+          pending.remove(updater.cacheKey);
+          MemcacheService.IdentifiableValue value = latest.get(updater.cacheKey);
+          if (value == null || !updater.rebase(value)) {
+            // Evicted or corrupt.
+            failedKeys.add(updater.cacheKey);
+          } else {
+            merges++;
+            if (updater.dirty()) {
+              merged.add(updater);
+            } else {
+              // The other request made the same change.
+              skips++;
+            }
+          }
+        }
+        puts.add(putIfUntouched(merged, pending));
+      }
+    }
+    refresh(failedKeys);
+    Stats stats = new Stats(updates, skips, nonCachedUsers.size(), failedKeys.size(), merges);
     stats.log();
     return stats;
   }
 
-  /** Enqueues tasks to recompute the user's unread count. */
+  /**
+   * Enqueues tasks to recompute the user's unread count. Reuses the users we already loaded.
+   */
   void refresh(Set<String> failedCacheKeys) {
     RpcQueue.batch(() -> {
-      List<Key<User>> failedUserKeys = failedCacheKeys.stream()
-          .map(UnreadStates::parseUserId)
-          .map(id -> Key.create(User.class, id))
-          .collect(Collectors.toList());
-      ofy().load().keys(failedUserKeys).values().forEach(UnreadStates::recomputeUnreadCountsFor);
+      failedCacheKeys.stream()
+          .map(usersByCacheKey::get)
+          .forEach(UnreadStates::recomputeUnreadCountsFor);
 
       // Refresh users that weren't cached in the first place.
       nonCachedUsers.forEach(UnreadStates::recomputeUnreadCountsFor);
     });
   }
 
+  /**
+   * Returns the memcache key for the user's state. Bump the version when the encoding changes,
+   * so instances running different versions during a deploy don't read each other's states.
+   */
   static String toCacheKey(User user) {
-    return UnreadState.class.getSimpleName() + ":" + Preconditions.checkNotNull(user.uuid);
+    return UnreadState.class.getSimpleName() + "." + CACHE_VERSION + ":"
+        + Preconditions.checkNotNull(user.uuid);
   }
 
-  private static String parseUserId(String cacheKey) {
-    int index = cacheKey.indexOf(':');
-    return cacheKey.substring(index + 1);
+  /**
+   * Converts a group ID to the UUID we store. Strips the location from legacy IDs.
+   *
+   * @throws IllegalArgumentException if the ID doesn't contain a UUID
+   */
+  private static String toGroupUuid(String groupId) {
+    String uuid = Groups.getUuidFromId(groupId);
+    Preconditions.checkArgument(Uuids.isValid(uuid), "Invalid group ID: %s", groupId);
+    return uuid;
   }
 
   /** Returns unread counts for the given user or null if they weren't cached. */
@@ -160,19 +263,67 @@ public class UnreadStates {
 
   /** Returns unread state for the given user or null if it wasn't cached. */
   public UnreadState stateFor(User user) {
+    resolve();
     UnreadStateUpdater updater = states.get(user);
     if (updater == null) return null;
     if (updater.updated != null) return updater.updated;
     return updater.original;
   }
 
+  /** Users whose states we load with one memcache call. */
+  private class Chunk {
+
+    private final List<UnreadStateUpdater> updaters = new ArrayList<>();
+    private final List<User> users;
+    private Future<Map<String, MemcacheService.IdentifiableValue>> loading;
+
+    private Chunk(List<User> users) {
+      this.users = users;
+      List<String> cacheKeys = new ArrayList<>(users.size());
+      for (User user : users) {
+        String cacheKey = toCacheKey(user);
+        usersByCacheKey.put(cacheKey, user);
+        cacheKeys.add(cacheKey);
+      }
+      this.loading = memcache.getIdentifiables(cacheKeys);
+    }
+
+    /** Waits for this chunk to load and decodes its states. */
+    private void resolve() {
+      if (loading == null) return;
+      Map<String, MemcacheService.IdentifiableValue> cache = getUnchecked(loading);
+      loading = null;
+      for (User user : users) {
+        String cacheKey = toCacheKey(user);
+        MemcacheService.IdentifiableValue value = cache.get(cacheKey);
+        if (value == null) {
+          nonCachedUsers.add(user);
+        } else {
+          try {
+            UnreadStateUpdater updater = new UnreadStateUpdater(cacheKey, value,
+                UnreadState.ADAPTER.decode((byte[]) value.getValue()));
+            states.put(user, updater);
+            updaters.add(updater);
+          } catch (IOException e) {
+            logger.error("Error decoding UnreadState for " + user + ".", e);
+            nonCachedUsers.add(user);
+          }
+        }
+      }
+    }
+  }
+
   private static class UnreadStateUpdater {
 
     private final String cacheKey;
-    private final MemcacheService.IdentifiableValue encoded;
-    private final UnreadState original;
+    private MemcacheService.IdentifiableValue encoded;
+    private UnreadState original;
     private UnreadState updated;
 
+    /** The change we applied, so we can re-apply it after a conflict. */
+    private UnreadStateField field;
+    private String id;
+
     private UnreadStateUpdater(String cacheKey, MemcacheService.IdentifiableValue encoded,
         UnreadState decoded) {
       this.cacheKey = cacheKey;
@@ -191,11 +342,34 @@ public class UnreadStates {
 
     private void markUnread(UnreadStateField field, String id) {
       checkNotUpdated();
-      List<String> original = field.get(this.original);
-      List<String> updated = SortedLists.add(original, id);
+      this.field = field;
+      this.id = id;
+      apply();
+    }
+
+    private void apply() {
+      UuidSet original = field.get(this.original);
+      UuidSet updated = original.with(id);
       this.updated = original == updated ? this.original : field.update(this.original, updated);
     }
 
+    /**
+     * Re-applies our change to a newer cached state. Returns false if the state couldn't be
+     * decoded.
+     */
+    private boolean rebase(MemcacheService.IdentifiableValue latest) {
+      checkUpdated();
+      try {
+        this.original = UnreadState.ADAPTER.decode((byte[]) latest.getValue());
+      } catch (IOException e) {
+        logger.error("Error decoding UnreadState for " + cacheKey + ".", e);
+        return false;
+      }
+      this.encoded = latest;
+      apply();
+      return true;
+    }
+
     private void checkNotUpdated() {
       Preconditions.checkState(updated == null, "Already updated");
     }
@@ -219,35 +393,36 @@ public class UnreadStates {
 
   /** Marks the given group read for the current user. */
   public static UnreadState markGroupRead(User user, String groupId) {
-    return markRead(user, GROUPS, groupId);
+    return markRead(user, GROUPS, toGroupUuid(groupId));
   }
 
   /**
-   * Marks the given group read for the current user.
+   * Marks the given group read for the current user. If another request updates the cached state
+   * concurrently, we re-apply our change to the new state.
    */
   private static UnreadState markRead(User user, UnreadStateField field, String id) {
     MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
     String key = toCacheKey(user);
     try {
-      MemcacheService.IdentifiableValue identifiable = memcache.getIdentifiable(key);
-      if (identifiable != null) {
+      for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+        MemcacheService.IdentifiableValue identifiable = memcache.getIdentifiable(key);
+        if (identifiable == null) break;
         byte[] encoded = (byte[]) identifiable.getValue();
         UnreadState decoded = UnreadState.ADAPTER.decode(encoded);
-        List<String> original = field.get(decoded);
-        List<String> updatedList = SortedLists.remove(original, id);
-        if (updatedList == original) {
+        UuidSet original = field.get(decoded);
+        UuidSet updatedSet = original.without(id);
+        if (updatedSet == original) {
           // No change
           return decoded;
         }
-        UnreadState updated = field.update(decoded, updatedList);
+        UnreadState updated = field.update(decoded, updatedSet);
         encoded = updated.encode();
         if (memcache.putIfUntouched(key, identifiable, encoded)) {
           // Successful update
           return updated;
-        } else {
-          // Conflict. Fall through.
-          logger.info("Conflict while updating UserState. Re-computing UnreadState.");
         }
+        logger.info("Conflict while updating UnreadState. Attempt {} of {}.",
+            attempt, MAX_ATTEMPTS);
       }
     } catch (Exception e) {
       logger.error("Error decoding UnreadState", e);
@@ -256,6 +431,7 @@ public class UnreadStates {
     logger.info("Re-computing UnreadState.");
     // TODO: Do this concurrently with writing the container view.
     // user.incrementUnreadVersion();
+    recomputes.incrementAndGet();
     UnreadState computed = computeFor(user);
     memcache.put(key, computed.encode());
     return computed;
@@ -279,15 +455,27 @@ public class UnreadStates {
     // Load group views into session cache.
     GroupViews.viewsFor(user, allGroups);
 
-    // Sorted list of unread Group IDs
     List<String> unreadGroups = allGroups.stream()
         .filter(unread)
         .filter(g -> !g.isDeleted())
         .map(Group::uuid)
-        .sorted()
         .collect(Collectors.toList());
 
-    return new UnreadState(unreadGroups);
+    return toState(UuidSet.of(unreadGroups));
+  }
+
+  /** Creates an unread state containing the given groups. */
+  public static UnreadState toState(UuidSet unreadGroups) {
+    return new UnreadState(Collections.emptyList(), unreadGroups.encode());
+  }
+
+  /**
+   * Returns the unread group IDs in the given state. Reads the sorted string list from states
+   * cached before we packed IDs.
+   */
+  public static UuidSet unreadGroups(UnreadState state) {
+    if (state.groupIds != null && state.groupIds.size() > 0) return UuidSet.decode(state.groupIds);
+    return state.groups.isEmpty() ? UuidSet.EMPTY : UuidSet.of(state.groups);
   }
 
   /** Caches unread state for the given user. */
@@ -314,7 +502,7 @@ public class UnreadStates {
 
   /** Converts the server's internal unread state into the client's aggregate counts. */
   public static UnreadCounts toCounts(User user, UnreadState state) {
-    int unreadGroups = state.groups.size();
+    int unreadGroups = unreadGroups(state).size();
     return new UnreadCounts(unreadGroups + user.incomingFriendRequests,
         unreadGroups, user.incomingFriendRequests);
   }
@@ -322,17 +510,17 @@ public class UnreadStates {
   enum UnreadStateField {
 
     GROUPS {
-      @Override List<String> get(UnreadState state) {
-        return state.groups;
+      @Override UuidSet get(UnreadState state) {
+        return unreadGroups(state);
       }
 
-      @Override UnreadState update(UnreadState original, List<String> updated) {
-        return new UnreadState(updated);
+      @Override UnreadState update(UnreadState original, UuidSet updated) {
+        return toState(updated);
       }
     };
 
-    abstract List<String> get(UnreadState state);
-    abstract UnreadState update(UnreadState original, List<String> updated);
+    abstract UuidSet get(UnreadState state);
+    abstract UnreadState update(UnreadState original, UuidSet updated);
   }
 
   /** Cache operation statistics. */
@@ -359,14 +547,22 @@ public class UnreadStates {
     /** Number of entries that were missing from the cache. */
     public final int misses;
 
-    /** Number of updates that collided with concurrent updates. */
+    /** Number of updates that kept colliding with concurrent updates. */
     public final int collisions;
 
+    /** Number of times we re-applied a change to a concurrently updated entry. */
+    public final int merges;
+
     public Stats(int updates, int skips, int misses, int collisions) {
+      this(updates, skips, misses, collisions, 0);
+    }
+
+    public Stats(int updates, int skips, int misses, int collisions, int merges) {
       this.updates = updates;
       this.skips = skips;
       this.misses = misses;
       this.collisions = collisions;
+      this.merges = merges;
     }
 
     public void log() {
@@ -374,8 +570,9 @@ public class UnreadStates {
           + "  {} cached states were updated.\n"
           + "  {} cached states remained the same.\n"
           + "  Re-computing {} states that weren't cached.\n"
+          + "  Merged {} concurrent updates.\n"
           + "  Re-computing {} states that collided with concurrent updates.",
-          updates, skips, misses, collisions);
+          updates, skips, misses, merges, collisions);
     }
   }
 }
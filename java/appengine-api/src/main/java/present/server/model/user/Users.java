@@ -34,6 +34,7 @@ import present.server.Uuids;
 import present.server.environment.Environment;
 import present.server.facebook.FacebookFriendship;
 import present.server.model.PresentEntities;
+import present.server.model.activity.Event;
 import present.server.model.activity.Events;
 import present.server.model.comment.Comments;
 import present.server.model.group.Group;
@@ -341,13 +342,15 @@ public class Users {
     if (Environment.isProduction()) throw new UnsupportedOperationException();
 
     // TODO: BlockedUser, CommentContainerView, SavedGroups, Contact, FacebookData
+    List<Key<Event>> events = Events.query().filter("initiator", key).keys().list();
     // Kick off queries in parallel.
     Iterable<Key<?>> keys = Iterables.concat(
         Collections.singleton(key),
         Clients.query().filter("user", key).keys().list(),
         Groups.query().filter("owner", key).keys().list(),
         Comments.query().filter("author", key).keys().list(),
-        Events.query().filter("initiator", key).keys().list(),
+        events,
+        Events.recipientKeysFor(events),
         ofy().load().type(FacebookFriendship.class).filter("userIds", key.getName()).keys().list()
     );
 
@@ -0,0 +1,78 @@
+package present.server.model.util;
+
+/**
+ * A set of longs that doesn't box. Uses open addressing with linear probing and stays at most
+ * half full. Doesn't support removal.
+ */
+public class LongHashSet {
+
+  /** Marks empty slots. We track whether the set contains 0 separately. */
+  private static final long EMPTY = 0;
+
+  private long[] slots;
+  private int mask;
+  private boolean containsEmpty;
+  private int size;
+
+  /** Creates a set that can hold the given number of values without resizing. */
+  public LongHashSet(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(expectedSize, 4) * 2 - 1) << 1;
+    slots = new long[capacity];
+    mask = capacity - 1;
+  }
+
+  /** Creates a set containing the given values. */
+  public static LongHashSet of(Iterable<Long> values) {
+    LongHashSet set = new LongHashSet(16);
+    for (long value : values) set.add(value);
+    return set;
+  }
+
+  /** Adds a value. Returns true if the set didn't already contain it. */
+  public boolean add(long value) {
+    if (value == EMPTY) {
+      if (containsEmpty) return false;
+      containsEmpty = true;
+      size++;
+      return true;
+    }
+    int i = indexOf(value);
+    if (slots[i] == value) return false;
+    slots[i] = value;
+    if (++size * 2 > slots.length) resize();
+    return true;
+  }
+
+  /** Returns true if the set contains the given value. */
+  public boolean contains(long value) {
+    if (value == EMPTY) return containsEmpty;
+    return slots[indexOf(value)] == value;
+  }
+
+  /** Returns the number of values in this set. */
+  public int size() {
+    return size;
+  }
+
+  /** Returns the slot containing value, or the empty slot where it belongs. */
+  private int indexOf(long value) {
+    int i = hash(value) & mask;
+    while (slots[i] != EMPTY && slots[i] != value) i = (i + 1) & mask;
+    return i;
+  }
+
+  private void resize() {
+    long[] old = slots;
+    slots = new long[old.length * 2];
+    mask = slots.length - 1;
+    for (long value : old) {
+      if (value != EMPTY) slots[indexOf(value)] = value;
+    }
+  }
+
+  /** Spreads sequential IDs across the table. */
+  private static int hash(long value) {
+    long h = value * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+}
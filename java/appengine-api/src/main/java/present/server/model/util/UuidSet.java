@@ -0,0 +1,160 @@
+package present.server.model.util;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import okio.ByteString;
+
+/**
+ * An immutable, sorted set of UUIDs stored as pairs of longs in a single array. Orders UUIDs the
+ * same way as their lowercase string forms. Encodes to 16 big-endian bytes per UUID, so decoding
+ * and encoding are just copies, and adding or removing a UUID copies one array.
+ */
+public class UuidSet {
+
+  /** The empty set. */
+  public static final UuidSet EMPTY = new UuidSet(new long[0]);
+
+  /** Bytes per encoded UUID. */
+  private static final int UUID_BYTES = 16;
+
+  /** Most and least significant bits of each UUID, in order. */
+  private final long[] bits;
+
+  private UuidSet(long[] bits) {
+    this.bits = bits;
+  }
+
+  /** Returns a set containing the given UUIDs. */
+  public static UuidSet of(Collection<String> uuids) {
+    UUID[] parsed = new UUID[uuids.size()];
+    int count = 0;
+    for (String uuid : uuids) parsed[count++] = UUID.fromString(uuid);
+    Arrays.sort(parsed, (a, b) -> compare(a.getMostSignificantBits(),
+        a.getLeastSignificantBits(), b.getMostSignificantBits(), b.getLeastSignificantBits()));
+    long[] bits = new long[count * 2];
+    int size = 0;
+    for (UUID uuid : parsed) {
+      long msb = uuid.getMostSignificantBits();
+      long lsb = uuid.getLeastSignificantBits();
+      // Skip duplicates.
+      if (size > 0 && bits[size * 2 - 2] == msb && bits[size * 2 - 1] == lsb) continue;
+      bits[size * 2] = msb;
+      bits[size * 2 + 1] = lsb;
+      size++;
+    }
+    return new UuidSet(size == count ? bits : Arrays.copyOf(bits, size * 2));
+  }
+
+  /** Decodes a set encoded by {@link #encode()}. */
+  public static UuidSet decode(ByteString encoded) {
+    if (encoded == null || encoded.size() == 0) return EMPTY;
+    if (encoded.size() % UUID_BYTES != 0) {
+      throw new IllegalArgumentException("Invalid length: " + encoded.size());
+    }
+    long[] bits = new long[encoded.size() / Long.BYTES];
+    encoded.asByteBuffer().asLongBuffer().get(bits);
+    return new UuidSet(bits);
+  }
+
+  /** Encodes this set as 16 big-endian bytes per UUID. */
+  public ByteString encode() {
+    ByteBuffer buffer = ByteBuffer.allocate(bits.length * Long.BYTES);
+    buffer.asLongBuffer().put(bits);
+    return ByteString.of(buffer.array());
+  }
+
+  /** Returns the number of UUIDs in this set. */
+  public int size() {
+    return bits.length / 2;
+  }
+
+  /** Returns true if this set contains the given UUID. */
+  public boolean contains(String uuid) {
+    UUID parsed = UUID.fromString(uuid);
+    return indexOf(parsed.getMostSignificantBits(), parsed.getLeastSignificantBits()) >= 0;
+  }
+
+  /** Returns a set with the given UUID added, or this set if it already contains the UUID. */
+  public UuidSet with(String uuid) {
+    UUID parsed = UUID.fromString(uuid);
+    long msb = parsed.getMostSignificantBits();
+    long lsb = parsed.getLeastSignificantBits();
+    int index = indexOf(msb, lsb);
+    if (index >= 0) return this;
+    int offset = ~index * 2;
+    long[] updated = new long[bits.length + 2];
+    System.arraycopy(bits, 0, updated, 0, offset);
+    updated[offset] = msb;
+    updated[offset + 1] = lsb;
+    System.arraycopy(bits, offset, updated, offset + 2, bits.length - offset);
+    return new UuidSet(updated);
+  }
+
+  /** Returns a set with the given UUID removed, or this set if it doesn't contain the UUID. */
+  public UuidSet without(String uuid) {
+    UUID parsed = UUID.fromString(uuid);
+    int index = indexOf(parsed.getMostSignificantBits(), parsed.getLeastSignificantBits());
+    if (index < 0) return this;
+    int offset = index * 2;
+    long[] updated = new long[bits.length - 2];
+    System.arraycopy(bits, 0, updated, 0, offset);
+    System.arraycopy(bits, offset + 2, updated, offset, updated.length - offset);
+    return new UuidSet(updated);
+  }
+
+  /** Returns the UUIDs in this set as strings, in order. */
+  public List<String> toStrings() {
+    return new AbstractList<String>() {
+      @Override public String get(int index) {
+        return new UUID(bits[index * 2], bits[index * 2 + 1]).toString();
+      }
+
+      @Override public int size() {
+        return UuidSet.this.size();
+      }
+    };
+  }
+
+  /**
+   * Binary searches for the given UUID. Returns its index if found, or (-(insertion point) - 1)
+   * otherwise, like {@link Arrays#binarySearch(long[], long)}.
+   */
+  private int indexOf(long msb, long lsb) {
+    int low = 0;
+    int high = size() - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int comparison = compare(bits[middle * 2], bits[middle * 2 + 1], msb, lsb);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -(low + 1);
+  }
+
+  /** Compares UUIDs as unsigned 128-bit values, which matches their hex strings. */
+  private static int compare(long msbA, long lsbA, long msbB, long lsbB) {
+    int comparison = Long.compareUnsigned(msbA, msbB);
+    return comparison != 0 ? comparison : Long.compareUnsigned(lsbA, lsbB);
+  }
+
+  @Override public boolean equals(Object other) {
+    return other instanceof UuidSet && Arrays.equals(bits, ((UuidSet) other).bits);
+  }
+
+  @Override public int hashCode() {
+    return Arrays.hashCode(bits);
+  }
+
+  @Override public String toString() {
+    return toStrings().toString();
+  }
+}
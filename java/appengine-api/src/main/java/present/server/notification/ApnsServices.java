@@ -1,20 +1,13 @@
 package present.server.notification;
 
-import com.google.common.collect.MapMaker;
+import com.google.appengine.api.LifecycleManager;
 import com.notnoop.apns.APNS;
-import com.notnoop.apns.ApnsDelegate;
-import com.notnoop.apns.ApnsNotification;
 import com.notnoop.apns.ApnsService;
-import com.notnoop.apns.DeliveryError;
 import com.notnoop.apns.EnhancedApnsNotification;
-import com.notnoop.apns.PayloadBuilder;
-import java.util.Arrays;
-import java.util.Map;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import com.notnoop.apns.internal.Utilities;
+import javax.net.ssl.SSLSocketFactory;
 import present.server.model.user.Client;
+import present.server.notification.apns.ApnsDispatcher;
 
 /**
  * Manages APNS connections.
@@ -23,8 +16,6 @@ import present.server.model.user.Client;
  */
 public class ApnsServices {
 
-  private static final Logger logger = LoggerFactory.getLogger(ApnsServices.class);
-
   enum Type {
     SANDBOX("/present_apns_sandbox", 1),
     PRODUCTION("/present_apns_production", 25);
@@ -38,41 +29,10 @@ public class ApnsServices {
     }
   }
 
-  private static Map<ApnsNotification, Callback> callbacks = new MapMaker().weakKeys().makeMap();
-
-  private static final ApnsDelegate delegate = new ApnsDelegate() {
-    @Override public void messageSent(ApnsNotification message, boolean resent) {
-      Callback callback = callbacks.remove(message);
-      if (callback != null) callback.sent();
-    }
-
-    @Override public void messageSendFailed(ApnsNotification notification, Throwable e) {
-      if (notification == null) {
-        logger.warn("Missing notification.", e);
-        return;
-      }
-      Callback callback = callbacks.remove(notification);
-      if (callback != null) callback.failed(e);
-    }
-
-    @Override public void connectionClosed(DeliveryError e, int messageIdentifier) {
-      logger.warn("Connection closed: {}", e);
-    }
-
-    @Override public void cacheLengthExceeded(int newCacheLength) {
-      logger.info("Expanding resend cache to {}.", newCacheLength);
-    }
-
-    @Override public void notificationsResent(int resendCount) {
-      logger.info("Resent {} notifications.", resendCount);
-    }
-  };
-
+  /** Used to query the feedback service. */
   private static ApnsService newService(Type type) {
     return APNS.newService()
         .withCert(ApnsServices.class.getResourceAsStream(type.cert), "xxx")
-        .asPool(type.connections)
-        .withDelegate(delegate)
         .withAppleDestination(type == Type.PRODUCTION)
         .build();
   }
@@ -80,56 +40,56 @@ public class ApnsServices {
   static ApnsService sandboxService = newService(Type.SANDBOX);
   static ApnsService productionService = newService(Type.PRODUCTION);
 
-  /** Returns the appropriate APNS connection for the given token. */
-  private static ApnsService serviceFor(String token) {
-    if (token.startsWith(Notifications.SANDBOX_TOKEN_PREFIX)) return sandboxService;
-    return productionService;
+  private static ApnsDispatcher newDispatcher(Type type) {
+    SSLSocketFactory sockets = Utilities.newSSLSocketFactory(
+        ApnsServices.class.getResourceAsStream(type.cert), "xxx", "PKCS12", "sunx509");
+    return type == Type.PRODUCTION
+        ? new ApnsDispatcher("production", sockets, Utilities.PRODUCTION_GATEWAY_HOST,
+            Utilities.PRODUCTION_GATEWAY_PORT, type.connections)
+        : new ApnsDispatcher("sandbox", sockets, Utilities.SANDBOX_GATEWAY_HOST,
+            Utilities.SANDBOX_GATEWAY_PORT, type.connections);
   }
 
-  /**
-   * A pool with one thread per connection because we can only write to one connection at a time.
-   */
-  private static final Executor executor = Executors.newFixedThreadPool(
-      Arrays.stream(Type.values()).mapToInt(t -> t.connections).sum());
+  private static final ApnsDispatcher sandboxDispatcher = newDispatcher(Type.SANDBOX);
+  private static final ApnsDispatcher productionDispatcher = newDispatcher(Type.PRODUCTION);
+
+  static {
+    // Report in-flight notifications and close the connections when App Engine stops us.
+    LifecycleManager.getInstance().setShutdownHook(ApnsServices::close);
+  }
 
   /** Asynchronously pushes a notification. */
   public static void push(Client client, String payload, Callback callback) {
     push(client.deviceToken, payload, callback);
   }
 
-  /** Asynchronously pushes a notification. */
+  /**
+   * Asynchronously pushes a notification. Waits briefly if the APNs connections are backed up.
+   */
   public static void push(String token, String payload, Callback callback) {
-    String actualToken = token;
-    if (actualToken.startsWith(Notifications.SANDBOX_TOKEN_PREFIX)) {
-      actualToken = token.substring(Notifications.SANDBOX_TOKEN_PREFIX.length());
+    if (token.startsWith(Notifications.SANDBOX_TOKEN_PREFIX)) {
+      sandboxDispatcher.push(token.substring(Notifications.SANDBOX_TOKEN_PREFIX.length()),
+          payload, callback);
+    } else {
+      productionDispatcher.push(token, payload, callback);
     }
-    EnhancedApnsNotification notification =
-        new EnhancedApnsNotification(EnhancedApnsNotification.INCREMENT_ID(),
-            EnhancedApnsNotification.MAXIMUM_EXPIRY, actualToken, payload);
-    if (callback != null) callbacks.put(notification, callback);
-    ApnsService service = serviceFor(token);
-
-    // ApnsService.push() blocks until the notification is flushed to the kernel. Using an
-    // executor here means we enqueue the push to an unbounded queue and return
-    // immediately instead of blocking. Ideally, ApnsService would buffer and flush multiple
-    // notifications at once, increasing throughput, but that's a pretty big change to the
-    // underlying library. Long term, we should at least bound this queue to add some back
-    // pressure. This is fine for now though!
-    executor.execute(() -> {
-      service.push(notification);
-    });
   }
 
-  /** Handles results of sending APNS notifications. */
-  public interface Callback {
-
-    /** Notification was sent successfully. */
-    void sent();
+  /** Returns statistics for the production and sandbox APNs connections. */
+  public static String stats() {
+    return "production={" + productionDispatcher.stats() + "}, sandbox={"
+        + sandboxDispatcher.stats() + "}";
+  }
 
-    /** Failed to send notification. */
-    void failed(Throwable t);
+  /** Closes the APNs connections. Later pushes fail. */
+  public static void close() {
+    productionDispatcher.close();
+    sandboxDispatcher.close();
   }
 
+  /** Handles results of sending APNS notifications. */
+  public interface Callback extends ApnsDispatcher.Callback {}
+
   public static void main(String[] args) {
     String pat = "xxx";
     String bob = "xxx";
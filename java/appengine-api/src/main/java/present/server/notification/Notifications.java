@@ -1,10 +1,12 @@
 package present.server.notification;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.logging.Level;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import present.server.MoreObjectify;
 import present.server.model.user.Client;
 
 import static com.googlecode.objectify.ObjectifyService.ofy;
@@ -39,10 +41,16 @@ public class Notifications {
 
     if (failedTokens.isEmpty()) return;
 
+    clearTokens(failedTokens);
+  }
+
+  /** Removes the given device tokens from their Clients so that they are not tried again. */
+  public static void clearTokens(Collection<String> failedTokens) {
     // Find Clients for the device tokens.
-    List<Client> clients =
-        ofy().load().type(Client.class).filter("deviceToken in", failedTokens).list();
+    List<Client> clients = MoreObjectify.queryIn(failedTokens,
+        batch -> ofy().load().type(Client.class).filter("deviceToken in", batch).list());
     logger.info("Found " + clients.size() + " Clients for failed tokens.");
+    if (clients.isEmpty()) return;
 
     // Remove device tokens that have not been updated since the failure time.
     for (Client client : clients) {
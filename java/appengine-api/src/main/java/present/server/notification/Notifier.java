@@ -4,12 +4,19 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.collect.Streams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.Ref;
 import com.notnoop.apns.APNS;
 import com.notnoop.apns.PayloadBuilder;
+import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -18,6 +25,9 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -30,17 +40,16 @@ import present.server.MoreObjectify;
 import present.server.Time;
 import present.server.Uuids;
 import present.server.model.activity.Event;
+import present.server.model.activity.Events;
 import present.server.model.user.Client;
-import present.server.model.user.Clients;
+import present.server.model.user.DeviceRegistry;
 import present.server.model.user.UnreadStates;
 import present.server.model.user.User;
 import present.server.model.user.Users;
 import present.server.notification.fcm.FcmMessage;
 import present.server.notification.fcm.FcmNotification;
 import present.server.notification.fcm.FcmSender;
-import retrofit2.Call;
-import retrofit2.Callback;
-import retrofit2.Response;
+import present.server.notification.fcm.FcmStats;
 
 import static com.googlecode.objectify.ObjectifyService.ofy;
 import static java.util.stream.Collectors.groupingBy;
@@ -92,7 +101,7 @@ public final class Notifier {
     return from(Users.current());
   }
 
-  /** Sets users that should be notified. Loads Users and Clients concurrently. */
+  /** Sets users that should be notified. Loads Users asynchronously while it looks up Clients. */
   public Notifier toKeys(Iterable<Key<User>> userKeys) {
     // Asynchronously load users.
     this.to = Iterables.filter(MoreObjectify.load(userKeys), this::filter);
@@ -118,13 +127,10 @@ public final class Notifier {
   }
 
   private void loadClientsFor(Iterable<Key<User>> userKeys) {
-    // TODO: Cache User -> List<Client> in Memcache.
-    // Query Clients in parallel to Users. This loads Clients for users who have disabled
-    // notifications, but they'll be in the minority.
-    List<Client> allClients = Clients.query()
-        .filter(Client.Fields.user.getName() + " in", userKeys)
-        .filter(Client.Fields.deviceToken.getName() + " !=", null)
-        .list();
+    // Users load asynchronously while the DeviceRegistry looks up Clients, usually in memcache.
+    // This includes Clients for users who have disabled notifications, but they'll be in the
+    // minority.
+    List<Client> allClients = DeviceRegistry.clientsFor(userKeys);
 
     this.clients = Iterables.transform(allClients, client-> {
       assert client != null;
@@ -211,12 +217,14 @@ public final class Notifier {
 
     saveEvents();
 
-    // Determine whether or not it is daytime for a given user based on their location.
+    // Determine whether or not it is daytime for a given user based on their location. Most
+    // recipients share a handful of zones.
     Map<User, List<NotifiableClient>> byUser = Streams.stream(clients).collect(groupingBy(NotifiableClient::user));
+    Map<ZoneId, Boolean> daytimeByZone = new HashMap<>();
     byUser.forEach((user, clients) -> {
       NotifiableClient latest = clients.stream()
           .max(Comparator.comparingLong(NotifiableClient::locationTimestamp)).get();
-      daytime.put(user, Time.isDaytime(latest.client.location()));
+      daytime.put(user, daytimeByZone.computeIfAbsent(latest.client.zone(), Time::isDaytime));
     });
 
     Map<Platform, Consumer<NotifiableClient>> platformNotifiers = ImmutableMap.of(
@@ -239,43 +247,124 @@ public final class Notifier {
       }
       logger.info("Sent {} {} notifications in {}.", count, platform, sw);
     }
+
+    if (!androidTokens.isEmpty()) sendAndroid();
   }
 
-  private static final FcmSender fcm = new FcmSender("AAAARH8fmtc:APA91bGTvEHYZC9OcfSF8CHCSLP3ZZ8fxwjXhdi4H65tukU1ell-dUEOtz2es1AilPULa22aOWLqYcZt0noPGpSJ7uua-r7x2ZZmiceBv4u1A12QdIa08wJxaI8WnRquwCbefU01vdSF");
+  private static final FcmStats fcmStats = new FcmStats();
+
+  private static final FcmSender fcm = new FcmSender("AAAARH8fmtc:APA91bGTvEHYZC9OcfSF8CHCSLP3ZZ8fxwjXhdi4H65tukU1ell-dUEOtz2es1AilPULa22aOWLqYcZt0noPGpSJ7uua-r7x2ZZmiceBv4u1A12QdIa08wJxaI8WnRquwCbefU01vdSF",
+      FcmSender.BASE_URL, fcmStats);
+
+  /** Sends Android notifications. See {@link SendAndroid}. */
+  private static final Queue fcmQueue = QueueFactory.getQueue("fcm");
+
+  /** How long {@link SendAndroid} waits for FCM results before giving up on pruning tokens. */
+  private static final long FCM_TIMEOUT_SECONDS = 10;
+
+  /** Returns FCM statistics for this instance. */
+  public static FcmStats fcmStats() {
+    return fcmStats;
+  }
+
+  /**
+   * Android tokens keyed by payload. Everyone gets the same payload except for the sound, which
+   * depends on whether or not it's daytime, and legacy clients, which need a notification.
+   */
+  private final Map<AndroidPayload, List<String>> androidTokens = new HashMap<>();
+
+  private enum AndroidPayload { DAYTIME, NIGHTTIME, LEGACY_DAYTIME, LEGACY_NIGHTTIME }
 
-  /** Sends an Android notification to the given client. */
+  /** Queues an Android notification to the given client. See {@link #sendAndroid()}. */
   private void notifyAndroid(NotifiableClient notifiableClient) {
     Client client = notifiableClient.client;
-    // Because Firebase notifications in the background don't give us the flexibility we want
-    // (can't show as a popup), we have to send data-only messages from the server and construct
-    // the Android notification locally on the client. More info: https://goo.gl/SjWbxC
-
-    Map<String, Object> data = new HashMap<>();
-    data.putAll(notification.customFields);
-    if (notification.title != null) data.put("title", notification.title);
-    data.put("body", notification.body);
-    data.put("sound", isDaytimeFor(client.user()) ? DEFAULT_SOUND : "disabled");
-
-    FcmMessage.MessageBuilder builder = new FcmMessage.MessageBuilder()
-        .toToken(client.deviceToken)
-        .addData(data);
-    if (notification.url != null) builder.addData("url", notification.url);
-
-    if (client.androidVersion() < 70) {
-      // Legacy clients don't support data. Note: The user may have upgraded but not told us yet.
-      // We'll find out when they open the app.
-      builder.notification(new FcmNotification(notification.title, notification.body));
-    }
+    boolean daytime = isDaytimeFor(client.user());
+    // Legacy clients don't support data. Note: The user may have upgraded but not told us yet.
+    // We'll find out when they open the app.
+    AndroidPayload payload = client.androidVersion() < 70
+        ? (daytime ? AndroidPayload.LEGACY_DAYTIME : AndroidPayload.LEGACY_NIGHTTIME)
+        : (daytime ? AndroidPayload.DAYTIME : AndroidPayload.NIGHTTIME);
+    androidTokens.computeIfAbsent(payload, p -> new ArrayList<>()).add(client.deviceToken);
+  }
 
-    // We currently fire and forget. We could wait until the notification is sent.
-    fcm.send(builder.build(), new Callback() {
-      @Override public void onResponse(Call call, Response response) {
-        logger.debug("Sent Android notification: {}", response.code());
+  /**
+   * Builds queued Android notifications, one message per payload, and enqueues tasks that send
+   * them, up to {@link #MAX_TASK_TOKENS} tokens per task. The request doesn't wait for FCM.
+   */
+  private void sendAndroid() {
+    List<TaskOptions> tasks = new ArrayList<>();
+    androidTokens.forEach((payload, tokens) -> {
+      // Because Firebase notifications in the background don't give us the flexibility we want
+      // (can't show as a popup), we have to send data-only messages from the server and construct
+      // the Android notification locally on the client. More info: https://goo.gl/SjWbxC
+      boolean daytime = payload == AndroidPayload.DAYTIME
+          || payload == AndroidPayload.LEGACY_DAYTIME;
+      Map<String, Object> data = new HashMap<>();
+      data.putAll(notification.customFields);
+      if (notification.title != null) data.put("title", notification.title);
+      data.put("body", notification.body);
+      data.put("sound", daytime ? DEFAULT_SOUND : "disabled");
+
+      FcmMessage.MessageBuilder builder = new FcmMessage.MessageBuilder().addData(data);
+      if (notification.url != null) builder.addData("url", notification.url);
+
+      if (payload == AndroidPayload.LEGACY_DAYTIME || payload == AndroidPayload.LEGACY_NIGHTTIME) {
+        builder.notification(new FcmNotification(notification.title, notification.body));
       }
-      @Override public void onFailure(Call call, Throwable t) {
-        logger.warn("Failed to send Android notification.", t);
+
+      FcmMessage message = builder.build();
+      for (List<String> batch : Lists.partition(tokens, MAX_TASK_TOKENS)) {
+        tasks.add(TaskOptions.Builder.withPayload(new SendAndroid(message, batch)));
       }
     });
+    // We can only enqueue 100 tasks at a time.
+    Lists.partition(tasks, 100).forEach(fcmQueue::add);
+  }
+
+  /**
+   * Maximum number of tokens per {@link SendAndroid} task. Tokens are about 160 bytes, and
+   * tasks are limited to 100KB.
+   */
+  private static final int MAX_TASK_TOKENS = 300;
+
+  /**
+   * Multicasts an Android message and clears invalid tokens from their Clients. FCM calls back
+   * on OkHttp threads, which can't use the datastore, so we wait for the results here. The queue
+   * doesn't retry, because FCM may have already delivered some of the notifications.
+   */
+  static class SendAndroid implements DeferredTask {
+
+    private static final long serialVersionUID = 0;
+
+    private final FcmMessage message;
+    private final ArrayList<String> tokens;
+
+    SendAndroid(FcmMessage message, List<String> tokens) {
+      this.message = message;
+      this.tokens = new ArrayList<>(tokens);
+    }
+
+    @Override public void run() {
+      pruneAndroidTokens(fcm.multicast(message, tokens));
+    }
+  }
+
+  /** Waits for Android results and clears invalid tokens from their Clients. */
+  private static void pruneAndroidTokens(ListenableFuture<FcmSender.Result> future) {
+    FcmSender.Result result;
+    try {
+      result = future.get(FCM_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
+      logger.warn("Timed out waiting for FCM. Invalid tokens will be pruned next time.");
+      return;
+    } catch (InterruptedException | ExecutionException e) {
+      logger.error("Error waiting for FCM.", e);
+      return;
+    }
+    logger.info("FCM accepted {} notifications and rejected {}.", result.successes(),
+        result.failures());
+    List<String> invalidTokens = result.invalidTokens();
+    if (!invalidTokens.isEmpty()) Notifications.clearTokens(invalidTokens);
   }
 
   /** The iOS app sometimes maps the same device token to two different Clients. */
@@ -345,31 +434,20 @@ public final class Notifier {
         notification.title, notification.body, notification.url, badge, notification.customFields));
   }
 
-  /** Asynchronously saves events to the activity feed. */
+  /** Asynchronously saves one event for all recipients to the activity feed. */
   private void saveEvents() {
-    // TODO: Save one Event for N users instead of one per user.
     Event prototype = notification.event;
     if (prototype == null) return;
-    prototype = prototype.clone();
-    prototype.icon = from.photo;
-    List<Event> events = new ArrayList<>();
-    Ref<User> fromRef = this.from.getRef();
-    for (User user : to) {
-      Event clone = prototype.clone();
-      clone.uuid = Uuids.newUuid();
-      clone.initiator = fromRef;
-      clone.user = user.getRef();
-      events.add(clone);
-    }
-    ofy().save().entities(events);
+    Event event = prototype.clone();
+    event.uuid = Uuids.newUuid();
+    event.icon = from.photo;
+    event.initiator = this.from.getRef();
+    Events.saveShared(event, to);
   }
 
   /** Updates the badge counts for the given user. */
   public static void sendBadgeCounts(User user, UnreadState state) {
-    List<Client> allClients = Clients.query()
-        .filter(Client.Fields.user.getName(), user.getKey())
-        .filter(Client.Fields.deviceToken.getName() + " !=", null)
-        .list();
+    List<Client> allClients = DeviceRegistry.clientsFor(Collections.singleton(user.getKey()));
     List<Client> iosClients = Streams.stream(allClients)
         .filter(c -> c.platform() == IOS)
         .collect(Collectors.toList());
@@ -0,0 +1,588 @@
+package present.server.notification.apns;
+
+import com.notnoop.apns.internal.Utilities;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.SocketFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends notifications to APNs over the binary provider API. Each connection has a bounded ring of
+ * notifications and a thread that drains it, writing as many notifications as it can with one
+ * socket write. When every ring is full, callers wait briefly and then fail, so a slow connection
+ * pushes back on senders instead of queueing without bound.
+ *
+ * <p>APNs only responds when it rejects a notification. Then it closes the connection and drops
+ * everything written after the rejected notification. Each connection remembers recently written
+ * notifications by ID, so it can fail the rejected one and resend the rest. We only report a
+ * notification sent once it leaves that window: when APNs accepts a later notification's
+ * rejection, after {@link #ERROR_WINDOW_NANOS}, or once {@link #RESEND_CACHE_SIZE} newer
+ * notifications push it out.
+ *
+ * <p>A connection's writer thread owns its notifications. The thread that reads APNs responses
+ * only records the error and closes the socket, and the writer handles the error between writes,
+ * so resends never race with a write.
+ */
+public class ApnsDispatcher implements Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(ApnsDispatcher.class);
+
+  /** Number of notifications each connection can queue. */
+  private static final int RING_SIZE = 4096;
+
+  /** Maximum number of notifications per write. */
+  private static final int MAX_FLUSH = 256;
+
+  /** How long senders wait for room when every ring is full. */
+  private static final long OFFER_TIMEOUT_MS = 500;
+
+  /** Number of written notifications each connection remembers in case APNs rejects one. */
+  private static final int RESEND_CACHE_SIZE = 2048;
+
+  /** How long APNs has to reject a notification before we report it sent. */
+  private static final long ERROR_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+  /** How long we wait for an error response after a write fails. */
+  private static final long ERROR_TIMEOUT_MS = 1_000;
+
+  /** Number of times we try to write a batch, reconnecting in between. */
+  private static final int WRITE_ATTEMPTS = 3;
+
+  /** How often idle writers check for errors, expired notifications and resends. */
+  private static final long POLL_MS = 100;
+
+  /** How long {@link #close()} waits for each writer to stop. */
+  private static final long CLOSE_TIMEOUT_MS = 5_000;
+
+  private static final byte ENHANCED_COMMAND = 1;
+  private static final byte ERROR_COMMAND = 8;
+  private static final int ERROR_RESPONSE_LENGTH = 6;
+  private static final int MAXIMUM_EXPIRY = Integer.MAX_VALUE;
+
+  private final String name;
+  private final SocketFactory socketFactory;
+  private final String host;
+  private final int port;
+  private final Connection[] connections;
+  private final Thread[] writers;
+  private final AtomicInteger nextId = new AtomicInteger();
+  private final AtomicInteger nextConnection = new AtomicInteger();
+  private volatile boolean closed;
+
+  private final LongAdder flushes = new LongAdder();
+  private final LongAdder written = new LongAdder();
+  private final LongAdder latencyNanos = new LongAdder();
+  private final LongAccumulator maxFlush = new LongAccumulator(Math::max, 0);
+  private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder refused = new LongAdder();
+  private final LongAdder resent = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+
+  /**
+   * Creates a dispatcher with the given number of connections to host:port. Connects lazily.
+   *
+   * @param name identifies this dispatcher in logs and thread names
+   */
+  public ApnsDispatcher(String name, SocketFactory socketFactory, String host, int port,
+      int connections) {
+    this.name = name;
+    this.socketFactory = socketFactory;
+    this.host = host;
+    this.port = port;
+    this.connections = new Connection[connections];
+    this.writers = new Thread[connections];
+    for (int i = 0; i < connections; i++) {
+      Connection connection = new Connection(i);
+      this.connections[i] = connection;
+      Thread writer = Executors.defaultThreadFactory().newThread(connection::write);
+      writer.setName("APNs writer " + name + "-" + i);
+      writer.setDaemon(true);
+      writer.start();
+      writers[i] = writer;
+    }
+  }
+
+  /**
+   * Queues a notification to the given hex device token. Waits up to {@link #OFFER_TIMEOUT_MS}
+   * if every connection is backed up, and then fails the notification. Returns the notification
+   * ID.
+   */
+  public int push(String token, String payload, Callback callback) {
+    int id = nextId.incrementAndGet();
+    byte[] frame = Utilities.marshallEnhanced(ENHANCED_COMMAND, id, MAXIMUM_EXPIRY,
+        Utilities.decodeHex(token), Utilities.toUTF8Bytes(payload));
+    Push push = new Push(id, token, frame, callback);
+    if (closed) {
+      push.failed(new RejectedExecutionException("APNs dispatcher is closed."));
+      return id;
+    }
+    int start = Math.floorMod(nextConnection.getAndIncrement(), connections.length);
+    for (int i = 0; i < connections.length; i++) {
+      if (offer(connections[(start + i) % connections.length], push)) return id;
+    }
+    try {
+      if (connections[start].ring.offer(push, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+        checkOpen(connections[start], push);
+        return id;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    rejected.increment();
+    push.failed(new RejectedExecutionException("APNs queues are full."));
+    return id;
+  }
+
+  private boolean offer(Connection connection, Push push) {
+    if (!connection.ring.offer(push)) return false;
+    checkOpen(connection, push);
+    return true;
+  }
+
+  /** Fails the push if we closed while queueing it, and its writer won't see it. */
+  private void checkOpen(Connection connection, Push push) {
+    if (closed && connection.ring.remove(push)) {
+      push.failed(new RejectedExecutionException("APNs dispatcher is closed."));
+    }
+  }
+
+  /** Returns a snapshot of this dispatcher's statistics. */
+  public Stats stats() {
+    int queued = 0;
+    for (Connection connection : connections) queued += connection.ring.size();
+    return new Stats(queued, flushes.sum(), written.sum(), maxFlush.get(),
+        latencyNanos.sum(), maxLatencyNanos.get(), rejected.sum(), refused.sum(), resent.sum(),
+        failed.sum());
+  }
+
+  /**
+   * Stops the writers and closes the connections. Fails queued notifications. Reports written
+   * notifications that APNs hasn't rejected yet as sent. Later pushes fail right away.
+   */
+  @Override public void close() {
+    closed = true;
+    for (Thread writer : writers) writer.interrupt();
+    try {
+      for (Thread writer : writers) writer.join(CLOSE_TIMEOUT_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Handles results of sending notifications. Called from a writer thread. */
+  public interface Callback {
+
+    /**
+     * Notification was written to APNs, and APNs didn't reject it in time. APNs doesn't
+     * acknowledge successful notifications.
+     */
+    void sent();
+
+    /** Failed to send notification. See {@link RejectedException}. */
+    void failed(Throwable t);
+  }
+
+  /** APNs rejected a notification. */
+  public static class RejectedException extends IOException {
+
+    /** APNs status code. For example, 8 means the token is invalid. */
+    public final int status;
+
+    private RejectedException(int id, int status) {
+      super("APNs rejected notification " + id + " with status " + status + ".");
+      this.status = status;
+    }
+  }
+
+  /** A queued notification. */
+  private static class Push {
+
+    private final int id;
+    private final String token;
+    private final byte[] frame;
+    private final long queuedNanos = System.nanoTime();
+
+    /** When we last wrote this notification. */
+    private long writtenNanos;
+
+    /** Cleared once called, so we only report each notification once. */
+    private Callback callback;
+
+    private Push(int id, String token, byte[] frame, Callback callback) {
+      this.id = id;
+      this.token = token;
+      this.frame = frame;
+      this.callback = callback;
+    }
+
+    private void sent() {
+      Callback callback = this.callback;
+      this.callback = null;
+      if (callback != null) callback.sent();
+    }
+
+    private void failed(Throwable t) {
+      Callback callback = this.callback;
+      this.callback = null;
+      if (callback != null) callback.failed(t);
+    }
+  }
+
+  /** An error response from APNs. */
+  private static class ErrorResponse {
+
+    private final int status;
+    private final int id;
+
+    private ErrorResponse(int status, int id) {
+      this.status = status;
+      this.id = id;
+    }
+  }
+
+  /**
+   * One socket to APNs and the notifications written to it that APNs could still reject. The
+   * reader thread only sets {@link #error} and {@link #finished}.
+   */
+  private class Session {
+
+    private final Socket socket;
+    private final OutputStream out;
+
+    /** Written notifications APNs could still reject, oldest first. */
+    private final Map<Integer, Push> recent = new LinkedHashMap<>();
+
+    private volatile ErrorResponse error;
+    private volatile boolean finished;
+    private final CountDownLatch readerFinished = new CountDownLatch(1);
+
+    private Session(Socket socket) throws IOException {
+      this.socket = socket;
+      this.out = socket.getOutputStream();
+    }
+
+    /** Waits for an error response. Runs on the reader thread. */
+    private void read() {
+      try {
+        byte[] response = new byte[ERROR_RESPONSE_LENGTH];
+        new DataInputStream(socket.getInputStream()).readFully(response);
+        if (response[0] == ERROR_COMMAND) {
+          error = new ErrorResponse(response[1] & 0xff, ByteBuffer.wrap(response, 2, 4).getInt());
+        } else {
+          logger.warn("Unexpected response from APNs: {}", response[0]);
+        }
+      } catch (IOException e) {
+        logger.debug("APNs connection closed.", e);
+      } finally {
+        // Keep the writer from writing more notifications that APNs will drop.
+        Utilities.close(socket);
+        finished = true;
+        readerFinished.countDown();
+      }
+    }
+
+    /**
+     * Stops writing and gives APNs a chance to tell us why the connection failed. Returns true
+     * if APNs rejected a notification.
+     */
+    private boolean awaitError() throws InterruptedException {
+      try {
+        socket.shutdownOutput();
+      } catch (IOException e) {
+        // Already closed.
+      }
+      readerFinished.await(ERROR_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      Utilities.close(socket);
+      return error != null;
+    }
+  }
+
+  /** A connection to APNs, with its own ring and writer thread. */
+  private class Connection {
+
+    private final int index;
+    private final BlockingQueue<Push> ring = new ArrayBlockingQueue<>(RING_SIZE);
+
+    // Only the writer thread uses the fields below.
+
+    /** Notifications APNs dropped after rejecting an earlier one. Sent before the ring. */
+    private final Deque<Push> resends = new ArrayDeque<>();
+
+    /** The session we're writing to, or null if we need to connect. */
+    private Session session;
+
+    /** Sessions with notifications APNs could still reject, oldest first. */
+    private final Deque<Session> sessions = new ArrayDeque<>();
+
+    private Connection(int index) {
+      this.index = index;
+    }
+
+    /** Writes batches of notifications until closed. */
+    private void write() {
+      List<Push> batch = new ArrayList<>(MAX_FLUSH);
+      try {
+        while (!closed) {
+          settle(System.nanoTime());
+          while (!resends.isEmpty() && batch.size() < MAX_FLUSH) batch.add(resends.poll());
+          if (batch.isEmpty()) {
+            Push first = ring.poll(POLL_MS, TimeUnit.MILLISECONDS);
+            if (first == null) continue;
+            batch.add(first);
+          }
+          ring.drainTo(batch, MAX_FLUSH - batch.size());
+          try {
+            write(batch);
+          } catch (RuntimeException e) {
+            logger.error("Unexpected error writing to APNs.", e);
+          }
+          batch.clear();
+        }
+      } catch (InterruptedException e) {
+        logger.debug("APNs writer {}-{} stopped.", name, index);
+      } finally {
+        shutDown(batch);
+      }
+    }
+
+    /**
+     * Writes the given notifications with one write, reconnecting if necessary. If APNs
+     * rejects a notification, fails it and queues the rest of the batch for resending.
+     */
+    private void write(List<Push> batch) throws InterruptedException {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream(batch.size() * 256);
+      for (Push push : batch) buffer.write(push.frame, 0, push.frame.length);
+      byte[] bytes = buffer.toByteArray();
+      for (int attempt = 1; ; attempt++) {
+        Session session = null;
+        try {
+          session = session();
+          long now = System.nanoTime();
+          // Remember these before we write them, in case APNs rejects one right away.
+          for (Push push : batch) {
+            push.writtenNanos = now;
+            session.recent.put(push.id, push);
+          }
+          session.out.write(bytes);
+          session.out.flush();
+          break;
+        } catch (IOException e) {
+          if (session != null) {
+            this.session = null;
+            if (session.awaitError()) {
+              // APNs rejected one of these or an earlier notification. settle() fails it and
+              // queues everything after it, so we don't write these again here.
+              settle(System.nanoTime());
+              return;
+            }
+            // The connection failed for some other reason. Try these on a new connection.
+            for (Push push : batch) session.recent.remove(push.id);
+          }
+          if (attempt == WRITE_ATTEMPTS) {
+            logger.error("Failed to write " + batch.size() + " notifications to APNs.", e);
+            failed.add(batch.size());
+            for (Push push : batch) push.failed(e);
+            return;
+          }
+          logger.info("Error writing to APNs. Reconnecting.", e);
+        }
+      }
+
+      long now = System.nanoTime();
+      flushes.increment();
+      written.add(batch.size());
+      maxFlush.accumulate(batch.size());
+      for (Push push : batch) {
+        long latency = now - push.queuedNanos;
+        latencyNanos.add(latency);
+        maxLatencyNanos.accumulate(latency);
+      }
+
+      // Notifications pushed out of the window can't be resent, so we consider them sent.
+      Iterator<Push> oldest = session.recent.values().iterator();
+      while (session.recent.size() > RESEND_CACHE_SIZE) {
+        Push push = oldest.next();
+        oldest.remove();
+        push.sent();
+      }
+    }
+
+    /** Returns the current session, connecting if necessary. */
+    private Session session() throws IOException {
+      if (session != null && !session.finished) return session;
+      Session session = new Session(socketFactory.createSocket(host, port));
+      this.session = session;
+      sessions.add(session);
+      Thread reader = Executors.defaultThreadFactory().newThread(session::read);
+      reader.setName("APNs reader " + name + "-" + index);
+      reader.setDaemon(true);
+      reader.start();
+      return session;
+    }
+
+    /**
+     * Handles error responses, and reports notifications sent once they're older than the
+     * error window.
+     */
+    private void settle(long now) {
+      for (Iterator<Session> i = sessions.iterator(); i.hasNext(); ) {
+        Session session = i.next();
+        // The reader sets the error before it finishes.
+        boolean finished = session.finished;
+        ErrorResponse error = session.error;
+        if (error != null) {
+          session.error = null;
+          rejected(session, error);
+        }
+        Iterator<Push> pushes = session.recent.values().iterator();
+        while (pushes.hasNext()) {
+          Push push = pushes.next();
+          if (now - push.writtenNanos < ERROR_WINDOW_NANOS) break;
+          pushes.remove();
+          push.sent();
+        }
+        if (finished && session.recent.isEmpty()) i.remove();
+      }
+    }
+
+    /**
+     * APNs rejected the notification with the given ID. It accepted the notifications before
+     * it and dropped the ones after it, so we queue those again.
+     */
+    private void rejected(Session session, ErrorResponse error) {
+      boolean found = false;
+      int requeued = 0;
+      for (Push push : session.recent.values()) {
+        if (found) {
+          resends.add(push);
+          requeued++;
+        } else if (push.id == error.id) {
+          found = true;
+          logger.warn("APNs rejected notification {} to {} with status {}.", error.id,
+              push.token, error.status);
+          refused.increment();
+          push.failed(new RejectedException(error.id, error.status));
+        } else {
+          push.sent();
+        }
+      }
+      if (!found) {
+        // We already reported it sent, so everything we still have came after it.
+        logger.warn("APNs rejected unknown notification {} with status {}.", error.id,
+            error.status);
+        resends.addAll(session.recent.values());
+        requeued = session.recent.size();
+      }
+      resent.add(requeued);
+      session.recent.clear();
+    }
+
+    /** Closes our sessions and reports everything we still have. */
+    private void shutDown(List<Push> batch) {
+      for (Session session : sessions) {
+        Utilities.close(session.socket);
+        // We can't wait for errors anymore.
+        session.recent.values().forEach(Push::sent);
+        session.recent.clear();
+      }
+      sessions.clear();
+      session = null;
+      RejectedExecutionException closed
+          = new RejectedExecutionException("APNs dispatcher is closed.");
+      batch.forEach(push -> push.failed(closed));
+      resends.forEach(push -> push.failed(closed));
+      resends.clear();
+      List<Push> queued = new ArrayList<>();
+      ring.drainTo(queued);
+      queued.forEach(push -> push.failed(closed));
+    }
+  }
+
+  /** Dispatcher statistics. */
+  public static class Stats {
+
+    /** Number of notifications waiting in rings. */
+    public final int queued;
+
+    /** Number of socket writes. */
+    public final long flushes;
+
+    /** Number of notifications written, including resends. */
+    public final long written;
+
+    /** Largest number of notifications written at once. */
+    public final long maxFlushSize;
+
+    /** Total nanoseconds from queueing notifications to writing them. */
+    public final long latencyNanos;
+
+    /** Longest time from queueing a notification to writing it, in nanoseconds. */
+    public final long maxLatencyNanos;
+
+    /** Number of notifications rejected because the rings were full. */
+    public final long rejected;
+
+    /** Number of notifications APNs rejected. */
+    public final long refused;
+
+    /** Number of notifications resent after APNs rejected an earlier notification. */
+    public final long resent;
+
+    /** Number of notifications we failed to write. */
+    public final long failed;
+
+    private Stats(int queued, long flushes, long written, long maxFlushSize, long latencyNanos,
+        long maxLatencyNanos, long rejected, long refused, long resent, long failed) {
+      this.queued = queued;
+      this.flushes = flushes;
+      this.written = written;
+      this.maxFlushSize = maxFlushSize;
+      this.latencyNanos = latencyNanos;
+      this.maxLatencyNanos = maxLatencyNanos;
+      this.rejected = rejected;
+      this.refused = refused;
+      this.resent = resent;
+      this.failed = failed;
+    }
+
+    /** Returns the average number of notifications per write. */
+    public double meanFlushSize() {
+      return flushes == 0 ? 0 : (double) written / flushes;
+    }
+
+    /** Returns the average time from queueing a notification to writing it. */
+    public double meanLatencyMillis() {
+      return written == 0 ? 0 : latencyNanos / 1e6 / written;
+    }
+
+    @Override public String toString() {
+      return String.format("queued=%d, flushes=%d, written=%d, meanFlushSize=%.1f, "
+              + "maxFlushSize=%d, meanLatency=%.2fms, maxLatency=%.2fms, rejected=%d, refused=%d, "
+              + "resent=%d, failed=%d", queued, flushes, written, meanFlushSize(), maxFlushSize,
+          meanLatencyMillis(), maxLatencyNanos / 1e6, rejected, refused, resent, failed);
+    }
+  }
+}
@@ -1,5 +1,6 @@
 package present.server.notification.fcm;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -9,7 +10,10 @@ import java.util.Map;
  * Created by Tudor on 16-Nov-16.
  * Implementation of the following doc https://firebase.google.com/docs/cloud-messaging/http-server-ref#send-downstream
  */
-public class FcmMessage {
+public class FcmMessage implements Serializable {
+
+  private static final long serialVersionUID = 0;
+
   private String to;
   private String condition; // field to must be null if condition is set
 
@@ -37,6 +41,23 @@ public class FcmMessage {
     this.registration_ids = builder.registration_ids;
   }
 
+  private FcmMessage(FcmMessage original, List<String> registrationIds) {
+    this.collapse_key = original.collapse_key;
+    this.priority = original.priority;
+    this.content_available = original.content_available;
+    this.time_to_live = original.time_to_live;
+    this.restricted_package_name = original.restricted_package_name;
+    this.dry_run = original.dry_run;
+    this.data = original.data;
+    this.notification = original.notification;
+    this.registration_ids = registrationIds;
+  }
+
+  /** Returns a copy of this message sent to the given registration tokens instead. */
+  public FcmMessage toTokens(List<String> registrationIds) {
+    return new FcmMessage(this, registrationIds);
+  }
+
 
   public static final class Priority {
     public static final String NORMAL = "normal";
@@ -1,11 +1,15 @@
 package present.server.notification.fcm;
 
+import java.io.Serializable;
 import java.util.List;
 
 /**
  * Created by Tudor on 16-Nov-16.
  */
-public class FcmNotification {
+public class FcmNotification implements Serializable {
+
+  private static final long serialVersionUID = 0;
+
   private String title;
   private String body;
   private String sound;
@@ -1,10 +1,29 @@
 package present.server.notification.fcm;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import okhttp3.EventListener;
 import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.logging.HttpLoggingInterceptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import retrofit2.Call;
 import retrofit2.Callback;
 import retrofit2.Response;
@@ -15,26 +34,75 @@ import retrofit2.http.POST;
 
 /**
  * Copied from https://github.com/PopTudor/Java-fcm so we can adjust the OkHttp client, etc.
+ * Multicasts messages to up to {@link #MAX_TOKENS} devices per request, and retries server
+ * errors with exponential backoff.
  *
  * Created by Tudor on 15-Nov-16.
  */
 public class FcmSender {
+
+  private static final Logger logger = LoggerFactory.getLogger(FcmSender.class);
+
+  /** The production FCM endpoint. */
+  public static final String BASE_URL = "https://fcm.googleapis.com/fcm/";
+
+  /** FCM accepts up to this many registration tokens per message. */
+  public static final int MAX_TOKENS = 1000;
+
+  /** Number of times we try to send to a token. */
+  private static final int MAX_ATTEMPTS = 4;
+
+  /** Delay before the first retry. Doubles with each retry. */
+  private static final long INITIAL_BACKOFF_MS = 500;
+
+  /** Errors that mean a token will never work again. */
+  private static final Set<String> INVALID_TOKEN_ERRORS
+      = ImmutableSet.of("NotRegistered", "InvalidRegistration", "MismatchSenderId");
+
+  /** Errors that mean we should try again later. */
+  private static final Set<String> RETRYABLE_ERRORS
+      = ImmutableSet.of("Unavailable", "InternalServerError");
+
+  private static final ScheduledExecutorService retries
+      = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = Executors.defaultThreadFactory().newThread(r);
+        thread.setName("FCM retries");
+        thread.setDaemon(true);
+        return thread;
+      });
+
   private final Fcm fcm;
+  private final Metrics metrics;
 
   public FcmSender(String serverKey) {
-    Retrofit retrofit = createRetrofit(serverKey).build();
+    this(serverKey, BASE_URL, Metrics.NONE);
+  }
+
+  /**
+   * Sends messages to the FCM API at baseUrl, which must end with a '/', and reports to the
+   * given metrics.
+   */
+  public FcmSender(String serverKey, String baseUrl, Metrics metrics) {
+    this.metrics = metrics;
+    Retrofit retrofit = createRetrofit(serverKey, baseUrl).build();
     this.fcm = retrofit.create(Fcm.class);
   }
 
-  private Retrofit.Builder createRetrofit(String serverKey) {
+  private Retrofit.Builder createRetrofit(String serverKey, String baseUrl) {
     new HttpLoggingInterceptor().setLevel(HttpLoggingInterceptor.Level.NONE);
     OkHttpClient httpClient = new OkHttpClient.Builder()
         .addInterceptor(createInterceptor(serverKey))
+        .eventListener(new EventListener() {
+          @Override public void connectStart(okhttp3.Call call, InetSocketAddress address,
+              Proxy proxy) {
+            metrics.connected();
+          }
+        })
         .build();
     // We can send up to 100 notifications at a time.
     httpClient.dispatcher().setMaxRequestsPerHost(100);
     return new Retrofit.Builder()
-        .baseUrl("https://fcm.googleapis.com/fcm/")
+        .baseUrl(baseUrl)
         .client(httpClient)
         .addConverterFactory(GsonConverterFactory.create());
   }
@@ -49,29 +117,205 @@ public class FcmSender {
     };
   }
 
-  public void send(FcmMessage message) {
-    send(message, new DefaultCallback());
+  public void send(FcmMessage message, Callback<JsonObject> callback) {
+    fcm.send(message).enqueue(callback);
   }
 
-  public void send(FcmMessage message, Callback callback) {
-    fcm.send(message).enqueue(callback);
+  /**
+   * Sends the given message to the given tokens, {@link #MAX_TOKENS} at a time. Retries requests
+   * that fail with server or network errors, and tokens FCM reports as temporarily unavailable.
+   * The returned future completes once every token succeeds or fails for good. It never fails.
+   */
+  public ListenableFuture<Result> multicast(FcmMessage message, List<String> tokens) {
+    Result result = new Result();
+    SettableFuture<Result> future = SettableFuture.create();
+    List<List<String>> batches = Lists.partition(tokens, MAX_TOKENS);
+    if (batches.isEmpty()) {
+      future.set(result);
+      return future;
+    }
+    AtomicInteger remaining = new AtomicInteger(batches.size());
+    for (List<String> batch : batches) {
+      new Batch(message, batch, result, () -> {
+        if (remaining.decrementAndGet() == 0) future.set(result);
+      }).send();
+    }
+    return future;
   }
 
-  /** Adapter for Firebase Cloud Messenger API. */
-  private interface Fcm {
-    @POST("send")
-    Call<JsonObject> send(@Body FcmMessage to);
+  /** Sends a message to up to MAX_TOKENS tokens, retrying as needed. */
+  private class Batch implements Callback<JsonObject> {
+
+    private final FcmMessage message;
+    private final Result result;
+    private final Runnable done;
+    private List<String> tokens;
+    private int attempt = 1;
+    private long start;
+
+    private Batch(FcmMessage message, List<String> tokens, Result result, Runnable done) {
+      this.message = message;
+      this.tokens = tokens;
+      this.result = result;
+      this.done = done;
+    }
+
+    private void send() {
+      start = System.nanoTime();
+      fcm.send(message.toTokens(tokens)).enqueue(this);
+    }
+
+    @Override public void onResponse(Call<JsonObject> call, Response<JsonObject> response) {
+      long elapsed = System.nanoTime() - start;
+      int status = response.code();
+      if (status >= 500) {
+        metrics.request(status, tokens.size(), 0, 0, elapsed);
+        retry(tokens, retryAfterMillis(response));
+        return;
+      }
+      if (!response.isSuccessful()) {
+        metrics.request(status, tokens.size(), 0, tokens.size(), elapsed);
+        logger.error("FCM returned {}.", status);
+        result.failed(tokens.size());
+        done.run();
+        return;
+      }
+
+      JsonElement results = response.body() == null ? null : response.body().get("results");
+      if (results == null || !results.isJsonArray()
+          || results.getAsJsonArray().size() != tokens.size()) {
+        metrics.request(status, tokens.size(), 0, tokens.size(), elapsed);
+        logger.error("Unexpected FCM response: {}", response.body());
+        result.failed(tokens.size());
+        done.run();
+        return;
+      }
+
+      List<String> unavailable = new ArrayList<>();
+      int successes = 0;
+      int failures = 0;
+      JsonArray array = results.getAsJsonArray();
+      for (int i = 0; i < tokens.size(); i++) {
+        JsonObject tokenResult = array.get(i).getAsJsonObject();
+        if (!tokenResult.has("error")) {
+          successes++;
+          continue;
+        }
+        String error = tokenResult.get("error").getAsString();
+        String token = tokens.get(i);
+        if (RETRYABLE_ERRORS.contains(error)) {
+          unavailable.add(token);
+        } else {
+          failures++;
+          if (INVALID_TOKEN_ERRORS.contains(error)) {
+            result.invalid(token);
+          } else {
+            logger.warn("FCM error: {}", error);
+          }
+        }
+      }
+      metrics.request(status, tokens.size(), successes, failures, elapsed);
+      result.add(successes, failures);
+      if (unavailable.isEmpty()) {
+        done.run();
+      } else {
+        retry(unavailable, retryAfterMillis(response));
+      }
+    }
+
+    @Override public void onFailure(Call<JsonObject> call, Throwable t) {
+      metrics.request(-1, tokens.size(), 0, 0, System.nanoTime() - start);
+      logger.info("Error sending to FCM.", t);
+      retry(tokens, 0);
+    }
+
+    /** Retries the given tokens after a backoff, unless we're out of attempts. */
+    private void retry(List<String> tokens, long retryAfterMillis) {
+      if (attempt == MAX_ATTEMPTS) {
+        logger.warn("Giving up on {} FCM tokens after {} attempts.", tokens.size(), attempt);
+        result.failed(tokens.size());
+        done.run();
+        return;
+      }
+      long delay = Math.max(retryAfterMillis, INITIAL_BACKOFF_MS << (attempt - 1));
+      attempt++;
+      this.tokens = tokens;
+      retries.schedule(this::send, delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** Returns the delay requested by a Retry-After header in seconds, or 0. */
+  private static long retryAfterMillis(Response<?> response) {
+    String retryAfter = response.headers().get("Retry-After");
+    if (retryAfter == null) return 0;
+    try {
+      return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+    } catch (NumberFormatException e) {
+      // HTTP dates aren't worth supporting.
+      return 0;
+    }
   }
 
-  private class DefaultCallback implements Callback {
-    @Override
-    public void onResponse(Call call, Response response) {
-      System.out.println(response.body());
+  /** Results of a multicast. */
+  public static class Result {
+
+    private int successes;
+    private int failures;
+    private final List<String> invalidTokens = new ArrayList<>();
+
+    private synchronized void add(int successes, int failures) {
+      this.successes += successes;
+      this.failures += failures;
     }
 
-    @Override
-    public void onFailure(Call call, Throwable t) {
-      t.printStackTrace();
+    private synchronized void failed(int failures) {
+      this.failures += failures;
     }
+
+    private synchronized void invalid(String token) {
+      invalidTokens.add(token);
+    }
+
+    /** Number of tokens FCM accepted the message for. */
+    public synchronized int successes() {
+      return successes;
+    }
+
+    /** Number of tokens we couldn't send to, including invalid tokens. */
+    public synchronized int failures() {
+      return failures;
+    }
+
+    /** Tokens FCM says will never work again. */
+    public synchronized List<String> invalidTokens() {
+      return Collections.unmodifiableList(new ArrayList<>(invalidTokens));
+    }
+  }
+
+  /** Receives throughput measurements. Called from OkHttp threads. */
+  public interface Metrics {
+
+    /** Ignores measurements. */
+    Metrics NONE = new Metrics() {
+      @Override public void request(int status, int tokens, int successes, int failures,
+          long nanos) {}
+
+      @Override public void connected() {}
+    };
+
+    /**
+     * A request to FCM completed. Status is the HTTP status code, or -1 if the request failed
+     * without a response.
+     */
+    void request(int status, int tokens, int successes, int failures, long nanos);
+
+    /** We opened a new connection to FCM instead of reusing a pooled one. */
+    void connected();
+  }
+
+  /** Adapter for Firebase Cloud Messenger API. */
+  private interface Fcm {
+    @POST("send")
+    Call<JsonObject> send(@Body FcmMessage to);
   }
-}
\ No newline at end of file
+}
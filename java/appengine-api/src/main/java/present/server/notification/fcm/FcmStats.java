@@ -0,0 +1,48 @@
+package present.server.notification.fcm;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accumulates FCM throughput and connection reuse for the lifetime of an instance.
+ */
+public class FcmStats implements FcmSender.Metrics {
+
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder serverErrors = new LongAdder();
+  private final LongAdder networkErrors = new LongAdder();
+  private final LongAdder tokens = new LongAdder();
+  private final LongAdder successes = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private final LongAdder nanos = new LongAdder();
+  private final LongAdder connections = new LongAdder();
+
+  @Override public void request(int status, int tokens, int successes, int failures,
+      long nanos) {
+    this.requests.increment();
+    if (status == -1) this.networkErrors.increment();
+    if (status >= 500) this.serverErrors.increment();
+    this.tokens.add(tokens);
+    this.successes.add(successes);
+    this.failures.add(failures);
+    this.nanos.add(nanos);
+  }
+
+  @Override public void connected() {
+    connections.increment();
+  }
+
+  @Override public String toString() {
+    long requests = this.requests.sum();
+    long tokens = this.tokens.sum();
+    long nanos = this.nanos.sum();
+    long connections = this.connections.sum();
+    return String.format("requests=%d, serverErrors=%d, networkErrors=%d, tokens=%d, "
+            + "successes=%d, failures=%d, meanBatchSize=%.1f, meanLatency=%.2fms, "
+            + "tokensPerSecond=%.1f, connections=%d, requestsPerConnection=%.1f",
+        requests, serverErrors.sum(), networkErrors.sum(), tokens, successes.sum(),
+        failures.sum(), requests == 0 ? 0 : (double) tokens / requests,
+        requests == 0 ? 0 : nanos / 1e6 / requests,
+        nanos == 0 ? 0 : tokens * 1e9 / nanos,
+        connections, connections == 0 ? 0 : (double) requests / connections);
+  }
+}
@@ -23,7 +23,7 @@ public class GetNearbyGroups {
       User user = ProductionUsers.erinFromCnet();
       GroupService gs = user.rpcClient(GroupService.class);
       NearbyGroupsResponse groups =
-          gs.getNearbyGroups(new NearbyGroupsRequest(new present.proto.Coordinates(38.1884705, -85.9576449, 0.0), null));
+          gs.getNearbyGroups(new NearbyGroupsRequest(new present.proto.Coordinates(38.1884705, -85.9576449, 0.0), null, null, null));
       System.out.println(groups.nearbyGroups.size());
     });
   }
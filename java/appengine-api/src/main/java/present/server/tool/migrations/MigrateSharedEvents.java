@@ -0,0 +1,112 @@
+package present.server.tool.migrations;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Ref;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import present.server.KeysOnly;
+import present.server.model.activity.Event;
+import present.server.model.activity.EventRecipients;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+import static present.server.tool.RemoteTool.STAGING_SERVER;
+import static present.server.tool.RemoteTool.against;
+
+/**
+ * Migrates per-user Events to shared Events. Notifier cloned one Event per recipient, so
+ * clones have the same creation time, initiator, type, summary and target. We keep the first
+ * clone in each set, list its recipients in {@link EventRecipients}, and delete the rest. Skips
+ * events that are already shared, so it can be re-run. Skips and logs early events without
+ * initiators, which we never display.
+ *
+ * <p>Usage: {@code MigrateSharedEvents [server]}. Runs against staging by default.
+ */
+public class MigrateSharedEvents {
+
+  /** Number of entities to write at once. */
+  private static final int BATCH_SIZE = 500;
+
+  private static final List<Object> saves = new ArrayList<>();
+  private static final List<Key<Event>> deletes = new ArrayList<>();
+  private static int migrated;
+  private static int shared;
+  private static int skipped;
+
+  public static void main(String[] args) {
+    String server = args.length == 0 ? STAGING_SERVER : args[0];
+    against(server, () -> {
+      // Clones share a creation time, so we only need to group consecutive events.
+      long createdTime = -1;
+      List<Event> sameTime = new ArrayList<>();
+      // Don't load referenced entities.
+      Iterable<Event> events = ofy().load().group(KeysOnly.class).type(Event.class)
+          .order(Event.Fields.createdTimeIndex.name())
+          .iterable();
+      for (Event event : events) {
+        if (event.user == null) continue;
+        if (event.initiator == null) {
+          System.out.println("Skipping event without initiator: " + Key.create(event));
+          skipped++;
+          continue;
+        }
+        if (event.createdTimeIndex != createdTime) {
+          migrate(sameTime);
+          sameTime.clear();
+          createdTime = event.createdTimeIndex;
+        }
+        sameTime.add(event);
+      }
+      migrate(sameTime);
+      flush();
+      System.out.println();
+      System.out.println("Migrated " + migrated + " events to " + shared + " shared events.");
+      System.out.println("Skipped " + skipped + " events without initiators.");
+    });
+  }
+
+  /** Migrates events with the same creation time. */
+  private static void migrate(List<Event> events) {
+    Map<List<Object>, List<Event>> clones = new LinkedHashMap<>();
+    for (Event event : events) {
+      List<Object> prototype = new ArrayList<>();
+      prototype.add(key(event.initiator));
+      prototype.add(event.type);
+      prototype.add(event.summary);
+      prototype.add(key(event.defaultTarget));
+      clones.computeIfAbsent(prototype, p -> new ArrayList<>()).add(event);
+    }
+    for (List<Event> set : clones.values()) {
+      Event first = set.get(0);
+      List<String> userIds = new ArrayList<>();
+      for (Event clone : set) {
+        String userId = clone.user.getKey().getName();
+        if (!userIds.contains(userId)) userIds.add(userId);
+        if (clone != first) deletes.add(Key.create(clone));
+      }
+      first.user = null;
+      saves.add(first);
+      saves.addAll(EventRecipients.of(first, userIds));
+      migrated += set.size();
+      shared++;
+      System.out.print(".");
+    }
+    if (saves.size() + deletes.size() >= BATCH_SIZE) flush();
+  }
+
+  /** Writes pending changes. */
+  private static void flush() {
+    // Save shared events before deleting clones so users don't lose events if we fail midway.
+    if (!saves.isEmpty()) ofy().save().entities(saves).now();
+    if (!deletes.isEmpty()) ofy().delete().keys(deletes).now();
+    saves.clear();
+    deletes.clear();
+    // Don't accumulate every event in the session cache.
+    ofy().clear();
+  }
+
+  private static Key<?> key(Ref<?> ref) {
+    return ref == null ? null : ref.key();
+  }
+}
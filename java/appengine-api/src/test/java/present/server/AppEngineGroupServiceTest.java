@@ -0,0 +1,68 @@
+package present.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+import present.proto.FanOutCommentRequest;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AppEngineGroupServiceTest {
+
+  private static final FanOutCommentRequest REQUEST = new FanOutCommentRequest("group",
+      "comment", Collections.emptyList(), true, null);
+
+  @Test public void fanOutPageBoundaries() {
+    assertEquals(0, pages(0).size());
+    assertEquals(1, pages(1).size());
+    assertEquals(1, pages(500).size());
+    assertEquals(2, pages(501).size());
+    assertEquals(2, pages(1000).size());
+    assertEquals(3, pages(1001).size());
+  }
+
+  @Test public void fanOutPagesCoverEveryMemberOnce() {
+    List<String> memberIds = memberIds(1001);
+    List<FanOutCommentRequest> pages = AppEngineGroupService.fanOutPages(REQUEST, memberIds);
+    assertEquals(memberIds, pages.stream()
+        .flatMap(page -> page.memberIds.stream())
+        .collect(toList()));
+    assertEquals(500, pages.get(0).memberIds.size());
+    assertEquals(500, pages.get(1).memberIds.size());
+    assertEquals(1, pages.get(2).memberIds.size());
+    for (int i = 0; i < pages.size(); i++) {
+      FanOutCommentRequest page = pages.get(i);
+      assertEquals(i, page.page.intValue());
+      assertEquals(REQUEST.groupId, page.groupId);
+      assertEquals(REQUEST.commentId, page.commentId);
+      assertEquals(REQUEST.ignoreMuting, page.ignoreMuting);
+    }
+  }
+
+  @Test public void fanOutPageKeysAreUniquePerCommentAndPage() {
+    Set<String> keys = new HashSet<>();
+    for (FanOutCommentRequest page : pages(1001)) {
+      assertTrue(keys.add(AppEngineGroupService.fanOutPageKey(page)));
+      // Retries and duplicate tasks map to the same key.
+      assertEquals(AppEngineGroupService.fanOutPageKey(page),
+          AppEngineGroupService.fanOutPageKey(page.newBuilder().build()));
+    }
+    FanOutCommentRequest other = pages(1).get(0).newBuilder().commentId("other").build();
+    assertTrue(keys.add(AppEngineGroupService.fanOutPageKey(other)));
+  }
+
+  private static List<FanOutCommentRequest> pages(int members) {
+    return AppEngineGroupService.fanOutPages(REQUEST, memberIds(members));
+  }
+
+  private static List<String> memberIds(int count) {
+    List<String> memberIds = new ArrayList<>();
+    for (int i = 0; i < count; i++) memberIds.add("member" + i);
+    return memberIds;
+  }
+}
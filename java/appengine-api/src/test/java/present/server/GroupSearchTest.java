@@ -7,7 +7,9 @@ import com.googlecode.objectify.ObjectifyService;
 import com.googlecode.objectify.Ref;
 import com.googlecode.objectify.util.Closeable;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 import org.junit.After;
 import org.junit.Before;
@@ -26,6 +28,7 @@ import present.server.model.util.Coordinates;
 import static com.googlecode.objectify.ObjectifyService.ofy;
 import static java.util.stream.Collectors.toList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class GroupSearchTest {
 
@@ -57,20 +60,7 @@ public class GroupSearchTest {
   }
 
   @Test public void testGroupSearch() throws InterruptedException {
-    // Populate test groups.
-    List<Group> groups = new ArrayList<>();
-    for (Neighborhood neighborhood : Neighborhoods.ALL) {
-      Group group = new Group();
-      group.id = Uuids.newUuid();
-      group.spaceId = Space.EVERYONE.id;
-      group.lastUpdateMonth = Time.epochMonth();
-      group.title = neighborhood.name();
-      group.setLocation(neighborhood.location());
-      group.owner = Ref.create(bob);
-      groups.add(group);
-    }
-    ofy().save().entity(bob).now();
-    ofy().save().entities(groups).now();
+    saveNeighborhoods();
 
     List<String> expected = ImmutableList.of(
         "Union Square",
@@ -92,4 +82,47 @@ public class GroupSearchTest {
     assertEquals(expected, found.stream().limit(5).map(g -> g.title)
         .collect(Collectors.toList()));
   }
+
+  @Test public void testPaging() {
+    List<Group> groups = saveNeighborhoods();
+
+    Set<String> found = new HashSet<>();
+    String cursor = null;
+    int pages = 0;
+    do {
+      GroupSearch search = GroupSearch
+          .near(Coordinates.PRESENT_COMPANY)
+          .space(Space.EVERYONE)
+          .using(GroupRanker.EXPLORE)
+          .limit(20)
+          .page(cursor);
+      List<RankedGroup> page = search.run();
+      assertTrue(page.size() <= 20);
+      for (RankedGroup rankedGroup : page) {
+        assertTrue("Duplicate: " + rankedGroup.group().title, found.add(rankedGroup.group().id));
+      }
+      cursor = search.nextCursor();
+      pages++;
+    } while (cursor != null);
+
+    assertEquals(groups.size(), found.size());
+    assertTrue(pages > 1);
+  }
+
+  private List<Group> saveNeighborhoods() {
+    List<Group> groups = new ArrayList<>();
+    for (Neighborhood neighborhood : Neighborhoods.ALL) {
+      Group group = new Group();
+      group.id = Uuids.newUuid();
+      group.spaceId = Space.EVERYONE.id;
+      group.lastUpdateMonth = Time.epochMonth();
+      group.title = neighborhood.name();
+      group.setLocation(neighborhood.location());
+      group.owner = Ref.create(bob);
+      groups.add(group);
+    }
+    ofy().save().entity(bob).now();
+    ofy().save().entities(groups).now();
+    return groups;
+  }
 }
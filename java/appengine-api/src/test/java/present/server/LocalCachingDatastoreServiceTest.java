@@ -0,0 +1,126 @@
+package present.server;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LocalCachingDatastoreServiceTest {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  private final LocalCachingDatastoreService.Entries entries
+      = new LocalCachingDatastoreService.Entries(ImmutableSet.of("Cached"));
+
+  private AsyncDatastoreService raw;
+  private LocalCachingDatastoreService cached;
+
+  @Before public void setUp() {
+    helper.setUp();
+    raw = DatastoreServiceFactory.getAsyncDatastoreService();
+    cached = new LocalCachingDatastoreService(raw, entries);
+  }
+
+  @After public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test public void cachesGets() throws Exception {
+    Key key = KeyFactory.createKey("Cached", "a");
+    raw.put(entity(key, 1)).get();
+
+    assertEquals(1L, readOnly(() -> cached.get(key).get().getProperty("value")));
+    // Bypass the cache, so we can tell whether we hit it.
+    raw.put(entity(key, 2)).get();
+    assertEquals(1L, readOnly(() -> cached.get(key).get().getProperty("value")));
+    assertEquals(1, entries.stats().hitCount());
+    assertEquals(1, entries.stats().missCount());
+  }
+
+  @Test public void onlyServesReadOnlyCode() throws Exception {
+    Key key = KeyFactory.createKey("Cached", "a");
+    raw.put(entity(key, 1)).get();
+    readOnly(() -> cached.get(key).get());
+    raw.put(entity(key, 2)).get();
+
+    // Code that may save what it loads sees the latest entity.
+    assertEquals(2L, cached.get(key).get().getProperty("value"));
+    assertEquals(2L, cached.get(ImmutableList.of(key)).get().get(key).getProperty("value"));
+    assertEquals(1L, readOnly(() -> cached.get(key).get().getProperty("value")));
+  }
+
+  @Test public void putsInvalidate() throws Exception {
+    Key key = KeyFactory.createKey("Cached", "a");
+    cached.put(entity(key, 1)).get();
+    assertEquals(1L, readOnly(() -> cached.get(key).get().getProperty("value")));
+    cached.put(entity(key, 2)).get();
+    assertEquals(2L, readOnly(() -> cached.get(key).get().getProperty("value")));
+    cached.delete(key).get();
+    assertEquals(0, (int) readOnly(() -> cached.get(ImmutableList.of(key)).get().size()));
+  }
+
+  @Test public void returnsCopies() throws Exception {
+    Key key = KeyFactory.createKey("Cached", "a");
+    raw.put(entity(key, 1)).get();
+    readOnly(() -> {
+      cached.get(key).get().setProperty("value", 2);
+      cached.get(key).get().setProperty("value", 3);
+      assertEquals(1L, cached.get(key).get().getProperty("value"));
+      return null;
+    });
+  }
+
+  @Test public void mergesBatchGets() throws Exception {
+    Key a = KeyFactory.createKey("Cached", "a");
+    Key b = KeyFactory.createKey("Cached", "b");
+    Key other = KeyFactory.createKey("Other", "c");
+    raw.put(ImmutableList.of(entity(a, 1), entity(b, 2), entity(other, 3))).get();
+    readOnly(() -> cached.get(a).get());
+
+    Map<Key, Entity> found = readOnly(() -> cached.get(ImmutableList.of(a, b, other)).get());
+    assertEquals(3, found.size());
+    assertEquals(2L, found.get(b).getProperty("value"));
+    assertEquals(3L, found.get(other).getProperty("value"));
+    // Only "Cached" entities count.
+    assertEquals(1, entries.stats().hitCount());
+    assertEquals(2, entries.stats().missCount());
+  }
+
+  @Test public void skipsTransactions() throws Exception {
+    Key key = KeyFactory.createKey("Cached", "a");
+    raw.put(entity(key, 1)).get();
+    readOnly(() -> cached.get(key).get());
+    raw.put(entity(key, 2)).get();
+
+    readOnly(() -> {
+      Transaction transaction = cached.beginTransaction().get();
+      assertEquals(2L, cached.get(transaction, key).get().getProperty("value"));
+      transaction.rollback();
+      return null;
+    });
+  }
+
+  private static <T> T readOnly(Callable<T> callable) throws Exception {
+    return LocalCachingDatastoreService.readOnly(callable);
+  }
+
+  private static Entity entity(Key key, long value) {
+    Entity entity = new Entity(key);
+    entity.setProperty("value", value);
+    return entity;
+  }
+}
@@ -0,0 +1,81 @@
+package present.server;
+
+import com.google.common.geometry.S2CellId;
+import com.google.common.geometry.S2LatLng;
+import java.time.ZoneId;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares resolving zones for 2,000 circle members with {@link TimezoneMapper} and
+ * {@link ZoneId#of}, like Notifier used to, to looking them up in {@link TimeZones}. Members are
+ * scattered within 25km of a handful of cities.
+ *
+ * <p>Run with: {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=present.server.TimeZonesBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimeZonesBenchmark {
+
+  private static final int MEMBERS = 2_000;
+
+  private static final double[][] CITIES = {
+      { 37.7749, -122.4194 }, // San Francisco
+      { 40.7128, -74.0060 }, // New York
+      { 41.8781, -87.6298 }, // Chicago
+      { 39.7392, -104.9903 }, // Denver
+      { 30.2672, -97.7431 }, // Austin
+      { 51.5074, -0.1278 }, // London
+  };
+
+  private final S2LatLng[] locations = new S2LatLng[MEMBERS];
+  private final S2CellId[] cells = new S2CellId[MEMBERS];
+
+  @Setup public void setUp() {
+    Random random = new Random(0);
+    for (int i = 0; i < MEMBERS; i++) {
+      double[] city = CITIES[random.nextInt(CITIES.length)];
+      // About 25km in any direction.
+      locations[i] = S2LatLng.fromDegrees(city[0] + (random.nextDouble() - 0.5) * 0.45,
+          city[1] + (random.nextDouble() - 0.5) * 0.45);
+      cells[i] = S2CellId.fromLatLng(locations[i]);
+    }
+  }
+
+  @Benchmark public void mapper(Blackhole blackhole) {
+    for (S2LatLng location : locations) {
+      blackhole.consume(ZoneId.of(TimezoneMapper.latLngToTimezoneString(
+          location.latDegrees(), location.lngDegrees())));
+    }
+  }
+
+  @Benchmark public void grid(Blackhole blackhole) {
+    for (S2CellId cell : cells) {
+      blackhole.consume(TimeZones.zoneFor(cell));
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    new Runner(new OptionsBuilder()
+        .include(TimeZonesBenchmark.class.getSimpleName())
+        .build()).run();
+  }
+}
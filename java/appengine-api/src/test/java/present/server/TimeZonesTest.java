@@ -0,0 +1,37 @@
+package present.server;
+
+import com.google.common.geometry.S2CellId;
+import com.google.common.geometry.S2LatLng;
+import java.time.ZoneId;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimeZonesTest {
+
+  @Test public void matchesMapper() {
+    Random random = new Random(0);
+    int points = 100_000;
+    int mismatches = 0;
+    for (int i = 0; i < points; i++) {
+      // Continental US, where most of our users are, plus the rest of the world.
+      S2LatLng location = i % 2 == 0
+          ? S2LatLng.fromDegrees(25 + random.nextDouble() * 24, -125 + random.nextDouble() * 58)
+          : S2LatLng.fromDegrees(-60 + random.nextDouble() * 135, -180 + random.nextDouble() * 360);
+      S2LatLng leaf = S2CellId.fromLatLng(location).toLatLng();
+      ZoneId expected = ZoneId.of(TimezoneMapper.latLngToTimezoneString(
+          leaf.latDegrees(), leaf.lngDegrees()));
+      if (!expected.equals(TimeZones.zoneFor(S2CellId.fromLatLng(location)))) mismatches++;
+    }
+    // A border can cross a cell between samples. This happens a few times per million points.
+    assertTrue(mismatches + " mismatches", mismatches <= points / 10_000);
+  }
+
+  @Test public void defaults() {
+    assertEquals(TimeZones.DEFAULT, TimeZones.zoneFor((S2LatLng) null));
+    assertEquals(ZoneId.of("America/New_York"),
+        TimeZones.zoneFor(S2LatLng.fromDegrees(40.7128, -74.0060)));
+  }
+}
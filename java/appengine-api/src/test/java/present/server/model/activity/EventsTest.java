@@ -0,0 +1,104 @@
+package present.server.model.activity;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import present.proto.ActivityType;
+import present.server.Uuids;
+import present.server.model.PresentEntities;
+import present.server.model.user.User;
+import present.server.model.user.UserState;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+import static org.junit.Assert.assertEquals;
+
+public class EventsTest {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  private Closeable session;
+
+  @Before public void setUp() {
+    helper.setUp();
+    session = ObjectifyService.begin();
+    PresentEntities.registerAll();
+  }
+
+  @After public void tearDown() {
+    session.close();
+    helper.tearDown();
+  }
+
+  @Test public void sharesEvents() {
+    User from = newUser('A');
+    User b = newUser('B');
+    User c = newUser('C');
+
+    Event legacy = newEvent(from, "legacy", 1000);
+    legacy.user = b.getRef();
+    legacy.save().now();
+    Event shared = newEvent(from, "shared", 2000);
+    Events.saveShared(shared, ImmutableList.of(b, c));
+    ofy().flush();
+    ofy().clear();
+
+    assertEquals(ImmutableList.of("shared", "legacy"), summaries(b));
+    assertEquals(ImmutableList.of("shared"), summaries(c));
+    assertEquals(ImmutableList.of(), summaries(from));
+    assertEquals(shared.uuid, Events.forUser(b, 1500L, null, 10).get(0).uuid);
+    assertEquals(1, Events.forUser(b, 1500L, null, 10).size());
+
+    Events.delete(ImmutableList.of(Key.create(shared)));
+    ofy().clear();
+    assertEquals(ImmutableList.of("legacy"), summaries(b));
+    assertEquals(0, ofy().load().type(EventRecipients.class).count());
+  }
+
+  @Test public void chunksRecipients() {
+    User from = newUser('A');
+    List<User> recipients = new ArrayList<>();
+    for (int i = 0; i < EventRecipients.MAX_RECIPIENTS + 1; i++) {
+      User user = new User();
+      user.uuid = Uuids.newUuid();
+      recipients.add(user);
+    }
+    Event event = newEvent(from, "shared", 1000);
+    Events.saveShared(event, recipients);
+    ofy().flush();
+    assertEquals(2, Events.recipientKeysFor(ImmutableList.of(Key.create(event))).size());
+    assertEquals(ImmutableList.of("shared"), summaries(recipients.get(recipients.size() - 1)));
+  }
+
+  private static List<String> summaries(User user) {
+    return Events.forUser(user, null, null, 10).stream()
+        .map(e -> e.summary)
+        .collect(Collectors.toList());
+  }
+
+  private static Event newEvent(User from, String summary, long createdTime) {
+    Event event = new Event(ActivityType.FRIEND_REQUEST, summary, from.getRef());
+    event.initiator = from.getRef();
+    event.createdTime = createdTime;
+    event.createdTimeIndex = createdTime;
+    return event;
+  }
+
+  private static User newUser(char c) {
+    User user = new User();
+    user.firstName = "User " + c;
+    user.uuid = Uuids.repeat(c);
+    user.state = UserState.MEMBER;
+    user.save().now();
+    return user;
+  }
+}
@@ -0,0 +1,135 @@
+package present.server.model.group;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Ordering;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import present.server.Neighborhood;
+import present.server.Neighborhoods;
+import present.server.model.PresentEntities;
+import present.server.model.Space;
+import present.server.model.util.Coordinates;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GroupIndexTest {
+
+  static {
+    PresentEntities.registerAll();
+  }
+
+  private static final List<String> EVERYONE = ImmutableList.of(Space.EVERYONE.id);
+
+  /** Neighborhood locations by name. Some names repeat, so we keep the last. */
+  private static final Map<String, Coordinates> LOCATIONS = Neighborhoods.ALL.stream()
+      .collect(toMap(Neighborhood::name, Neighborhood::location, (a, b) -> b));
+
+  private final GroupIndex index = new GroupIndex();
+
+  @Before public void setUp() {
+    LOCATIONS.forEach((name, location) ->
+        index.put(name, location.toS2CellId(), Space.EVERYONE.id));
+  }
+
+  @Test public void nearest() {
+    Coordinates origin = Coordinates.PRESENT_COMPANY;
+    List<String> expected = LOCATIONS.keySet().stream()
+        .sorted(Comparator.comparingDouble(name -> LOCATIONS.get(name).distanceTo(origin)))
+        .limit(5)
+        .collect(toList());
+    assertEquals(expected, names(index.nearest(origin, EVERYONE, GroupSearch.MAX_RADIUS, 5)));
+  }
+
+  @Test public void nearestExpandsRadius() {
+    List<GroupIndex.Nearby> all = index.nearest(Coordinates.PRESENT_COMPANY, EVERYONE,
+        GroupSearch.MAX_RADIUS, 1000);
+    assertEquals(LOCATIONS.size(), all.size());
+    assertTrue(Ordering.from(GroupIndex.Nearby.BY_DISTANCE).isOrdered(all));
+  }
+
+  @Test public void within() {
+    Coordinates origin = Coordinates.PRESENT_COMPANY;
+    long expected = LOCATIONS.values().stream()
+        .filter(location -> location.distanceTo(origin) < 2_000)
+        .count();
+    List<GroupIndex.Nearby> found = index.within(origin, EVERYONE, 2_000);
+    assertEquals(expected, found.size());
+    assertTrue(found.stream().allMatch(n -> n.distance() < 2_000));
+  }
+
+  @Test public void filtersSpaces() {
+    assertTrue(index.nearest(Coordinates.PRESENT_COMPANY, ImmutableList.of(Space.WOMEN_ONLY.id),
+        GroupSearch.MAX_RADIUS, 5).isEmpty());
+  }
+
+  @Test public void updates() {
+    Coordinates origin = Coordinates.PRESENT_COMPANY;
+    String nearest = names(index.nearest(origin, EVERYONE, GroupSearch.MAX_RADIUS, 1)).get(0);
+
+    // Move a group far away and back.
+    index.put("Moved", Coordinates.SAN_FRANCISCO.toS2CellId(), Space.EVERYONE.id);
+    index.put("Moved", origin.toS2CellId(), Space.EVERYONE.id);
+    assertEquals(LOCATIONS.size() + 1, index.size());
+    assertEquals(ImmutableList.of("Moved", nearest),
+        names(index.nearest(origin, EVERYONE, GroupSearch.MAX_RADIUS, 2)));
+
+    index.remove("Moved");
+    assertEquals(LOCATIONS.size(), index.size());
+    assertEquals(ImmutableList.of(nearest),
+        names(index.nearest(origin, EVERYONE, GroupSearch.MAX_RADIUS, 1)));
+  }
+
+  @Test public void appliesTransactionalWritesOnCommit() {
+    LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    helper.setUp();
+    try (Closeable ignored = ObjectifyService.begin()) {
+      Group group = new Group();
+      group.id = "Saved";
+      group.spaceId = Space.EVERYONE.id;
+      group.s2CellId = Coordinates.PRESENT_COMPANY.toS2CellId();
+
+      ofy().transact(() -> {
+        index.saved(group);
+        assertEquals(LOCATIONS.size(), index.size());
+        // Changes after the save don't reach the index.
+        group.discoverable = false;
+      });
+      assertEquals(LOCATIONS.size() + 1, index.size());
+
+      try {
+        ofy().transact(() -> {
+          index.remove("Saved");
+          index.saved(group);
+          throw new IllegalStateException("Rolled back");
+        });
+        fail();
+      } catch (IllegalStateException expected) {
+      }
+      assertEquals(LOCATIONS.size(), index.size());
+
+      // Outside of a transaction, we apply writes right away.
+      group.discoverable = true;
+      index.saved(group);
+      assertEquals(LOCATIONS.size() + 1, index.size());
+    } finally {
+      helper.tearDown();
+    }
+  }
+
+  private static List<String> names(List<GroupIndex.Nearby> nearby) {
+    return nearby.stream().map(GroupIndex.Nearby::groupId).collect(toList());
+  }
+}
@@ -0,0 +1,124 @@
+package present.server.model.group;
+
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.Ordering;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.impl.ref.DeadRef;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import present.proto.GroupLog;
+import present.server.Time;
+import present.server.model.PresentEntities;
+import present.server.model.user.User;
+
+/**
+ * Compares ranking 3,000 groups in one batch with ranking each group on its own, which rebuilds
+ * the friend IDs and creates a {@link RankedGroup} for every group.
+ *
+ * <p>Run with: {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=present.server.model.group.GroupRankerBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GroupRankerBenchmark {
+
+  private static final int GROUPS = 3_000;
+  private static final int FRIENDS = 300;
+  private static final int LIMIT = 150;
+
+  private final User user = new User();
+  private final List<User> friends = new ArrayList<>();
+  private final List<Group> groups = new ArrayList<>();
+  private final List<Group.Log> logs = new ArrayList<>();
+  private final double[] distances = new double[GROUPS];
+
+  @Setup public void setUp() {
+    PresentEntities.registerAll();
+
+    // Keys need an App Engine environment.
+    LocalServiceTestHelper helper = new LocalServiceTestHelper();
+    helper.setUp();
+    try {
+      Random random = new Random(0);
+      long now = System.currentTimeMillis();
+      List<User> owners = new ArrayList<>();
+      for (int i = 0; i < FRIENDS * 10; i++) {
+        User owner = new User();
+        owner.uuid = "user" + i;
+        owner.shortId = i + 1;
+        owners.add(owner);
+        if (i % 10 == 0) friends.add(owner);
+      }
+      for (int i = 0; i < GROUPS; i++) {
+        User owner = owners.get(random.nextInt(owners.size()));
+        Group group = new Group();
+        group.id = "group" + i;
+        group.owner = new DeadRef<>(Key.create(owner), owner);
+        group.createdTime = now - (long) (random.nextDouble() * Time.MONTH_IN_MILLIS);
+        group.memberCount = random.nextInt(200);
+        group.activeComments = random.nextInt(200);
+        groups.add(group);
+
+        List<GroupLog.Entry> entries = new ArrayList<>();
+        for (int j = 0; j < 20; j++) {
+          entries.add(new GroupLog.Entry.Builder()
+              .userId(owners.get(random.nextInt(owners.size())).shortId)
+              .type(GroupLog.Entry.Type.values()[random.nextInt(GroupLog.Entry.Type.values().length)])
+              .timestamp(now - (long) (random.nextDouble() * Time.MONTH_IN_MILLIS))
+              .distance(random.nextDouble() * 100_000)
+              .build());
+        }
+        Group.Log log = new Group.Log();
+        log.id = group.id;
+        log.log = new GroupLog.Builder().entries(entries).build();
+        logs.add(log);
+
+        distances[i] = random.nextDouble() * 50_000;
+      }
+    } finally {
+      helper.tearDown();
+    }
+  }
+
+  @Benchmark public List<RankedGroup> perGroup() {
+    List<RankedGroup> ranked = new ArrayList<>(GROUPS);
+    for (int i = 0; i < GROUPS; i++) {
+      Candidates candidates = new Candidates(user, friends, 1);
+      candidates.add(groups.get(i), logs.get(i), distances[i]);
+      ranked.addAll(GroupRanker.EXPLORE.top(candidates, 1));
+    }
+    return Ordering.natural().leastOf(ranked, LIMIT);
+  }
+
+  @Benchmark public List<RankedGroup> batch() {
+    Candidates candidates = new Candidates(user, friends, GROUPS);
+    for (int i = 0; i < GROUPS; i++) {
+      candidates.add(groups.get(i), logs.get(i), distances[i]);
+    }
+    return GroupRanker.EXPLORE.top(candidates, LIMIT);
+  }
+
+  public static void main(String[] args) throws Exception {
+    new Runner(new OptionsBuilder()
+        .include(GroupRankerBenchmark.class.getSimpleName())
+        .build()).run();
+  }
+}
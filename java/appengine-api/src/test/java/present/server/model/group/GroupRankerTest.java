@@ -0,0 +1,58 @@
+package present.server.model.group;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import org.junit.Test;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GroupRankerTest {
+
+  @Test public void topOrdersByRankingThenId() {
+    Candidates candidates = new Candidates(null, Collections.emptyList(), 2);
+    candidates.add(group("a", 1), null, 0);
+    candidates.add(group("d", 3), null, 0);
+    candidates.add(group("c", 3), null, 0);
+    candidates.add(group("b", 2), null, 0);
+    candidates.add(group("e", 4), null, 0);
+
+    // Newest comments first.
+    assertEquals(ImmutableList.of("e", "c", "d"),
+        ids(GroupRanker.NEARBY_FEED_BY_TIME.top(candidates, 3)));
+    assertEquals(ImmutableList.of("e", "c", "d", "b", "a"),
+        ids(GroupRanker.NEARBY_FEED_BY_TIME.top(candidates, 10)));
+    assertTrue(GroupRanker.NEARBY_FEED_BY_TIME.top(candidates, 0).isEmpty());
+  }
+
+  @Test public void topMatchesSort() {
+    Candidates candidates = new Candidates(null, Collections.emptyList(), 0);
+    List<Group> groups = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      Group group = group("group" + i, (i * 7919) % 101);
+      candidates.add(group, null, 0);
+      groups.add(group);
+    }
+    List<String> expected = groups.stream()
+        .sorted(Comparator.<Group>comparingLong(g -> -g.lastCommentTime).thenComparing(g -> g.id))
+        .limit(50)
+        .map(g -> g.id)
+        .collect(toList());
+    assertEquals(expected, ids(GroupRanker.NEARBY_FEED_BY_TIME.top(candidates, 50)));
+  }
+
+  private static Group group(String id, long lastCommentTime) {
+    Group group = new Group();
+    group.id = id;
+    group.lastCommentTime = lastCommentTime;
+    return group;
+  }
+
+  private static List<String> ids(List<RankedGroup> ranked) {
+    return ranked.stream().map(g -> g.group().id).collect(toList());
+  }
+}
@@ -0,0 +1,45 @@
+package present.server.model.group;
+
+import com.google.common.base.Ticker;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import present.server.model.util.Coordinates;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RegionDensityTest {
+
+  private long now;
+  private final RegionDensity density = new RegionDensity(new Ticker() {
+    @Override public long read() {
+      return now;
+    }
+  });
+
+  @Test public void learnsByRegion() {
+    assertNull(density.get(Coordinates.PRESENT_COMPANY));
+    density.record(Coordinates.PRESENT_COMPANY, 2);
+
+    // Nearby searches share the estimate.
+    assertEquals(2, (int) density.get(new Coordinates(37.7910, -122.4060)));
+    assertNull(density.get(new Coordinates(40.6635, -73.9387)));
+
+    assertEquals(1, density.stats().hitCount());
+    assertEquals(2, density.stats().missCount());
+  }
+
+  @Test public void expires() {
+    density.record(Coordinates.PRESENT_COMPANY, 1);
+    now += TimeUnit.HOURS.toNanos(5);
+    assertEquals(1, (int) density.get(Coordinates.PRESENT_COMPANY));
+    now += TimeUnit.HOURS.toNanos(2);
+    assertNull(density.get(Coordinates.PRESENT_COMPANY));
+  }
+
+  @Test public void invalidates() {
+    density.record(Coordinates.PRESENT_COMPANY, 3);
+    density.invalidate(Coordinates.PRESENT_COMPANY);
+    assertNull(density.get(Coordinates.PRESENT_COMPANY));
+  }
+}
@@ -0,0 +1,83 @@
+package present.server.model.group;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Ref;
+import com.googlecode.objectify.util.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import present.server.Uuids;
+import present.server.model.PresentEntities;
+import present.server.model.Space;
+import present.server.model.user.User;
+import present.server.model.util.Coordinates;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TrendingGroupsTest {
+
+  static {
+    PresentEntities.registerAll();
+  }
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  private Closeable objectify;
+
+  private final User owner = new User();
+
+  @Before public void setUp() {
+    helper.setUp();
+    this.objectify = ObjectifyService.begin();
+    owner.uuid = Uuids.newUuid();
+    ofy().save().entity(owner).now();
+  }
+
+  @After public void tearDown() {
+    objectify.close();
+    helper.tearDown();
+  }
+
+  @Test public void ranksByScore() {
+    List<Group> groups = new ArrayList<>();
+    for (int i = 0; i < 300; i++) groups.add(group(Space.EVERYONE, "Group " + i, i));
+    // Span several pages.
+    for (int i = 0; i < 1000; i++) groups.add(group(Space.EVERYONE, "Empty " + i, 0));
+    Group welcome = group(Space.EVERYONE, "Welcome to Present", 1000);
+    Group womenOnly = group(Space.WOMEN_ONLY, "Women", 1000);
+    Group deleted = group(Space.EVERYONE, "Deleted", 1000);
+    deleted.deleted = true;
+    ofy().save().entities(groups).now();
+    ofy().save().entities(welcome, womenOnly, deleted).now();
+
+    // Groups with more members rank higher.
+    List<String> expected = new ArrayList<>();
+    for (int i = 299; i >= 250; i--) expected.add("Group " + i);
+    assertEquals(expected, titles(TrendingGroups.trendingIn(Space.EVERYONE)));
+    assertEquals(1, TrendingGroups.trendingIn(Space.WOMEN_ONLY).size());
+    assertTrue(TrendingGroups.trendingIn(Space.POWER_RISING).isEmpty());
+  }
+
+  private Group group(Space space, String title, int members) {
+    Group group = new Group();
+    group.id = Uuids.newUuid();
+    group.spaceId = space.id;
+    group.title = title;
+    group.memberCount = members;
+    group.setLocation(Coordinates.PRESENT_COMPANY);
+    group.owner = Ref.create(owner);
+    return group;
+  }
+
+  private static List<String> titles(List<RankedGroup> groups) {
+    return groups.stream().map(g -> g.group().title).collect(toList());
+  }
+}
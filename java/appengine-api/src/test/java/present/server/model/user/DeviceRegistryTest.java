@@ -0,0 +1,147 @@
+package present.server.model.user;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import present.proto.Platform;
+import present.server.Uuids;
+import present.server.model.PresentEntities;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DeviceRegistryTest {
+
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+      new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+
+  private Closeable session;
+
+  @Before public void setUp() {
+    helper.setUp();
+    session = ObjectifyService.begin();
+    PresentEntities.registerAll();
+  }
+
+  @After public void tearDown() {
+    session.close();
+    helper.tearDown();
+  }
+
+  @Test public void tracksClients() {
+    User a = newUser('A');
+    User b = newUser('B');
+    Client a1 = newClient(a, "a1");
+    newClient(b, "b1");
+    Client b2 = newClient(b, null);
+    List<Key<User>> users = ImmutableList.of(a.getKey(), b.getKey());
+    assertEquals(ImmutableSet.of("a1", "b1"), tokens(users));
+
+    // Served from cache.
+    clearSession();
+    assertEquals(ImmutableSet.of("a1", "b1"), tokens(users));
+
+    // Gaining, changing and losing tokens.
+    b2 = ofy().load().entity(b2).now();
+    b2.deviceToken = "b2";
+    b2.save().now();
+    a1 = ofy().load().entity(a1).now();
+    a1.deviceToken = "a2";
+    a1.save().now();
+    clearSession();
+    assertEquals(ImmutableSet.of("a2", "b1", "b2"), tokens(users));
+
+    a1 = ofy().load().entity(a1).now();
+    a1.deviceToken = null;
+    a1.save().now();
+    clearSession();
+    assertEquals(ImmutableSet.of("b1", "b2"), tokens(users));
+
+    // Moving a Client to another user.
+    b2 = ofy().load().entity(b2).now();
+    b2.user = a.getRef();
+    b2.save().now();
+    clearSession();
+    assertEquals(ImmutableSet.of("b2"), tokens(ImmutableList.of(a.getKey())));
+    assertEquals(ImmutableSet.of("b1"), tokens(ImmutableList.of(b.getKey())));
+  }
+
+  @Test public void invalidatesOnCommit() {
+    User a = newUser('A');
+    Client a1 = newClient(a, null);
+    List<Key<User>> users = ImmutableList.of(a.getKey());
+    assertEquals(ImmutableSet.of(), tokens(users));
+    assertTrue(cached(a));
+
+    try {
+      ofy().transact(() -> {
+        Client client = ofy().load().entity(a1).now();
+        client.deviceToken = "a1";
+        client.save().now();
+        throw new IllegalStateException("Rolled back");
+      });
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    assertTrue(cached(a));
+
+    ofy().transact(() -> {
+      Client client = ofy().load().entity(a1).now();
+      client.deviceToken = "a1";
+      client.save().now();
+      assertTrue(cached(a));
+    });
+    assertFalse(cached(a));
+    clearSession();
+    assertEquals(ImmutableSet.of("a1"), tokens(users));
+  }
+
+  private static boolean cached(User user) {
+    return MemcacheServiceFactory.getMemcacheService()
+        .contains(DeviceRegistry.toCacheKey(user.getKey()));
+  }
+
+  private static Set<String> tokens(List<Key<User>> users) {
+    return DeviceRegistry.clientsFor(users).stream()
+        .map(client -> client.deviceToken)
+        .collect(Collectors.toSet());
+  }
+
+  private static void clearSession() {
+    ofy().clear();
+  }
+
+  private static User newUser(char c) {
+    User user = new User();
+    user.firstName = "User " + c;
+    user.uuid = Uuids.repeat(c);
+    user.state = UserState.MEMBER;
+    user.save().now();
+    return user;
+  }
+
+  private static Client newClient(User user, String token) {
+    Client client = new Client();
+    client.uuid = Uuids.newUuid();
+    client.user = user.getRef();
+    client.platform = Platform.ANDROID.getValue();
+    client.deviceToken = token;
+    client.save().now();
+    return client;
+  }
+}
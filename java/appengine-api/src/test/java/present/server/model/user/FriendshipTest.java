@@ -139,7 +139,7 @@ public class FriendshipTest {
     client.save();
 
     // Prime unread state so we don't try to compute it asynchronously.
-    UnreadState state = new UnreadState(Collections.emptyList());
+    UnreadState state = new UnreadState(Collections.emptyList(), null);
     UnreadStates.put(user, state);
 
     return user;
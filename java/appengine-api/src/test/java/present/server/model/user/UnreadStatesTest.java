@@ -3,9 +3,11 @@ package present.server.model.user;
 import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Future;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -14,7 +16,10 @@ import present.proto.UnreadState;
 import present.server.Uuids;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class UnreadStatesTest {
 
@@ -29,7 +34,7 @@ public class UnreadStatesTest {
     helper.tearDown();
   }
 
-  private static final UnreadState EMPTY = new UnreadState(Collections.emptyList());
+  private static final UnreadState EMPTY = new UnreadState(Collections.emptyList(), null);
 
   final User bob = newUser();
   final User pat = newUser();
@@ -76,7 +81,7 @@ public class UnreadStatesTest {
     for (User user : everyone) {
       UnreadState state = UnreadStates.loadStateFor(user);
       for (String group : groups) {
-        assertTrue(Collections.binarySearch(state.groups, group) >= 0);
+        assertTrue(UnreadStates.unreadGroups(state).contains(group));
       }
     }
 
@@ -86,7 +91,7 @@ public class UnreadStatesTest {
     assertEquals(2, counts.total.intValue());
     assertEquals(2, counts.groups.intValue());
     UnreadState state = UnreadStates.loadStateFor(bob);
-    assertTrue(Collections.binarySearch(state.groups, group1) < 0);
+    assertFalse(UnreadStates.unreadGroups(state).contains(group1));
 
 
     counts = UnreadStates.loadCountsFor(janete);
@@ -102,9 +107,104 @@ public class UnreadStatesTest {
     FakeUnreadStates b = new FakeUnreadStates(everyone);
     String group = Uuids.newUuid();
     a.markGroupUnread(group);
-    b.markGroupUnread(group);
+    UnreadStates.Stats stats = b.markGroupUnread(group);
     assertTrue(a.failedKeys.isEmpty());
-    assertEquals(3, b.failedKeys.size());
+    // b merges with a's identical changes instead of re-computing.
+    assertTrue(b.failedKeys.isEmpty());
+    assertEquals(3, stats.merges);
+    assertEquals(3, stats.skips);
+  }
+
+  @Test public void mergesConcurrentChanges() {
+    for (User user : everyone) {
+      UnreadStates.put(user, EMPTY);
+    }
+    FakeUnreadStates a = new FakeUnreadStates(everyone);
+    FakeUnreadStates b = new FakeUnreadStates(everyone);
+    String group1 = Uuids.newUuid();
+    String group2 = Uuids.newUuid();
+    a.markGroupUnread(group1);
+    UnreadStates.Stats stats = b.markGroupUnread(group2);
+    assertTrue(b.failedKeys.isEmpty());
+    assertEquals(3, stats.updates);
+    assertEquals(3, stats.merges);
+    for (User user : everyone) {
+      assertEquals(2, b.countsFor(user).groups.intValue());
+      UnreadState state = UnreadStates.loadStateFor(user);
+      assertTrue(UnreadStates.unreadGroups(state).contains(group1));
+      assertTrue(UnreadStates.unreadGroups(state).contains(group2));
+    }
+  }
+
+  @Test public void updatesChunksAsynchronously() throws Exception {
+    List<User> users = new ArrayList<>();
+    for (int i = 0; i < 250; i++) {
+      User user = newUser();
+      users.add(user);
+      if (i % 50 != 0) UnreadStates.put(user, EMPTY);
+    }
+    FakeUnreadStates states = new FakeUnreadStates(users);
+    String group = Uuids.newUuid();
+    Future<UnreadStates.Stats> result = states.markGroupUnreadAsync(group);
+    // Visible before the update finishes.
+    assertEquals(1, states.countsFor(users.get(1)).groups.intValue());
+    assertNull(states.countsFor(users.get(50)));
+
+    UnreadStates.Stats stats = result.get();
+    assertEquals(245, stats.updates);
+    assertEquals(5, stats.misses);
+    assertTrue(states.failedKeys.isEmpty());
+    assertEquals(1, UnreadStates.loadCountsFor(users.get(249)).groups.intValue());
+  }
+
+  @Test public void readsLegacyStates() {
+    String group1 = Uuids.newUuid();
+    String group2 = Uuids.newUuid();
+    List<String> sorted = ImmutableList.sortedCopyOf(ImmutableList.of(group1, group2));
+    UnreadStates.put(bob, new UnreadState(sorted, null));
+    assertEquals(2, UnreadStates.loadCountsFor(bob).groups.intValue());
+
+    UnreadStates.markGroupRead(bob, group1);
+    UnreadState state = UnreadStates.loadStateFor(bob);
+    assertTrue(state.groups.isEmpty());
+    assertEquals(ImmutableList.of(group2), UnreadStates.unreadGroups(state).toStrings());
+  }
+
+  @Test public void acceptsLegacyGroupIds() {
+    UnreadStates.put(bob, EMPTY);
+    String group = Uuids.newUuid();
+    String legacyId = group + ":37.7910,-122.4060";
+
+    UnreadStates.markGroupUnread(bob, legacyId);
+    UnreadState state = UnreadStates.loadStateFor(bob);
+    assertEquals(ImmutableList.of(group), UnreadStates.unreadGroups(state).toStrings());
+
+    // Marking the group read updates the cached state instead of re-computing it.
+    long recomputes = UnreadStates.recomputeCount();
+    UnreadStates.markGroupRead(bob, legacyId);
+    assertEquals(recomputes, UnreadStates.recomputeCount());
+    assertEquals(0, UnreadStates.loadCountsFor(bob).groups.intValue());
+  }
+
+  @Test public void rejectsInvalidGroupIds() {
+    UnreadStates.put(bob, EMPTY);
+    for (String groupId : new String[] { "", "group", "not-a-uuid:37.7910,-122.4060" }) {
+      try {
+        UnreadStates.markGroupUnread(bob, groupId);
+        fail(groupId);
+      } catch (IllegalArgumentException expected) {
+      }
+      try {
+        UnreadStates.markGroupRead(bob, groupId);
+        fail(groupId);
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+    assertEquals(EMPTY, UnreadStates.loadStateFor(bob));
+  }
+
+  @Test public void versionsCacheKeys() {
+    assertEquals("UnreadState.v2:" + bob.uuid, UnreadStates.toCacheKey(bob));
   }
 
   private User newUser() {
@@ -0,0 +1,30 @@
+package present.server.model.util;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LongHashSetTest {
+
+  @Test public void addAndContains() {
+    LongHashSet set = new LongHashSet(2);
+    for (long i = 1; i <= 1000; i++) assertTrue(set.add(i * 1024));
+    assertFalse(set.add(1024));
+    assertEquals(1000, set.size());
+    for (long i = 1; i <= 1000; i++) assertTrue(set.contains(i * 1024));
+    assertFalse(set.contains(1));
+    assertFalse(set.contains(-1024));
+  }
+
+  @Test public void zero() {
+    LongHashSet set = LongHashSet.of(ImmutableList.of(1L, 2L));
+    assertFalse(set.contains(0));
+    assertTrue(set.add(0));
+    assertFalse(set.add(0));
+    assertTrue(set.contains(0));
+    assertEquals(3, set.size());
+  }
+}
@@ -0,0 +1,51 @@
+package present.server.model.util;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class UuidSetTest {
+
+  @Test public void sortsLikeStrings() {
+    List<String> uuids = new ArrayList<>();
+    for (int i = 0; i < 100; i++) uuids.add(UUID.randomUUID().toString());
+    // Sign bits set.
+    uuids.add("ffffffff-ffff-ffff-ffff-ffffffffffff");
+    uuids.add("80000000-0000-0000-8000-000000000000");
+    uuids.add("00000000-0000-0000-0000-000000000000");
+
+    UuidSet set = UuidSet.EMPTY;
+    for (String uuid : uuids) set = set.with(uuid);
+    Collections.sort(uuids);
+    assertEquals(uuids, set.toStrings());
+    assertEquals(set, UuidSet.of(uuids));
+  }
+
+  @Test public void withAndWithout() {
+    String a = UUID.randomUUID().toString();
+    String b = UUID.randomUUID().toString();
+    UuidSet set = UuidSet.of(ImmutableList.of(a, a));
+    assertEquals(1, set.size());
+    assertSame(set, set.with(a));
+    assertSame(set, set.without(b));
+    assertTrue(set.with(b).contains(b));
+    assertFalse(set.without(a).contains(a));
+    assertEquals(0, set.without(a).size());
+  }
+
+  @Test public void encode() {
+    UuidSet set = UuidSet.of(ImmutableList.of(UUID.randomUUID().toString(),
+        UUID.randomUUID().toString()));
+    assertEquals(32, set.encode().size());
+    assertEquals(set, UuidSet.decode(set.encode()));
+    assertSame(UuidSet.EMPTY, UuidSet.decode(null));
+  }
+}
@@ -0,0 +1,151 @@
+package present.server.notification.apns;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.SocketFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ApnsDispatcherTest {
+
+  private FakeApnsServer server;
+  private ApnsDispatcher dispatcher;
+
+  @Before public void setUp() throws Exception {
+    server = new FakeApnsServer();
+    dispatcher = new ApnsDispatcher("test", SocketFactory.getDefault(), server.host(),
+        server.port(), 2);
+  }
+
+  @After public void tearDown() throws Exception {
+    dispatcher.close();
+    server.close();
+  }
+
+  @Test public void batchesWrites() throws Exception {
+    int count = 10_000;
+    CountDownLatch latch = new CountDownLatch(count);
+    AtomicInteger failures = new AtomicInteger();
+    for (int i = 0; i < count; i++) {
+      dispatcher.push(token(i), "{\"aps\":{\"badge\":1}}", new ApnsDispatcher.Callback() {
+        @Override public void sent() {
+          latch.countDown();
+        }
+
+        @Override public void failed(Throwable t) {
+          failures.incrementAndGet();
+          latch.countDown();
+        }
+      });
+    }
+    assertTrue(latch.await(30, TimeUnit.SECONDS));
+    assertEquals(0, failures.get());
+    awaitReceived(count);
+
+    ApnsDispatcher.Stats stats = dispatcher.stats();
+    assertEquals(count, stats.written);
+    assertEquals(0, stats.queued);
+    assertTrue(stats.toString(), stats.flushes < count);
+  }
+
+  @Test public void resendsAfterRejection() throws Exception {
+    String bad = token(5);
+    server.reject(bad);
+    Set<String> expected = new HashSet<>();
+    List<Result> results = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      Result result = new Result();
+      results.add(result);
+      dispatcher.push(token(i), "{}", result);
+      if (i != 5) expected.add(token(i));
+    }
+    awaitReceived(expected.size());
+    assertEquals(expected, new HashSet<>(server.received()));
+    assertEquals(expected.size(), server.received().size());
+    assertFalse(server.received().contains(bad));
+
+    for (int i = 0; i < 20; i++) {
+      Result result = results.get(i);
+      assertTrue(result.done.await(10, TimeUnit.SECONDS));
+      if (i == 5) {
+        ApnsDispatcher.RejectedException e = (ApnsDispatcher.RejectedException) result.error;
+        assertEquals(FakeApnsServer.INVALID_TOKEN, e.status);
+      } else {
+        assertNull(result.error);
+      }
+      assertEquals(1, result.calls.get());
+    }
+    assertEquals(1, dispatcher.stats().refused);
+  }
+
+  @Test public void waitsForErrorWindow() throws Exception {
+    Result result = new Result();
+    dispatcher.push(token(1), "{}", result);
+    awaitReceived(1);
+    // APNs could still reject it.
+    assertFalse(result.done.await(500, TimeUnit.MILLISECONDS));
+    assertTrue(result.done.await(10, TimeUnit.SECONDS));
+    assertNull(result.error);
+  }
+
+  @Test public void closeFailsQueuedNotifications() throws Exception {
+    dispatcher.close();
+    Result result = new Result();
+    dispatcher.push(token(1), "{}", result);
+    assertTrue(result.done.await(0, TimeUnit.SECONDS));
+    assertTrue(result.error instanceof RejectedExecutionException);
+    assertEquals(0, server.connections());
+  }
+
+  @Test public void closeReportsWrittenNotifications() throws Exception {
+    Result result = new Result();
+    dispatcher.push(token(1), "{}", result);
+    awaitReceived(1);
+    dispatcher.close();
+    assertTrue(result.done.await(0, TimeUnit.SECONDS));
+    assertNull(result.error);
+  }
+
+  /** Records callbacks. */
+  private static class Result implements ApnsDispatcher.Callback {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final AtomicInteger calls = new AtomicInteger();
+    private volatile Throwable error;
+
+    @Override public void sent() {
+      calls.incrementAndGet();
+      done.countDown();
+    }
+
+    @Override public void failed(Throwable t) {
+      error = t;
+      calls.incrementAndGet();
+      done.countDown();
+    }
+  }
+
+  private void awaitReceived(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 30_000;
+    while (server.received().size() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(count, server.received().size());
+  }
+
+  private static String token(int i) {
+    return String.format("%064x", i);
+  }
+}
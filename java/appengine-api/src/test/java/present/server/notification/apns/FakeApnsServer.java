@@ -0,0 +1,117 @@
+package present.server.notification.apns;
+
+import com.notnoop.apns.internal.Utilities;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local, unencrypted APNs endpoint that speaks the enhanced binary format. Records the tokens it
+ * receives, and rejects notifications to tokens passed to {@link #reject}, like APNs does: it
+ * responds with an error and closes the connection without reading further. Use it for tests and
+ * load tests.
+ */
+public class FakeApnsServer implements Closeable {
+
+  /** Status APNs uses for invalid tokens. */
+  public static final int INVALID_TOKEN = 8;
+
+  private final ServerSocket serverSocket;
+  private final List<String> received = new CopyOnWriteArrayList<>();
+  private final Set<String> rejected = Collections.synchronizedSet(new HashSet<>());
+  private final AtomicInteger connections = new AtomicInteger();
+
+  /** Listens on an ephemeral local port. */
+  public FakeApnsServer() throws IOException {
+    serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    Thread acceptor = new Thread(this::accept, "Fake APNs");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  public String host() {
+    return serverSocket.getInetAddress().getHostAddress();
+  }
+
+  public int port() {
+    return serverSocket.getLocalPort();
+  }
+
+  /** Rejects notifications to the given hex token. */
+  public void reject(String token) {
+    rejected.add(token);
+  }
+
+  /** Returns tokens for accepted notifications, in the order received. */
+  public List<String> received() {
+    return received;
+  }
+
+  /** Returns the number of connections accepted so far. */
+  public int connections() {
+    return connections.get();
+  }
+
+  private void accept() {
+    while (!serverSocket.isClosed()) {
+      try {
+        Socket socket = serverSocket.accept();
+        connections.incrementAndGet();
+        Thread reader = new Thread(() -> read(socket), "Fake APNs connection");
+        reader.setDaemon(true);
+        reader.start();
+      } catch (IOException e) {
+        // Closed.
+      }
+    }
+  }
+
+  private void read(Socket socket) {
+    try {
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      while (true) {
+        int command = in.readUnsignedByte();
+        if (command != 1) throw new IOException("Unexpected command: " + command);
+        int id = in.readInt();
+        in.readInt(); // expiry
+        byte[] token = new byte[in.readUnsignedShort()];
+        in.readFully(token);
+        in.readFully(new byte[in.readUnsignedShort()]); // payload
+        String hex = Utilities.encodeHex(token).toLowerCase();
+        if (rejected.contains(hex)) {
+          OutputStream out = socket.getOutputStream();
+          out.write(ByteBuffer.allocate(6)
+              .put((byte) 8)
+              .put((byte) INVALID_TOKEN)
+              .putInt(id)
+              .array());
+          out.flush();
+          // Drop everything after the rejected notification.
+          socket.shutdownOutput();
+          while (in.read(new byte[4096]) != -1) {}
+          return;
+        }
+        received.add(hex);
+      }
+    } catch (IOException e) {
+      // Closed.
+    } finally {
+      Utilities.close(socket);
+    }
+  }
+
+  @Override public void close() throws IOException {
+    serverSocket.close();
+  }
+}
@@ -0,0 +1,113 @@
+package present.server.notification.fcm;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local FCM endpoint that speaks the legacy HTTP API. Records the tokens it receives, responds
+ * to tokens passed to {@link #fail} with the given error, and can fail whole requests with
+ * {@link #failNextRequests}. Use it for tests and load tests.
+ */
+public class FakeFcmServer implements Closeable {
+
+  private final HttpServer server;
+  private final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+  private final List<String> received = new CopyOnWriteArrayList<>();
+  private final Map<String, String> errors = new ConcurrentHashMap<>();
+  private final AtomicInteger failures = new AtomicInteger();
+
+  /** Listens on an ephemeral local port. */
+  public FakeFcmServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/fcm/send", this::handle);
+    server.setExecutor(Executors.newCachedThreadPool(r -> {
+      Thread thread = new Thread(r, "Fake FCM");
+      thread.setDaemon(true);
+      return thread;
+    }));
+    server.start();
+  }
+
+  /** Returns the base URL to pass to {@link FcmSender}. */
+  public String baseUrl() {
+    return "http://" + server.getAddress().getAddress().getHostAddress() + ":"
+        + server.getAddress().getPort() + "/fcm/";
+  }
+
+  /** Responds to the given token with the given error, once. */
+  public void fail(String token, String error) {
+    errors.put(token, error);
+  }
+
+  /** Responds to the next {@code count} requests with a 503. */
+  public void failNextRequests(int count) {
+    failures.set(count);
+  }
+
+  /** Returns tokens for accepted messages, in the order received. */
+  public List<String> received() {
+    return received;
+  }
+
+  /** Returns the number of tokens in each request, including failed requests. */
+  public List<Integer> batchSizes() {
+    return batchSizes;
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    JsonObject message = new JsonParser().parse(new InputStreamReader(exchange.getRequestBody(),
+        StandardCharsets.UTF_8)).getAsJsonObject();
+    JsonArray tokens = message.getAsJsonArray("registration_ids");
+    batchSizes.add(tokens.size());
+
+    if (failures.getAndUpdate(count -> Math.max(0, count - 1)) > 0) {
+      exchange.getResponseHeaders().set("Retry-After", "0");
+      exchange.sendResponseHeaders(503, -1);
+      exchange.close();
+      return;
+    }
+
+    JsonArray results = new JsonArray();
+    for (JsonElement element : tokens) {
+      String token = element.getAsString();
+      JsonObject result = new JsonObject();
+      String error = errors.remove(token);
+      if (error == null) {
+        received.add(token);
+        result.addProperty("message_id", "0:" + token);
+      } else {
+        result.addProperty("error", error);
+      }
+      results.add(result);
+    }
+    JsonObject response = new JsonObject();
+    response.add("results", results);
+    byte[] body = response.toString().getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  @Override public void close() {
+    server.stop(0);
+  }
+}
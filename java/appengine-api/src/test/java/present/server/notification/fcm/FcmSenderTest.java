@@ -0,0 +1,74 @@
+package present.server.notification.fcm;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FcmSenderTest {
+
+  private FakeFcmServer server;
+  private FcmStats stats;
+  private FcmSender sender;
+
+  @Before public void setUp() throws Exception {
+    server = new FakeFcmServer();
+    stats = new FcmStats();
+    sender = new FcmSender("test", server.baseUrl(), stats);
+  }
+
+  @After public void tearDown() {
+    server.close();
+  }
+
+  @Test public void batchesTokens() throws Exception {
+    List<String> tokens = tokens(2500);
+    FcmSender.Result result = multicast(tokens);
+    assertEquals(2500, result.successes());
+    assertEquals(0, result.failures());
+    assertEquals(ImmutableList.of(1000, 1000, 500),
+        ImmutableList.sortedCopyOf(server.batchSizes()).reverse());
+    assertEquals(new HashSet<>(tokens), new HashSet<>(server.received()));
+    assertTrue(stats.toString(), stats.toString().contains("requests=3,"));
+  }
+
+  @Test public void retriesServerErrors() throws Exception {
+    server.failNextRequests(2);
+    List<String> tokens = tokens(10);
+    FcmSender.Result result = multicast(tokens);
+    assertEquals(10, result.successes());
+    assertEquals(ImmutableList.of(10, 10, 10), server.batchSizes());
+    assertEquals(tokens, server.received());
+  }
+
+  @Test public void reportsInvalidTokens() throws Exception {
+    List<String> tokens = tokens(10);
+    server.fail(tokens.get(2), "NotRegistered");
+    server.fail(tokens.get(5), "InvalidRegistration");
+    server.fail(tokens.get(7), "Unavailable");
+    FcmSender.Result result = multicast(tokens);
+    assertEquals(8, result.successes());
+    assertEquals(2, result.failures());
+    assertEquals(ImmutableList.of(tokens.get(2), tokens.get(5)), result.invalidTokens());
+    // Retried the unavailable token by itself.
+    assertEquals(ImmutableList.of(10, 1), server.batchSizes());
+  }
+
+  private FcmSender.Result multicast(List<String> tokens) throws Exception {
+    FcmMessage message = new FcmMessage.MessageBuilder().addData("body", "Hello").build();
+    return sender.multicast(message, tokens).get(30, TimeUnit.SECONDS);
+  }
+
+  private static List<String> tokens(int count) {
+    List<String> tokens = new ArrayList<>();
+    for (int i = 0; i < count; i++) tokens.add("token" + i);
+    return tokens;
+  }
+}
@@ -0,0 +1,162 @@
+package present.live.client;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import present.proto.DispatchCommentRequest;
+import present.proto.DispatchCommentsRequest;
+import present.proto.LiveService;
+
+/**
+ * Coalesces comments bound for the same live server into batched
+ * {@link LiveService#dispatchComments} calls. The first comment for a server schedules a flush a
+ * few milliseconds out. Comments that arrive in the meantime ride along, and a full batch
+ * flushes right away, so busy periods cost one round trip per batch instead of per comment.
+ *
+ * <p>Flushes run on a dedicated executor, never on a caller's thread, so callers don't pay for
+ * each other's comments beyond waiting for their own batch, and a failed call can't throw into
+ * an unrelated request.
+ */
+public class CommentCoalescer {
+
+  private static final Logger logger = LoggerFactory.getLogger(CommentCoalescer.class);
+
+  /** How long to wait for more comments before flushing. */
+  public static final long DEFAULT_LINGER_MILLIS = 5;
+
+  /** Maximum number of comments per call. */
+  public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
+  /** Number of batches we can send at once by default. */
+  public static final int DEFAULT_FLUSH_THREADS = 4;
+
+  private final ScheduledExecutorService executor;
+  private final Function<String, LiveService> connector;
+  private final long lingerMillis;
+  private final int maxBatchSize;
+
+  /** Open batches by live server URL. Guarded by this. */
+  private final Map<String, Batch> batches = new HashMap<>();
+
+  /** Live service clients by URL. */
+  private final Map<String, LiveService> services = new ConcurrentHashMap<>();
+
+  public CommentCoalescer() {
+    this(newExecutor(DEFAULT_FLUSH_THREADS), InternalLiveClient::connectTo,
+        DEFAULT_LINGER_MILLIS, DEFAULT_MAX_BATCH_SIZE);
+  }
+
+  /**
+   * @param executor runs flushes
+   * @param connector creates a live service client for a URL
+   */
+  public CommentCoalescer(ScheduledExecutorService executor,
+      Function<String, LiveService> connector, long lingerMillis, int maxBatchSize) {
+    if (maxBatchSize < 1) throw new IllegalArgumentException("maxBatchSize < 1");
+    this.executor = executor;
+    this.connector = connector;
+    this.lingerMillis = lingerMillis;
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  /**
+   * Queues a comment for the live server at the given URL. The returned future completes once
+   * the batch containing the comment has been sent. Errors are logged, not propagated;
+   * dispatching is best effort.
+   */
+  public ListenableFuture<Void> dispatch(String url, DispatchCommentRequest comment) {
+    Batch batch;
+    boolean first;
+    boolean full;
+    synchronized (this) {
+      batch = batches.get(url);
+      first = batch == null;
+      if (first) {
+        batch = new Batch(url);
+        batches.put(url, batch);
+      }
+      batch.comments.add(comment);
+      full = batch.comments.size() >= maxBatchSize;
+      // Close the batch. The next comment starts a new one.
+      if (full) batches.remove(url);
+    }
+    try {
+      if (full) {
+        executor.execute(batch::flush);
+      } else if (first) {
+        executor.schedule(batch::flush, lingerMillis, TimeUnit.MILLISECONDS);
+      }
+    } catch (RejectedExecutionException e) {
+      logger.error("Couldn't schedule flush.", e);
+      batch.abandon();
+    }
+    return batch.sent;
+  }
+
+  private static ScheduledExecutorService newExecutor(int threads) {
+    AtomicInteger count = new AtomicInteger();
+    return Executors.newScheduledThreadPool(threads, r -> {
+      Thread thread = Executors.defaultThreadFactory().newThread(r);
+      thread.setName("Live comments " + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  private class Batch {
+
+    private final String url;
+    private final List<DispatchCommentRequest> comments = new ArrayList<>();
+    private final SettableFuture<Void> sent = SettableFuture.create();
+
+    /** Set by the first flush. A full batch's linger timer may fire after it was sent. */
+    private final AtomicBoolean flushed = new AtomicBoolean();
+
+    private Batch(String url) {
+      this.url = url;
+    }
+
+    private void flush() {
+      if (!flushed.compareAndSet(false, true)) return;
+      List<DispatchCommentRequest> toSend = close();
+      try {
+        LiveService liveService = services.computeIfAbsent(url, connector);
+        liveService.dispatchComments(new DispatchCommentsRequest(toSend));
+        logger.debug("Dispatched {} comments to {}.", toSend.size(), url);
+      } catch (Throwable t) {
+        logger.error("Error dispatching " + toSend.size() + " comments to " + url + ".", t);
+      } finally {
+        sent.set(null);
+      }
+    }
+
+    /** Drops the batch. */
+    private void abandon() {
+      if (!flushed.compareAndSet(false, true)) return;
+      List<DispatchCommentRequest> dropped = close();
+      logger.warn("Dropped {} comments for {}.", dropped.size(), url);
+      sent.set(null);
+    }
+
+    /** Stops adding comments to this batch and returns them. */
+    private List<DispatchCommentRequest> close() {
+      synchronized (CommentCoalescer.this) {
+        if (batches.get(url) == this) batches.remove(url);
+        return new ArrayList<>(comments);
+      }
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package present.live.client;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The live servers and which groups each one serves.
+ *
+ * <p>Nodes join or leave in two phases so clients don't miss comments while they move:
+ *
+ * <ol>
+ *   <li>Deploy the new node list in {@code present.live.nodes} and the old list in
+ *   {@code present.live.previousNodes} to the live servers and then the API servers. During
+ *   this phase, live servers keep the clients they served under either ring, and the API servers
+ *   dispatch comments to both owners. New connections go to the new owner.</li>
+ *   <li>Remove {@code present.live.previousNodes}, again from the live servers first. Live
+ *   servers disconnect clients for groups they no longer own. Those clients reconnect to the
+ *   new owner via {@code GroupService.findLiveServer()}.</li>
+ * </ol>
+ */
+public final class LiveMembership {
+
+  private final LiveRing ring;
+  private final LiveRing previous;
+
+  private LiveMembership(LiveRing ring, LiveRing previous) {
+    if (ring == null) throw new NullPointerException("ring");
+    this.ring = ring;
+    this.previous = previous;
+  }
+
+  /** Steady state membership. */
+  public static LiveMembership of(LiveRing ring) {
+    return new LiveMembership(ring, null);
+  }
+
+  /** Membership while moving groups from {@code previous} to {@code ring}. */
+  public static LiveMembership rebalancing(LiveRing ring, LiveRing previous) {
+    return new LiveMembership(ring, previous);
+  }
+
+  /**
+   * Reads membership from the {@code present.live.nodes} and {@code present.live.previousNodes}
+   * system properties. Returns {@code defaultMembership} if the former isn't set.
+   */
+  public static LiveMembership fromSystemProperties(LiveMembership defaultMembership) {
+    String nodes = System.getProperty("present.live.nodes");
+    if (nodes == null || nodes.trim().isEmpty()) return defaultMembership;
+    String previousNodes = System.getProperty("present.live.previousNodes");
+    return new LiveMembership(LiveRing.parse(nodes),
+        previousNodes == null || previousNodes.trim().isEmpty()
+            ? null : LiveRing.parse(previousNodes));
+  }
+
+  /** The node clients should connect to for the given group. */
+  public LiveNode ownerOf(String groupId) {
+    return ring.nodeFor(groupId);
+  }
+
+  /**
+   * Nodes that may have clients for the given group. Includes the previous owner while
+   * rebalancing.
+   */
+  public Set<LiveNode> ownersOf(String groupId) {
+    Set<LiveNode> owners = new LinkedHashSet<>(2);
+    owners.add(ring.nodeFor(groupId));
+    if (previous != null) owners.add(previous.nodeFor(groupId));
+    return owners;
+  }
+
+  /** Returns true if the given node should serve clients for the given group. */
+  public boolean serves(LiveNode node, String groupId) {
+    return ring.nodeFor(groupId).equals(node)
+        || (previous != null && previous.nodeFor(groupId).equals(node));
+  }
+
+  /** True while groups are moving between rings. */
+  public boolean isRebalancing() {
+    return previous != null;
+  }
+
+  public LiveRing ring() {
+    return ring;
+  }
+
+  @Override public String toString() {
+    return previous == null ? ring.toString() : ring + " (previously " + previous + ")";
+  }
+}
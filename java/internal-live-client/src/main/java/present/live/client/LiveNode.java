@@ -0,0 +1,45 @@
+package present.live.client;
+
+import java.util.Objects;
+
+/** Host and port of a live server. */
+public final class LiveNode {
+
+  public final String host;
+  public final int port;
+
+  public LiveNode(String host, int port) {
+    if (host == null) throw new NullPointerException("host");
+    if (port < 1) throw new IllegalArgumentException("Bad port: " + port);
+    this.host = host;
+    this.port = port;
+  }
+
+  /** Parses "host:port". */
+  public static LiveNode parse(String hostAndPort) {
+    int colon = hostAndPort.lastIndexOf(':');
+    if (colon < 1) throw new IllegalArgumentException("Expected host:port, got " + hostAndPort);
+    return new LiveNode(hostAndPort.substring(0, colon).trim(),
+        Integer.parseInt(hostAndPort.substring(colon + 1).trim()));
+  }
+
+  /** URL of this node's internal LiveService. */
+  public String apiUrl() {
+    return "https://" + host + ":" + port + "/api";
+  }
+
+  @Override public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof LiveNode)) return false;
+    LiveNode other = (LiveNode) o;
+    return port == other.port && host.equals(other.host);
+  }
+
+  @Override public int hashCode() {
+    return Objects.hash(host, port);
+  }
+
+  @Override public String toString() {
+    return host + ":" + port;
+  }
+}
@@ -0,0 +1,95 @@
+package present.live.client;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Consistent hash ring that maps group IDs to live servers. Each node owns many points on the
+ * ring, so load spreads evenly, and adding or removing a node only moves the groups adjacent to
+ * its points, roughly 1/N of them. The API servers and the live servers must agree on the ring,
+ * so the mapping depends only on the set of nodes.
+ */
+public final class LiveRing {
+
+  /** Points per node. */
+  static final int VIRTUAL_NODES = 160;
+
+  private static final HashFunction hash = Hashing.murmur3_32();
+
+  private final ImmutableList<LiveNode> nodes;
+
+  /** Sorted hashes of the points on the ring. */
+  private final int[] points;
+
+  /** Owner of each point. */
+  private final LiveNode[] owners;
+
+  private LiveRing(Collection<LiveNode> nodes) {
+    Set<LiveNode> unique = new LinkedHashSet<>(nodes);
+    if (unique.isEmpty()) throw new IllegalArgumentException("No live servers.");
+    this.nodes = ImmutableList.copyOf(unique);
+
+    // Index nodes in a canonical order so hash collisions resolve the same way everywhere.
+    LiveNode[] byIndex = unique.toArray(new LiveNode[0]);
+    Arrays.sort(byIndex, Comparator.comparing(LiveNode::toString));
+    long[] entries = new long[byIndex.length * VIRTUAL_NODES];
+    int e = 0;
+    for (int n = 0; n < byIndex.length; n++) {
+      for (int v = 0; v < VIRTUAL_NODES; v++) {
+        int point = hash.hashString(byIndex[n] + "#" + v, UTF_8).asInt();
+        // Sort by point, then by node index.
+        entries[e++] = ((long) point << 32) | n;
+      }
+    }
+    Arrays.sort(entries);
+    this.points = new int[entries.length];
+    this.owners = new LiveNode[entries.length];
+    for (int i = 0; i < entries.length; i++) {
+      points[i] = (int) (entries[i] >> 32);
+      owners[i] = byIndex[(int) entries[i]];
+    }
+  }
+
+  /** Creates a ring containing the given nodes. Order doesn't matter. */
+  public static LiveRing of(Collection<LiveNode> nodes) {
+    return new LiveRing(nodes);
+  }
+
+  /** Parses a comma-separated list of "host:port" nodes. */
+  public static LiveRing parse(String nodes) {
+    List<LiveNode> parsed = new ArrayList<>();
+    for (String node : nodes.split(",")) {
+      if (!node.trim().isEmpty()) parsed.add(LiveNode.parse(node));
+    }
+    return of(parsed);
+  }
+
+  /** Returns the node that owns the given group. */
+  public LiveNode nodeFor(String groupId) {
+    int h = hash.hashString(groupId, UTF_8).asInt();
+    int i = Arrays.binarySearch(points, h);
+    if (i < 0) i = -i - 1;
+    // Wrap around.
+    if (i == points.length) i = 0;
+    return owners[i];
+  }
+
+  /** Nodes in this ring. */
+  public List<LiveNode> nodes() {
+    return nodes;
+  }
+
+  @Override public String toString() {
+    return "LiveRing" + nodes;
+  }
+}
@@ -0,0 +1,139 @@
+package present.live.client;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import okio.ByteString;
+import org.junit.After;
+import org.junit.Test;
+import present.proto.DispatchCommentRequest;
+import present.proto.DispatchCommentsRequest;
+import present.proto.Empty;
+import present.proto.LiveService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class CommentCoalescerTest {
+
+  private static final String A = "https://a.present.co:8888/api";
+  private static final String B = "https://b.present.co:8888/api";
+
+  private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+
+  /** Batches sent, as "url: comment IDs". */
+  private final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+
+  /** Threads that sent batches. */
+  private final List<Thread> senders = Collections.synchronizedList(new ArrayList<>());
+
+  @After public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test public void batchesWithinLingerWindow() throws Exception {
+    CommentCoalescer coalescer = newCoalescer(200, 100);
+    ListenableFuture<Void> a = coalescer.dispatch(A, comment("1"));
+    ListenableFuture<Void> b = coalescer.dispatch(A, comment("2"));
+    ListenableFuture<Void> c = coalescer.dispatch(A, comment("3"));
+    a.get(5, TimeUnit.SECONDS);
+    assertTrue(b.isDone());
+    assertTrue(c.isDone());
+    assertEquals(Arrays.asList(A + ": 1, 2, 3"), calls);
+  }
+
+  @Test public void startsNewWindowAfterFlush() throws Exception {
+    CommentCoalescer coalescer = newCoalescer(10, 100);
+    coalescer.dispatch(A, comment("1")).get(5, TimeUnit.SECONDS);
+    coalescer.dispatch(A, comment("2")).get(5, TimeUnit.SECONDS);
+    assertEquals(Arrays.asList(A + ": 1", A + ": 2"), calls);
+  }
+
+  @Test public void flushesFullBatchesImmediately() throws Exception {
+    // The linger is longer than the test timeout, so only full batches can go out in time.
+    CommentCoalescer coalescer = newCoalescer(60_000, 2);
+    List<ListenableFuture<Void>> futures = new ArrayList<>();
+    for (int i = 1; i <= 4; i++) futures.add(coalescer.dispatch(A, comment("" + i)));
+    for (ListenableFuture<Void> future : futures) future.get(5, TimeUnit.SECONDS);
+    List<String> sorted = new ArrayList<>(calls);
+    Collections.sort(sorted);
+    assertEquals(Arrays.asList(A + ": 1, 2", A + ": 3, 4"), sorted);
+  }
+
+  @Test public void batchesPerServer() throws Exception {
+    CommentCoalescer coalescer = newCoalescer(50, 100);
+    ListenableFuture<Void> a = coalescer.dispatch(A, comment("1"));
+    ListenableFuture<Void> b = coalescer.dispatch(B, comment("2"));
+    a.get(5, TimeUnit.SECONDS);
+    b.get(5, TimeUnit.SECONDS);
+    List<String> sorted = new ArrayList<>(calls);
+    Collections.sort(sorted);
+    assertEquals(Arrays.asList(A + ": 1", B + ": 2"), sorted);
+  }
+
+  @Test public void isolatesCallersFromFailures() throws Exception {
+    CountDownLatch failed = new CountDownLatch(1);
+    CommentCoalescer coalescer = new CommentCoalescer(executor, url -> new RecordingService(url) {
+      @Override public Empty dispatchComments(DispatchCommentsRequest request) throws IOException {
+        if (url.equals(A)) {
+          failed.countDown();
+          throw new IOException("Connection refused");
+        }
+        return super.dispatchComments(request);
+      }
+    }, 10, 100);
+    ListenableFuture<Void> a = coalescer.dispatch(A, comment("1"));
+    ListenableFuture<Void> b = coalescer.dispatch(B, comment("2"));
+    // The failure is logged. Neither caller sees it, and neither caller's thread sent anything.
+    a.get(5, TimeUnit.SECONDS);
+    b.get(5, TimeUnit.SECONDS);
+    assertEquals(0, failed.getCount());
+    assertEquals(Arrays.asList(B + ": 2"), calls);
+    for (Thread sender : senders) assertNotSame(Thread.currentThread(), sender);
+  }
+
+  @Test public void dropsBatchesAfterShutdown() throws Exception {
+    CommentCoalescer coalescer = newCoalescer(10, 100);
+    executor.shutdown();
+    coalescer.dispatch(A, comment("1")).get(5, TimeUnit.SECONDS);
+    assertEquals(Collections.emptyList(), calls);
+  }
+
+  private CommentCoalescer newCoalescer(long lingerMillis, int maxBatchSize) {
+    return new CommentCoalescer(executor, RecordingService::new, lingerMillis, maxBatchSize);
+  }
+
+  private static DispatchCommentRequest comment(String clientUuid) {
+    return new DispatchCommentRequest(clientUuid, "group", ByteString.EMPTY, null, null, null);
+  }
+
+  private class RecordingService implements LiveService {
+
+    private final String url;
+
+    RecordingService(String url) {
+      this.url = url;
+    }
+
+    @Override public Empty dispatchComment(DispatchCommentRequest request) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public Empty dispatchComments(DispatchCommentsRequest request) throws IOException {
+      senders.add(Thread.currentThread());
+      calls.add(url + ": " + request.comments.stream()
+          .map(c -> c.clientUuid)
+          .collect(Collectors.joining(", ")));
+      return new Empty();
+    }
+  }
+}
@@ -0,0 +1,69 @@
+package present.live.client;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LiveRingTest {
+
+  private static final LiveNode A = LiveNode.parse("a.present.co:8888");
+  private static final LiveNode B = LiveNode.parse("b.present.co:8888");
+  private static final LiveNode C = LiveNode.parse("c.present.co:8888");
+  private static final LiveNode D = LiveNode.parse("d.present.co:8888");
+
+  private final List<String> groupIds = newGroupIds(10_000);
+
+  @Test public void orderDoesNotMatter() {
+    LiveRing abc = LiveRing.of(ImmutableList.of(A, B, C));
+    LiveRing cba = LiveRing.parse("c.present.co:8888, b.present.co:8888,a.present.co:8888");
+    for (String groupId : groupIds) assertEquals(abc.nodeFor(groupId), cba.nodeFor(groupId));
+  }
+
+  @Test public void spreadsGroups() {
+    LiveRing ring = LiveRing.of(ImmutableList.of(A, B, C, D));
+    Map<LiveNode, Integer> counts = new HashMap<>();
+    for (String groupId : groupIds) counts.merge(ring.nodeFor(groupId), 1, Integer::sum);
+    for (LiveNode node : ring.nodes()) {
+      int count = counts.get(node);
+      // Expect 2,500 each.
+      assertTrue(node + " has " + count, count > 1_750 && count < 3_250);
+    }
+  }
+
+  @Test public void joinMovesGroupsToNewNodeOnly() {
+    LiveRing before = LiveRing.of(ImmutableList.of(A, B, C));
+    LiveRing after = LiveRing.of(ImmutableList.of(A, B, C, D));
+    int moved = 0;
+    for (String groupId : groupIds) {
+      LiveNode owner = after.nodeFor(groupId);
+      if (!owner.equals(before.nodeFor(groupId))) {
+        assertEquals(D, owner);
+        moved++;
+      }
+    }
+    // Expect 1/4 of groups to move.
+    assertTrue("Moved " + moved, moved > 1_750 && moved < 3_250);
+  }
+
+  @Test public void rebalancingServesBothOwners() {
+    LiveMembership membership = LiveMembership.rebalancing(
+        LiveRing.of(ImmutableList.of(A, B)), LiveRing.of(ImmutableList.of(A)));
+    for (String groupId : groupIds) {
+      assertTrue(membership.serves(A, groupId));
+      assertEquals(membership.ownerOf(groupId), membership.ownersOf(groupId).iterator().next());
+    }
+  }
+
+  private static List<String> newGroupIds(int count) {
+    List<String> ids = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) ids.add(UUID.randomUUID().toString());
+    return ids;
+  }
+}
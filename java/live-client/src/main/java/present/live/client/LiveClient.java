@@ -48,7 +48,7 @@ public class LiveClient {
     OkHttpClient client = new OkHttpClient();
     Request request = new Request.Builder().url(liveUrl).build();
     this.webSocket = client.newWebSocket(request, new CommentListener());
-    lcr = new LiveCommentsRequest(header, groupId, userId, 1);
+    lcr = new LiveCommentsRequest(header, groupId, userId, 1, null);
   }
 
   /**
@@ -118,6 +118,8 @@ public class LiveClient {
 
     @Override public void onClosing(WebSocket webSocket, int code, String reason) {
       logger.debug("onClosing()");
+      // Complete the close handshake so we get onClosed().
+      webSocket.close(code, null);
     }
 
     @Override public void onClosed(WebSocket webSocket, int code, String reason) {
@@ -1,10 +1,13 @@
 package present.live.server;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.hash.BloomFilter;
 import com.google.common.hash.Funnel;
 import com.google.common.hash.PrimitiveSink;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.concurrent.ExecutionException;
 import okio.ByteString;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,6 +19,29 @@ import org.slf4j.LoggerFactory;
 public class BloomFilters {
   private static final Logger logger = LoggerFactory.getLogger(BloomFilters.class);
 
+  /**
+   * Decoded filters keyed by their serialized bytes. ByteString hashes and compares by content,
+   * so an author's filter decodes once no matter how many comments they send.
+   */
+  private static final Cache<ByteString, SerializedBloomFilter> decoded = CacheBuilder.newBuilder()
+      .maximumSize(10_000)
+      .build();
+
+  /**
+   * Returns a reader for the serialized blocked users filter, reusing a previously decoded
+   * filter with the same contents if possible.
+   *
+   * @return the filter or null if the original byte string is null
+   */
+  static SerializedBloomFilter decode(ByteString bs) {
+    if (bs == null) { return null; }
+    try {
+      return decoded.get(bs, () -> new SerializedBloomFilter(bs.asByteBuffer()));
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
   /**
    * Deserialize the BloomFilter using its readFrom() method.
    * @return the filter or null if the original byte stream is null
@@ -1,73 +1,195 @@
 package present.live.server;
 
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import present.live.client.LiveMembership;
+import present.live.client.LiveNode;
 import present.proto.DispatchCommentRequest;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.google.common.hash.BloomFilter;
-import java.util.Set;
 import javax.inject.Singleton;
-import org.eclipse.jetty.util.ConcurrentHashSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Dispatches comments in real time.
+ * Dispatches comments in real time. Groups are partitioned across shards by ID. Each shard
+ * fans comments out on its own thread, so callers return as soon as a comment is queued.
  *
  * @author Bob Lee
  */
 @Singleton public class CommentDispatcher {
   private static final Logger logger = LoggerFactory.getLogger(CommentDispatcher.class);
 
-  final LoadingCache<String, Set<RemoteClient>> groups =
-      CacheBuilder.newBuilder().build(new CacheLoader<String, Set<RemoteClient>>() {
-        @Override public Set<RemoteClient> load(String groupId) throws Exception {
-          return new ConcurrentHashSet<>();
-        }
+  /** Maximum number of comments queued per shard before we start dropping them. */
+  static final int DEFAULT_QUEUE_CAPACITY = 10_000;
+
+  /** How often we log stats. */
+  private static final long STATS_INTERVAL_MINUTES = 1;
+
+  /** How long to wait for a shard to report its clients' lag. */
+  private static final long STATS_TIMEOUT_MILLIS = 1_000;
+
+  private final DispatchShard[] shards;
+
+  /** Logs this server's stats periodically. */
+  private final ScheduledExecutorService statsLogger =
+      Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "dispatch-stats");
+        thread.setDaemon(true);
+        return thread;
       });
 
-  /** Sends a message to clients if the message is within their groups. */
-  public void dispatch(DispatchCommentRequest request) {
-    Set<RemoteClient> clients = groups.getUnchecked(request.groupId);
-    if (clients.isEmpty()) {
-      logger.debug("comment dispatcher found no clients for group: " + request.groupId);
-      return;
+  /** Groups this server serves, or null to serve all groups. */
+  private volatile LiveMembership membership;
+  private volatile LiveNode self;
+
+  public CommentDispatcher() {
+    this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+  }
+
+  CommentDispatcher(int shardCount, int queueCapacity) {
+    if (shardCount < 1) throw new IllegalArgumentException("shardCount < 1");
+    this.shards = new DispatchShard[shardCount];
+    for (int i = 0; i < shardCount; i++) shards[i] = new DispatchShard(i, queueCapacity);
+    logger.debug("comment dispatcher started with " + shardCount + " shards");
+    statsLogger.scheduleAtFixedRate(this::logStats, STATS_INTERVAL_MINUTES,
+        STATS_INTERVAL_MINUTES, TimeUnit.MINUTES);
+  }
+
+  /**
+   * Queues a message for clients in its group. Returns false if the comment was dropped because
+   * the group's shard is backed up.
+   */
+  public boolean dispatch(DispatchCommentRequest request) {
+    return shardFor(request.groupId).dispatch(Collections.singletonList(request));
+  }
+
+  /**
+   * Queues a batch of messages. Comments for the same group are applied together, in order, in
+   * a single pass over the group's clients. Returns false if any comments were dropped.
+   */
+  public boolean dispatch(List<DispatchCommentRequest> requests) {
+    Map<String, List<DispatchCommentRequest>> byGroup = new LinkedHashMap<>();
+    for (DispatchCommentRequest request : requests) {
+      byGroup.computeIfAbsent(request.groupId, id -> new ArrayList<>()).add(request);
     }
-    logger.debug("comment dispatcher sending to " + clients.size() + " clients");
-    BloomFilter<String> blockedUsersFilter =
-        BloomFilters.fromByteString(request.blockedUsersFilter);
-    ByteBuffer commentBytes = request.comment.asByteBuffer();
-    for (RemoteClient client : clients) {
-      // Don't send the comment back to the originating client
-      if (client.clientUuid().equals(request.clientUuid)) {
-        continue;
-      }
-      // Don't send the comment to users who have blocked this user.
-      if (blockedUsersFilter != null && blockedUsersFilter.mightContain(client.clientUserId())) {
-        continue;
-      }
-      // Synchronizing on client ensures we send the connection response before comments.
-      synchronized (client) {
-        logger.info("Sending comment");
-        client.send(commentBytes);
-      }
+    boolean queued = true;
+    for (Map.Entry<String, List<DispatchCommentRequest>> entry : byGroup.entrySet()) {
+      queued &= shardFor(entry.getKey()).dispatch(entry.getValue());
     }
+    return queued;
   }
 
-  /** Registers a new client. */
+  /**
+   * Registers a new client. The client's {@link RemoteClient#registered(boolean)} callback runs before
+   * it receives any comments.
+   */
   public void register(RemoteClient client) {
     logger.debug("comment dispatcher registering: " + client.groupId());
-    Set<RemoteClient> clients = groups.getUnchecked(client.groupId());
-    clients.add(client);
+    if (!serves(client.groupId())) {
+      // The client should ask the API server where to connect again.
+      client.outbound().close("Group is served by " + membership.ownerOf(client.groupId()));
+      return;
+    }
+    shardFor(client.groupId()).register(client);
+  }
+
+  /**
+   * Updates the set of live servers. Disconnects clients in groups that this server, {@code
+   * self}, no longer serves. They'll reconnect to the new owner.
+   */
+  public void updateMembership(LiveMembership membership, LiveNode self) {
+    logger.info("Live server {} membership: {}", self, membership);
+    this.self = self;
+    this.membership = membership;
+    for (DispatchShard shard : shards) {
+      shard.evict(groupId -> !serves(groupId), "Group moved");
+    }
+  }
+
+  /** Returns true if this server serves clients in the given group. */
+  boolean serves(String groupId) {
+    LiveMembership membership = this.membership;
+    return membership == null || membership.serves(self, groupId);
   }
 
   /** Deregisters a client. */
   public void unregister(RemoteClient client) {
     logger.debug("comment dispatcher unregistering: " + client.groupId());
-    Set<RemoteClient> clients = groups.getUnchecked(client.groupId());
-    clients.remove(client);
+    shardFor(client.groupId()).unregister(client);
+  }
+
+  /** Number of comments waiting to be dispatched across all shards. */
+  public int pendingComments() {
+    int pending = 0;
+    for (DispatchShard shard : shards) pending += shard.pendingComments();
+    return pending;
+  }
+
+  /** Number of comments dropped across all shards because they were backed up. */
+  public long droppedComments() {
+    long dropped = 0;
+    for (DispatchShard shard : shards) dropped += shard.droppedComments();
+    return dropped;
+  }
+
+  /**
+   * Returns outbound lag across the clients connected to this server. Omits shards that are too
+   * backed up to respond quickly.
+   */
+  public OutboundQueue.Stats outboundStats() {
+    List<CompletableFuture<OutboundQueue.Stats>> futures = new ArrayList<>();
+    for (DispatchShard shard : shards) futures.add(shard.outboundStats());
+    OutboundQueue.Stats stats = new OutboundQueue.Stats();
+    for (CompletableFuture<OutboundQueue.Stats> future : futures) {
+      try {
+        stats.add(future.get(STATS_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      } catch (ExecutionException | TimeoutException e) {
+        logger.warn("Shard didn't report stats: {}", e.toString());
+      }
+    }
+    return stats;
   }
-}
 
+  /** Logs stats for this server. Each live server logs its own. */
+  private void logStats() {
+    try {
+      logger.info("Dispatch: pendingComments={}, droppedComments={}, {}", pendingComments(),
+          droppedComments(), outboundStats());
+    } catch (RuntimeException e) {
+      // Otherwise the executor would stop scheduling us.
+      logger.error("Error logging stats.", e);
+    }
+  }
 
+  /**
+   * Stops the shards' threads. Waits up to the given number of milliseconds for each thread to
+   * exit. Pending comments are dropped. Returns true if all threads exited.
+   */
+  public boolean shutdown(long timeoutMillis) throws InterruptedException {
+    statsLogger.shutdownNow();
+    for (DispatchShard shard : shards) shard.shutdown();
+    boolean stopped = true;
+    for (DispatchShard shard : shards) stopped &= shard.awaitTermination(timeoutMillis);
+    if (!stopped) logger.warn("Some dispatch shards didn't stop.");
+    return stopped;
+  }
+
+  /** Returns the shard that owns the given group. */
+  DispatchShard shardFor(String groupId) {
+    // Spread the hash so similar IDs don't cluster on a shard.
+    int h = groupId.hashCode();
+    h ^= (h >>> 16);
+    return shards[Math.floorMod(h, shards.length)];
+  }
+}
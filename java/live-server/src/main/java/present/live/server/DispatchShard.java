@@ -0,0 +1,234 @@
+package present.live.server;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import present.proto.DispatchCommentRequest;
+
+/**
+ * Owns a subset of groups and fans their comments out on a single worker thread. Any number of
+ * threads may enqueue work, but only the worker touches the shard's groups and writes to its
+ * clients, so writes to a given client are ordered without locking it.
+ *
+ * @see CommentDispatcher
+ */
+class DispatchShard {
+
+  private static final Logger logger = LoggerFactory.getLogger(DispatchShard.class);
+
+  /** Recent comments kept per group for clients that reconnect. */
+  static final int REPLAY_CAPACITY = 50;
+
+  /** Groups with replay buffers per shard. Least recently used groups go first. */
+  static final int MAX_REPLAY_GROUPS = 2_000;
+
+  /** Pending work. Multiple producers, single consumer (the worker thread). */
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+  /** Number of comments in {@link #tasks}. Registrations don't count against the capacity. */
+  private final AtomicInteger pendingComments = new AtomicInteger();
+
+  private final AtomicLong droppedComments = new AtomicLong();
+
+  private final int capacity;
+
+  /** Clients by group ID. Only accessed by the worker thread. */
+  private final Map<String, Set<RemoteClient>> groups = new HashMap<>();
+
+  /** Replay buffers by group ID, in access order. Only accessed by the worker thread. */
+  private final Map<String, ReplayBuffer> replayBuffers =
+      new LinkedHashMap<String, ReplayBuffer>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, ReplayBuffer> eldest) {
+          return size() > MAX_REPLAY_GROUPS;
+        }
+      };
+
+  private final Thread worker;
+
+  /** Cleared by {@link #shutdown()}. */
+  private volatile boolean running = true;
+
+  DispatchShard(int index, int capacity) {
+    this.capacity = capacity;
+    this.worker = new Thread(this::work, "dispatch-shard-" + index);
+    this.worker.setDaemon(true);
+    this.worker.start();
+  }
+
+  /**
+   * Queues comments for one of this shard's groups. Returns false if the shard is backed up and
+   * the comments were dropped. Clients can recover dropped comments from the API server.
+   */
+  boolean dispatch(List<DispatchCommentRequest> comments) {
+    int count = comments.size();
+    if (pendingComments.addAndGet(count) > capacity) {
+      pendingComments.addAndGet(-count);
+      long dropped = droppedComments.addAndGet(count);
+      logger.warn("Dispatch shard {} is full. Dropped {} comments so far.", worker.getName(),
+          dropped);
+      return false;
+    }
+    enqueue(() -> {
+      pendingComments.addAndGet(-count);
+      fanOut(comments);
+    });
+    return true;
+  }
+
+  /**
+   * Queues a client registration. If the client says which comment it saw last and we still have
+   * everything after it, replays the missed comments before any new ones.
+   */
+  void register(RemoteClient client) {
+    enqueue(() -> {
+      groups.computeIfAbsent(client.groupId(), id -> new LinkedHashSet<>()).add(client);
+      Long lastSeen = client.lastSeenIndex();
+      ReplayBuffer buffer = lastSeen == null ? null : replayBuffers.get(client.groupId());
+      boolean replayed = buffer != null && buffer.covers(lastSeen);
+      client.registered(replayed);
+      if (replayed) {
+        buffer.forEachAfter(lastSeen, request -> {
+          if (shouldSend(client, request, BloomFilters.decode(request.blockedUsersFilter))) {
+            client.send(request.comment.asByteBuffer());
+          }
+        });
+      }
+    });
+  }
+
+  /** Queues a client deregistration. */
+  void unregister(RemoteClient client) {
+    enqueue(() -> {
+      Set<RemoteClient> clients = groups.get(client.groupId());
+      if (clients == null) return;
+      clients.remove(client);
+      if (clients.isEmpty()) groups.remove(client.groupId());
+    });
+  }
+
+  /** Queues disconnection of all clients in groups matching the given predicate. */
+  void evict(Predicate<String> groupIds, String reason) {
+    enqueue(() -> {
+      Iterator<Map.Entry<String, Set<RemoteClient>>> i = groups.entrySet().iterator();
+      while (i.hasNext()) {
+        Map.Entry<String, Set<RemoteClient>> entry = i.next();
+        if (!groupIds.test(entry.getKey())) continue;
+        i.remove();
+        for (RemoteClient client : entry.getValue()) client.outbound().close(reason);
+      }
+    });
+  }
+
+  /** Collects outbound lag for this shard's clients on the worker thread. */
+  CompletableFuture<OutboundQueue.Stats> outboundStats() {
+    CompletableFuture<OutboundQueue.Stats> future = new CompletableFuture<>();
+    enqueue(() -> {
+      OutboundQueue.Stats stats = new OutboundQueue.Stats();
+      for (Set<RemoteClient> clients : groups.values()) {
+        for (RemoteClient client : clients) stats.add(client.outbound());
+      }
+      future.complete(stats);
+    });
+    return future;
+  }
+
+  /** Number of comments waiting to be dispatched. */
+  int pendingComments() {
+    return pendingComments.get();
+  }
+
+  /** Number of comments dropped because the shard was full. */
+  long droppedComments() {
+    return droppedComments.get();
+  }
+
+  /** Stops the worker thread after its current task. Discards pending work. */
+  void shutdown() {
+    running = false;
+    LockSupport.unpark(worker);
+  }
+
+  /** Waits up to the given number of milliseconds for the worker to exit. */
+  boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+    worker.join(timeoutMillis);
+    return !worker.isAlive();
+  }
+
+  private void enqueue(Runnable task) {
+    tasks.add(task);
+    LockSupport.unpark(worker);
+  }
+
+  private void work() {
+    while (running) {
+      Runnable task = tasks.poll();
+      if (task == null) {
+        LockSupport.park(this);
+        continue;
+      }
+      try {
+        task.run();
+      } catch (Throwable t) {
+        // Keep the shard alive. Otherwise its groups would silently stop receiving comments.
+        logger.error("Error in dispatch shard.", t);
+      }
+    }
+    tasks.clear();
+    logger.debug("{} stopped.", worker.getName());
+  }
+
+  /**
+   * Sends comments to the clients in their group, making one pass over the clients for the
+   * whole batch. Runs on the worker thread.
+   */
+  private void fanOut(List<DispatchCommentRequest> comments) {
+    String groupId = comments.get(0).groupId;
+    ReplayBuffer buffer = replayBuffers.computeIfAbsent(groupId,
+        id -> new ReplayBuffer(REPLAY_CAPACITY));
+    for (DispatchCommentRequest comment : comments) buffer.add(comment);
+    Set<RemoteClient> clients = groups.get(groupId);
+    if (clients == null) {
+      logger.debug("comment dispatcher found no clients for group: " + groupId);
+      return;
+    }
+    logger.debug("comment dispatcher sending " + comments.size() + " comments to "
+        + clients.size() + " clients");
+    int size = comments.size();
+    SerializedBloomFilter[] blockedUsersFilters = new SerializedBloomFilter[size];
+    ByteBuffer[] commentBytes = new ByteBuffer[size];
+    for (int i = 0; i < size; i++) {
+      DispatchCommentRequest request = comments.get(i);
+      blockedUsersFilters[i] = BloomFilters.decode(request.blockedUsersFilter);
+      commentBytes[i] = request.comment.asByteBuffer();
+    }
+    for (RemoteClient client : clients) {
+      for (int i = 0; i < size; i++) {
+        if (shouldSend(client, comments.get(i), blockedUsersFilters[i])) {
+          client.send(commentBytes[i]);
+        }
+      }
+    }
+  }
+
+  private static boolean shouldSend(RemoteClient client, DispatchCommentRequest request,
+      SerializedBloomFilter blockedUsersFilter) {
+    // Don't send the comment back to the originating client
+    if (client.clientUuid().equals(request.clientUuid)) return false;
+    // Don't send the comment to users who have blocked this user.
+    return blockedUsersFilter == null || !blockedUsersFilter.mightContain(client.clientUserId());
+  }
+}
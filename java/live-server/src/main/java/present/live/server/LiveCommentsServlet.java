@@ -7,6 +7,8 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import javax.inject.Inject;
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
 import org.eclipse.jetty.websocket.api.WebSocketListener;
 import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
 import org.eclipse.jetty.websocket.servlet.ServletUpgradeResponse;
@@ -32,9 +34,12 @@ public class LiveCommentsServlet extends WebSocketServlet implements WebSocketCr
   private static final Logger logger = LoggerFactory.getLogger(LiveCommentsServlet.class);
 
   private final CommentDispatcher messageDispatcher;
+  private final OutboundQueue.Limits outboundLimits;
 
-  @Inject public LiveCommentsServlet(CommentDispatcher messageDispatcher) {
+  @Inject public LiveCommentsServlet(CommentDispatcher messageDispatcher,
+      OutboundQueue.Limits outboundLimits) {
     this.messageDispatcher = messageDispatcher;
+    this.outboundLimits = outboundLimits;
   }
 
   @Override public void configure(WebSocketServletFactory factory) {
@@ -48,7 +53,7 @@ public class LiveCommentsServlet extends WebSocketServlet implements WebSocketCr
   }
 
   private static final ByteBuffer SUCCESSFUL_RESPONSE = ByteBuffer.wrap(new LiveCommentsResponse(
-      LiveCommentsResponse.Status.READY).encode());
+      LiveCommentsResponse.Status.READY, null).encode());
 
   class Listener implements WebSocketListener {
 
@@ -70,23 +75,40 @@ public class LiveCommentsServlet extends WebSocketServlet implements WebSocketCr
         LiveCommentsRequest request = LiveCommentsRequest.ADAPTER.decode(
             new ByteArrayInputStream(payload, offset, len));
 
-        this.client = new RemoteClient(request) {
-          @Override public void send(ByteBuffer bytes) {
-            // Duplicate the byte buffer——Jetty mutates it.
-            session.getRemote().sendBytesByFuture(bytes.duplicate());
+        this.client = new RemoteClient(request, outboundLimits) {
+          @Override protected void write(ByteBuffer bytes) {
+            // OutboundQueue gives us our own duplicate of the byte buffer——Jetty mutates it.
+            RemoteClient client = this;
+            session.getRemote().sendBytes(bytes, new WriteCallback() {
+              @Override public void writeSuccess() {
+                client.writeComplete();
+              }
+
+              @Override public void writeFailed(Throwable t) {
+                client.writeFailed(t);
+              }
+            });
           }
-        };
 
-        // Synchronization ensures we send response before comments start coming in.
-        synchronized (this.client) {
-          messageDispatcher.register(client);
+          @Override protected void disconnect(String reason) {
+            // "Going away." The client should reconnect.
+            session.close(StatusCode.SHUTDOWN, reason);
+          }
 
-          // We send a response in version 1 and above.
-          if (request.version > 0) {
-            logger.info("Sending response");
-            this.client.send(SUCCESSFUL_RESPONSE);
+          @Override protected void registered(boolean replayed) {
+            // We send a response in version 1 and above. The dispatcher calls us before it
+            // sends any comments.
+            if (request.version > 0) {
+              logger.info("Sending response");
+              // Clients that resume need to know whether to fetch past comments themselves.
+              send(request.lastSeenIndex == null ? SUCCESSFUL_RESPONSE
+                  : ByteBuffer.wrap(new LiveCommentsResponse(
+                      LiveCommentsResponse.Status.READY, replayed).encode()));
+            }
           }
-        }
+        };
+
+        messageDispatcher.register(client);
       } catch (IOException e) {
         logger.error("web socket exception: " + e);
         throw new AssertionError();
@@ -11,6 +11,7 @@ public class LiveModule extends ServletModule {
     install(new SslModule());
     requireBinding(ServerBuilder.class);
     bind(LiveService.class).to(LiveServiceImpl.class);
+    bind(OutboundQueue.Limits.class).toInstance(OutboundQueue.Limits.fromSystemProperties());
 
     // TODO: Serve these off two different ports?
     serve(LiveServer.WEB_SOCKET_PATH).with(LiveCommentsServlet.class);
@@ -1,12 +1,17 @@
 package present.live.server;
 
 import com.google.inject.Guice;
+import com.google.inject.Injector;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.component.LifeCycle;
 import org.slf4j.LoggerFactory;
 import present.jetty.ServerBuilder;
+import present.live.client.LiveMembership;
+import present.live.client.LiveNode;
 
 /**
  * Real time chat server.
@@ -28,14 +33,48 @@ public class LiveServer {
 
   public static final String WEB_SOCKET_PATH = "/comments";
 
+  /** How long to wait for each dispatch thread to stop. */
+  private static final long SHUTDOWN_TIMEOUT_MILLIS = 5_000;
+
   private LiveServer() {}
 
-  /** Creates a new server. */
+  /**
+   * Creates a new server. Reads the set of live servers from the {@code present.live.nodes}
+   * system property and this server's own "host:port" from {@code present.live.self}. Serves
+   * all groups if they aren't set.
+   *
+   * @see LiveMembership
+   */
   public static Server newInstance(int port) {
-    return Guice.createInjector(new LiveModule())
-        .getInstance(ServerBuilder.class)
+    LiveMembership membership = LiveMembership.fromSystemProperties(null);
+    if (membership == null) return newInstance(port, null, null);
+    String self = System.getProperty("present.live.self");
+    if (self == null) throw new IllegalStateException("present.live.self is required.");
+    return newInstance(port, membership, LiveNode.parse(self));
+  }
+
+  /**
+   * Creates a new server that serves the groups {@code membership} assigns to {@code self}.
+   * Serves all groups if {@code membership} is null.
+   */
+  public static Server newInstance(int port, LiveMembership membership, LiveNode self) {
+    Injector injector = Guice.createInjector(new LiveModule());
+    CommentDispatcher dispatcher = injector.getInstance(CommentDispatcher.class);
+    if (membership != null) dispatcher.updateMembership(membership, self);
+    Server server = injector.getInstance(ServerBuilder.class)
         .httpsPort(port)
         .build();
+    // Stop the dispatch threads with the server so they don't leak across redeploys.
+    server.addLifeCycleListener(new AbstractLifeCycle.AbstractLifeCycleListener() {
+      @Override public void lifeCycleStopped(LifeCycle event) {
+        try {
+          dispatcher.shutdown(SHUTDOWN_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    return server;
   }
 
   /** Creates a new server. */
@@ -1,6 +1,7 @@
 package present.live.server;
 
 import present.proto.DispatchCommentRequest;
+import present.proto.DispatchCommentsRequest;
 import present.proto.Empty;
 import present.proto.LiveService;
 import java.io.IOException;
@@ -18,8 +19,16 @@ public class LiveServiceImpl implements LiveService {
   public Empty dispatchComment(DispatchCommentRequest dispatchCommentRequest)
       throws IOException {
     // TODO: Verify that this call came from an internal server.
+    // Returns as soon as the comment is queued. Fan-out happens on the dispatcher's threads.
     commentDispatcher.dispatch(dispatchCommentRequest);
 
     return new Empty();
   }
+
+  @Override
+  public Empty dispatchComments(DispatchCommentsRequest dispatchCommentsRequest)
+      throws IOException {
+    commentDispatcher.dispatch(dispatchCommentsRequest.comments);
+    return new Empty();
+  }
 }
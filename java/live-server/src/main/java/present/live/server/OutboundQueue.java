@@ -0,0 +1,314 @@
+package present.live.server;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded queue of messages waiting to be written to a {@link RemoteClient}. Keeps at most one
+ * write outstanding. When a client falls behind its {@link Limits budget}, we either drop its
+ * oldest messages or disconnect it, so one slow network can't build an unbounded backlog in
+ * our heap.
+ */
+public class OutboundQueue {
+
+  private static final Logger logger = LoggerFactory.getLogger(OutboundQueue.class);
+
+  /** What to do when a client exceeds its budget. */
+  public enum Policy {
+
+    /** Drop the oldest queued messages to make room. */
+    DROP_OLDEST,
+
+    /** Disconnect the client. It will reconnect and catch up. */
+    DISCONNECT
+  }
+
+  /** Per-client outbound budget. */
+  public static class Limits {
+
+    /** 1MB or 1,000 messages, whichever comes first. Drops the oldest messages. */
+    public static final Limits DEFAULT = new Limits(1024 * 1024, 1000, Policy.DROP_OLDEST);
+
+    final long maxBytes;
+    final int maxMessages;
+    final Policy policy;
+
+    public Limits(long maxBytes, int maxMessages, Policy policy) {
+      if (maxBytes < 1) throw new IllegalArgumentException("maxBytes < 1");
+      if (maxMessages < 1) throw new IllegalArgumentException("maxMessages < 1");
+      if (policy == null) throw new NullPointerException("policy");
+      this.maxBytes = maxBytes;
+      this.maxMessages = maxMessages;
+      this.policy = policy;
+    }
+
+    /**
+     * Reads limits from the {@code present.live.outbound.maxBytes},
+     * {@code present.live.outbound.maxMessages} and {@code present.live.outbound.policy} system
+     * properties, falling back to {@link #DEFAULT}.
+     */
+    public static Limits fromSystemProperties() {
+      return new Limits(
+          Long.getLong("present.live.outbound.maxBytes", DEFAULT.maxBytes),
+          Integer.getInteger("present.live.outbound.maxMessages", DEFAULT.maxMessages),
+          Policy.valueOf(System.getProperty("present.live.outbound.policy",
+              DEFAULT.policy.name())));
+    }
+
+    @Override public String toString() {
+      return "Limits(maxBytes=" + maxBytes + ", maxMessages=" + maxMessages
+          + ", policy=" + policy + ")";
+    }
+  }
+
+  // Totals across all connections since this server started.
+  private static final LongAdder totalSent = new LongAdder();
+  private static final LongAdder totalDropped = new LongAdder();
+  private static final LongAdder slowDisconnects = new LongAdder();
+
+  private final RemoteClient client;
+  private final Limits limits;
+
+  private final Queue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+
+  /** Serializes drain(). Counts requests to drain while another thread is draining. */
+  private final AtomicInteger wip = new AtomicInteger();
+
+  /** True while a write is outstanding. Set in drain(), cleared on completion. */
+  private volatile boolean writing;
+
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  // Lag counters. Queued counts include the outstanding write.
+  private final AtomicInteger queuedMessages = new AtomicInteger();
+  private final AtomicLong queuedBytes = new AtomicLong();
+  private final AtomicLong maxQueuedBytes = new AtomicLong();
+  private final AtomicLong sentMessages = new AtomicLong();
+  private final AtomicLong droppedMessages = new AtomicLong();
+
+  /** Size of the outstanding write. */
+  private volatile int writingBytes;
+
+  OutboundQueue(RemoteClient client, Limits limits) {
+    this.client = client;
+    this.limits = limits;
+  }
+
+  /** Queues the given bytes. Never blocks. */
+  void offer(ByteBuffer bytes) {
+    if (closed.get()) return;
+
+    // Duplicate the byte buffer. The same buffer is shared by all clients in a group.
+    ByteBuffer message = bytes.duplicate();
+    int size = message.remaining();
+    if (size > limits.maxBytes) {
+      dropped();
+      logger.warn("Dropped {}-byte message larger than budget for {}.", size, client);
+      return;
+    }
+
+    while (queuedMessages.get() + 1 > limits.maxMessages
+        || queuedBytes.get() + size > limits.maxBytes) {
+      if (limits.policy == Policy.DISCONNECT) {
+        if (!closed.get()) slowDisconnects.increment();
+        close("Slow consumer");
+        return;
+      }
+      // Drop the oldest message that isn't already being written.
+      ByteBuffer oldest = queue.poll();
+      if (oldest == null) {
+        // Only the outstanding write remains.
+        dropped();
+        return;
+      }
+      dequeued(oldest.remaining());
+      dropped();
+    }
+
+    queuedMessages.incrementAndGet();
+    long total = queuedBytes.addAndGet(size);
+    if (total > maxQueuedBytes.get()) maxQueuedBytes.accumulateAndGet(total, Math::max);
+    queue.add(message);
+    drain();
+  }
+
+  /** Called when the outstanding write completes. */
+  void writeComplete() {
+    dequeued(writingBytes);
+    sentMessages.incrementAndGet();
+    totalSent.increment();
+    writing = false;
+    drain();
+  }
+
+  /** Called when the outstanding write fails. Disconnects the client. */
+  void writeFailed(Throwable t) {
+    logger.info("Write to {} failed: {}", client, t.toString());
+    dequeued(writingBytes);
+    writing = false;
+    close("Write failed");
+  }
+
+  /** Discards queued messages and disconnects the client. Idempotent. */
+  void close(String reason) {
+    if (!closed.compareAndSet(false, true)) return;
+    logger.info("Disconnecting {}: {} (queued {} messages, {} bytes, limits {})", client,
+        reason, queuedMessages.get(), queuedBytes.get(), limits);
+    ByteBuffer discarded;
+    while ((discarded = queue.poll()) != null) dequeued(discarded.remaining());
+    client.disconnect(reason);
+  }
+
+  /** Writes queued messages one at a time. Safe to call from any thread. */
+  private void drain() {
+    if (wip.getAndIncrement() != 0) return;
+    int missed = 1;
+    do {
+      // write() may complete synchronously, in which case writeComplete() clears the flag and
+      // bumps wip instead of recursing.
+      while (!writing && !closed.get()) {
+        ByteBuffer next = queue.poll();
+        if (next == null) break;
+        writingBytes = next.remaining();
+        writing = true;
+        try {
+          client.write(next);
+        } catch (RuntimeException e) {
+          writeFailed(e);
+        }
+      }
+      missed = wip.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  private void dropped() {
+    droppedMessages.incrementAndGet();
+    totalDropped.increment();
+  }
+
+  private void dequeued(int size) {
+    queuedMessages.decrementAndGet();
+    queuedBytes.addAndGet(-size);
+  }
+
+  /** Messages waiting to be written, including the outstanding write. */
+  public int queuedMessages() {
+    return queuedMessages.get();
+  }
+
+  /** Bytes waiting to be written, including the outstanding write. */
+  public long queuedBytes() {
+    return queuedBytes.get();
+  }
+
+  /** High water mark for {@link #queuedBytes()}. */
+  public long maxQueuedBytes() {
+    return maxQueuedBytes.get();
+  }
+
+  /** Messages successfully written. */
+  public long sentMessages() {
+    return sentMessages.get();
+  }
+
+  /** Messages dropped because the client exceeded its budget. */
+  public long droppedMessages() {
+    return droppedMessages.get();
+  }
+
+  /** True if the client was disconnected. */
+  public boolean isClosed() {
+    return closed.get();
+  }
+
+  /**
+   * Lag across a set of connections plus totals for this server. Per-connection counters go
+   * away when clients disconnect, so totals come from process-wide counters.
+   */
+  public static class Stats {
+
+    private int clients;
+    private long queuedMessages;
+    private long queuedBytes;
+    private long maxQueuedBytes;
+    private long highWaterBytes;
+
+    /** Adds a connection's current lag. */
+    void add(OutboundQueue queue) {
+      clients++;
+      queuedMessages += queue.queuedMessages();
+      long bytes = queue.queuedBytes();
+      queuedBytes += bytes;
+      maxQueuedBytes = Math.max(maxQueuedBytes, bytes);
+      highWaterBytes = Math.max(highWaterBytes, queue.maxQueuedBytes());
+    }
+
+    /** Adds other connections' lag. */
+    void add(Stats other) {
+      clients += other.clients;
+      queuedMessages += other.queuedMessages;
+      queuedBytes += other.queuedBytes;
+      maxQueuedBytes = Math.max(maxQueuedBytes, other.maxQueuedBytes);
+      highWaterBytes = Math.max(highWaterBytes, other.highWaterBytes);
+    }
+
+    /** Connected clients. */
+    public int clients() {
+      return clients;
+    }
+
+    /** Messages waiting to be written across all clients. */
+    public long queuedMessages() {
+      return queuedMessages;
+    }
+
+    /** Bytes waiting to be written across all clients. */
+    public long queuedBytes() {
+      return queuedBytes;
+    }
+
+    /** Bytes waiting to be written to the client that's furthest behind. */
+    public long maxQueuedBytes() {
+      return maxQueuedBytes;
+    }
+
+    /** Highest {@link OutboundQueue#maxQueuedBytes()} of any connected client. */
+    public long highWaterBytes() {
+      return highWaterBytes;
+    }
+
+    /** Messages written since the server started. */
+    public long sentMessages() {
+      return totalSent.sum();
+    }
+
+    /** Messages dropped since the server started. */
+    public long droppedMessages() {
+      return totalDropped.sum();
+    }
+
+    /** Clients disconnected for exceeding their budgets since the server started. */
+    public long slowDisconnects() {
+      return slowDisconnects.sum();
+    }
+
+    @Override public String toString() {
+      return "OutboundQueue.Stats(clients=" + clients
+          + ", queuedMessages=" + queuedMessages
+          + ", queuedBytes=" + queuedBytes
+          + ", maxQueuedBytes=" + maxQueuedBytes
+          + ", highWaterBytes=" + highWaterBytes
+          + ", sentMessages=" + sentMessages()
+          + ", droppedMessages=" + droppedMessages()
+          + ", slowDisconnects=" + slowDisconnects()
+          + ")";
+    }
+  }
+}
@@ -4,16 +4,23 @@ import present.proto.LiveCommentsRequest;
 import java.nio.ByteBuffer;
 
 /**
- * Represents a remote client.
+ * Represents a remote client. Messages go through a bounded {@link OutboundQueue} so a slow
+ * client can't build an unbounded backlog.
  *
  * @author Bob Lee
  */
 public abstract class RemoteClient {
 
   final LiveCommentsRequest request;
+  private final OutboundQueue outbound;
 
   public RemoteClient(LiveCommentsRequest request) {
+    this(request, OutboundQueue.Limits.DEFAULT);
+  }
+
+  public RemoteClient(LiveCommentsRequest request, OutboundQueue.Limits limits) {
     this.request = request;
+    this.outbound = new OutboundQueue(this, limits);
   }
 
   public String groupId() {
@@ -33,6 +40,50 @@ public abstract class RemoteClient {
     return request.userId;
   }
 
-  /** Sends the given bytes to this client. Non-blocking. */
-  public abstract void send(ByteBuffer bytes);
+  /** Index of the last comment the client saw before reconnecting, or null. */
+  public Long lastSeenIndex() {
+    return request.lastSeenIndex == null ? null : (long) request.lastSeenIndex;
+  }
+
+  /** Queues the given bytes for this client. Non-blocking. */
+  public void send(ByteBuffer bytes) {
+    outbound.offer(bytes);
+  }
+
+  /** This client's outbound queue and lag counters. */
+  public OutboundQueue outbound() {
+    return outbound;
+  }
+
+  /**
+   * Called on the dispatch thread after this client is registered and before it receives any
+   * comments.
+   *
+   * @param replayed true if the comments the client missed since {@link #lastSeenIndex()} follow
+   */
+  protected void registered(boolean replayed) {}
+
+  /**
+   * Writes the given bytes to the network. Non-blocking. The queue keeps at most one write
+   * outstanding. Implementations must call {@link #writeComplete()} or
+   * {@link #writeFailed(Throwable)} when the write finishes, possibly before this method returns.
+   */
+  protected abstract void write(ByteBuffer bytes);
+
+  /** Closes the connection. Called at most once, for example, if the client is too slow. */
+  protected abstract void disconnect(String reason);
+
+  /** Reports that the outstanding write succeeded. */
+  protected final void writeComplete() {
+    outbound.writeComplete();
+  }
+
+  /** Reports that the outstanding write failed. Disconnects the client. */
+  protected final void writeFailed(Throwable t) {
+    outbound.writeFailed(t);
+  }
+
+  @Override public String toString() {
+    return "RemoteClient(" + clientUuid() + ", group=" + groupId() + ")";
+  }
 }
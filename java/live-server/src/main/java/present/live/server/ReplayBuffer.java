@@ -0,0 +1,94 @@
+package present.live.server;
+
+import java.util.function.Consumer;
+import present.proto.DispatchCommentRequest;
+
+/**
+ * Ring buffer of a group's recent comments, so clients that reconnect can catch up from the last
+ * comment they saw without calling {@code getPastComments}. Only accessed by the group's
+ * dispatch shard thread.
+ */
+class ReplayBuffer {
+
+  /** We haven't seen a comment yet, so we can't vouch for any range. */
+  private static final long UNKNOWN = Long.MAX_VALUE;
+
+  private final Entry[] ring;
+  private int next;
+  private int size;
+
+  /** Highest index of a new comment seen so far. */
+  private long head = -1;
+
+  /** We have every comment and deletion a client needs if it saw up to this index. */
+  private long coveredFrom = UNKNOWN;
+
+  ReplayBuffer(int capacity) {
+    this.ring = new Entry[capacity];
+  }
+
+  /**
+   * Adds a comment or deletion. Ignores comments from API servers that don't send indexes.
+   * Indexes needn't arrive in order. If we skip an index, we stop vouching for clients that saw
+   * less than the index before the new comment. Comments that arrive late are replayed like
+   * deletions, to every client that could have seen the comments before them.
+   */
+  void add(DispatchCommentRequest comment) {
+    if (comment.index == null) return;
+    long index = comment.index;
+    boolean late = Boolean.TRUE.equals(comment.deleted) || index <= head;
+    if (!late) {
+      if (coveredFrom == UNKNOWN || index > head + 1) {
+        // We've seen everything after the previous index, but we missed anything between.
+        coveredFrom = coveredFrom == UNKNOWN ? index - 1 : Math.max(coveredFrom, index - 1);
+      }
+      head = index;
+    }
+    if (size == ring.length) {
+      // Clients that haven't seen the evicted entry's head can't catch up from here any more.
+      Entry evicted = ring[next];
+      coveredFrom = Math.max(coveredFrom, evicted.late ? evicted.head + 1 : evicted.head);
+    } else {
+      size++;
+    }
+    ring[next] = new Entry(comment, late ? head : index, late);
+    next = (next + 1) % ring.length;
+  }
+
+  /** Returns true if this buffer has everything a client that saw up to the given index needs. */
+  boolean covers(long lastSeenIndex) {
+    return coveredFrom != UNKNOWN && lastSeenIndex >= coveredFrom;
+  }
+
+  /**
+   * Passes the comments a client that saw up to the given index missed to the given action, in
+   * the order we received them. Deletions are idempotent, so we err on the side of including
+   * them and late comments.
+   */
+  void forEachAfter(long lastSeenIndex, Consumer<DispatchCommentRequest> action) {
+    int start = (next - size + ring.length) % ring.length;
+    for (int i = 0; i < size; i++) {
+      Entry entry = ring[(start + i) % ring.length];
+      if (entry.head > lastSeenIndex || (entry.late && entry.head >= lastSeenIndex)) {
+        action.accept(entry.comment);
+      }
+    }
+  }
+
+  private static class Entry {
+
+    private final DispatchCommentRequest comment;
+
+    /** Comment's index, or the head index when a deletion or late comment arrived. */
+    private final long head;
+
+    /** True for deletions and comments that arrived after higher indexes. */
+    private final boolean late;
+
+    private Entry(DispatchCommentRequest comment, long head, boolean late) {
+      this.comment = comment;
+      this.head = head;
+      this.late = late;
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package present.live.server;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Longs;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a user ID {@link com.google.common.hash.BloomFilter} in the format written by its
+ * {@code writeTo()} method, probing the bits directly from the serialized form instead of
+ * copying them into a new filter.
+ *
+ * <p>The format is one byte for the hashing strategy ordinal, one unsigned byte for the number
+ * of hash functions, a big-endian int for the number of longs, and then the longs. Hashing
+ * matches Guava's {@code BloomFilterStrategies} with a funnel that puts unencoded chars.
+ */
+class SerializedBloomFilter {
+
+  /** {@code BloomFilterStrategies.MURMUR128_MITZ_32} */
+  private static final int MURMUR128_MITZ_32 = 0;
+
+  /** {@code BloomFilterStrategies.MURMUR128_MITZ_64}. The default since Guava 11. */
+  private static final int MURMUR128_MITZ_64 = 1;
+
+  private static final int HEADER_SIZE = 1 + 1 + 4;
+
+  private final ByteBuffer buffer;
+  private final int strategy;
+  private final int numHashFunctions;
+  private final long bitSize;
+
+  /** Wraps the given bytes without copying them. */
+  SerializedBloomFilter(ByteBuffer bytes) {
+    // Absolute reads on a private view so we don't disturb the caller's position.
+    this.buffer = bytes.slice();
+    if (buffer.remaining() < HEADER_SIZE) {
+      throw new IllegalArgumentException("Truncated bloom filter header.");
+    }
+    this.strategy = buffer.get(0);
+    if (strategy != MURMUR128_MITZ_32 && strategy != MURMUR128_MITZ_64) {
+      throw new IllegalArgumentException("Unsupported bloom filter strategy: " + strategy);
+    }
+    this.numHashFunctions = buffer.get(1) & 0xff;
+    int dataLength = buffer.getInt(2);
+    if (dataLength <= 0 || buffer.remaining() != HEADER_SIZE + dataLength * 8L) {
+      throw new IllegalArgumentException("Bad bloom filter length: " + dataLength);
+    }
+    this.bitSize = dataLength * 64L;
+  }
+
+  /** Returns true if the given user ID might have been put in this filter. */
+  boolean mightContain(String userId) {
+    HashCode hash = Hashing.murmur3_128().hashUnencodedChars(userId);
+    return strategy == MURMUR128_MITZ_64 ? mightContain64(hash) : mightContain32(hash);
+  }
+
+  private boolean mightContain64(HashCode hash) {
+    byte[] bytes = hash.asBytes();
+    long hash1 = hash.asLong();
+    long hash2 = Longs.fromBytes(bytes[15], bytes[14], bytes[13], bytes[12],
+        bytes[11], bytes[10], bytes[9], bytes[8]);
+    long combinedHash = hash1;
+    for (int i = 0; i < numHashFunctions; i++) {
+      if (!get((combinedHash & Long.MAX_VALUE) % bitSize)) return false;
+      combinedHash += hash2;
+    }
+    return true;
+  }
+
+  private boolean mightContain32(HashCode hash) {
+    long hash64 = hash.asLong();
+    int hash1 = (int) hash64;
+    int hash2 = (int) (hash64 >>> 32);
+    for (int i = 1; i <= numHashFunctions; i++) {
+      int combinedHash = hash1 + (i * hash2);
+      if (combinedHash < 0) combinedHash = ~combinedHash;
+      if (!get(combinedHash % bitSize)) return false;
+    }
+    return true;
+  }
+
+  private boolean get(long index) {
+    long word = buffer.getLong(HEADER_SIZE + (int) (index >>> 6) * 8);
+    return (word & (1L << index)) != 0;
+  }
+}
@@ -0,0 +1,60 @@
+package present.live.server;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+import okio.ByteString;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BloomFiltersTest {
+
+  private static final Funnel<String> FUNNEL = (userId, into) -> into.putUnencodedChars(userId);
+
+  @Test public void matchesGuava() throws IOException {
+    // Overfill a small filter so we see plenty of false positives, too.
+    BloomFilter<String> filter = BloomFilter.create(FUNNEL, 100, 0.05);
+    for (int i = 0; i < 500; i++) {
+      String userId = UUID.randomUUID().toString();
+      filter.put(userId);
+    }
+    ByteString bytes = serialize(filter);
+    SerializedBloomFilter decoded = BloomFilters.decode(bytes);
+    BloomFilter<String> expected = BloomFilters.fromByteString(bytes);
+    for (int i = 0; i < 10_000; i++) {
+      String userId = UUID.randomUUID().toString();
+      assertEquals(expected.mightContain(userId), decoded.mightContain(userId));
+    }
+  }
+
+  @Test public void containsPutIds() throws IOException {
+    BloomFilter<String> filter = BloomFilter.create(FUNNEL, 10, 1e-9);
+    String userId = UUID.randomUUID().toString();
+    filter.put(userId);
+    assertTrue(BloomFilters.decode(serialize(filter)).mightContain(userId));
+  }
+
+  @Test public void cachesByContent() throws IOException {
+    BloomFilter<String> filter = BloomFilter.create(FUNNEL, 10, 1e-9);
+    filter.put(UUID.randomUUID().toString());
+    ByteString a = serialize(filter);
+    ByteString b = ByteString.of(a.toByteArray());
+    assertSame(BloomFilters.decode(a), BloomFilters.decode(b));
+  }
+
+  @Test public void nullFilter() {
+    assertNull(BloomFilters.decode(null));
+  }
+
+  private static ByteString serialize(BloomFilter<String> filter) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    filter.writeTo(out);
+    return ByteString.of(out.toByteArray());
+  }
+}
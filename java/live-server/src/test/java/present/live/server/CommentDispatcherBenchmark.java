@@ -0,0 +1,147 @@
+package present.live.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import okio.ByteString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import present.proto.DispatchCommentRequest;
+import present.proto.LiveCommentsRequest;
+import present.proto.Platform;
+import present.proto.RequestHeader;
+
+/**
+ * Measures how long it takes {@link CommentDispatcher} to queue a comment and to fan it out to
+ * every subscriber in a group, and how many comments per second it can fan out.
+ *
+ * <p>Run with: {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=present.live.server.CommentDispatcherBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommentDispatcherBenchmark {
+
+  @Param({ "10", "1000", "10000", "50000" })
+  int subscribers;
+
+  /** Comments allowed in the shard's queue. Well under its capacity. */
+  private static final int BACKLOG = CommentDispatcher.DEFAULT_QUEUE_CAPACITY / 10;
+
+  private CommentDispatcher dispatcher;
+  private DispatchCommentRequest request;
+  private List<RemoteClient> clients;
+
+  /** Counts down as clients receive the current comment. */
+  private volatile CountDownLatch delivered;
+
+  @Setup public void setUp() throws InterruptedException {
+    dispatcher = new CommentDispatcher();
+    String groupId = UUID.randomUUID().toString();
+    clients = new ArrayList<>(subscribers);
+    for (int i = 0; i < subscribers; i++) {
+      RemoteClient client = new RemoteClient(newRequest(groupId)) {
+        @Override protected void write(ByteBuffer bytes) {
+          writeComplete();
+          CountDownLatch latch = delivered;
+          if (latch != null) latch.countDown();
+        }
+
+        @Override protected void disconnect(String reason) {
+          throw new AssertionError(reason);
+        }
+      };
+      clients.add(client);
+      dispatcher.register(client);
+    }
+    request = new DispatchCommentRequest(UUID.randomUUID().toString(), groupId,
+        ByteString.encodeUtf8("Hello, World!"), null, null, null);
+
+    // Wait for registrations to complete.
+    delivered = new CountDownLatch(subscribers);
+    dispatcher.dispatch(request);
+    delivered.await();
+  }
+
+  @TearDown public void tearDown() throws InterruptedException {
+    for (RemoteClient client : clients) dispatcher.unregister(client);
+    dispatcher.shutdown(5_000);
+  }
+
+  /** Time spent by the RPC thread. Starts from an empty queue each time. */
+  @Benchmark public boolean enqueue(Idle idle) {
+    delivered = null;
+    return dispatch();
+  }
+
+  /** Time until every subscriber has been sent the comment. */
+  @Benchmark public void fanOut() throws InterruptedException {
+    CountDownLatch latch = new CountDownLatch(subscribers);
+    delivered = latch;
+    dispatch();
+    latch.await();
+  }
+
+  /**
+   * Comments per second fanned out to every subscriber. Keeps the shard's queue from
+   * overflowing, so we measure sustained throughput instead of how quickly we reject comments.
+   */
+  @Benchmark @BenchmarkMode(Mode.Throughput) @OutputTimeUnit(TimeUnit.SECONDS)
+  public boolean throughput() throws InterruptedException {
+    delivered = null;
+    if (dispatcher.pendingComments() >= BACKLOG) awaitCapacity();
+    return dispatch();
+  }
+
+  /** Waits for the shard to catch up before each {@link #enqueue} outside of the measurement. */
+  @State(Scope.Thread)
+  public static class Idle {
+    @Setup(Level.Invocation) public void awaitIdle(CommentDispatcherBenchmark benchmark)
+        throws InterruptedException {
+      benchmark.awaitCapacity();
+    }
+  }
+
+  /** Waits for the shard to work off its backlog. */
+  private void awaitCapacity() throws InterruptedException {
+    while (dispatcher.pendingComments() > 0) Thread.sleep(0, 100_000);
+  }
+
+  private boolean dispatch() {
+    if (!dispatcher.dispatch(request)) throw new AssertionError("Dispatcher dropped a comment.");
+    return true;
+  }
+
+  private static LiveCommentsRequest newRequest(String groupId) {
+    RequestHeader header = new RequestHeader(UUID.randomUUID().toString(),
+        UUID.randomUUID().toString(), "IGNORED", Platform.TEST, 1, "1", "1", null, null,
+        "Test Device", "women-only");
+    return new LiveCommentsRequest(header, groupId, UUID.randomUUID().toString(), 1, null);
+  }
+
+  public static void main(String[] args) throws Exception {
+    new Runner(new OptionsBuilder()
+        .include(CommentDispatcherBenchmark.class.getSimpleName())
+        .build()).run();
+  }
+}
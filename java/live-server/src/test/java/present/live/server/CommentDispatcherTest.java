@@ -0,0 +1,145 @@
+package present.live.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import okio.ByteString;
+import org.junit.After;
+import org.junit.Test;
+import present.proto.DispatchCommentRequest;
+import present.proto.LiveCommentsRequest;
+import present.proto.Platform;
+import present.proto.RequestHeader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CommentDispatcherTest {
+
+  private final CommentDispatcher dispatcher = new CommentDispatcher(4, 100_000);
+
+  @After public void tearDown() throws InterruptedException {
+    dispatcher.shutdown(5_000);
+  }
+
+  @Test public void assignsEachGroupToOneShard() {
+    Set<DispatchShard> used = new HashSet<>();
+    for (int i = 0; i < 100; i++) {
+      String groupId = UUID.randomUUID().toString();
+      assertSame(dispatcher.shardFor(groupId), dispatcher.shardFor(groupId));
+      used.add(dispatcher.shardFor(groupId));
+    }
+    assertEquals(4, used.size());
+  }
+
+  @Test public void preservesOrderPerGroup() throws Exception {
+    int groups = 20;
+    int comments = 500;
+    List<RecordingClient> clients = new ArrayList<>();
+    CountDownLatch delivered = new CountDownLatch(groups * comments);
+    for (int g = 0; g < groups; g++) {
+      RecordingClient client = new RecordingClient(UUID.randomUUID().toString(), delivered);
+      clients.add(client);
+      dispatcher.register(client);
+    }
+
+    // One producer per group, all running at once.
+    List<Thread> producers = new ArrayList<>();
+    for (RecordingClient client : clients) {
+      Thread producer = new Thread(() -> {
+        for (int i = 0; i < comments; i++) {
+          // Alternate between single comments and batches.
+          if (i % 2 == 0) {
+            assertTrue(dispatcher.dispatch(comment(client.groupId(), i)));
+          } else {
+            List<DispatchCommentRequest> batch = new ArrayList<>();
+            batch.add(comment(client.groupId(), i));
+            assertTrue(dispatcher.dispatch(batch));
+          }
+        }
+      });
+      producers.add(producer);
+      producer.start();
+    }
+    for (Thread producer : producers) producer.join();
+
+    assertTrue(delivered.await(10, TimeUnit.SECONDS));
+    for (RecordingClient client : clients) {
+      assertEquals(comments, client.received.size());
+      for (int i = 0; i < comments; i++) {
+        assertEquals(String.valueOf(i), client.received.get(i));
+      }
+    }
+  }
+
+  @Test public void survivesErrors() throws Exception {
+    CountDownLatch delivered = new CountDownLatch(1);
+    String groupId = UUID.randomUUID().toString();
+    RemoteClient broken = new RecordingClient(groupId, new CountDownLatch(0)) {
+      @Override protected void write(ByteBuffer bytes) {
+        throw new StackOverflowError();
+      }
+    };
+    dispatcher.register(broken);
+    dispatcher.dispatch(comment(groupId, 0));
+    dispatcher.unregister(broken);
+    RecordingClient client = new RecordingClient(groupId, delivered);
+    dispatcher.register(client);
+    dispatcher.dispatch(comment(groupId, 1));
+    assertTrue(delivered.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test public void reportsOutboundStats() {
+    for (int i = 0; i < 10; i++) {
+      dispatcher.register(new RecordingClient(UUID.randomUUID().toString(),
+          new CountDownLatch(0)));
+    }
+    // Shards process stats requests after the registrations.
+    assertEquals(10, dispatcher.outboundStats().clients());
+  }
+
+  @Test public void shutsDown() throws InterruptedException {
+    assertTrue(dispatcher.shutdown(5_000));
+  }
+
+  private static DispatchCommentRequest comment(String groupId, int i) {
+    return new DispatchCommentRequest(UUID.randomUUID().toString(), groupId,
+        ByteString.encodeUtf8(String.valueOf(i)), null, null, null);
+  }
+
+  private static class RecordingClient extends RemoteClient {
+
+    /** Only written by the group's shard. */
+    final List<String> received = new ArrayList<>();
+    final CountDownLatch delivered;
+
+    RecordingClient(String groupId, CountDownLatch delivered) {
+      super(newRequest(groupId));
+      this.delivered = delivered;
+    }
+
+    @Override protected void write(ByteBuffer bytes) {
+      received.add(StandardCharsets.UTF_8.decode(bytes).toString());
+      writeComplete();
+      delivered.countDown();
+    }
+
+    @Override protected void disconnect(String reason) {
+      throw new AssertionError(reason);
+    }
+  }
+
+  private static LiveCommentsRequest newRequest(String groupId) {
+    RequestHeader header = new RequestHeader(UUID.randomUUID().toString(),
+        UUID.randomUUID().toString(), "IGNORED", Platform.TEST, 1, "1", "1", null, null,
+        "Test Device", "women-only");
+    return new LiveCommentsRequest(header, groupId, UUID.randomUUID().toString(), 1, null);
+  }
+}
@@ -67,7 +67,7 @@ public class LiveServerTest {
 
       ByteString encodedFilter = null;
       bs.dispatchComment(new DispatchCommentRequest(clientId, groupId,
-          ByteString.of(CommentResponse.ADAPTER.encode(comment)), encodedFilter));
+          ByteString.of(CommentResponse.ADAPTER.encode(comment)), encodedFilter, null, null));
 
       // Make sure it came out the other side.
       CommentResponse actual = listener.comments.poll(5, TimeUnit.SECONDS);
@@ -0,0 +1,209 @@
+package present.live.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import present.live.server.OutboundQueue.Limits;
+import present.live.server.OutboundQueue.Policy;
+import present.proto.LiveCommentsRequest;
+import present.proto.Platform;
+import present.proto.RequestHeader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundQueueTest {
+
+  @Test public void drainsInOrder() {
+    TestClient client = new TestClient(new Limits(1024, 10, Policy.DROP_OLDEST));
+    client.send(message("a"));
+    client.send(message("b"));
+    client.send(message("c"));
+    // Only one write is outstanding at a time.
+    assertEquals(Arrays.asList("a"), client.written);
+    assertEquals(3, client.outbound().queuedMessages());
+    assertEquals(3, client.outbound().queuedBytes());
+
+    client.complete();
+    client.complete();
+    assertEquals(Arrays.asList("a", "b", "c"), client.written);
+    client.complete();
+    assertEquals(0, client.outbound().queuedMessages());
+    assertEquals(0, client.outbound().queuedBytes());
+    assertEquals(3, client.outbound().sentMessages());
+    assertEquals(3, client.outbound().maxQueuedBytes());
+  }
+
+  @Test public void dropsOldestWhenOutOfMessages() {
+    TestClient client = new TestClient(new Limits(1024, 3, Policy.DROP_OLDEST));
+    for (String s : new String[] { "a", "b", "c", "d", "e" }) client.send(message(s));
+    // "a" is being written, so "b" and "c" made room for "d" and "e".
+    assertEquals(3, client.outbound().queuedMessages());
+    assertEquals(2, client.outbound().droppedMessages());
+    client.complete();
+    client.complete();
+    client.complete();
+    assertEquals(Arrays.asList("a", "d", "e"), client.written);
+    assertFalse(client.outbound().isClosed());
+  }
+
+  @Test public void dropsOldestWhenOutOfBytes() {
+    TestClient client = new TestClient(new Limits(6, 100, Policy.DROP_OLDEST));
+    client.send(message("aa"));
+    client.send(message("bb"));
+    client.send(message("cc"));
+    client.send(message("ddd"));
+    // "aa" is being written. Dropping "bb" leaves 4 bytes, so "cc" goes too.
+    assertEquals(2, client.outbound().droppedMessages());
+    assertEquals(5, client.outbound().queuedBytes());
+    client.complete();
+    client.complete();
+    assertEquals(Arrays.asList("aa", "ddd"), client.written);
+  }
+
+  @Test public void dropsOversizedMessages() {
+    TestClient client = new TestClient(new Limits(2, 100, Policy.DISCONNECT));
+    client.send(message("abc"));
+    assertEquals(1, client.outbound().droppedMessages());
+    assertEquals(0, client.outbound().queuedMessages());
+    assertFalse(client.outbound().isClosed());
+  }
+
+  @Test public void disconnectsSlowConsumers() {
+    TestClient client = new TestClient(new Limits(1024, 2, Policy.DISCONNECT));
+    client.send(message("a"));
+    client.send(message("b"));
+    assertNull(client.disconnectReason);
+    client.send(message("c"));
+    assertEquals("Slow consumer", client.disconnectReason);
+    assertTrue(client.outbound().isClosed());
+    // Queued messages are discarded and later ones ignored.
+    assertEquals(1, client.outbound().queuedMessages());
+    client.send(message("d"));
+    client.complete();
+    assertEquals(Arrays.asList("a"), client.written);
+    assertEquals(0, client.outbound().queuedMessages());
+  }
+
+  @Test public void disconnectsWhenWritesFail() {
+    TestClient client = new TestClient(new Limits(1024, 10, Policy.DROP_OLDEST));
+    client.send(message("a"));
+    client.send(message("b"));
+    client.writeFailed(new RuntimeException("Connection reset"));
+    assertEquals("Write failed", client.disconnectReason);
+    assertEquals(0, client.outbound().queuedMessages());
+    assertEquals(0, client.outbound().queuedBytes());
+  }
+
+  /**
+   * Writes complete on another thread, more slowly than we produce messages. The client should
+   * get its messages in order, minus the ones we dropped, and never exceed its budget.
+   */
+  @Test public void boundsSlowConsumers() throws Exception {
+    int count = 10_000;
+    int maxMessages = 50;
+    BlockingQueue<ByteBuffer> network = new LinkedBlockingQueue<>();
+    List<Integer> received = new ArrayList<>();
+    RemoteClient client = new RemoteClient(newRequest(),
+        new Limits(1024 * 1024, maxMessages, Policy.DROP_OLDEST)) {
+      @Override protected void write(ByteBuffer bytes) {
+        network.add(bytes);
+      }
+
+      @Override protected void disconnect(String reason) {
+        throw new AssertionError(reason);
+      }
+    };
+    Thread consumer = new Thread(() -> {
+      try {
+        ByteBuffer bytes;
+        while ((bytes = network.poll(1, TimeUnit.SECONDS)) != null) {
+          received.add(Integer.parseInt(StandardCharsets.UTF_8.decode(bytes).toString()));
+          if (received.size() % 10 == 0) Thread.sleep(1);
+          client.writeComplete();
+        }
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    });
+    consumer.start();
+    for (int i = 0; i < count; i++) {
+      client.send(message(String.valueOf(i)));
+      assertTrue(client.outbound().queuedMessages() <= maxMessages);
+    }
+    consumer.join();
+
+    OutboundQueue outbound = client.outbound();
+    assertEquals(0, outbound.queuedMessages());
+    assertEquals(count, outbound.sentMessages() + outbound.droppedMessages());
+    assertEquals(outbound.sentMessages(), received.size());
+    assertTrue(outbound.droppedMessages() > 0);
+    for (int i = 1; i < received.size(); i++) {
+      assertTrue(received.get(i - 1) < received.get(i));
+    }
+    // The last message always makes it.
+    assertEquals(count - 1, (int) received.get(received.size() - 1));
+  }
+
+  @Test public void aggregatesStats() {
+    TestClient a = new TestClient(new Limits(1024, 10, Policy.DROP_OLDEST));
+    TestClient b = new TestClient(new Limits(1024, 10, Policy.DROP_OLDEST));
+    a.send(message("aaa"));
+    b.send(message("b"));
+    b.send(message("b"));
+    OutboundQueue.Stats stats = new OutboundQueue.Stats();
+    stats.add(a.outbound());
+    OutboundQueue.Stats other = new OutboundQueue.Stats();
+    other.add(b.outbound());
+    stats.add(other);
+    assertEquals(2, stats.clients());
+    assertEquals(3, stats.queuedMessages());
+    assertEquals(5, stats.queuedBytes());
+    assertEquals(3, stats.maxQueuedBytes());
+  }
+
+  private static ByteBuffer message(String s) {
+    return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** Holds writes until the test completes them. */
+  private static class TestClient extends RemoteClient {
+
+    final List<String> written = new ArrayList<>();
+    String disconnectReason;
+
+    TestClient(Limits limits) {
+      super(newRequest(), limits);
+    }
+
+    @Override protected void write(ByteBuffer bytes) {
+      written.add(StandardCharsets.UTF_8.decode(bytes).toString());
+    }
+
+    @Override protected void disconnect(String reason) {
+      if (disconnectReason != null) throw new AssertionError("Disconnected twice.");
+      disconnectReason = reason;
+    }
+
+    void complete() {
+      writeComplete();
+    }
+  }
+
+  private static LiveCommentsRequest newRequest() {
+    RequestHeader header = new RequestHeader(UUID.randomUUID().toString(),
+        UUID.randomUUID().toString(), "IGNORED", Platform.TEST, 1, "1", "1", null, null,
+        "Test Device", "women-only");
+    return new LiveCommentsRequest(header, UUID.randomUUID().toString(),
+        UUID.randomUUID().toString(), 1, null);
+  }
+}
@@ -0,0 +1,99 @@
+package present.live.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import okio.ByteString;
+import org.junit.Test;
+import present.proto.DispatchCommentRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReplayBufferTest {
+
+  @Test public void replaysCommentsAfterIndex() {
+    ReplayBuffer buffer = new ReplayBuffer(10);
+    for (int i = 5; i < 8; i++) buffer.add(comment(i, false));
+    assertFalse(buffer.covers(3));
+    assertTrue(buffer.covers(4));
+    assertEquals(Arrays.asList(6, 7), indexes(buffer, 5));
+    assertEquals(Arrays.asList(), indexes(buffer, 7));
+  }
+
+  @Test public void evictionNarrowsCoverage() {
+    ReplayBuffer buffer = new ReplayBuffer(3);
+    for (int i = 0; i < 5; i++) buffer.add(comment(i, false));
+    // 0 and 1 are gone, so only clients that saw 1 or later can catch up.
+    assertFalse(buffer.covers(0));
+    assertTrue(buffer.covers(1));
+    assertEquals(Arrays.asList(2, 3, 4), indexes(buffer, 1));
+  }
+
+  @Test public void replaysDeletionsOfSeenComments() {
+    ReplayBuffer buffer = new ReplayBuffer(10);
+    buffer.add(comment(0, false));
+    buffer.add(comment(1, false));
+    buffer.add(comment(0, true));
+    // The deletion arrived after 1, so a client that saw 1 may have missed it.
+    assertEquals(Arrays.asList(0), indexes(buffer, 1));
+    assertEquals(Arrays.asList(1, 0), indexes(buffer, 0));
+  }
+
+  @Test public void gapsNarrowCoverage() {
+    ReplayBuffer buffer = new ReplayBuffer(10);
+    buffer.add(comment(5, false));
+    buffer.add(comment(6, false));
+    // We never got 7 or 8.
+    buffer.add(comment(9, false));
+    buffer.add(comment(10, false));
+    assertFalse(buffer.covers(4));
+    assertFalse(buffer.covers(7));
+    assertTrue(buffer.covers(8));
+    assertEquals(Arrays.asList(9, 10), indexes(buffer, 8));
+  }
+
+  @Test public void replaysLateComments() {
+    ReplayBuffer buffer = new ReplayBuffer(10);
+    buffer.add(comment(5, false));
+    buffer.add(comment(7, false));
+    // 6 arrived after 7, so a client that saw 7 may have missed it.
+    buffer.add(comment(6, false));
+    assertTrue(buffer.covers(6));
+    assertEquals(Arrays.asList(6), indexes(buffer, 7));
+    assertEquals(Arrays.asList(7, 6), indexes(buffer, 6));
+    assertEquals(Arrays.asList(), indexes(buffer, 8));
+  }
+
+  @Test public void evictingLateCommentsNarrowsCoverage() {
+    ReplayBuffer buffer = new ReplayBuffer(2);
+    buffer.add(comment(1, false));
+    buffer.add(comment(0, false));
+    buffer.add(comment(2, false));
+    // 1 is gone.
+    assertFalse(buffer.covers(0));
+    assertTrue(buffer.covers(1));
+    buffer.add(comment(3, false));
+    // 0 arrived when 1 was the head, so clients that saw 1 might have missed it.
+    assertFalse(buffer.covers(1));
+    assertTrue(buffer.covers(2));
+    assertEquals(Arrays.asList(3), indexes(buffer, 2));
+  }
+
+  @Test public void ignoresCommentsWithoutIndexes() {
+    ReplayBuffer buffer = new ReplayBuffer(10);
+    buffer.add(new DispatchCommentRequest("client", "group", ByteString.EMPTY, null, null, null));
+    assertFalse(buffer.covers(0));
+  }
+
+  private static DispatchCommentRequest comment(int index, boolean deleted) {
+    return new DispatchCommentRequest("client", "group", ByteString.EMPTY, null, index, deleted);
+  }
+
+  private static List<Integer> indexes(ReplayBuffer buffer, long lastSeenIndex) {
+    List<Integer> indexes = new ArrayList<>();
+    buffer.forEachAfter(lastSeenIndex, comment -> indexes.add(comment.index));
+    return indexes;
+  }
+}
@@ -0,0 +1,139 @@
+package present.live.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import okio.ByteString;
+import org.eclipse.jetty.server.Server;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import present.jetty.Servers;
+import present.live.client.InternalLiveClient;
+import present.live.client.LiveClient;
+import present.live.client.LiveMembership;
+import present.live.client.LiveNode;
+import present.live.client.LiveRing;
+import present.proto.CommentResponse;
+import present.proto.DispatchCommentRequest;
+import present.proto.FriendResponse;
+import present.proto.Platform;
+import present.proto.RequestHeader;
+import present.proto.UserResponse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Runs several live servers in process and routes groups between them.
+ */
+public class ShardedLiveServerTest {
+
+  private static final int NODES = 3;
+
+  private final List<LiveNode> nodes = new ArrayList<>();
+  private final List<Server> servers = new ArrayList<>();
+  private LiveMembership membership;
+
+  @Before public void setUp() throws Exception {
+    for (int i = 0; i < NODES; i++) {
+      nodes.add(new LiveNode("local.present.co", Servers.randomPort()));
+    }
+    membership = LiveMembership.of(LiveRing.of(nodes));
+    for (LiveNode node : nodes) {
+      Server server = LiveServer.newInstance(node.port, membership, node);
+      server.start();
+      servers.add(server);
+    }
+  }
+
+  @After public void tearDown() throws Exception {
+    for (Server server : servers) server.stop();
+  }
+
+  @Test public void routesGroupsToOwners() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      String groupId = UUID.randomUUID().toString();
+      LiveNode owner = membership.ownerOf(groupId);
+
+      CommentListener listener = new CommentListener();
+      LiveClient client = new LiveClient(owner.host, owner.port, newHeader(), "1234", groupId,
+          listener);
+      waitFor(listener.readyLatch);
+
+      CommentResponse comment = newComment(groupId);
+      InternalLiveClient.connectTo(owner.apiUrl()).dispatchComment(
+          new DispatchCommentRequest(UUID.randomUUID().toString(), groupId,
+              ByteString.of(CommentResponse.ADAPTER.encode(comment)), null, null, null));
+
+      CommentResponse actual = listener.comments.poll(5, TimeUnit.SECONDS);
+      assertNotNull(actual);
+      assertEquals(comment, actual);
+
+      client.close();
+      waitFor(listener.closeLatch);
+    }
+  }
+
+  @Test public void disconnectsClientsOfOtherNodes() throws Exception {
+    String groupId = UUID.randomUUID().toString();
+    LiveNode owner = membership.ownerOf(groupId);
+    LiveNode other = nodes.get((nodes.indexOf(owner) + 1) % NODES);
+
+    CommentListener listener = new CommentListener();
+    new LiveClient(other.host, other.port, newHeader(), "1234", groupId, listener);
+    waitFor(listener.closeLatch);
+    assertEquals(1, listener.readyLatch.getCount());
+  }
+
+  private static RequestHeader newHeader() {
+    return new RequestHeader(UUID.randomUUID().toString(), UUID.randomUUID().toString(),
+        "IGNORED", Platform.TEST, 1, "1", "1", null, null, "Test Device", "women-only");
+  }
+
+  private static CommentResponse newComment(String groupId) {
+    UserResponse author = new UserResponse("id", "Bob Lee", "Bob",
+        "https://goo.gl/E08v0o", " ", new ArrayList<String>(),
+        new ArrayList<FriendResponse>(), null, "https://present.co", true);
+    return new CommentResponse.Builder()
+        .uuid(UUID.randomUUID().toString())
+        .groupId(groupId)
+        .author(author)
+        .creationTime(System.currentTimeMillis())
+        .comment("Hello, World!")
+        .likes(0)
+        .deleted(false)
+        .index(0)
+        .build();
+  }
+
+  private void waitFor(CountDownLatch latch) throws InterruptedException {
+    latch.await(5, TimeUnit.SECONDS);
+    assertEquals(0, latch.getCount());
+  }
+
+  private class CommentListener implements LiveClient.Listener {
+
+    private final CountDownLatch readyLatch = new CountDownLatch(1);
+    private final CountDownLatch closeLatch = new CountDownLatch(1);
+    private final BlockingDeque<CommentResponse> comments = new LinkedBlockingDeque<>();
+
+    @Override public void comment(CommentResponse comment) {
+      comments.add(comment);
+    }
+    @Override public void deleted(CommentResponse comment) { throw new AssertionError(); }
+    @Override public void ready() {
+      readyLatch.countDown();
+    }
+    @Override public void closed() {
+      closeLatch.countDown();
+    }
+    @Override public void networkError(Throwable t) {
+      throw new AssertionError(t);
+    }
+  }
+}
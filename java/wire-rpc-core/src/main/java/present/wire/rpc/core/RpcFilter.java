@@ -17,6 +17,10 @@ public interface RpcFilter {
   /**
    * Filters the given invocation. The filter may call {@link RpcInvocation#proceed()} to invoke the
    * downstream service or it may service the invocation itself.
+   *
+   * <p>If the method is {@linkplain RpcMethod#isAsync() asynchronous}, {@code proceed()} returns
+   * once the method has started, and the result is a future that completes later. Filters that
+   * act on the outcome should wait for the future instead of the call.
    */
   Object filter(RpcInvocation invocation) throws Exception;
 }
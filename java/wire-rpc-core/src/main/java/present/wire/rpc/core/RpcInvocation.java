@@ -1,6 +1,5 @@
 package present.wire.rpc.core;
 
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
 /**
@@ -52,13 +51,7 @@ public abstract class RpcInvocation {
 
   /** Returns the concrete implementation method. */
   public Method getImplementationMethod() {
-    Method method = this.method.method();
-    try {
-      return this.implementation.getClass().getMethod(
-          method.getName(), method.getParameterTypes());
-    } catch (NoSuchMethodException e) {
-      throw new RuntimeException(e);
-    }
+    return this.method.implementationMethod(this.implementation.getClass());
   }
 
   /** Sets the request header. */
@@ -91,6 +84,21 @@ public abstract class RpcInvocation {
     return required ? Preconditions.checkNotNull(rpcInvocation) : rpcInvocation;
   }
 
+  /**
+   * Sets the RpcInvocation for the current thread, or clears it if {@code invocation} is null.
+   * Returns the previous invocation. Lets servers carry an invocation to the thread that
+   * completes an asynchronous method.
+   */
+  public static RpcInvocation setCurrent(RpcInvocation invocation) {
+    RpcInvocation previous = current.get();
+    if (invocation == null) {
+      current.remove();
+    } else {
+      current.set(invocation);
+    }
+    return previous;
+  }
+
   /** Returns a filter that sets the invocation on the current thread. */
   public static RpcFilter threadLocalFilter() {
     return new RpcFilter() {
@@ -110,18 +118,23 @@ public abstract class RpcInvocation {
    * implementation instance.
    */
   public static RpcInvocation newInstance(Class<?> headerType, Object header,
-      final Object implementation, final RpcMethod method, final Object argument) {
+      Object implementation, RpcMethod method, Object argument) {
+    return newInstance(headerType, header, implementation, method, argument,
+        method.reflectiveInvoker());
+  }
+
+  /**
+   * Creates a new invocation that invokes the given method on the given implementation instance
+   * using the given invoker.
+   */
+  public static RpcInvocation newInstance(Class<?> headerType, Object header,
+      final Object implementation, RpcMethod method, final Object argument,
+      final RpcInvoker invoker) {
     headerType.cast(header);
-    method.method().getParameterTypes()[0].cast(argument);
+    method.argumentType().cast(argument);
     return new RpcInvocation(headerType, method, header, argument, implementation) {
       public Object proceed() throws Exception {
-        try {
-          return method.method().invoke(implementation, argument);
-        } catch (InvocationTargetException e) {
-          Throwable cause = e.getCause();
-          if (cause instanceof Exception) throw (Exception) cause;
-          throw e;
-        }
+        return invoker.invoke(implementation, argument);
       }
     };
   }
@@ -0,0 +1,13 @@
+package present.wire.rpc.core;
+
+/**
+ * Calls an RPC method on a service implementation. Servers build one per method when they
+ * register a service so they don't pay for reflection on every call.
+ *
+ * @see RpcMethod#reflectiveInvoker()
+ */
+public interface RpcInvoker {
+
+  /** Invokes the method on the given implementation and returns its result. */
+  Object invoke(Object implementation, Object argument) throws Exception;
+}
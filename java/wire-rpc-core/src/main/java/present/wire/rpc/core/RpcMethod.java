@@ -1,12 +1,21 @@
 package present.wire.rpc.core;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
 import com.squareup.wire.Message;
 import com.squareup.wire.ProtoAdapter;
+import com.squareup.wire.WireTypeAdapterFactory;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import okio.ByteString;
 
 /**
@@ -16,21 +25,48 @@ import okio.ByteString;
  */
 public class RpcMethod {
 
+  /** Encodes JSON arguments and results. Supports Wire messages. */
+  public static final Gson gson = new GsonBuilder()
+      .registerTypeAdapterFactory(new WireTypeAdapterFactory())
+      .create();
+
   private final Method method;
   private final Class<?> argumentType;
   private final Class<?> resultType;
+  private final boolean async;
   private final ProtoAdapter argumentAdapter;
   private final ProtoAdapter resultAdapter;
+  private final TypeAdapter<Object> argumentJsonAdapter;
+  private final TypeAdapter<Object> resultJsonAdapter;
+  private final RpcInvoker reflectiveInvoker;
+
+  /** Implementation methods by implementation class. */
+  private final ConcurrentMap<Class<?>, Method> implementationMethods =
+      new ConcurrentHashMap<>();
 
   public RpcMethod(Method method) {
     this.method = method;
     Preconditions.checkArgument(method.getParameterTypes().length == 1);
     this.argumentType = method.getParameterTypes()[0];
-    this.resultType = method.getReturnType();
+    this.async = !Message.class.isAssignableFrom(method.getReturnType());
+    this.resultType = async ? asyncResultType(method) : method.getReturnType();
     Preconditions.checkArgument(Message.class.isAssignableFrom(this.argumentType));
     Preconditions.checkArgument(Message.class.isAssignableFrom(this.resultType));
     argumentAdapter = ProtoAdapter.get(this.argumentType);
     resultAdapter = ProtoAdapter.get(resultType);
+    argumentJsonAdapter = jsonAdapter(argumentType);
+    resultJsonAdapter = jsonAdapter(resultType);
+    reflectiveInvoker = new RpcInvoker() {
+      @Override public Object invoke(Object implementation, Object argument) throws Exception {
+        try {
+          return RpcMethod.this.method.invoke(implementation, argument);
+        } catch (InvocationTargetException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof Exception) throw (Exception) cause;
+          throw e;
+        }
+      }
+    };
   }
 
   public Class<?> service() { return method.getDeclaringClass(); }
@@ -43,10 +79,78 @@ public class RpcMethod {
     return argumentType;
   }
 
+  /** Returns the message type of the result, even if the method is asynchronous. */
   public Class<?> resultType() {
     return resultType;
   }
 
+  /**
+   * Returns true if the method returns a future of its result, for example
+   * {@code CompletionStage<T>}, instead of the result itself. Only servers support asynchronous
+   * methods.
+   */
+  public boolean isAsync() {
+    return async;
+  }
+
+  /** Returns T from a return type like {@code CompletionStage<T>}. */
+  private static Class<?> asyncResultType(Method method) {
+    Type returnType = method.getGenericReturnType();
+    Preconditions.checkArgument(returnType instanceof ParameterizedType);
+    Type[] typeArguments = ((ParameterizedType) returnType).getActualTypeArguments();
+    Preconditions.checkArgument(typeArguments.length == 1 && typeArguments[0] instanceof Class);
+    return (Class<?>) typeArguments[0];
+  }
+
+  public ProtoAdapter argumentAdapter() {
+    return argumentAdapter;
+  }
+
+  public ProtoAdapter resultAdapter() {
+    return resultAdapter;
+  }
+
+  /** Returns the Gson adapter for the argument type. */
+  public TypeAdapter<Object> argumentJsonAdapter() {
+    return argumentJsonAdapter;
+  }
+
+  /** Returns the Gson adapter for the result type. */
+  public TypeAdapter<Object> resultJsonAdapter() {
+    return resultJsonAdapter;
+  }
+
+  /** Looks up the Gson adapter for the given type. Gson caches these, but not for free. */
+  @SuppressWarnings("unchecked") // The adapter reads and writes instances of type.
+  public static TypeAdapter<Object> jsonAdapter(Class<?> type) {
+    return (TypeAdapter<Object>) gson.getAdapter(type);
+  }
+
+  /** Returns an invoker that calls this method using reflection. */
+  public RpcInvoker reflectiveInvoker() {
+    return reflectiveInvoker;
+  }
+
+  /**
+   * Returns the method that implements this method in the given class. Looked up once per class,
+   * so filters can check annotations on every call.
+   */
+  public Method implementationMethod(Class<?> implementationType) {
+    Method implementationMethod = implementationMethods.get(implementationType);
+    if (implementationMethod == null) {
+      try {
+        implementationMethod = implementationType.getMethod(
+            method.getName(), method.getParameterTypes());
+      } catch (NoSuchMethodException e) {
+        throw new RuntimeException(e);
+      }
+      Method existing = implementationMethods.putIfAbsent(implementationType,
+          implementationMethod);
+      if (existing != null) implementationMethod = existing;
+    }
+    return implementationMethod;
+  }
+
   /** Maps method names to {@code ServiceMethod}s for a given service. */
   public static Map<String, RpcMethod> mapFor(Class<?> service) {
     Preconditions.checkArgument(service.isInterface());
@@ -62,7 +166,7 @@ public class RpcMethod {
   }
 
   public ByteString argumentToBytes(Message argument) {
-    return toBytes(argument, argumentAdapter, method.getParameterTypes()[0]);
+    return toBytes(argument, argumentAdapter, argumentType);
   }
 
   public Message resultFromBytes(ByteString result) throws IOException {
@@ -70,7 +174,7 @@ public class RpcMethod {
   }
 
   public ByteString resultToBytes(Object result) {
-    return toBytes(result, resultAdapter, method.getReturnType());
+    return toBytes(result, resultAdapter, resultType);
   }
 
   private static ByteString toBytes(Object value, ProtoAdapter adapter, Class<?> expectedType) {
@@ -0,0 +1,23 @@
+package present.wire.rpc.server;
+
+import java.io.IOException;
+
+/** Header and argument decoded from a request envelope. */
+class DecodedRequest {
+
+  final Object header;
+  final Object argument;
+
+  DecodedRequest(Object header, Object argument) {
+    this.header = header;
+    this.argument = argument;
+  }
+
+  /** The request envelope was fine, but the argument wasn't. */
+  static class InvalidArgumentException extends IOException {
+
+    InvalidArgumentException(Throwable cause) {
+      super(cause);
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package present.wire.rpc.server;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import present.wire.rpc.core.RpcInvoker;
+import present.wire.rpc.core.RpcMethod;
+
+/**
+ * Builds {@link RpcInvoker}s that call service methods directly instead of through reflection.
+ * We spin an {@code RpcInvoker} class per method with {@link LambdaMetafactory}, the same way
+ * javac compiles a method reference, so the JIT can inline the call.
+ */
+class Invokers {
+
+  private static final Logger logger = LoggerFactory.getLogger(Invokers.class);
+
+  private static final MethodType INVOKE_TYPE = MethodType.methodType(Object.class,
+      Object.class, Object.class);
+
+  private Invokers() {}
+
+  /**
+   * Returns a direct invoker for the given method. Falls back to reflection if the service
+   * interface isn't accessible.
+   */
+  static RpcInvoker direct(RpcMethod method) {
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      MethodHandle target = lookup.unreflect(method.method());
+      CallSite site = LambdaMetafactory.metafactory(lookup, "invoke",
+          MethodType.methodType(RpcInvoker.class), INVOKE_TYPE, target, target.type());
+      return (RpcInvoker) site.getTarget().invoke();
+    } catch (Throwable t) {
+      logger.warn("Couldn't build direct invoker for " + method + ". Using reflection.", t);
+      return method.reflectiveInvoker();
+    }
+  }
+}
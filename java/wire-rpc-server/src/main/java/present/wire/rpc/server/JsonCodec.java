@@ -0,0 +1,92 @@
+package present.wire.rpc.server;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import present.wire.rpc.core.JsonRequest;
+import present.wire.rpc.core.JsonResponse;
+import present.wire.rpc.core.RpcMethod;
+
+/**
+ * Reads {@link JsonRequest} and writes {@link JsonResponse} envelopes without building
+ * intermediate {@code JsonElement} trees. The header and argument are read straight from the
+ * request stream by their type adapters, and the result is written straight into the response
+ * stream. This produces the same JSON as serializing a {@code JsonResponse}. Callers resolve
+ * adapters once, in {@link RpcMethod} and {@link RpcService}.
+ */
+class JsonCodec {
+
+  static final Gson gson = RpcMethod.gson;
+
+  private static final String HEADER = "header";
+  private static final String ARGUMENT = "argument";
+  private static final String RESULT = "result";
+
+  private JsonCodec() {}
+
+  /**
+   * Decodes a request envelope. The header is null if the request doesn't contain one.
+   *
+   * @throws DecodedRequest.InvalidArgumentException if the argument couldn't be decoded
+   * @throws IOException if the envelope couldn't be decoded, doesn't contain an argument, or
+   *     is followed by more data
+   */
+  static DecodedRequest decodeRequest(Reader in, TypeAdapter<?> headerAdapter,
+      TypeAdapter<?> argumentAdapter) throws IOException {
+    JsonReader reader = gson.newJsonReader(in);
+    // Match Gson.fromJson().
+    reader.setLenient(true);
+    Object header = null;
+    Object argument = null;
+    try {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case HEADER:
+            header = read(reader, headerAdapter);
+            break;
+          case ARGUMENT:
+            try {
+              argument = read(reader, argumentAdapter);
+            } catch (IOException | RuntimeException e) {
+              throw new DecodedRequest.InvalidArgumentException(e);
+            }
+            break;
+          default:
+            reader.skipValue();
+        }
+      }
+      reader.endObject();
+      if (reader.peek() != JsonToken.END_DOCUMENT) throw new IOException("Trailing data.");
+    } catch (RuntimeException e) {
+      // For example, IllegalStateException or JsonParseException. The client sent bad JSON.
+      throw new IOException(e);
+    }
+    if (argument == null) throw new IOException("Missing argument.");
+    return new DecodedRequest(header, argument);
+  }
+
+  private static Object read(JsonReader reader, TypeAdapter<?> adapter) throws IOException {
+    if (reader.peek() == JsonToken.NULL) {
+      reader.nextNull();
+      return null;
+    }
+    return adapter.read(reader);
+  }
+
+  /** Writes a successful response containing the given result. Flushes the writer. */
+  static void writeResult(Writer out, TypeAdapter<Object> resultAdapter, Object result)
+      throws IOException {
+    JsonWriter writer = gson.newJsonWriter(out);
+    writer.beginObject();
+    writer.name(RESULT);
+    resultAdapter.write(writer, result);
+    writer.endObject();
+    writer.flush();
+  }
+}
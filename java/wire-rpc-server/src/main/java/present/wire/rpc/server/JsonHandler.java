@@ -1,26 +1,20 @@
 package present.wire.rpc.server;
 
 import com.google.common.base.Charsets;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonElement;
-import com.squareup.wire.WireTypeAdapterFactory;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.io.StringWriter;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import present.wire.rpc.core.ClientException;
 import present.wire.rpc.core.Error;
-import present.wire.rpc.core.JsonRequest;
 import present.wire.rpc.core.JsonResponse;
 import present.wire.rpc.core.RpcMethod;
 import present.wire.rpc.core.RpcProtocol;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static present.wire.rpc.core.Error.Type.CLIENT;
 import static present.wire.rpc.core.Error.Type.SERVER;
 
@@ -30,16 +24,46 @@ class JsonHandler implements RpcHandler {
 
   private static final Logger logger = LoggerFactory.getLogger(JsonHandler.class);
 
-  private static Gson gson = new GsonBuilder()
-      //.setPrettyPrinting()
-      .registerTypeAdapterFactory(new WireTypeAdapterFactory())
-      .create();
-
   @Override public void handle(HttpServletRequest httpRequest, HttpServletResponse httpResponse,
       RpcService service, RpcMethod method) throws IOException {
-    JsonResponse response = handle(httpRequest, service, method);
+    final DecodedRequest request;
+    try {
+      request = JsonCodec.decodeRequest(new InputStreamReader(httpRequest.getInputStream(),
+          Charsets.UTF_8), service.headerJsonAdapter, method.argumentJsonAdapter());
+      if (DEBUG) logger.info("{}: {}", method, request.argument);
+    } catch (DecodedRequest.InvalidArgumentException e) {
+      logger.info("Invalid argument.", e);
+      send(httpResponse, method, error(CLIENT, "Invalid argument."));
+      return;
+    } catch (IOException e) {
+      logger.info("Invalid request.", e);
+      send(httpResponse, method, error(CLIENT, "Invalid request."));
+      return;
+    }
+
+    RpcCall.invoke(httpRequest, service, request.header, method, request.argument,
+        (result, error) -> send(httpResponse, method, toResult(method, result, error)));
+  }
+
+  private static Result toResult(RpcMethod method, Object result, Throwable error) {
+    if (error instanceof ClientException) {
+      logger.info("Client error.", error);
+      return error(CLIENT, error.getMessage());
+    }
     try {
-      if (response.error == null) {
+      if (error != null) throw error;
+      method.resultType().cast(checkNotNull(result, "%s returned null.", method));
+      return new Result(result, null);
+    } catch (Throwable t) {
+      logger.error("Server error.", t);
+      return error(SERVER, RpcHandler.toString(t));
+    }
+  }
+
+  private static void send(HttpServletResponse httpResponse, RpcMethod method, Result result) {
+    JsonResponse response = result.error;
+    try {
+      if (response == null) {
         httpResponse.setStatus(200);
       } else {
         httpResponse.setStatus(response.error.type == CLIENT ? 400 : 500);
@@ -47,50 +71,32 @@ class JsonHandler implements RpcHandler {
       httpResponse.setContentType(RpcProtocol.JSON.contentType);
       try (OutputStreamWriter out = new OutputStreamWriter(
           httpResponse.getOutputStream(), Charsets.UTF_8)) {
-        gson.toJson(response, out);
-        if (DEBUG) logger.info(gson.toJson(response));
-      };
+        if (response == null) {
+          JsonCodec.writeResult(out, method.resultJsonAdapter(), result.value);
+          if (DEBUG) logger.info("{}: {}", method, result.value);
+        } else {
+          JsonCodec.gson.toJson(response, out);
+          if (DEBUG) logger.info(JsonCodec.gson.toJson(response));
+        }
+      }
     } catch (IOException e) {
       logger.info("Error sending response to client.", e);
     }
   }
 
-  private JsonResponse handle(HttpServletRequest servletRequest, final RpcService service,
-      final RpcMethod method) throws IOException {
-    final JsonRequest request;
-    try {
-      request = gson.fromJson(new InputStreamReader(servletRequest.getInputStream(),
-          Charsets.UTF_8), JsonRequest.class);
-      if (DEBUG) logger.info(gson.toJson(request));
-    } catch (IOException e) {
-      logger.info("Invalid request.", e);
-      return error(CLIENT, "Invalid request.");
-    }
+  /** Either a result to encode or an error response. */
+  private static class Result {
 
-    final Object argument;
-    try {
-      argument = gson.fromJson(request.argument, method.argumentType());
-    } catch (Exception e) {
-      logger.info("Invalid argument.", e);
-      return error(CLIENT, "Invalid argument.");
-    }
+    private final Object value;
+    private final JsonResponse error;
 
-    Object header = request.header == null ? null
-        : gson.fromJson(request.header, service.headerType);
-    try {
-      Object result = service.invoke(header, method, argument);
-      JsonElement jsonResult = gson.toJsonTree(result);
-      return new JsonResponse(jsonResult);
-    } catch (ClientException e) {
-      logger.info("Client error.", e);
-      return error(CLIENT, e.getMessage());
-    } catch (Exception e) {
-      logger.error("Server error.", e);
-      return error(SERVER, RpcHandler.toString(e));
+    private Result(Object value, JsonResponse error) {
+      this.value = value;
+      this.error = error;
     }
   }
 
-  private static JsonResponse error(Error.Type type, String message) {
-    return new JsonResponse(new Error(type, message));
+  private static Result error(Error.Type type, String message) {
+    return new Result(null, new JsonResponse(new Error(type, message)));
   }
 }
@@ -0,0 +1,72 @@
+package present.wire.rpc.server;
+
+import com.squareup.wire.ProtoAdapter;
+import com.squareup.wire.ProtoReader;
+import com.squareup.wire.ProtoWriter;
+import java.io.IOException;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import present.wire.rpc.core.Request;
+import present.wire.rpc.core.Response;
+
+/**
+ * Reads {@link Request} and writes {@link Response} envelopes without materializing their
+ * {@code bytes} fields. The header and argument are decoded straight from the request stream,
+ * and the result is encoded straight into the response stream as the {@code resultBytes} field.
+ * This produces exactly the same bytes as the generated adapters.
+ */
+class ProtoCodec {
+
+  /** {@link Request#header}. */
+  static final int HEADER_TAG = 3;
+
+  /** {@link Request#argument}. */
+  static final int ARGUMENT_TAG = 4;
+
+  /** {@link Response#resultBytes}. */
+  static final int RESULT_TAG = 2;
+
+  private ProtoCodec() {}
+
+  /**
+   * Decodes a request envelope.
+   *
+   * @throws DecodedRequest.InvalidArgumentException if the argument couldn't be decoded
+   * @throws IOException if the envelope couldn't be decoded
+   */
+  static DecodedRequest decodeRequest(BufferedSource source, ProtoAdapter<?> headerAdapter,
+      ProtoAdapter<?> argumentAdapter) throws IOException {
+    ProtoReader reader = new ProtoReader(source);
+    Object header = null;
+    Object argument = null;
+    long token = reader.beginMessage();
+    for (int tag; (tag = reader.nextTag()) != -1; ) {
+      switch (tag) {
+        case HEADER_TAG:
+          header = headerAdapter.decode(reader);
+          break;
+        case ARGUMENT_TAG:
+          try {
+            argument = argumentAdapter.decode(reader);
+          } catch (IOException | RuntimeException e) {
+            throw new DecodedRequest.InvalidArgumentException(e);
+          }
+          break;
+        default:
+          reader.skip();
+      }
+    }
+    reader.endMessage(token);
+    if (argument == null) throw new IOException("Missing argument.");
+    return new DecodedRequest(header, argument);
+  }
+
+  /** Writes a successful response containing the given result. Flushes the sink. */
+  @SuppressWarnings("unchecked")
+  static void writeResult(BufferedSink sink, ProtoAdapter resultAdapter, Object result)
+      throws IOException {
+    // A length-delimited message has the same encoding as a bytes field.
+    resultAdapter.encodeWithTag(new ProtoWriter(sink), RESULT_TAG, result);
+    sink.flush();
+  }
+}
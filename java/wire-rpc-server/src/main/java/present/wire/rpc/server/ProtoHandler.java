@@ -1,23 +1,22 @@
 package present.wire.rpc.server;
 
-import com.squareup.wire.Message;
-import com.squareup.wire.ProtoAdapter;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import okio.ByteString;
+import okio.BufferedSink;
+import okio.Okio;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import present.wire.rpc.core.ClientException;
 import present.wire.rpc.core.Error;
-import present.wire.rpc.core.Request;
 import present.wire.rpc.core.Response;
 import present.wire.rpc.core.RpcMethod;
 import present.wire.rpc.core.RpcProtocol;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static present.wire.rpc.core.Error.Type.CLIENT;
 import static present.wire.rpc.core.Error.Type.SERVER;
 
@@ -29,9 +28,44 @@ class ProtoHandler implements RpcHandler {
 
   @Override public void handle(HttpServletRequest httpRequest, HttpServletResponse httpResponse,
       RpcService service, RpcMethod method) throws IOException {
-    Response response = handle(httpRequest, service, method);
+    final DecodedRequest request;
     try {
-      if (response.error == null) {
+      request = ProtoCodec.decodeRequest(Okio.buffer(Okio.source(httpRequest.getInputStream())),
+          service.headerAdapter, method.argumentAdapter());
+    } catch (DecodedRequest.InvalidArgumentException e) {
+      logger.error("Invalid argument.", e);
+      send(httpRequest, httpResponse, method, error(CLIENT, "Invalid argument."));
+      return;
+    } catch (IOException e) {
+      logger.error("Invalid request.", e);
+      send(httpRequest, httpResponse, method, error(CLIENT, "Invalid request."));
+      return;
+    }
+
+    RpcCall.invoke(httpRequest, service, request.header, method, request.argument,
+        (result, error) -> send(httpRequest, httpResponse, method, toResult(method, result, error)));
+  }
+
+  private static Result toResult(RpcMethod method, Object result, Throwable error) {
+    if (error instanceof ClientException) {
+      logger.info("Client error.", error);
+      return error(CLIENT, error.getMessage());
+    }
+    try {
+      if (error != null) throw error;
+      method.resultType().cast(checkNotNull(result, "%s returned null.", method));
+      return new Result(result, null);
+    } catch (Throwable t) {
+      logger.error("Server error.", t);
+      return error(SERVER, RpcHandler.toString(t));
+    }
+  }
+
+  private static void send(HttpServletRequest httpRequest, HttpServletResponse httpResponse,
+      RpcMethod method, Result result) {
+    Response response = result.error;
+    try {
+      if (response == null) {
         httpResponse.setStatus(200);
       } else {
         httpResponse.setStatus(response.error.type == CLIENT ? 400 : 500);
@@ -44,46 +78,31 @@ class ProtoHandler implements RpcHandler {
         }
       }
       httpResponse.setContentType(RpcProtocol.PROTO.contentType);
-      response.encode(httpResponse.getOutputStream());
+      BufferedSink sink = Okio.buffer(Okio.sink(httpResponse.getOutputStream()));
+      if (response == null) {
+        ProtoCodec.writeResult(sink, method.resultAdapter(), result.value);
+      } else {
+        Response.ADAPTER.encode(sink, response);
+        sink.flush();
+      }
     } catch (IOException e) {
       logger.error("Error sending response to client.", e);
     }
   }
 
-  private Response handle(HttpServletRequest servletRequest, final RpcService service,
-      final RpcMethod method) throws IOException {
-    final Request request;
-    try {
-      request = Request.ADAPTER.decode(servletRequest.getInputStream());
-    } catch (IOException e) {
-      logger.error("Invalid request.", e);
-      return error(CLIENT, "Invalid request.");
-    }
+  /** Either a result to encode or an error response. */
+  private static class Result {
 
-    final Message argument;
-    try {
-      argument = method.argumentFromBytes(request.argument);
-    } catch (Exception e) {
-      logger.error("Invalid argument.", e);
-      return error(CLIENT, "Invalid argument.");
-    }
+    private final Object value;
+    private final Response error;
 
-    ProtoAdapter headerAdapter = ProtoAdapter.get(service.headerType);
-    Object header = request.header == null ? null : headerAdapter.decode(request.header);
-    try {
-      Object result = service.invoke(header, method, argument);
-      ByteString encodedResult = method.resultToBytes(result);
-      return new Response(null, encodedResult);
-    } catch (ClientException e) {
-      logger.info("Client error.", e);
-      return error(CLIENT, e.getMessage());
-    } catch (Exception e) {
-      logger.error("Server error.", e);
-      return error(SERVER, RpcHandler.toString(e));
+    private Result(Object value, Response error) {
+      this.value = value;
+      this.error = error;
     }
   }
 
-  private static Response error(Error.Type type, String message) {
-    return new Response(new Error(type, message), null);
+  private static Result error(Error.Type type, String message) {
+    return new Result(null, new Response(new Error(type, message), null));
   }
 }
@@ -0,0 +1,116 @@
+package present.wire.rpc.server;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import present.wire.rpc.core.RpcMethod;
+
+/**
+ * Invokes an RPC method and reports the outcome. If the method returns a {@link CompletionStage}
+ * and the container supports it, we put the request in asynchronous mode and release the
+ * container thread until the stage completes. Otherwise, we wait for the stage on the request
+ * thread, same as a synchronous method.
+ */
+class RpcCall {
+
+  /** How long asynchronous methods have to complete. */
+  static final long ASYNC_TIMEOUT_MILLIS = 60_000;
+
+  private RpcCall() {}
+
+  /** Receives the result of an RPC method, or the error it failed with. */
+  interface Callback {
+    void complete(Object result, Throwable error);
+  }
+
+  static void invoke(HttpServletRequest httpRequest, RpcService service, Object header,
+      RpcMethod method, Object argument, Callback callback) {
+    Object result;
+    CompletableFuture<?> methodStage;
+    try {
+      result = service.invoke(header, method, argument);
+    } catch (Exception e) {
+      callback.complete(null, e);
+      return;
+    } finally {
+      methodStage = ThreadContext.takeStage();
+    }
+    if (!(result instanceof CompletionStage)) {
+      callback.complete(result, null);
+      return;
+    }
+    CompletionStage<?> stage = (CompletionStage<?>) result;
+    if (httpRequest.isAsyncSupported()) {
+      completeAsync(httpRequest, method, stage, methodStage, callback);
+    } else {
+      try {
+        callback.complete(stage.toCompletableFuture().get(), null);
+      } catch (ExecutionException e) {
+        callback.complete(null, e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        callback.complete(null, e);
+      }
+    }
+  }
+
+  /**
+   * Writes the result once {@code stage} completes. Cancels {@code methodStage}, the stage
+   * returned by the method before filters wrapped it, if the container gives up first.
+   */
+  private static void completeAsync(HttpServletRequest httpRequest, RpcMethod method,
+      CompletionStage<?> stage, CompletionStage<?> methodStage, Callback callback) {
+    AsyncContext context = httpRequest.startAsync();
+    context.setTimeout(ASYNC_TIMEOUT_MILLIS);
+    // Report the outcome once, whether the stage completes or the container gives up first.
+    AtomicBoolean done = new AtomicBoolean();
+    context.addListener(new AsyncListener() {
+      @Override public void onTimeout(AsyncEvent event) {
+        abort(new TimeoutException(method + " timed out."));
+      }
+
+      @Override public void onError(AsyncEvent event) {
+        Throwable t = event.getThrowable();
+        abort(t == null ? new IOException(method + " failed.") : t);
+      }
+
+      /** Reports the error and stops waiting for the method. */
+      private void abort(Throwable t) {
+        if (!done.compareAndSet(false, true)) return;
+        try {
+          callback.complete(null, t);
+        } finally {
+          context.complete();
+          if (methodStage != null) cancel(methodStage);
+        }
+      }
+
+      @Override public void onComplete(AsyncEvent event) {}
+      @Override public void onStartAsync(AsyncEvent event) {}
+    });
+    stage.whenComplete((value, t) -> {
+      if (!done.compareAndSet(false, true)) return;
+      try {
+        callback.complete(value, RpcResults.unwrap(t));
+      } finally {
+        context.complete();
+      }
+    });
+  }
+
+  /** Cancels the given stage, if it supports cancellation. */
+  static void cancel(CompletionStage<?> stage) {
+    try {
+      stage.toCompletableFuture().cancel(true);
+    } catch (UnsupportedOperationException e) {
+      // The stage doesn't support cancellation. Let it run.
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package present.wire.rpc.server;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import present.wire.rpc.core.RpcFilter;
+import present.wire.rpc.core.RpcInvocation;
+
+/**
+ * Helps {@link RpcFilter}s act on results that may complete asynchronously.
+ *
+ * <pre>{@code
+ * public Object filter(RpcInvocation invocation) throws Exception {
+ *   long start = System.nanoTime();
+ *   return RpcResults.whenComplete(invocation,
+ *       (result, error) -> record(invocation, System.nanoTime() - start, error));
+ * }
+ * }</pre>
+ */
+public final class RpcResults {
+
+  private RpcResults() {}
+
+  /**
+   * Proceeds with the given invocation and calls {@code action} with the result or error once
+   * the method completes. If the method is synchronous, this calls {@code action} before it
+   * returns or throws. If the method is asynchronous, this returns a stage that completes after
+   * {@code action} runs.
+   */
+  public static Object whenComplete(RpcInvocation invocation,
+      BiConsumer<Object, Throwable> action) throws Exception {
+    Object result;
+    try {
+      result = invocation.proceed();
+    } catch (Exception e) {
+      action.accept(null, e);
+      throw e;
+    }
+    if (result instanceof CompletionStage) {
+      return ((CompletionStage<?>) result).whenComplete(
+          (value, error) -> action.accept(value, unwrap(error)));
+    }
+    action.accept(result, null);
+    return result;
+  }
+
+  /** Returns the exception thrown by the method, without the wrapper added by the stage. */
+  static Throwable unwrap(Throwable t) {
+    if ((t instanceof CompletionException || t instanceof ExecutionException)
+        && t.getCause() != null) {
+      return t.getCause();
+    }
+    return t;
+  }
+}
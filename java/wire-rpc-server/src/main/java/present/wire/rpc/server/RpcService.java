@@ -1,11 +1,18 @@
 package present.wire.rpc.server;
 
+import com.google.gson.TypeAdapter;
+import com.squareup.wire.ProtoAdapter;
 import present.wire.rpc.core.RpcFilter;
 import present.wire.rpc.core.RpcFilterChain;
 import present.wire.rpc.core.RpcInvocation;
+import present.wire.rpc.core.RpcInvoker;
 import present.wire.rpc.core.RpcMethod;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletionStage;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 class RpcService {
@@ -15,20 +22,34 @@ class RpcService {
   final Map<String, RpcMethod> methods;
   final RpcFilter filter;
   final Map<String, String> aliases;
+  final ProtoAdapter<?> headerAdapter;
+  final TypeAdapter<Object> headerJsonAdapter;
+
+  /** Invokers by method, built once at registration. */
+  private final Map<RpcMethod, RpcInvoker> invokers = new IdentityHashMap<>();
 
   <T> RpcService(Class<?> headerType, Class<T> interfaceType, T implementation,
-      RpcFilter filter, Map<String, String> aliases) {
+      RpcFilter filter, Map<String, String> aliases, List<ThreadLocal<?>> propagated) {
     this.headerType = headerType;
     methods = RpcMethod.mapFor(interfaceType);
+    for (RpcMethod method : methods.values()) {
+      checkArgument(!method.isAsync()
+              || CompletionStage.class.isAssignableFrom(method.method().getReturnType()),
+          "%s must return a message or a CompletionStage.", method);
+      invokers.put(method, Invokers.direct(method));
+    }
     this.implementation = checkNotNull(implementation);
-    this.filter = filter == null ? RpcInvocation.threadLocalFilter()
-        : new RpcFilterChain().add(RpcInvocation.threadLocalFilter()).add(filter);
+    RpcFilterChain chain = new RpcFilterChain().add(RpcInvocation.threadLocalFilter());
+    if (filter != null) chain.add(filter);
+    this.filter = chain.add(ThreadContext.filter(propagated));
     this.aliases = aliases;
+    this.headerAdapter = ProtoAdapter.get(headerType);
+    this.headerJsonAdapter = RpcMethod.jsonAdapter(headerType);
   }
 
   Object invoke(Object header, RpcMethod method, Object argument) throws Exception {
     RpcInvocation invocation = RpcInvocation.newInstance(headerType, header, implementation,
-        method, argument);
+        method, argument, invokers.get(method));
     return filter.filter(invocation);
   }
 }
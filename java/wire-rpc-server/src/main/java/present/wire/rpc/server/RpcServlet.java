@@ -6,6 +6,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -28,6 +29,11 @@ import static com.google.common.base.Preconditions.checkState;
  * JSON request and response wrappers have the same shape as the wrappers in rpc.proto except
  * they use JSON objects instead of bytes.
  *
+ * Service methods may return a {@code CompletionStage} of their result instead of the result
+ * itself. If the servlet is registered with async support, the container thread is released
+ * until the stage completes. Otherwise, the request thread waits for it. Asynchronous
+ * "FooServiceAsync" interfaces are served at "/FooService/methodName".
+ *
  * @author Bob Lee (bob@present.co)
  */
 public abstract class RpcServlet extends HttpServlet {
@@ -44,6 +50,22 @@ public abstract class RpcServlet extends HttpServlet {
 
   private final Map<String, RpcService> services = new HashMap<>();
 
+  /** Thread-locals carried to threads that complete asynchronous methods. */
+  private final List<ThreadLocal<?>> propagated = new CopyOnWriteArrayList<>();
+
+  /** Suffix of asynchronous service interfaces. */
+  private static final String ASYNC_SUFFIX = "Async";
+
+  /**
+   * Carries the given thread-local from the thread that invokes an asynchronous method to the
+   * thread that completes it, so filters see the same value when the method completes. The
+   * current {@link present.wire.rpc.core.RpcInvocation} is always carried. Called from subclass
+   * constructors.
+   */
+  protected void propagate(ThreadLocal<?> threadLocal) {
+    propagated.add(checkNotNull(threadLocal));
+  }
+
   /** Declares a service. Called from subclass constructors. */
   protected <T> void service(Class<?> headerType, Class<T> interfaceType, T implementation,
       RpcFilter filter) {
@@ -56,9 +78,21 @@ public abstract class RpcServlet extends HttpServlet {
     checkNotNull(interfaceType);
     checkNotNull(implementation);
 
-    String name = interfaceType.getSimpleName();
+    String name = serviceName(interfaceType);
     checkState(!services.containsKey(name), "'%s' is already mapped.", name);
-    services.put(name, new RpcService(headerType, interfaceType, implementation, filter, aliases));
+    services.put(name, new RpcService(headerType, interfaceType, implementation, filter, aliases,
+        propagated));
+  }
+
+  /**
+   * Returns the name of the service at the given interface. "FooServiceAsync" is served as
+   * "FooService", the name clients call.
+   */
+  static String serviceName(Class<?> interfaceType) {
+    String name = interfaceType.getSimpleName();
+    return name.endsWith(ASYNC_SUFFIX) && name.length() > ASYNC_SUFFIX.length()
+        ? name.substring(0, name.length() - ASYNC_SUFFIX.length())
+        : name;
   }
 
   @Override protected void doPost(HttpServletRequest httpRequest,
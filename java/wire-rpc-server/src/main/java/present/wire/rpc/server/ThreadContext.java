@@ -0,0 +1,97 @@
+package present.wire.rpc.server;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import present.wire.rpc.core.RpcFilter;
+import present.wire.rpc.core.RpcInvocation;
+
+/**
+ * Thread-local state an RPC runs with: the {@link RpcInvocation} plus any thread-locals
+ * registered with {@link RpcServlet#propagate}. Asynchronous methods usually complete on another
+ * thread, after the filters that set this state have cleared it, so we capture it when the
+ * method returns its stage and restore it while the stage's callbacks run.
+ */
+class ThreadContext {
+
+  /** Stage returned by the innermost filter on this thread. See {@link #takeStage()}. */
+  private static final ThreadLocal<CompletableFuture<?>> innermostStage = new ThreadLocal<>();
+
+  private final RpcInvocation invocation;
+  private final List<ThreadLocal<?>> threadLocals;
+  private final Object[] values;
+
+  private ThreadContext(RpcInvocation invocation, List<ThreadLocal<?>> threadLocals,
+      Object[] values) {
+    this.invocation = invocation;
+    this.threadLocals = threadLocals;
+    this.values = values;
+  }
+
+  /** Captures the current thread's state. */
+  static ThreadContext capture(List<ThreadLocal<?>> threadLocals) {
+    Object[] values = new Object[threadLocals.size()];
+    for (int i = 0; i < values.length; i++) values[i] = threadLocals.get(i).get();
+    return new ThreadContext(RpcInvocation.current(false), threadLocals, values);
+  }
+
+  /** Installs this state on the current thread. Returns the state it replaced. */
+  ThreadContext restore() {
+    Object[] previous = new Object[values.length];
+    for (int i = 0; i < values.length; i++) {
+      @SuppressWarnings("unchecked") // We got the value from the same thread-local.
+      ThreadLocal<Object> threadLocal = (ThreadLocal<Object>) threadLocals.get(i);
+      previous[i] = threadLocal.get();
+      if (values[i] == null) {
+        threadLocal.remove();
+      } else {
+        threadLocal.set(values[i]);
+      }
+    }
+    return new ThreadContext(RpcInvocation.setCurrent(invocation), threadLocals, previous);
+  }
+
+  /**
+   * Returns a filter that restores the current state while callbacks on an asynchronous
+   * result run. Must be the innermost filter, so it sees the state the outer filters set.
+   * Cancelling the stage returned by {@link #takeStage()} cancels the method's stage.
+   */
+  static RpcFilter filter(List<ThreadLocal<?>> threadLocals) {
+    return invocation -> {
+      Object result = invocation.proceed();
+      if (!(result instanceof CompletionStage)) return result;
+      ThreadContext context = capture(threadLocals);
+      CompletionStage<?> stage = (CompletionStage<?>) result;
+      CompletableFuture<Object> restored = new CompletableFuture<>();
+      stage.whenComplete((value, error) -> {
+        // Dependent stages registered by filters and RpcCall run synchronously in here.
+        ThreadContext previous = context.restore();
+        try {
+          if (error == null) {
+            restored.complete(value);
+          } else {
+            restored.completeExceptionally(error);
+          }
+        } finally {
+          previous.restore();
+        }
+      });
+      restored.whenComplete((value, error) -> {
+        if (restored.isCancelled()) RpcCall.cancel(stage);
+      });
+      innermostStage.set(restored);
+      return restored;
+    };
+  }
+
+  /**
+   * Returns and clears the stage the innermost filter returned on this thread, or null if the
+   * method was synchronous. Outer filters may have wrapped it in other stages, and cancelling
+   * those doesn't reach the method.
+   */
+  static CompletableFuture<?> takeStage() {
+    CompletableFuture<?> stage = innermostStage.get();
+    innermostStage.remove();
+    return stage;
+  }
+}
@@ -0,0 +1,85 @@
+package present.wire.rpc.server;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import okio.ByteString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import present.wire.rpc.core.Request;
+import present.wire.rpc.core.Response;
+import present.wire.rpc.core.RpcInvoker;
+import present.wire.rpc.core.RpcMethod;
+
+/**
+ * Compares the reflective and direct {@link RpcInvoker}s, and cached and uncached implementation
+ * method lookups.
+ *
+ * <p>Run with: {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=present.wire.rpc.server.InvokerBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InvokerBenchmark {
+
+  public interface EchoService {
+    Response echo(Request request) throws IOException;
+  }
+
+  public static class EchoServiceImpl implements EchoService {
+    private final Response response = new Response.Builder().resultBytes(ByteString.EMPTY).build();
+
+    @Override public Response echo(Request request) {
+      return response;
+    }
+  }
+
+  private final EchoService implementation = new EchoServiceImpl();
+  private final Request request = new Request(null, ByteString.EMPTY);
+  private RpcMethod method;
+  private RpcInvoker reflective;
+  private RpcInvoker direct;
+
+  @Setup public void setUp() {
+    method = RpcMethod.mapFor(EchoService.class).get("echo");
+    reflective = method.reflectiveInvoker();
+    direct = Invokers.direct(method);
+  }
+
+  @Benchmark public Object reflective() throws Exception {
+    return reflective.invoke(implementation, request);
+  }
+
+  @Benchmark public Object direct() throws Exception {
+    return direct.invoke(implementation, request);
+  }
+
+  @Benchmark public Method uncachedImplementationMethod() throws NoSuchMethodException {
+    Method method = this.method.method();
+    return implementation.getClass().getMethod(method.getName(), method.getParameterTypes());
+  }
+
+  @Benchmark public Method cachedImplementationMethod() {
+    return method.implementationMethod(implementation.getClass());
+  }
+
+  public static void main(String[] args) throws Exception {
+    new Runner(new OptionsBuilder()
+        .include(InvokerBenchmark.class.getSimpleName())
+        .build()).run();
+  }
+}
@@ -0,0 +1,53 @@
+package present.wire.rpc.server;
+
+import java.io.IOException;
+import okio.ByteString;
+import org.junit.Test;
+import present.wire.rpc.core.Request;
+import present.wire.rpc.core.Response;
+import present.wire.rpc.core.RpcInvoker;
+import present.wire.rpc.core.RpcMethod;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class InvokersTest {
+
+  public interface TestService {
+    Response call(Request request) throws IOException;
+  }
+
+  private final RpcMethod method = RpcMethod.mapFor(TestService.class).get("call");
+  private final Request request = new Request(null, ByteString.encodeUtf8("argument"));
+
+  @Test public void invokesMethod() throws Exception {
+    RpcInvoker invoker = Invokers.direct(method);
+    assertNotSame(method.reflectiveInvoker(), invoker);
+    Response response = (Response) invoker.invoke(new TestService() {
+      @Override public Response call(Request request) {
+        return new Response.Builder().resultBytes(request.argument).build();
+      }
+    }, request);
+    assertEquals(request.argument, response.resultBytes);
+  }
+
+  @Test public void propagatesExceptions() throws Exception {
+    final IOException expected = new IOException();
+    TestService implementation = new TestService() {
+      @Override public Response call(Request request) throws IOException {
+        throw expected;
+      }
+    };
+    for (RpcInvoker invoker : new RpcInvoker[] {
+        Invokers.direct(method), method.reflectiveInvoker() }) {
+      try {
+        invoker.invoke(implementation, request);
+        fail();
+      } catch (IOException e) {
+        assertSame(expected, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package present.wire.rpc.server;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import org.junit.Test;
+import present.wire.rpc.core.Error;
+import present.wire.rpc.core.JsonResponse;
+import present.wire.rpc.core.RpcMethod;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static present.wire.rpc.server.JsonCodec.gson;
+
+public class JsonCodecTest {
+
+  private static final Error HEADER = new Error(Error.Type.CLIENT, "header");
+  private static final Error ARGUMENT = new Error(Error.Type.SERVER, "argument");
+
+  @Test public void decodesRequest() throws IOException {
+    DecodedRequest decoded = decode("{\"header\":" + gson.toJson(HEADER)
+        + ",\"argument\":" + gson.toJson(ARGUMENT) + "}");
+    assertEquals(HEADER, decoded.header);
+    assertEquals(ARGUMENT, decoded.argument);
+  }
+
+  @Test public void headerIsOptional() throws IOException {
+    DecodedRequest decoded = decode("{\"header\":null,\"other\":[1,{}],\"argument\":"
+        + gson.toJson(ARGUMENT) + "}");
+    assertNull(decoded.header);
+    assertEquals(ARGUMENT, decoded.argument);
+  }
+
+  @Test public void rejectsBadArgument() throws IOException {
+    try {
+      decode("{\"argument\":[]}");
+      fail();
+    } catch (DecodedRequest.InvalidArgumentException expected) {
+    }
+  }
+
+  @Test public void rejectsBadEnvelope() throws IOException {
+    for (String json : new String[] { "", "[]", "{\"argument\":{}" }) {
+      try {
+        decode(json);
+        fail(json);
+      } catch (DecodedRequest.InvalidArgumentException e) {
+        throw new AssertionError(json, e);
+      } catch (IOException expected) {
+      }
+    }
+  }
+
+  @Test public void requiresArgument() throws IOException {
+    for (String json : new String[] { "{}", "{\"argument\":null}",
+        "{\"header\":" + gson.toJson(HEADER) + "}" }) {
+      try {
+        decode(json);
+        fail(json);
+      } catch (DecodedRequest.InvalidArgumentException e) {
+        throw new AssertionError(json, e);
+      } catch (IOException expected) {
+      }
+    }
+  }
+
+  @Test public void rejectsTrailingData() throws IOException {
+    String request = "{\"argument\":" + gson.toJson(ARGUMENT) + "}";
+    assertEquals(ARGUMENT, decode(request + " \n").argument);
+    for (String json : new String[] { request + "{}", request + "x", request + "}" }) {
+      try {
+        decode(json);
+        fail(json);
+      } catch (DecodedRequest.InvalidArgumentException e) {
+        throw new AssertionError(json, e);
+      } catch (IOException expected) {
+      }
+    }
+  }
+
+  @Test public void writesSameJsonAsTree() throws IOException {
+    StringWriter out = new StringWriter();
+    JsonCodec.writeResult(out, RpcMethod.jsonAdapter(Error.class), ARGUMENT);
+    assertEquals(gson.toJson(new JsonResponse(gson.toJsonTree(ARGUMENT))), out.toString());
+  }
+
+  private static DecodedRequest decode(String json) throws IOException {
+    return JsonCodec.decodeRequest(new StringReader(json), RpcMethod.jsonAdapter(Error.class),
+        RpcMethod.jsonAdapter(Error.class));
+  }
+}
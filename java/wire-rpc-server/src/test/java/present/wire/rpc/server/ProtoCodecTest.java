@@ -0,0 +1,54 @@
+package present.wire.rpc.server;
+
+import java.io.IOException;
+import okio.Buffer;
+import okio.ByteString;
+import org.junit.Test;
+import present.wire.rpc.core.Error;
+import present.wire.rpc.core.Request;
+import present.wire.rpc.core.Response;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class ProtoCodecTest {
+
+  private static final Error HEADER = new Error(Error.Type.CLIENT, "header");
+  private static final Error ARGUMENT = new Error(Error.Type.SERVER, "argument");
+
+  @Test public void decodesRequest() throws IOException {
+    Request request = new Request(ByteString.of(Error.ADAPTER.encode(HEADER)),
+        ByteString.of(Error.ADAPTER.encode(ARGUMENT)));
+    DecodedRequest decoded = decode(ByteString.of(request.encode()));
+    assertEquals(HEADER, decoded.header);
+    assertEquals(ARGUMENT, decoded.argument);
+  }
+
+  @Test public void headerIsOptional() throws IOException {
+    Request request = new Request(null, ByteString.of(Error.ADAPTER.encode(ARGUMENT)));
+    DecodedRequest decoded = decode(ByteString.of(request.encode()));
+    assertNull(decoded.header);
+    assertEquals(ARGUMENT, decoded.argument);
+  }
+
+  @Test public void rejectsBadArgument() throws IOException {
+    Request request = new Request(null, ByteString.encodeUtf8("not a proto"));
+    try {
+      decode(ByteString.of(request.encode()));
+      fail();
+    } catch (DecodedRequest.InvalidArgumentException expected) {
+    }
+  }
+
+  @Test public void writesSameBytesAsAdapter() throws IOException {
+    Buffer buffer = new Buffer();
+    ProtoCodec.writeResult(buffer, Error.ADAPTER, ARGUMENT);
+    Response expected = new Response(null, ByteString.of(Error.ADAPTER.encode(ARGUMENT)));
+    assertEquals(ByteString.of(expected.encode()), buffer.readByteString());
+  }
+
+  private static DecodedRequest decode(ByteString bytes) throws IOException {
+    return ProtoCodec.decodeRequest(new Buffer().write(bytes), Error.ADAPTER, Error.ADAPTER);
+  }
+}
@@ -0,0 +1,235 @@
+package present.wire.rpc.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import okio.ByteString;
+import org.junit.Test;
+import present.wire.rpc.core.ClientException;
+import present.wire.rpc.core.Error;
+import present.wire.rpc.core.Request;
+import present.wire.rpc.core.Response;
+import present.wire.rpc.core.RpcInvocation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RpcServletTest {
+
+  private static final Error ARGUMENT = new Error(Error.Type.CLIENT, "argument");
+
+  public interface EchoService {
+    Error echo(Error request) throws IOException;
+  }
+
+  /** Served at the same path as EchoService. */
+  public interface EchoServiceAsync {
+    CompletionStage<Error> echo(Error request);
+  }
+
+  private static final ThreadLocal<String> requestId = new ThreadLocal<>();
+
+  private CompletableFuture<Error> pending = new CompletableFuture<>();
+
+  /** Thread-local state seen by the filter when the method completed. */
+  private volatile String completedRequestId;
+  private volatile RpcInvocation completedInvocation;
+  private volatile RpcInvocation invocation;
+
+  private final RpcServlet syncServlet = new RpcServlet() {
+    {
+      service(Error.class, EchoService.class, request -> request, null);
+    }
+  };
+
+  private final RpcServlet servlet = new RpcServlet() {
+    {
+      propagate(requestId);
+      service(Error.class, EchoServiceAsync.class, request -> pending, invocation -> {
+        // Like a filter that sets request headers.
+        RpcServletTest.this.invocation = RpcInvocation.current();
+        requestId.set("request");
+        try {
+          return RpcResults.whenComplete(invocation, (result, error) -> {
+            completedRequestId = requestId.get();
+            completedInvocation = RpcInvocation.current(false);
+          });
+        } finally {
+          requestId.remove();
+        }
+      });
+    }
+  };
+
+  @Test public void servesAsyncInterfacesUnderServiceName() {
+    assertEquals("EchoService", RpcServlet.serviceName(EchoServiceAsync.class));
+    assertEquals("EchoService", RpcServlet.serviceName(EchoService.class));
+  }
+
+  @Test public void synchronous() throws Exception {
+    Exchange exchange = new Exchange("/EchoService/echo", false);
+    syncServlet.doPost(exchange.request(), exchange.response());
+    assertEquals(200, exchange.status);
+    assertEquals(ARGUMENT, exchange.result());
+  }
+
+  @Test public void asynchronous() throws Exception {
+    Exchange exchange = new Exchange("/EchoService/echo", true);
+    servlet.doPost(exchange.request(), exchange.response());
+    // The container thread is free, and we haven't written anything yet.
+    assertEquals(0, exchange.body.size());
+    assertEquals(1, exchange.completed.getCount());
+
+    pending.complete(ARGUMENT);
+    assertTrue(exchange.completed.await(5, TimeUnit.SECONDS));
+    assertEquals(200, exchange.status);
+    assertEquals(ARGUMENT, exchange.result());
+  }
+
+  @Test public void restoresThreadLocalsOnCompletion() throws Exception {
+    Exchange exchange = new Exchange("/EchoService/echo", true);
+    servlet.doPost(exchange.request(), exchange.response());
+    assertNull(requestId.get());
+
+    // Complete the method on another thread, like a datastore callback would.
+    Thread completer = new Thread(() -> pending.complete(ARGUMENT));
+    completer.start();
+    completer.join();
+    assertTrue(exchange.completed.await(5, TimeUnit.SECONDS));
+    assertEquals("request", completedRequestId);
+    assertNotNull(completedInvocation);
+    assertSame(invocation, completedInvocation);
+
+    // We clean up after ourselves.
+    pending = new CompletableFuture<>();
+    Exchange next = new Exchange("/EchoService/echo", true);
+    servlet.doPost(next.request(), next.response());
+    pending.complete(ARGUMENT);
+    assertTrue(next.completed.await(5, TimeUnit.SECONDS));
+    assertNull(requestId.get());
+    assertNull(RpcInvocation.current(false));
+  }
+
+  @Test public void timesOut() throws Exception {
+    Exchange exchange = new Exchange("/EchoService/echo", true);
+    servlet.doPost(exchange.request(), exchange.response());
+    exchange.listener.onTimeout(null);
+    assertEquals(0, exchange.completed.getCount());
+    assertEquals(500, exchange.status);
+    // The method stops waiting, and a late result is ignored.
+    assertTrue(pending.isCancelled());
+    assertEquals(500, exchange.status);
+  }
+
+  @Test public void containerError() throws Exception {
+    Exchange exchange = new Exchange("/EchoService/echo", true);
+    servlet.doPost(exchange.request(), exchange.response());
+    exchange.listener.onError(new AsyncEvent(exchange.asyncContext,
+        new IOException("Broken pipe")));
+    assertEquals(0, exchange.completed.getCount());
+    assertEquals(500, exchange.status);
+    assertTrue(pending.isCancelled());
+  }
+
+  @Test public void asynchronousError() throws Exception {
+    Exchange exchange = new Exchange("/EchoService/echo", true);
+    servlet.doPost(exchange.request(), exchange.response());
+    pending.completeExceptionally(new ClientException("Nope."));
+    assertTrue(exchange.completed.await(5, TimeUnit.SECONDS));
+    assertEquals(400, exchange.status);
+    Response response = Response.ADAPTER.decode(exchange.body.toByteArray());
+    assertEquals("Nope.", response.error.message);
+  }
+
+  @Test public void waitsWithoutAsyncSupport() throws Exception {
+    pending.complete(ARGUMENT);
+    Exchange exchange = new Exchange("/EchoService/echo", false);
+    servlet.doPost(exchange.request(), exchange.response());
+    assertEquals(200, exchange.status);
+    assertEquals(ARGUMENT, exchange.result());
+  }
+
+  /** A fake HTTP request and response. */
+  private static class Exchange {
+
+    private final String path;
+    private final boolean asyncSupported;
+    private final byte[] requestBody = new Request(null,
+        ByteString.of(Error.ADAPTER.encode(ARGUMENT))).encode();
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private final CountDownLatch completed = new CountDownLatch(1);
+    private volatile int status;
+    private volatile AsyncListener listener;
+    private AsyncContext asyncContext;
+
+    private Exchange(String path, boolean asyncSupported) {
+      this.path = path;
+      this.asyncSupported = asyncSupported;
+    }
+
+    private Error result() throws IOException {
+      return Error.ADAPTER.decode(Response.ADAPTER.decode(body.toByteArray()).resultBytes);
+    }
+
+    private HttpServletRequest request() {
+      ByteArrayInputStream in = new ByteArrayInputStream(requestBody);
+      ServletInputStream servletIn = new ServletInputStream() {
+        @Override public boolean isFinished() { return in.available() == 0; }
+        @Override public boolean isReady() { return true; }
+        @Override public void setReadListener(ReadListener readListener) {}
+        @Override public int read() { return in.read(); }
+      };
+      asyncContext = proxy(AsyncContext.class, (proxy, method, args) -> {
+        if (method.getName().equals("complete")) completed.countDown();
+        if (method.getName().equals("addListener")) listener = (AsyncListener) args[0];
+        return null;
+      });
+      return proxy(HttpServletRequest.class, (proxy, method, args) -> {
+        switch (method.getName()) {
+          case "getPathInfo": return path;
+          case "getInputStream": return servletIn;
+          case "isAsyncSupported": return asyncSupported;
+          case "startAsync": return asyncContext;
+          default: return null;
+        }
+      });
+    }
+
+    private HttpServletResponse response() {
+      ServletOutputStream servletOut = new ServletOutputStream() {
+        @Override public boolean isReady() { return true; }
+        @Override public void setWriteListener(WriteListener writeListener) {}
+        @Override public void write(int b) { body.write(b); }
+      };
+      return proxy(HttpServletResponse.class, (proxy, method, args) -> {
+        switch (method.getName()) {
+          case "setStatus": status = (Integer) args[0]; return null;
+          case "getOutputStream": return servletOut;
+          default: return null;
+        }
+      });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, java.lang.reflect.InvocationHandler handler) {
+      return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+  }
+}
@@ -5,6 +5,7 @@ import com.google.common.collect.ImmutableSet;
 import com.squareup.javapoet.ClassName;
 import com.squareup.javapoet.JavaFile;
 import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
 import com.squareup.javapoet.TypeName;
 import com.squareup.javapoet.TypeSpec;
 import com.squareup.wire.java.JavaGenerator;
@@ -17,6 +18,7 @@ import com.squareup.wire.schema.SchemaLoader;
 import com.squareup.wire.schema.Service;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.CompletionStage;
 import javax.lang.model.element.Modifier;
 
 import static com.google.common.base.CaseFormat.LOWER_CAMEL;
@@ -27,13 +29,25 @@ public final class WireServiceGenerator {
   private final ImmutableSet<String> sources;
   private final ImmutableSet<String> protos;
   private final String generatedSourceDirectory;
+  private final boolean async;
 
   public WireServiceGenerator(Log log, ImmutableSet<String> sources,
       ImmutableSet<String> protos, String generatedSourceDirectory) {
+    this(log, sources, protos, generatedSourceDirectory, false);
+  }
+
+  /**
+   * @param async also generates a "FooServiceAsync" interface for each service whose methods
+   *     return {@link CompletionStage}s. RpcServlet serves it at the same path as
+   *     "FooService".
+   */
+  public WireServiceGenerator(Log log, ImmutableSet<String> sources,
+      ImmutableSet<String> protos, String generatedSourceDirectory, boolean async) {
     this.log = log;
     this.sources = sources;
     this.protos = protos;
     this.generatedSourceDirectory = generatedSourceDirectory;
+    this.async = async;
   }
 
   public void execute() throws IOException {
@@ -43,8 +57,14 @@ public final class WireServiceGenerator {
       for (Service service : protoFile.services()) {
         Stopwatch stopwatch = Stopwatch.createStarted();
         ClassName javaTypeName = (ClassName) javaGenerator.typeName(service.type());
-        TypeSpec typeSpec = createJavaInterface(javaGenerator, service);
+        TypeSpec typeSpec = createJavaInterface(javaGenerator, service, false);
         writeJavaFile(javaTypeName, typeSpec, service.location(), stopwatch);
+        if (async) {
+          stopwatch = Stopwatch.createStarted();
+          ClassName asyncTypeName = javaTypeName.peerClass(javaTypeName.simpleName() + "Async");
+          TypeSpec asyncTypeSpec = createJavaInterface(javaGenerator, service, true);
+          writeJavaFile(asyncTypeName, asyncTypeSpec, service.location(), stopwatch);
+        }
       }
     }
   }
@@ -76,10 +96,12 @@ public final class WireServiceGenerator {
     log.info("Generated %s in %s", javaTypeName, stopwatch);
   }
 
-  private TypeSpec createJavaInterface(JavaGenerator javaGenerator, Service service) {
+  private TypeSpec createJavaInterface(JavaGenerator javaGenerator, Service service,
+      boolean async) {
     ClassName interfaceName = (ClassName) javaGenerator.typeName(service.type());
+    String simpleName = interfaceName.simpleName() + (async ? "Async" : "");
 
-    TypeSpec.Builder typeBuilder = TypeSpec.interfaceBuilder(interfaceName.simpleName());
+    TypeSpec.Builder typeBuilder = TypeSpec.interfaceBuilder(simpleName);
     typeBuilder.addModifiers(Modifier.PUBLIC);
 
     for (Rpc rpc : service.rpcs()) {
@@ -90,8 +112,14 @@ public final class WireServiceGenerator {
 
       MethodSpec.Builder rpcBuilder = MethodSpec.methodBuilder(upperToLowerCamel(rpc.name()));
       rpcBuilder.addModifiers(Modifier.PUBLIC, Modifier.ABSTRACT);
-      rpcBuilder.returns(responseJavaType);
-      rpcBuilder.addException(IOException.class);
+      if (async) {
+        // Errors complete the stage exceptionally.
+        rpcBuilder.returns(
+            ParameterizedTypeName.get(ClassName.get(CompletionStage.class), responseJavaType));
+      } else {
+        rpcBuilder.returns(responseJavaType);
+        rpcBuilder.addException(IOException.class);
+      }
 
       rpcBuilder.addParameter(requestJavaType, "request");
 
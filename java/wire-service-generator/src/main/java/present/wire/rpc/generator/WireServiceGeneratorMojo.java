@@ -23,6 +23,10 @@ public class WireServiceGeneratorMojo extends AbstractMojo implements WireServic
       defaultValue = "${project.build.directory}/generated-sources/wire-service")
   private String generatedSourceDirectory;
 
+  /** Also generate "FooServiceAsync" interfaces whose methods return CompletionStages. */
+  @Parameter(property = "wireServiceGenerator.async", defaultValue = "false")
+  private boolean async;
+
   @Parameter(
       defaultValue = "${project}",
       required = true,
@@ -37,7 +41,7 @@ public class WireServiceGeneratorMojo extends AbstractMojo implements WireServic
 
     try {
       WireServiceGenerator codeGenerator = new WireServiceGenerator(
-          this, protoPathsSet, protoFilesSet, generatedSourceDirectory);
+          this, protoPathsSet, protoFilesSet, generatedSourceDirectory, async);
       codeGenerator.execute();
     } catch (IOException e) {
       throw new MojoExecutionException("failed to generate sources", e);